@@ -4,6 +4,7 @@ import client.model.ClientModel;
 import client.model.Email;
 import javafx.application.Platform;
 
+import java.util.List;
 import java.util.function.Consumer;
 
 /**
@@ -63,6 +64,35 @@ public class ClientController {
         deleteThread.start();
     }
 
+    /**
+     * Elimina più email della stessa cartella in un thread separato, con una sola richiesta al server.
+     * @param emails le email da eliminare
+     * @param isSent true se le email sono nella cartella inviati
+     * @param callback il callback da eseguire sul thread FX con il numero di email eliminate
+     */
+    public void deleteEmailsAsync(List<Email> emails, boolean isSent, Consumer<Integer> callback) {
+        Thread deleteThread = new Thread(() -> {
+            int deleted = model.deleteEmails(emails, isSent);
+            Platform.runLater(() -> callback.accept(deleted));
+        });
+        deleteThread.setDaemon(true);
+        deleteThread.start();
+    }
+
+    /**
+     * Carica in un thread separato la pagina di email precedente a quelle già mostrate.
+     * @param sent true per la cartella inviati, false per la posta in arrivo
+     * @param callback il callback da eseguire sul thread FX con il risultato (true/false)
+     */
+    public void loadOlderEmailsAsync(boolean sent, Consumer<Boolean> callback) {
+        Thread pageThread = new Thread(() -> {
+            boolean success = model.loadOlderEmails(sent);
+            Platform.runLater(() -> callback.accept(success));
+        });
+        pageThread.setDaemon(true);
+        pageThread.start();
+    }
+
     /**
      * Esegue lo shutdown del modello.
      */
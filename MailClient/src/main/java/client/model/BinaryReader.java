@@ -0,0 +1,157 @@
+package client.model;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Lettore della codifica binaria compatta prodotta da {@link BinaryWriter}, su un array di byte.
+ * I metodi lanciano IOException se i dati sono troncati o malformati.
+ */
+public class BinaryReader {
+    private final byte[] data;
+    private int position;
+    private final int limit;
+
+    public BinaryReader(byte[] data) {
+        this(data, 0, data.length);
+    }
+
+    public BinaryReader(byte[] data, int offset, int length) {
+        this.data = data;
+        this.position = offset;
+        this.limit = offset + length;
+    }
+
+    /**
+     * Indica se restano byte da leggere.
+     */
+    public boolean hasRemaining() {
+        return position < limit;
+    }
+
+    public int position() {
+        return position;
+    }
+
+    public int readByte() throws IOException {
+        require(1);
+        return data[position++] & 0xFF;
+    }
+
+    public boolean readBoolean() throws IOException {
+        return readByte() != 0;
+    }
+
+    public int readInt() throws IOException {
+        require(4);
+        int value = ((data[position] & 0xFF) << 24) | ((data[position + 1] & 0xFF) << 16)
+                | ((data[position + 2] & 0xFF) << 8) | (data[position + 3] & 0xFF);
+        position += 4;
+        return value;
+    }
+
+    public long readVarLong() throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            int b = readByte();
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("Varint malformato");
+    }
+
+    public int readVarInt() throws IOException {
+        long value = readVarLong();
+        if (value > 0xFFFFFFFFL) {
+            throw new IOException("Varint fuori intervallo");
+        }
+        return (int) value;
+    }
+
+    public long readZigZagLong() throws IOException {
+        long value = readVarLong();
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    public String readString() throws IOException {
+        int length = readVarInt();
+        if (length == 0) {
+            return null;
+        }
+        length--;
+        require(length);
+        String value = new String(data, position, length, StandardCharsets.UTF_8);
+        position += length;
+        return value;
+    }
+
+    /**
+     * Legge una sequenza di byte grezzi.
+     */
+    public byte[] readBytes(int length) throws IOException {
+        require(length);
+        byte[] bytes = new byte[length];
+        System.arraycopy(data, position, bytes, 0, length);
+        position += length;
+        return bytes;
+    }
+
+    public LocalDateTime readTimestamp() throws IOException {
+        if (!readBoolean()) {
+            return null;
+        }
+        long epochSecond = readZigZagLong();
+        int nanos = readVarInt();
+        return LocalDateTime.ofEpochSecond(epochSecond, nanos, ZoneOffset.UTC);
+    }
+
+    /**
+     * Legge un'Email scritta con {@link BinaryWriter#writeEmail(Email)}.
+     */
+    public Email readEmail() throws IOException {
+        String id = readString();
+        String sender = readString();
+        int recipientCount = readVarInt();
+        List<String> recipients = null;
+        if (recipientCount > 0) {
+            recipients = new ArrayList<>(Math.min(recipientCount - 1, 1024));
+            for (int i = 0; i < recipientCount - 1; i++) {
+                recipients.add(readString());
+            }
+        }
+        String subject = readString();
+        String body = readString();
+        Email email = new Email();
+        email.setId(id);
+        email.setSender(sender);
+        email.setRecipients(recipients);
+        email.setSubject(subject);
+        email.setBody(body);
+        email.setTimestamp(readTimestamp());
+        return email;
+    }
+
+    /**
+     * Legge una lista di Email scritta con {@link BinaryWriter#writeEmails(List)}.
+     */
+    public List<Email> readEmails() throws IOException {
+        int count = readVarInt();
+        List<Email> emails = new ArrayList<>(Math.min(count, 4096));
+        for (int i = 0; i < count; i++) {
+            emails.add(readEmail());
+        }
+        return emails;
+    }
+
+    private void require(int length) throws IOException {
+        if (length < 0 || position + length > limit) {
+            throw new IOException("Dati binari troncati");
+        }
+    }
+}
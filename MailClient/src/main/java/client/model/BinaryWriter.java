@@ -0,0 +1,168 @@
+package client.model;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Buffer di scrittura per la codifica binaria compatta: varint, stringhe UTF-8 con lunghezza,
+ * timestamp come secondi dall'epoch ed Email complete.
+ * Il buffer cresce secondo necessità e può essere riusato con {@link #reset()}.
+ */
+public class BinaryWriter {
+    private byte[] buffer;
+    private int size = 0;
+
+    public BinaryWriter() {
+        this(256);
+    }
+
+    public BinaryWriter(int initialCapacity) {
+        this.buffer = new byte[Math.max(16, initialCapacity)];
+    }
+
+    /**
+     * Svuota il buffer mantenendo la capacità già allocata.
+     */
+    public void reset() {
+        size = 0;
+    }
+
+    /**
+     * Numero di byte scritti.
+     * @return dimensione del contenuto
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Copia il contenuto su uno stream.
+     * @param out stream di destinazione
+     * @throws IOException in caso di errori di scrittura
+     */
+    public void writeTo(OutputStream out) throws IOException {
+        out.write(buffer, 0, size);
+    }
+
+    /**
+     * Restituisce una copia del contenuto.
+     * @return byte scritti
+     */
+    public byte[] toByteArray() {
+        return Arrays.copyOf(buffer, size);
+    }
+
+    public void writeByte(int value) {
+        ensureCapacity(1);
+        buffer[size++] = (byte) value;
+    }
+
+    public void writeBytes(byte[] bytes, int offset, int length) {
+        ensureCapacity(length);
+        System.arraycopy(bytes, offset, buffer, size, length);
+        size += length;
+    }
+
+    public void writeBoolean(boolean value) {
+        writeByte(value ? 1 : 0);
+    }
+
+    /**
+     * Scrive un intero lungo 32 bit in big-endian (usato per i campi a dimensione fissa).
+     */
+    public void writeInt(int value) {
+        ensureCapacity(4);
+        buffer[size++] = (byte) (value >>> 24);
+        buffer[size++] = (byte) (value >>> 16);
+        buffer[size++] = (byte) (value >>> 8);
+        buffer[size++] = (byte) value;
+    }
+
+    /**
+     * Scrive un intero non negativo come varint (7 bit per byte, bit alto di continuazione).
+     */
+    public void writeVarLong(long value) {
+        ensureCapacity(10);
+        while ((value & ~0x7FL) != 0) {
+            buffer[size++] = (byte) ((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        buffer[size++] = (byte) value;
+    }
+
+    public void writeVarInt(int value) {
+        writeVarLong(value & 0xFFFFFFFFL);
+    }
+
+    /**
+     * Scrive un intero con segno in codifica zig-zag, così i valori negativi piccoli restano corti.
+     */
+    public void writeZigZagLong(long value) {
+        writeVarLong((value << 1) ^ (value >> 63));
+    }
+
+    /**
+     * Scrive una stringa UTF-8 preceduta dalla lunghezza; la lunghezza è incrementata di 1 per distinguere null (0).
+     */
+    public void writeString(String value) {
+        if (value == null) {
+            writeVarInt(0);
+            return;
+        }
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        writeVarInt(bytes.length + 1);
+        writeBytes(bytes, 0, bytes.length);
+    }
+
+    /**
+     * Scrive un timestamp come secondi dall'epoch (UTC, zig-zag) e nanosecondi; null è codificato con un flag.
+     */
+    public void writeTimestamp(LocalDateTime timestamp) {
+        if (timestamp == null) {
+            writeBoolean(false);
+            return;
+        }
+        writeBoolean(true);
+        writeZigZagLong(timestamp.toEpochSecond(ZoneOffset.UTC));
+        writeVarInt(timestamp.getNano());
+    }
+
+    /**
+     * Scrive un'Email completa: id, mittente, destinatari, oggetto, corpo e timestamp.
+     */
+    public void writeEmail(Email email) {
+        writeString(email.getId());
+        writeString(email.getSender());
+        List<String> recipients = email.getRecipients();
+        writeVarInt(recipients == null ? 0 : recipients.size() + 1);
+        if (recipients != null) {
+            for (String recipient : recipients) {
+                writeString(recipient);
+            }
+        }
+        writeString(email.getSubject());
+        writeString(email.getBody());
+        writeTimestamp(email.getTimestamp());
+    }
+
+    /**
+     * Scrive una lista di Email preceduta dal numero di elementi.
+     */
+    public void writeEmails(List<Email> emails) {
+        writeVarInt(emails.size());
+        for (Email email : emails) {
+            writeEmail(email);
+        }
+    }
+
+    private void ensureCapacity(int additional) {
+        if (size + additional > buffer.length) {
+            buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, size + additional));
+        }
+    }
+}
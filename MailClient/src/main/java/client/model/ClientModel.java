@@ -1,27 +1,46 @@
 package client.model;
 
 import javafx.application.Platform;
+import javafx.beans.property.ReadOnlyBooleanProperty;
+import javafx.beans.property.ReadOnlyBooleanWrapper;
 import javafx.collections.FXCollections;
 import javafx.collections.ObservableList;
+import client.network.PushSubscription;
 import client.network.ServerConnection;
 
+import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
  * Modello principale del client per la gestione delle email.
  * Gestisce autenticazione, sincronizzazione, invio, eliminazione e stato della connessione.
  */
 public class ClientModel {
+    private static final int PAGE_SIZE = 50;    // Email caricate per cartella al login e a ogni richiesta di pagine precedenti
+    private static final int PUSH_SYNC_TICKS = 6; // Con il push attivo, una sincronizzazione ogni 6 cicli (30 secondi)
+
     private String userEmail;                   // Email dell'utente autenticato
     private ObservableList<Email> inbox;        // Lista delle email ricevute (inbox)
     private ObservableList<Email> sentEmails;   // Lista delle email inviate
     private ServerConnection serverConnection;  // Gestione della connessione al server
     private ScheduledExecutorService scheduler; // Scheduler per attività periodiche (sync e controllo connessione)
-    private int lastEmailIndex;                 // Indice dell'ultima email ricevuta (per sincronizzazione incrementale)
+    private String syncCursor;                  // Cursore dell'ultima sincronizzazione delle ricevute (null: si riparte da zero)
+    private final Set<String> syncedIds = new HashSet<>();  // Id delle ricevute arrivate con sync o push, per scartare i duplicati
     private boolean connected;                  // Stato della connessione al server
+    private final Object syncLock = new Object();           // Protegge syncCursor e syncedIds tra push e polling
+    private volatile PushSubscription pushSubscription;     // Sottoscrizione push attiva (null se si usa il polling)
+    private int ticksSinceSync;                 // Cicli senza sincronizzazione con il push attivo (solo thread dello scheduler)
+    private final Object pageLock = new Object();           // Serializza il caricamento delle pagine precedenti
+    private String inboxCursor;                 // Cursore delle ricevute meno recenti non ancora caricate (null se finite)
+    private String sentCursor;                  // Cursore delle inviate meno recenti non ancora caricate (null se finite)
+    private final ReadOnlyBooleanWrapper moreInbox = new ReadOnlyBooleanWrapper(false); // Ci sono ricevute più vecchie da caricare
+    private final ReadOnlyBooleanWrapper moreSent = new ReadOnlyBooleanWrapper(false);  // Ci sono inviate più vecchie da caricare
 
     /**
      * Costruttore: inizializza le liste, la connessione e lo scheduler.
@@ -31,34 +50,47 @@ public class ClientModel {
         this.sentEmails = FXCollections.observableArrayList();
         this.serverConnection = new ServerConnection();
         this.scheduler = Executors.newScheduledThreadPool(2);
-        this.lastEmailIndex = 0;
+        this.syncCursor = null;
         this.connected = false;
     }
 
     /**
      * Autentica l'utente tramite email.
-     * Se l'autenticazione va a buon fine, carica inbox e sent, avvia la sincronizzazione automatica.
+     * Se l'autenticazione va a buon fine, carica la pagina più recente di inbox e sent e avvia la sincronizzazione automatica;
+     * le email più vecchie si caricano su richiesta con {@link #loadOlderEmails(boolean)}.
      * @param email email da autenticare
      * @return true se autenticato, false altrimenti
      */
     public boolean authenticateUser(String email) {
         if (EmailValidator.isValidEmailFormat(email)) {
-            boolean valid = serverConnection.validateEmail(email);
-            if (valid) {
+            // Validazione e recupero di ricevute e inviate in pipeline sulla stessa connessione
+            ServerConnection.LoginResult login = serverConnection.login(email, PAGE_SIZE);
+            if (login.isValid()) {
                 this.userEmail = email;
                 this.connected = true;
 
-                // Recupera email ricevute e inviate dal server
-                List<Email> received = serverConnection.getNewEmails(email, 0);
-                List<Email> sent = serverConnection.getSentEmails(email);
+                List<Email> received = login.getReceivedEmails();
+                List<Email> sent = login.getSentEmails();
+                synchronized (pageLock) {
+                    inboxCursor = login.getReceivedPage().getNextCursor();
+                    sentCursor = login.getSentPage().getNextCursor();
+                }
+                boolean hasMoreInbox = login.getReceivedPage().hasMore();
+                boolean hasMoreSent = login.getSentPage().hasMore();
 
                 // Aggiorna le ObservableList sul thread FX
-                Platform.runLater(() -> {
-                    inbox.setAll(received);
-                    sentEmails.setAll(sent);
-                });
-
-                lastEmailIndex = received.size();
+                synchronized (syncLock) {
+                    Platform.runLater(() -> {
+                        inbox.setAll(received);
+                        sentEmails.setAll(sent);
+                        moreInbox.set(hasMoreInbox);
+                        moreSent.set(hasMoreSent);
+                    });
+                    // La sincronizzazione incrementale prosegue dal cursore restituito insieme alle ricevute
+                    syncCursor = login.getSyncCursor();
+                    syncedIds.clear();
+                    addIds(received, syncedIds);
+                }
                 startAutoSync();
                 return true;
             }
@@ -68,31 +100,68 @@ public class ClientModel {
 
     /**
      * Avvia la sincronizzazione automatica e il controllo connessione.
-     * Sincronizza la casella di posta ogni 5 secondi e controlla la connessione ogni 10 secondi.
+     * Le nuove email arrivano in push tramite una connessione SUBSCRIBE; ogni 5 secondi, se la sottoscrizione
+     * non è attiva, si prova a riattivarla e in caso contrario si esegue il polling come fallback.
+     * Con il push attivo si sincronizza comunque ogni 30 secondi: le notifiche portano solo le nuove email,
+     * quindi così si applicano le eliminazioni fatte da altre sessioni e il cursore resta aggiornato.
+     * La connessione viene controllata ogni 10 secondi.
      */
     private void startAutoSync() {
-        // Sincronizzazione automatica ogni 5 secondi
-        scheduler.scheduleAtFixedRate(this::syncWithServer, 0, 5, TimeUnit.SECONDS);
+        // Push con polling di fallback ogni 5 secondi
+        scheduler.scheduleAtFixedRate(this::subscribeOrPoll, 0, 5, TimeUnit.SECONDS);
 
         // Verifica connessione ogni 10 secondi
         scheduler.scheduleAtFixedRate(this::checkConnection, 0, 10, TimeUnit.SECONDS);
     }
 
+    /**
+     * Se la sottoscrizione push non è attiva prova a (ri)attivarla; se non ci riesce sincronizza con il polling.
+     * Il recupero iniziale della sottoscrizione contiene al massimo una pagina: se ci sono altre modifiche
+     * vengono lette con SYNC prima di affidarsi al push.
+     */
+    private void subscribeOrPoll() {
+        if (userEmail == null || !connected) {
+            return;
+        }
+        PushSubscription current = pushSubscription;
+        if (current != null && current.isActive()) {
+            // Le nuove email arrivano in push; eliminazioni e cursore con una sincronizzazione periodica
+            if (++ticksSinceSync >= PUSH_SYNC_TICKS) {
+                ticksSinceSync = 0;
+                syncWithServer();
+            }
+            return;
+        }
+        // Il lock non resta tenuto durante la connessione: push e polling applicano i risultati con applySync
+        AtomicBoolean backlogHasMore = new AtomicBoolean(false);
+        pushSubscription = serverConnection.subscribe(userEmail, currentSyncCursor(), PAGE_SIZE,
+                sync -> {
+                    applySync(sync);
+                    backlogHasMore.set(sync.hasMore());
+                },
+                this::appendNewEmails,
+                () -> System.err.println("Sottoscrizione push interrotta: si torna al polling"));
+        ticksSinceSync = 0;
+        if (pushSubscription == null || backlogHasMore.get()) {
+            syncWithServer(); // Polling di fallback, oppure resto delle modifiche dal cursore del recupero iniziale
+        }
+    }
+
     /**
      * Sincronizza la casella di posta con il server.
-     * Recupera nuove email e aggiorna la inbox.
+     * Chiede le sole modifiche successive al cursore (email aggiunte ed eliminate) e aggiorna la inbox:
+     * il lavoro dipende dal numero di modifiche, non dalla dimensione della casella.
      */
     public void syncWithServer() {
         if (userEmail != null && connected) {
             try {
-                List<Email> newEmails = serverConnection.getNewEmails(userEmail, lastEmailIndex);
-                if (newEmails != null && !newEmails.isEmpty()) {
-                    Platform.runLater(() -> {
-                        inbox.addAll(newEmails);
-                        lastEmailIndex = inbox.size();
-                        // Notifica nuovo messaggio (può essere implementata con Alert)
-                    });
-                }
+                SyncResult sync;
+                do {
+                    sync = serverConnection.sync(userEmail, currentSyncCursor(), PAGE_SIZE);
+                    if (sync != null) {
+                        applySync(sync);
+                    }
+                } while (sync != null && sync.hasMore());
             } catch (Exception e) {
                 connected = false;
                 System.err.println("Errore nella sincronizzazione: " + e.getMessage());
@@ -100,6 +169,122 @@ public class ClientModel {
         }
     }
 
+    /**
+     * Legge il cursore di sincronizzazione da usare per la prossima richiesta al server.
+     * La richiesta viene poi eseguita senza lock, così push e polling non restano bloccati dalla rete.
+     * @return cursore corrente, oppure null
+     */
+    private String currentSyncCursor() {
+        synchronized (syncLock) {
+            return syncCursor;
+        }
+    }
+
+    /**
+     * Applica il risultato di una sincronizzazione (da polling o dal recupero iniziale della sottoscrizione)
+     * e ne memorizza il cursore. Con un reset la inbox viene sostituita dalle email più recenti.
+     * Può ricevere un risultato calcolato da un cursore già superato da un'altra sincronizzazione: le email
+     * già arrivate vengono scartate e le eliminazioni ripetute non hanno effetto; se il cursore torna indietro
+     * la sincronizzazione successiva riporta le modifiche più recenti, che vengono applicate allo stesso modo.
+     * @param sync risultato della sincronizzazione
+     */
+    private void applySync(SyncResult sync) {
+        synchronized (syncLock) {
+            syncCursor = sync.getCursor();
+            if (sync.isReset()) {
+                List<Email> latest = sync.getEmails();
+                boolean hasMore = sync.getNextCursor() != null;
+                syncedIds.clear();
+                addIds(latest, syncedIds);
+                synchronized (pageLock) {
+                    inboxCursor = sync.getNextCursor();
+                }
+                Platform.runLater(() -> {
+                    inbox.setAll(latest);
+                    moreInbox.set(hasMore);
+                });
+                return;
+            }
+            if (!sync.getDeletedIds().isEmpty()) {
+                Set<String> deletedIds = new HashSet<>(sync.getDeletedIds());
+                syncedIds.removeAll(deletedIds);
+                Platform.runLater(() -> inbox.removeIf(email -> deletedIds.contains(email.getId())));
+            }
+            appendNewEmails(sync.getEmails());
+        }
+    }
+
+    /**
+     * Accoda alla inbox le nuove email ricevute (da push o polling), scartando quelle già arrivate:
+     * dopo una riconnessione la sincronizzazione può restituire email già ricevute in push.
+     * La lista osservabile viene aggiornata sul thread FX nello stesso ordine di arrivo.
+     * @param newEmails nuove email ricevute
+     */
+    private void appendNewEmails(List<Email> newEmails) {
+        if (newEmails == null || newEmails.isEmpty()) {
+            return;
+        }
+        synchronized (syncLock) {
+            List<Email> fresh = new ArrayList<>(newEmails.size());
+            for (Email email : newEmails) {
+                if (email.getId() == null || syncedIds.add(email.getId())) {
+                    fresh.add(email);
+                }
+            }
+            if (!fresh.isEmpty()) {
+                // Notifica nuovo messaggio (può essere implementata con Alert)
+                Platform.runLater(() -> inbox.addAll(fresh));
+            }
+        }
+    }
+
+    private static void addIds(List<Email> emails, Set<String> ids) {
+        for (Email email : emails) {
+            if (email.getId() != null) {
+                ids.add(email.getId());
+            }
+        }
+    }
+
+    /**
+     * Carica la pagina di email immediatamente più vecchia di quelle già mostrate e la inserisce in testa alla lista.
+     * Non modifica il cursore di sincronizzazione, che riguarda solo le modifiche successive al login.
+     * @param sent true per le email inviate, false per le ricevute
+     * @return true se la pagina è stata caricata (o non c'era altro da caricare), false in caso di errore
+     */
+    public boolean loadOlderEmails(boolean sent) {
+        if (userEmail == null || !connected) {
+            return false;
+        }
+        synchronized (pageLock) {
+            String cursor = sent ? sentCursor : inboxCursor;
+            if (cursor == null) {
+                return true;
+            }
+            EmailPage page = serverConnection.getEmailPage(userEmail, sent, PAGE_SIZE, cursor);
+            if (page == null) {
+                return false;
+            }
+            if (sent) {
+                sentCursor = page.getNextCursor();
+            } else {
+                inboxCursor = page.getNextCursor();
+            }
+            List<Email> older = page.getEmails();
+            boolean hasMore = page.hasMore();
+            Platform.runLater(() -> {
+                if (sent) {
+                    sentEmails.addAll(0, older);
+                    moreSent.set(hasMore);
+                } else {
+                    inbox.addAll(0, older);
+                    moreInbox.set(hasMore);
+                }
+            });
+            return true;
+        }
+    }
+
     /**
      * Controlla periodicamente lo stato della connessione.
      * Se la connessione viene ristabilita, sincronizza la casella di posta.
@@ -148,12 +333,16 @@ public class ClientModel {
         if (connected && userEmail != null) {
             boolean deleted = serverConnection.deleteEmail(userEmail, email.getId(), isSent);
             if (deleted) {
+                if (!isSent) {
+                    synchronized (syncLock) {
+                        syncedIds.remove(email.getId());
+                    }
+                }
                 Platform.runLater(() -> {
                     if (isSent) {
                         sentEmails.remove(email);
                     } else {
                         inbox.remove(email);
-                        lastEmailIndex = inbox.size();
                     }
                 });
             }
@@ -162,6 +351,46 @@ public class ClientModel {
         return false;
     }
 
+    /**
+     * Elimina più email della stessa cartella con una sola richiesta al server.
+     * @param emails email da eliminare
+     * @param isSent true se le email sono nella cartella inviati
+     * @return numero di email eliminate
+     */
+    public int deleteEmails(List<Email> emails, boolean isSent) {
+        if (!connected || userEmail == null || emails.isEmpty()) {
+            return 0;
+        }
+        List<String> ids = new ArrayList<>(emails.size());
+        for (Email email : emails) {
+            ids.add(email.getId());
+        }
+        boolean[] results = serverConnection.deleteEmails(userEmail, ids, isSent);
+        List<Email> deleted = new ArrayList<>();
+        for (int i = 0; i < results.length && i < emails.size(); i++) {
+            if (results[i]) {
+                deleted.add(emails.get(i));
+            }
+        }
+        if (!deleted.isEmpty()) {
+            if (!isSent) {
+                synchronized (syncLock) {
+                    for (Email email : deleted) {
+                        syncedIds.remove(email.getId());
+                    }
+                }
+            }
+            Platform.runLater(() -> {
+                if (isSent) {
+                    sentEmails.removeAll(deleted);
+                } else {
+                    inbox.removeAll(deleted);
+                }
+            });
+        }
+        return deleted.size();
+    }
+
     /**
      * Arresta lo scheduler e chiude la connessione al server.
      * Da chiamare in fase di chiusura dell'applicazione.
@@ -170,6 +399,10 @@ public class ClientModel {
         if (scheduler != null && !scheduler.isShutdown()) {
             scheduler.shutdown();
         }
+        PushSubscription subscription = pushSubscription;
+        if (subscription != null) {
+            subscription.close();
+        }
         if (serverConnection != null) {
             serverConnection.close();
         }
@@ -202,6 +435,18 @@ public class ClientModel {
      */
     public ObservableList<Email> getSentEmails() { return sentEmails; }
 
+    /**
+     * Indica se sul server ci sono email ricevute più vecchie di quelle caricate (aggiornata sul thread FX).
+     * @return proprietà osservabile
+     */
+    public ReadOnlyBooleanProperty moreInboxProperty() { return moreInbox.getReadOnlyProperty(); }
+
+    /**
+     * Indica se sul server ci sono email inviate più vecchie di quelle caricate (aggiornata sul thread FX).
+     * @return proprietà osservabile
+     */
+    public ReadOnlyBooleanProperty moreSentProperty() { return moreSent.getReadOnlyProperty(); }
+
     /**
      * Restituisce lo stato della connessione.
      * @return true se connesso, false altrimenti
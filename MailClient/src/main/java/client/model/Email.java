@@ -35,6 +35,13 @@ public class Email implements Serializable {
         this.timestamp = LocalDateTime.now(); // Imposta il timestamp corrente
     }
 
+    /**
+     * Costruttore vuoto usato dai codec durante la decodifica: evita di generare un UUID
+     * e un timestamp che verrebbero subito sovrascritti dai valori letti.
+     */
+    Email() {
+    }
+
     // Getter e setter per tutti i campi
 
     public String getId() { return id; }
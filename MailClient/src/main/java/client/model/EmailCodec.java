@@ -0,0 +1,309 @@
+package client.model;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.TypeAdapter;
+import com.google.gson.reflect.TypeToken;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.lang.reflect.Type;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Codec JSON di {@link Email} e {@code List<Email>} scritto a mano: legge e scrive i campi tramite
+ * getter e setter, senza il binding via reflection di Gson.
+ * <p>
+ * Il formato è identico a quello prodotto dal binding riflessivo (stessi nomi e ordine dei campi,
+ * timestamp ISO come {@link LocalDateTimeTypeAdapter}), quindi resta compatibile con i client esistenti.
+ * Gson e gli adapter sono thread-safe: {@link #GSON} è un'unica istanza condivisa da tutte le connessioni.
+ * </p>
+ */
+public final class EmailCodec {
+    /** Tipo di {@code List<Email>}, per chi usa direttamente {@link #GSON}. */
+    public static final Type EMAIL_LIST_TYPE = new TypeToken<List<Email>>() {}.getType();
+
+    private static final DateTimeFormatter TIMESTAMP_FORMAT = DateTimeFormatter.ISO_LOCAL_DATE_TIME;
+    private static final EmailAdapter EMAIL_ADAPTER = new EmailAdapter();
+    private static final EmailListAdapter EMAIL_LIST_ADAPTER = new EmailListAdapter();
+
+    /** Istanza Gson condivisa con gli adapter di Email, List&lt;Email&gt; e LocalDateTime registrati. */
+    public static final Gson GSON = new GsonBuilder()
+            .registerTypeAdapter(Email.class, EMAIL_ADAPTER.nullSafe())
+            .registerTypeAdapter(EMAIL_LIST_TYPE, EMAIL_LIST_ADAPTER.nullSafe())
+            .registerTypeAdapter(LocalDateTime.class, new LocalDateTimeTypeAdapter())
+            .create();
+
+    private EmailCodec() {
+    }
+
+    /**
+     * Serializza una email in JSON.
+     */
+    public static String toJson(Email email) {
+        StringWriter buffer = new StringWriter(256);
+        try {
+            EMAIL_ADAPTER.write(new JsonWriter(buffer), email);
+        } catch (IOException e) {
+            throw new IllegalStateException(e); // Non accade con uno StringWriter
+        }
+        return buffer.toString();
+    }
+
+    /**
+     * Serializza una lista di email in JSON.
+     */
+    public static String toJson(List<Email> emails) {
+        StringWriter buffer = new StringWriter(256 * Math.max(1, emails.size()));
+        try {
+            writeList(emails, buffer);
+        } catch (IOException e) {
+            throw new IllegalStateException(e); // Non accade con uno StringWriter
+        }
+        return buffer.toString();
+    }
+
+    /**
+     * Scrive una lista di email in JSON direttamente su un Writer, una email alla volta (senza flush).
+     * @param emails email da scrivere
+     * @param out destinazione
+     * @throws IOException in caso di errori di scrittura
+     */
+    public static void writeList(List<Email> emails, Writer out) throws IOException {
+        EMAIL_LIST_ADAPTER.write(new JsonWriter(out), emails);
+    }
+
+    /**
+     * Scrive una pagina come oggetto JSON {@code {"total":N,"nextCursor":"...","emails":[...]}};
+     * le email sono in fondo, così vengono scritte in streaming come in {@link #writeList(List, Writer)}.
+     * @param page pagina da scrivere
+     * @param out destinazione
+     * @throws IOException in caso di errori di scrittura
+     */
+    public static void writePage(EmailPage page, Writer out) throws IOException {
+        JsonWriter writer = new JsonWriter(out);
+        writer.beginObject();
+        writer.name("total").value(page.getTotal());
+        if (page.getNextCursor() != null) {
+            writer.name("nextCursor").value(page.getNextCursor());
+        }
+        writer.name("emails");
+        EMAIL_LIST_ADAPTER.write(writer, page.getEmails());
+        writer.endObject();
+    }
+
+    /**
+     * Deserializza una pagina scritta con {@link #writePage(EmailPage, Writer)}.
+     * @throws IOException se il JSON non è valido
+     */
+    public static EmailPage pageFromJson(String json) throws IOException {
+        try {
+            JsonReader in = new JsonReader(new StringReader(json));
+            int total = 0;
+            String nextCursor = null;
+            List<Email> emails = new ArrayList<>();
+            in.beginObject();
+            while (in.hasNext()) {
+                String name = in.nextName();
+                if (in.peek() == JsonToken.NULL) {
+                    in.nextNull();
+                } else if (name.equals("total")) {
+                    total = in.nextInt();
+                } else if (name.equals("nextCursor")) {
+                    nextCursor = in.nextString();
+                } else if (name.equals("emails")) {
+                    emails = EMAIL_LIST_ADAPTER.read(in);
+                } else {
+                    in.skipValue();
+                }
+            }
+            in.endObject();
+            return new EmailPage(emails, nextCursor, total);
+        } catch (IllegalStateException | NumberFormatException e) {
+            throw new IOException("JSON non valido: " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Deserializza il risultato di una sincronizzazione
+     * ({@code {"cursor":"...","reset":false,"more":false,"total":N,"nextCursor":"...","deleted":[...],"emails":[...]}}).
+     * @throws IOException se il JSON non è valido
+     */
+    public static SyncResult syncFromJson(String json) throws IOException {
+        try {
+            JsonReader in = new JsonReader(new StringReader(json));
+            String cursor = null;
+            boolean reset = false;
+            boolean more = false;
+            int total = 0;
+            String nextCursor = null;
+            List<String> deletedIds = new ArrayList<>();
+            List<Email> emails = new ArrayList<>();
+            in.beginObject();
+            while (in.hasNext()) {
+                String name = in.nextName();
+                if (in.peek() == JsonToken.NULL) {
+                    in.nextNull();
+                } else if (name.equals("cursor")) {
+                    cursor = in.nextString();
+                } else if (name.equals("reset")) {
+                    reset = in.nextBoolean();
+                } else if (name.equals("more")) {
+                    more = in.nextBoolean();
+                } else if (name.equals("total")) {
+                    total = in.nextInt();
+                } else if (name.equals("nextCursor")) {
+                    nextCursor = in.nextString();
+                } else if (name.equals("deleted")) {
+                    in.beginArray();
+                    while (in.hasNext()) {
+                        deletedIds.add(in.nextString());
+                    }
+                    in.endArray();
+                } else if (name.equals("emails")) {
+                    emails = EMAIL_LIST_ADAPTER.read(in);
+                } else {
+                    in.skipValue();
+                }
+            }
+            in.endObject();
+            if (cursor == null) {
+                throw new IOException("JSON non valido: cursore mancante");
+            }
+            return new SyncResult(cursor, reset, more, emails, deletedIds, total, nextCursor);
+        } catch (IllegalStateException | NumberFormatException e) {
+            throw new IOException("JSON non valido: " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Deserializza una email da JSON.
+     * @throws IOException se il JSON non è valido
+     */
+    public static Email emailFromJson(String json) throws IOException {
+        try {
+            return EMAIL_ADAPTER.read(new JsonReader(new StringReader(json)));
+        } catch (IllegalStateException | NumberFormatException e) {
+            throw new IOException("JSON non valido: " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Deserializza una lista di email da JSON.
+     * @throws IOException se il JSON non è valido
+     */
+    public static List<Email> listFromJson(String json) throws IOException {
+        try {
+            return EMAIL_LIST_ADAPTER.read(new JsonReader(new StringReader(json)));
+        } catch (IllegalStateException | NumberFormatException e) {
+            throw new IOException("JSON non valido: " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Adapter di una singola email.
+     */
+    private static final class EmailAdapter extends TypeAdapter<Email> {
+        @Override
+        public void write(JsonWriter out, Email email) throws IOException {
+            out.beginObject();
+            writeString(out, "id", email.getId());
+            writeString(out, "sender", email.getSender());
+            if (email.getRecipients() != null) {
+                out.name("recipients").beginArray();
+                for (String recipient : email.getRecipients()) {
+                    out.value(recipient);
+                }
+                out.endArray();
+            }
+            writeString(out, "subject", email.getSubject());
+            writeString(out, "body", email.getBody());
+            if (email.getTimestamp() != null) {
+                out.name("timestamp").value(TIMESTAMP_FORMAT.format(email.getTimestamp()));
+            }
+            out.endObject();
+        }
+
+        @Override
+        public Email read(JsonReader in) throws IOException {
+            Email email = new Email();
+            in.beginObject();
+            while (in.hasNext()) {
+                String name = in.nextName();
+                if (in.peek() == JsonToken.NULL) {
+                    in.nextNull();
+                    continue;
+                }
+                switch (name) {
+                    case "id":
+                        email.setId(in.nextString());
+                        break;
+                    case "sender":
+                        email.setSender(in.nextString());
+                        break;
+                    case "recipients":
+                        List<String> recipients = new ArrayList<>();
+                        in.beginArray();
+                        while (in.hasNext()) {
+                            recipients.add(in.nextString());
+                        }
+                        in.endArray();
+                        email.setRecipients(recipients);
+                        break;
+                    case "subject":
+                        email.setSubject(in.nextString());
+                        break;
+                    case "body":
+                        email.setBody(in.nextString());
+                        break;
+                    case "timestamp":
+                        email.setTimestamp(LocalDateTime.parse(in.nextString(), TIMESTAMP_FORMAT));
+                        break;
+                    default:
+                        in.skipValue(); // Campi sconosciuti (versioni future) ignorati
+                }
+            }
+            in.endObject();
+            return email;
+        }
+
+        private static void writeString(JsonWriter out, String name, String value) throws IOException {
+            if (value != null) {
+                out.name(name).value(value);
+            }
+        }
+    }
+
+    /**
+     * Adapter di una lista di email, in streaming elemento per elemento.
+     */
+    private static final class EmailListAdapter extends TypeAdapter<List<Email>> {
+        @Override
+        public void write(JsonWriter out, List<Email> emails) throws IOException {
+            out.beginArray();
+            for (Email email : emails) {
+                EMAIL_ADAPTER.write(out, email);
+            }
+            out.endArray();
+        }
+
+        @Override
+        public List<Email> read(JsonReader in) throws IOException {
+            List<Email> emails = new ArrayList<>();
+            in.beginArray();
+            while (in.hasNext()) {
+                emails.add(EMAIL_ADAPTER.read(in));
+            }
+            in.endArray();
+            return emails;
+        }
+    }
+}
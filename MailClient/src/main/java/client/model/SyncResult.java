@@ -0,0 +1,50 @@
+package client.model;
+
+import java.util.List;
+
+/**
+ * Risultato di una sincronizzazione incrementale delle email ricevute.
+ * Il cursore, opaco per il client, va passato alla sincronizzazione successiva.
+ * Con {@code reset} il server non ha potuto ricostruire le modifiche: le email sono le più recenti della
+ * cartella e sostituiscono quelle già mostrate, con il totale e il cursore di pagina per le più vecchie.
+ */
+public class SyncResult {
+    private final String cursor;            // Cursore da usare per la prossima sincronizzazione
+    private final boolean reset;            // true se le email sostituiscono quelle già note
+    private final boolean more;             // true se ci sono altre modifiche da chiedere subito
+    private final List<Email> emails;       // Email aggiunte (o, con reset, le più recenti), in ordine cronologico
+    private final List<String> deletedIds;  // Id delle email eliminate (vuota con reset)
+    private final int total;                // Numero di email nella cartella
+    private final String nextCursor;        // Con reset: cursore di pagina delle email precedenti, null se finite
+
+    public SyncResult(String cursor, boolean reset, boolean more, List<Email> emails, List<String> deletedIds,
+                      int total, String nextCursor) {
+        this.cursor = cursor;
+        this.reset = reset;
+        this.more = more;
+        this.emails = emails;
+        this.deletedIds = deletedIds;
+        this.total = total;
+        this.nextCursor = nextCursor;
+    }
+
+    public String getCursor() { return cursor; }
+
+    public boolean isReset() { return reset; }
+
+    public boolean hasMore() { return more; }
+
+    public List<Email> getEmails() { return emails; }
+
+    public List<String> getDeletedIds() { return deletedIds; }
+
+    public int getTotal() { return total; }
+
+    public String getNextCursor() { return nextCursor; }
+
+    /**
+     * Pagina delle email più recenti contenuta in un reset.
+     * @return pagina con le email, il cursore delle precedenti e il totale
+     */
+    public EmailPage toPage() { return new EmailPage(emails, nextCursor, total); }
+}
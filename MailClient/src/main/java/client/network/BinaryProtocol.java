@@ -0,0 +1,86 @@
+package client.network;
+
+import client.model.BinaryWriter;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+/**
+ * Costanti e framing del protocollo binario del server, negoziato con la riga {@code BINARY}.
+ * Ogni frame è {@code [lunghezza int32][opcode u8][requestId int32][payload]}; il payload usa la
+ * codifica di {@link BinaryWriter}.
+ */
+final class BinaryProtocol {
+    static final String NEGOTIATION = "BINARY";         // Richiesta di passaggio al protocollo binario
+    static final String NEGOTIATION_OK = "OK:binary";   // Conferma del server
+    static final int MAX_FRAME_LENGTH = 32 * 1024 * 1024;
+
+    // Opcode delle richieste
+    static final int OP_VALIDATE_EMAIL = 0x01;
+    static final int OP_SEND_EMAIL = 0x02;
+    static final int OP_GET_EMAILS = 0x03;
+    static final int OP_GET_SENT_EMAILS = 0x04;
+    static final int OP_DELETE_EMAIL = 0x05;
+    static final int OP_PING = 0x06;
+    static final int OP_QUIT = 0x07;
+    static final int OP_GET_EMAILS_PAGE = 0x08;
+    static final int OP_GET_SENT_EMAILS_PAGE = 0x09;
+    static final int OP_BATCH = 0x0A;                   // Sotto-richieste: varint n, n x (opcode, varint lunghezza, payload)
+    static final int OP_SYNC = 0x0B;                    // Sincronizzazione incrementale delle ricevute da un cursore
+
+    // Opcode delle risposte
+    static final int OP_OK = 0x80;
+    static final int OP_OK_EMAILS = 0x81;               // Ultima parte di una lista di email
+    static final int OP_EMAILS_PART = 0x82;             // Parte intermedia di una lista di email
+    static final int OP_OK_PAGE = 0x83;                 // Pagina di email con totale e cursore successivo
+    static final int OP_BATCH_RESULT = 0x84;            // Risultati di un BATCH, nello stesso formato delle sotto-richieste
+    static final int OP_OK_SYNC = 0x85;                 // Risultato di una sincronizzazione: cursore, aggiunte ed eliminazioni
+    static final int OP_ERROR = 0xFF;
+
+    private static final int HEADER_LENGTH = 5;         // opcode + requestId
+
+    private BinaryProtocol() {
+    }
+
+    /**
+     * Frame decodificato.
+     */
+    static final class Frame {
+        final int opcode;
+        final int requestId;
+        final byte[] payload;
+
+        Frame(int opcode, int requestId, byte[] payload) {
+            this.opcode = opcode;
+            this.requestId = requestId;
+            this.payload = payload;
+        }
+    }
+
+    /**
+     * Legge un frame completo.
+     * @throws IOException se la connessione si chiude o il frame non è valido
+     */
+    static Frame readFrame(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < HEADER_LENGTH || length > MAX_FRAME_LENGTH) {
+            throw new IOException("Lunghezza del frame non valida: " + length);
+        }
+        int opcode = in.readUnsignedByte();
+        int requestId = in.readInt();
+        byte[] payload = new byte[length - HEADER_LENGTH];
+        in.readFully(payload);
+        return new Frame(opcode, requestId, payload);
+    }
+
+    /**
+     * Scrive un frame senza flush.
+     */
+    static void writeFrame(DataOutputStream out, int opcode, int requestId, BinaryWriter payload) throws IOException {
+        out.writeInt(HEADER_LENGTH + payload.size());
+        out.writeByte(opcode);
+        out.writeInt(requestId);
+        payload.writeTo(out);
+    }
+}
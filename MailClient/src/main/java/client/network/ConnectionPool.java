@@ -0,0 +1,185 @@
+package client.network;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Pool di connessioni keep-alive verso il server, condiviso da sincronizzazione, invio, eliminazione
+ * e controllo di connessione.
+ * <p>
+ * - al massimo {@code maxSize} connessioni aperte; se sono tutte in uso il chiamante attende;
+ * - le connessioni inattive da più di {@code healthCheckAfterMillis} vengono verificate con un PING prima del riuso;
+ * - un thread di manutenzione chiude le connessioni inattive da più di {@code maxIdleMillis},
+ *   prima che sia il server a chiuderle per timeout;
+ * - le connessioni guaste vengono scartate e sostituite alla richiesta successiva (riconnessione automatica);
+ * - le nuove connessioni negoziano il protocollo binario, ricadendo sul protocollo testuale se il server non lo supporta.
+ * </p>
+ */
+class ConnectionPool {
+    private final String host;                  // Host del server
+    private final int port;                     // Porta del server
+    private final int maxSize;                  // Numero massimo di connessioni aperte
+    private final long maxIdleMillis;           // Inattività oltre la quale una connessione viene chiusa
+    private final long healthCheckAfterMillis;  // Inattività oltre la quale una connessione viene verificata prima del riuso
+    private final int connectTimeoutMillis;     // Timeout di apertura di una nuova connessione
+    private volatile boolean binary;            // Protocollo binario richiesto e supportato dal server
+
+    private final Deque<PooledConnection> idle = new ArrayDeque<>(); // Connessioni libere, la più recente in testa
+    private final ScheduledExecutorService evictor;                    // Thread di manutenzione per l'eviction
+    private int openCount = 0;                  // Connessioni aperte (libere + in uso)
+    private boolean closed = false;
+
+    ConnectionPool(String host, int port, int maxSize, long maxIdleMillis, long healthCheckAfterMillis,
+                   int connectTimeoutMillis, boolean preferBinary) {
+        this.host = host;
+        this.port = port;
+        this.maxSize = Math.max(1, maxSize);
+        this.maxIdleMillis = maxIdleMillis;
+        this.healthCheckAfterMillis = healthCheckAfterMillis;
+        this.connectTimeoutMillis = connectTimeoutMillis;
+        this.binary = preferBinary;
+        this.evictor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "connection-pool-evictor");
+            thread.setDaemon(true);
+            return thread;
+        });
+        long period = Math.max(1000L, maxIdleMillis / 2);
+        evictor.scheduleAtFixedRate(this::evictIdle, period, period, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Ottiene una connessione dal pool, aprendone una nuova se non ce ne sono di libere e il limite lo consente.
+     * @return connessione verificata e riservata al chiamante
+     * @throws IOException se non è possibile aprire una connessione
+     */
+    PooledConnection borrow() throws IOException {
+        while (true) {
+            PooledConnection candidate = null;
+            synchronized (this) {
+                while (!closed && idle.isEmpty() && openCount >= maxSize) {
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new IOException("Attesa di una connessione interrotta");
+                    }
+                }
+                if (closed) {
+                    throw new IOException("Pool di connessioni chiuso");
+                }
+                if (!idle.isEmpty()) {
+                    candidate = idle.pollFirst();
+                } else {
+                    openCount++;
+                }
+            }
+
+            if (candidate == null) {
+                return openNew();
+            }
+            if (candidate.idleMillis() < healthCheckAfterMillis || candidate.ping()) {
+                return candidate;
+            }
+            // Connessione non più valida: viene scartata e si riprova
+            invalidate(candidate);
+        }
+    }
+
+    /**
+     * Apre una nuova connessione; il posto nel pool è già stato riservato dal chiamante.
+     * Se il server non riconosce il protocollo binario si passa, una volta per tutte, al keep-alive testuale.
+     */
+    private PooledConnection openNew() throws IOException {
+        try {
+            if (binary) {
+                try {
+                    return PooledConnection.open(host, port, connectTimeoutMillis, true);
+                } catch (PooledConnection.BinaryUnsupportedException e) {
+                    binary = false;
+                }
+            }
+            return PooledConnection.open(host, port, connectTimeoutMillis, false);
+        } catch (IOException e) {
+            synchronized (this) {
+                openCount--;
+                notifyAll();
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Restituisce al pool una connessione funzionante.
+     * @param connection connessione ottenuta con borrow()
+     */
+    void release(PooledConnection connection) {
+        synchronized (this) {
+            if (!closed) {
+                idle.addFirst(connection);
+                notifyAll();
+                return;
+            }
+            openCount--;
+        }
+        connection.close(true);
+    }
+
+    /**
+     * Scarta una connessione guasta liberandone il posto nel pool.
+     * @param connection connessione ottenuta con borrow()
+     */
+    void invalidate(PooledConnection connection) {
+        connection.close(false);
+        synchronized (this) {
+            openCount--;
+            notifyAll();
+        }
+    }
+
+    /**
+     * Chiude le connessioni libere inattive da troppo tempo.
+     */
+    private void evictIdle() {
+        Deque<PooledConnection> expired = new ArrayDeque<>();
+        synchronized (this) {
+            Iterator<PooledConnection> iterator = idle.iterator();
+            while (iterator.hasNext()) {
+                PooledConnection connection = iterator.next();
+                if (connection.idleMillis() >= maxIdleMillis) {
+                    iterator.remove();
+                    expired.add(connection);
+                    openCount--;
+                }
+            }
+            if (!expired.isEmpty()) {
+                notifyAll();
+            }
+        }
+        for (PooledConnection connection : expired) {
+            connection.close(true);
+        }
+    }
+
+    /**
+     * Chiude il pool e tutte le connessioni libere; quelle in uso vengono chiuse al rilascio.
+     */
+    void close() {
+        evictor.shutdownNow();
+        Deque<PooledConnection> toClose;
+        synchronized (this) {
+            closed = true;
+            toClose = new ArrayDeque<>(idle);
+            openCount -= idle.size();
+            idle.clear();
+            notifyAll();
+        }
+        for (PooledConnection connection : toClose) {
+            connection.close(true);
+        }
+    }
+}
@@ -0,0 +1,327 @@
+package client.network;
+
+import client.model.BinaryReader;
+import client.model.BinaryWriter;
+import client.model.Email;
+import client.model.EmailPage;
+import client.model.SyncResult;
+
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Connessione keep-alive verso il server gestita dal {@link ConnectionPool}.
+ * Parla il protocollo binario a frame ({@link BinaryProtocol}) oppure quello testuale a righe.
+ * Non è thread-safe: viene usata da un solo thread alla volta, tra borrow e release.
+ */
+class PooledConnection {
+    private final Socket socket;            // Socket TCP verso il server
+    private final boolean binary;           // true se la connessione usa il protocollo binario
+    private final BufferedInputStream rawIn; // Stream di input bufferizzato
+    private final DataOutputStream out;     // Stream di output bufferizzato (flush esplicito per il pipelining)
+    private final DataInputStream binaryIn; // Lettura dei frame (solo protocollo binario)
+    private final BinaryWriter payload;     // Buffer di codifica riusato (solo protocollo binario)
+    private final PrintWriter textOut;      // Scrittura delle righe (solo protocollo testuale)
+    private final BufferedReader textIn;    // Lettura delle righe (solo protocollo testuale)
+    private long lastUsedNanos;             // Istante dell'ultimo utilizzo, per eviction e health check
+    private int exchanges = 0;              // Numero di scambi completati su questa connessione
+    private int nextRequestId = 0;          // Identificativo della prossima richiesta binaria
+
+    /**
+     * Eccezione lanciata quando il server non accetta il keep-alive (gestisce una richiesta per connessione).
+     */
+    static class KeepAliveUnsupportedException extends IOException {
+        private static final long serialVersionUID = 1L; // Versione per la serializzazione
+
+        KeepAliveUnsupportedException() {
+            super("Il server non supporta connessioni keep-alive");
+        }
+    }
+
+    /**
+     * Eccezione lanciata quando il server non riconosce la negoziazione del protocollo binario.
+     */
+    static class BinaryUnsupportedException extends IOException {
+        private static final long serialVersionUID = 1L; // Versione per la serializzazione
+
+        BinaryUnsupportedException() {
+            super("Il server non supporta il protocollo binario");
+        }
+    }
+
+    private PooledConnection(Socket socket, boolean binary) throws IOException {
+        this.socket = socket;
+        this.binary = binary;
+        this.rawIn = new BufferedInputStream(socket.getInputStream());
+        this.out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+        if (binary) {
+            this.binaryIn = new DataInputStream(rawIn);
+            this.payload = new BinaryWriter(1024);
+            this.textOut = null;
+            this.textIn = null;
+        } else {
+            this.binaryIn = null;
+            this.payload = null;
+            this.textOut = new PrintWriter(new OutputStreamWriter(out));
+            this.textIn = new BufferedReader(new InputStreamReader(rawIn));
+        }
+        this.lastUsedNanos = System.nanoTime();
+    }
+
+    /**
+     * Apre una nuova connessione e negozia il protocollo richiesto.
+     * @param host host del server
+     * @param port porta del server
+     * @param connectTimeoutMillis timeout di connessione
+     * @param binary true per negoziare il protocollo binario, false per il keep-alive testuale
+     * @return connessione pronta all'uso
+     * @throws BinaryUnsupportedException se il server non supporta il protocollo binario
+     * @throws KeepAliveUnsupportedException se il server non supporta il keep-alive
+     * @throws IOException in caso di errori di rete
+     */
+    static PooledConnection open(String host, int port, int connectTimeoutMillis, boolean binary) throws IOException {
+        Socket socket = new Socket();
+        try {
+            socket.connect(new InetSocketAddress(host, port), connectTimeoutMillis);
+            socket.setTcpNoDelay(true);
+            PooledConnection connection = new PooledConnection(socket, binary);
+            if (binary) {
+                // La risposta alla negoziazione è testuale e va letta senza consumare i frame successivi
+                connection.out.write((BinaryProtocol.NEGOTIATION + "\n").getBytes(StandardCharsets.US_ASCII));
+                connection.out.flush();
+                if (!BinaryProtocol.NEGOTIATION_OK.equals(connection.readLine())) {
+                    connection.close(false);
+                    throw new BinaryUnsupportedException();
+                }
+            } else {
+                List<String> response = connection.exchangeText(Collections.singletonList("KEEP_ALIVE"));
+                if (!response.get(0).startsWith("OK")) {
+                    connection.close(false);
+                    throw new KeepAliveUnsupportedException();
+                }
+            }
+            connection.exchanges = 0;
+            return connection;
+        } catch (IOException e) {
+            socket.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Indica se la connessione usa il protocollo binario.
+     */
+    boolean isBinary() {
+        return binary;
+    }
+
+    /**
+     * Scrive tutte le richieste in pipeline, poi legge una risposta per ciascuna.
+     * @param requests richieste da inviare
+     * @return risposte nello stesso ordine delle richieste
+     * @throws IOException se la connessione si interrompe
+     */
+    List<Response> exchange(List<Request> requests) throws IOException {
+        List<Response> responses;
+        if (binary) {
+            responses = exchangeBinary(requests);
+        } else {
+            List<String> lines = new ArrayList<>(requests.size());
+            for (Request request : requests) {
+                lines.add(request.toText());
+            }
+            responses = new ArrayList<>(requests.size());
+            for (String line : exchangeText(lines)) {
+                responses.add(Response.fromLine(line));
+            }
+        }
+        return responses;
+    }
+
+    /**
+     * Scambio in protocollo binario: un frame per richiesta, risposte verificate tramite requestId.
+     */
+    private List<Response> exchangeBinary(List<Request> requests) throws IOException {
+        int firstId = nextRequestId;
+        for (Request request : requests) {
+            payload.reset();
+            request.writePayload(payload);
+            BinaryProtocol.writeFrame(out, request.getOpcode(), nextRequestId++, payload);
+        }
+        out.flush();
+
+        List<Response> responses = new ArrayList<>(requests.size());
+        List<Email> emails = new ArrayList<>();
+        while (responses.size() < requests.size()) {
+            BinaryProtocol.Frame frame = BinaryProtocol.readFrame(binaryIn);
+            if (frame.requestId != firstId + responses.size()) {
+                throw new IOException("Risposta fuori sequenza: " + frame.requestId);
+            }
+            BinaryReader reader = new BinaryReader(frame.payload);
+            if (frame.opcode == BinaryProtocol.OP_EMAILS_PART) {
+                // Le liste di email arrivano in una o più parti, l'ultima con OK_EMAILS
+                readEmails(reader, emails);
+            } else if (frame.opcode == BinaryProtocol.OP_OK_EMAILS) {
+                readEmails(reader, emails);
+                responses.add(Response.emails(emails));
+                emails = new ArrayList<>();
+            } else {
+                responses.add(decode(frame.opcode, reader));
+            }
+        }
+        exchanges++;
+        lastUsedNanos = System.nanoTime();
+        return responses;
+    }
+
+    /**
+     * Decodifica una risposta contenuta in un solo frame (o in un risultato di BATCH).
+     */
+    private static Response decode(int opcode, BinaryReader reader) throws IOException {
+        switch (opcode) {
+            case BinaryProtocol.OP_OK_EMAILS: {
+                List<Email> emails = new ArrayList<>();
+                readEmails(reader, emails);
+                return Response.emails(emails);
+            }
+            case BinaryProtocol.OP_OK_PAGE: {
+                int total = reader.readVarInt();
+                String nextCursor = reader.readString();
+                List<Email> pageEmails = new ArrayList<>();
+                readEmails(reader, pageEmails);
+                return Response.page(new EmailPage(pageEmails, nextCursor, total));
+            }
+            case BinaryProtocol.OP_OK_SYNC: {
+                String cursor = reader.readString();
+                boolean reset = reader.readBoolean();
+                boolean more = reader.readBoolean();
+                int total = reader.readVarInt();
+                String nextCursor = reader.readString();
+                int deletedCount = reader.readVarInt();
+                List<String> deletedIds = new ArrayList<>(Math.min(deletedCount, 4096));
+                for (int i = 0; i < deletedCount; i++) {
+                    deletedIds.add(reader.readString());
+                }
+                List<Email> added = new ArrayList<>();
+                readEmails(reader, added);
+                return Response.sync(new SyncResult(cursor, reset, more, added, deletedIds, total, nextCursor));
+            }
+            case BinaryProtocol.OP_BATCH_RESULT: {
+                int count = reader.readVarInt();
+                List<Response> results = new ArrayList<>(count);
+                for (int i = 0; i < count; i++) {
+                    int resultOpcode = reader.readByte();
+                    byte[] result = reader.readBytes(reader.readVarInt());
+                    results.add(decode(resultOpcode, new BinaryReader(result)));
+                }
+                return Response.batch(results);
+            }
+            default:
+                return Response.message(opcode == BinaryProtocol.OP_OK, reader.readString());
+        }
+    }
+
+    private static void readEmails(BinaryReader reader, List<Email> emails) throws IOException {
+        while (reader.hasRemaining()) {
+            emails.add(reader.readEmail());
+        }
+    }
+
+    /**
+     * Scambio in protocollo testuale: una riga per richiesta e una per risposta.
+     */
+    private List<String> exchangeText(List<String> requests) throws IOException {
+        for (String request : requests) {
+            textOut.println(request);
+        }
+        textOut.flush();
+        if (textOut.checkError()) {
+            throw new IOException("Scrittura sulla connessione fallita");
+        }
+
+        List<String> responses = new ArrayList<>(requests.size());
+        for (int i = 0; i < requests.size(); i++) {
+            String response = textIn.readLine();
+            if (response == null) {
+                throw new IOException("Connessione chiusa dal server");
+            }
+            responses.add(response);
+        }
+        exchanges++;
+        lastUsedNanos = System.nanoTime();
+        return responses;
+    }
+
+    /**
+     * Legge una riga byte per byte, senza bufferizzare oltre il terminatore.
+     */
+    private String readLine() throws IOException {
+        ByteArrayOutputStream line = new ByteArrayOutputStream(32);
+        int b;
+        while ((b = rawIn.read()) != -1 && b != '\n') {
+            line.write(b);
+        }
+        if (b == -1 && line.size() == 0) {
+            return null;
+        }
+        return line.toString(Charset.defaultCharset().name()).trim();
+    }
+
+    /**
+     * Verifica che la connessione sia ancora utilizzabile inviando un PING.
+     * @return true se il server ha risposto correttamente
+     */
+    boolean ping() {
+        try {
+            return exchange(Collections.singletonList(Request.PING)).get(0).isOk();
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Indica se la connessione ha già completato almeno uno scambio (e quindi può essere stata chiusa dal server per inattività).
+     */
+    boolean isReused() {
+        return exchanges > 0;
+    }
+
+    /**
+     * Millisecondi trascorsi dall'ultimo utilizzo.
+     */
+    long idleMillis() {
+        return (System.nanoTime() - lastUsedNanos) / 1_000_000L;
+    }
+
+    /**
+     * Chiude la connessione.
+     * @param sendQuit true per avvisare il server con QUIT prima della chiusura
+     */
+    void close(boolean sendQuit) {
+        if (sendQuit) {
+            try {
+                if (binary) {
+                    payload.reset();
+                    BinaryProtocol.writeFrame(out, BinaryProtocol.OP_QUIT, nextRequestId++, payload);
+                    out.flush();
+                } else {
+                    textOut.println("QUIT");
+                    textOut.flush();
+                }
+            } catch (IOException ignored) {
+                // Chiusura best-effort
+            }
+        }
+        try {
+            socket.close();
+        } catch (IOException ignored) {
+            // Chiusura best-effort
+        }
+    }
+}
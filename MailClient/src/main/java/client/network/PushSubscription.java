@@ -0,0 +1,76 @@
+package client.network;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.net.Socket;
+import java.util.function.Consumer;
+
+/**
+ * Connessione in modalità SUBSCRIBE: un thread daemon legge le righe PUSH inviate dal server
+ * e le consegna al callback. Le righe PING di heartbeat vengono ignorate.
+ * Quando la connessione cade la sottoscrizione diventa inattiva e viene invocato il callback di chiusura.
+ */
+public class PushSubscription implements Runnable {
+    private final Socket socket;                    // Connessione dedicata alle notifiche
+    private final BufferedReader in;                // Stream di input della connessione
+    private final Consumer<String> onPush;          // Riceve il payload JSON di ogni riga PUSH
+    private final Runnable onClosed;                // Invocato una volta quando la sottoscrizione termina
+    private volatile boolean active = true;
+
+    PushSubscription(Socket socket, BufferedReader in, Consumer<String> onPush, Runnable onClosed) {
+        this.socket = socket;
+        this.in = in;
+        this.onPush = onPush;
+        this.onClosed = onClosed;
+    }
+
+    /**
+     * Avvia il thread di lettura delle notifiche.
+     */
+    void start() {
+        Thread reader = new Thread(this, "push-subscription");
+        reader.setDaemon(true);
+        reader.start();
+    }
+
+    @Override
+    public void run() {
+        try {
+            String line;
+            while (active && (line = in.readLine()) != null) {
+                if (line.startsWith("PUSH:")) {
+                    onPush.accept(line.substring(5));
+                }
+                // Le righe PING servono solo a verificare la connessione
+            }
+        } catch (IOException e) {
+            // Connessione interrotta o timeout dell'heartbeat: si torna al polling
+        } finally {
+            boolean wasActive = active;
+            close();
+            if (wasActive) {
+                onClosed.run();
+            }
+        }
+    }
+
+    /**
+     * Indica se la sottoscrizione è ancora attiva.
+     * @return true se la connessione è aperta
+     */
+    public boolean isActive() {
+        return active;
+    }
+
+    /**
+     * Chiude la sottoscrizione senza invocare il callback di chiusura.
+     */
+    public void close() {
+        active = false;
+        try {
+            socket.close();
+        } catch (IOException ignored) {
+            // Chiusura best-effort
+        }
+    }
+}
@@ -0,0 +1,107 @@
+package client.network;
+
+import client.model.BinaryWriter;
+import client.model.EmailCodec;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+
+/**
+ * Richiesta al server indipendente dal protocollo: la forma testuale viene costruita solo se la
+ * connessione usa il protocollo testuale, il payload binario solo se usa quello binario.
+ */
+final class Request {
+    static final Request PING = new Request(BinaryProtocol.OP_PING, () -> "PING", payload -> { });
+
+    private final int opcode;                       // Opcode del protocollo binario
+    private final Supplier<String> text;            // Riga del protocollo testuale
+    private final Consumer<BinaryWriter> payload;   // Codifica del payload binario
+    private final boolean idempotent;               // Ripetibile senza effetti se la risposta è andata persa
+
+    Request(int opcode, Supplier<String> text, Consumer<BinaryWriter> payload) {
+        this(opcode, text, payload, isIdempotent(opcode));
+    }
+
+    private Request(int opcode, Supplier<String> text, Consumer<BinaryWriter> payload, boolean idempotent) {
+        this.opcode = opcode;
+        this.text = text;
+        this.payload = payload;
+        this.idempotent = idempotent;
+    }
+
+    /**
+     * Opcode di sola lettura, che il server può eseguire più volte con lo stesso risultato.
+     * SEND_EMAIL consegnerebbe di nuovo l'email; DELETE_EMAIL eliminerebbe la copia successiva
+     * con lo stesso id, se presente.
+     */
+    private static boolean isIdempotent(int opcode) {
+        switch (opcode) {
+            case BinaryProtocol.OP_PING:
+            case BinaryProtocol.OP_VALIDATE_EMAIL:
+            case BinaryProtocol.OP_GET_EMAILS:
+            case BinaryProtocol.OP_GET_SENT_EMAILS:
+            case BinaryProtocol.OP_GET_EMAILS_PAGE:
+            case BinaryProtocol.OP_GET_SENT_EMAILS_PAGE:
+            case BinaryProtocol.OP_SYNC:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    int getOpcode() {
+        return opcode;
+    }
+
+    /**
+     * Indica se la richiesta può essere ripetuta su una nuova connessione quando la risposta non è arrivata:
+     * il server potrebbe averla già eseguita.
+     * @return true se ripeterla non ha effetti
+     */
+    boolean isIdempotent() {
+        return idempotent;
+    }
+
+    String toText() {
+        return text.get();
+    }
+
+    void writePayload(BinaryWriter writer) {
+        payload.accept(writer);
+    }
+
+    /**
+     * Raggruppa più richieste in un'unica richiesta BATCH, eseguita dal server con un solo round trip.
+     * Testo: {@code BATCH:["COMANDO:dati", ...]}; binario: numero di sotto-richieste seguito da
+     * opcode, lunghezza e payload di ciascuna.
+     * @param requests sotto-richieste, nell'ordine di esecuzione
+     * @return richiesta BATCH
+     */
+    static Request batch(List<Request> requests) {
+        boolean idempotent = true;
+        for (Request request : requests) {
+            idempotent &= request.isIdempotent();
+        }
+        return new Request(BinaryProtocol.OP_BATCH,
+                () -> {
+                    List<String> lines = new ArrayList<>(requests.size());
+                    for (Request request : requests) {
+                        lines.add(request.toText());
+                    }
+                    return "BATCH:" + EmailCodec.GSON.toJson(lines);
+                },
+                payload -> {
+                    payload.writeVarInt(requests.size());
+                    BinaryWriter item = new BinaryWriter(256);
+                    for (Request request : requests) {
+                        item.reset();
+                        request.writePayload(item);
+                        payload.writeByte(request.getOpcode());
+                        payload.writeVarInt(item.size());
+                        payload.writeBytes(item.toByteArray(), 0, item.size());
+                    }
+                }, idempotent);
+    }
+}
@@ -0,0 +1,99 @@
+package client.network;
+
+import client.model.Email;
+import client.model.EmailPage;
+import client.model.SyncResult;
+
+import java.util.List;
+
+/**
+ * Risposta del server indipendente dal protocollo.
+ * Con il protocollo testuale le liste di email restano in JSON nel messaggio e vengono
+ * decodificate da {@link ServerConnection}; con quello binario arrivano già decodificate.
+ */
+final class Response {
+    private final boolean ok;           // true per le risposte OK
+    private final String message;       // Testo dopo il prefisso OK:/ERROR: (o messaggio del frame)
+    private final List<Email> emails;   // Email già decodificate (solo protocollo binario)
+    private final EmailPage page;       // Pagina già decodificata (solo protocollo binario)
+    private final List<Response> results; // Risultati di un BATCH già decodificati (solo protocollo binario)
+    private final SyncResult sync;      // Sincronizzazione già decodificata (solo protocollo binario)
+
+    private Response(boolean ok, String message, List<Email> emails, EmailPage page) {
+        this(ok, message, emails, page, null, null);
+    }
+
+    private Response(boolean ok, String message, List<Email> emails, EmailPage page, List<Response> results,
+                     SyncResult sync) {
+        this.ok = ok;
+        this.message = message;
+        this.emails = emails;
+        this.page = page;
+        this.results = results;
+        this.sync = sync;
+    }
+
+    /**
+     * Interpreta una riga del protocollo testuale.
+     */
+    static Response fromLine(String line) {
+        if (line.startsWith("OK:")) {
+            return new Response(true, line.substring(3), null, null);
+        }
+        if (line.startsWith("OK")) {
+            return new Response(true, line.substring(2), null, null);
+        }
+        return new Response(false, line.startsWith("ERROR:") ? line.substring(6) : line, null, null);
+    }
+
+    static Response message(boolean ok, String message) {
+        return new Response(ok, message, null, null);
+    }
+
+    static Response emails(List<Email> emails) {
+        return new Response(true, "", emails, null);
+    }
+
+    static Response page(EmailPage page) {
+        return new Response(true, "", null, page);
+    }
+
+    static Response batch(List<Response> results) {
+        return new Response(true, "", null, null, results, null);
+    }
+
+    static Response sync(SyncResult sync) {
+        return new Response(true, "", null, null, null, sync);
+    }
+
+    boolean isOk() {
+        return ok;
+    }
+
+    String getMessage() {
+        return message;
+    }
+
+    List<Email> getEmails() {
+        return emails;
+    }
+
+    EmailPage getPage() {
+        return page;
+    }
+
+    List<Response> getResults() {
+        return results;
+    }
+
+    SyncResult getSync() {
+        return sync;
+    }
+
+    /**
+     * Forma testuale della risposta, come restituita dal server testuale.
+     */
+    String toLine() {
+        return (ok ? "OK:" : "ERROR:") + message;
+    }
+}
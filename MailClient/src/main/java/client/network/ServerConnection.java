@@ -1,34 +1,88 @@
 package client.network;
 
 // Importazione delle librerie necessarie
-import client.model.LocalDateTimeTypeAdapter;
-import com.google.gson.Gson;
-import com.google.gson.GsonBuilder;
+import client.model.EmailCodec;
+import client.model.EmailPage;
+import client.model.SyncResult;
 import com.google.gson.reflect.TypeToken;
 
 import java.io.*;
+import java.lang.reflect.Type;
+import java.net.InetSocketAddress;
 import java.net.Socket;
-import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
+import java.util.function.Consumer;
 
 import client.model.Email;
 
 /**
  * Classe che gestisce la connessione al server per l'invio e la ricezione di email.
+ * <p>
+ * Le richieste viaggiano su connessioni keep-alive prese da un {@link ConnectionPool}: i socket vengono
+ * riusati tra sincronizzazione, invio, eliminazione e controllo di connessione, e più richieste possono
+ * essere inviate in pipeline, leggendo poi le risposte nello stesso ordine.
+ * Le connessioni usano il protocollo binario a frame ({@link BinaryProtocol}), che evita JSON e split di
+ * stringhe; se il server non lo supporta (o con {@code -Dmailclient.protocol=text}) si usa il protocollo testuale.
+ * Se il server non supporta il keep-alive si torna a una connessione per richiesta.
+ * </p>
  */
 public class ServerConnection {
     private static final String SERVER_HOST = "localhost";  // Costante per l'host del server
     private static final int SERVER_PORT = 8080;            // Costante per la porta del server
-    private final Gson gson;                                // Oggetto Gson per la serializzazione/deserializzazione JSON
+    private static final int POOL_SIZE = 4;                 // Connessioni keep-alive mantenute al massimo
+    private static final long MAX_IDLE_MILLIS = 45_000L;    // Chiusura delle connessioni inattive, prima del timeout del server (60 s)
+    private static final long HEALTH_CHECK_AFTER_MILLIS = 15_000L; // Inattività oltre la quale si verifica la connessione con PING
+    private static final int CONNECT_TIMEOUT_MILLIS = 3_000;
+    private static final int PUSH_READ_TIMEOUT_MILLIS = 90_000; // Senza PUSH né PING per questo tempo la sottoscrizione è considerata persa
+    private static final String CONNECTION_ERROR = "ERROR:Errore di connessione al server";
+    private static final EmailPage EMPTY_PAGE = new EmailPage(Collections.emptyList(), null, 0);
+    private static final SyncResult EMPTY_SYNC = new SyncResult(null, true, false, Collections.emptyList(),
+            Collections.emptyList(), 0, null); // Senza cursore: la prossima sincronizzazione riparte da zero
+    private static final boolean PREFER_BINARY = !"text".equalsIgnoreCase(System.getProperty("mailclient.protocol", "binary"));
+    private static final Type STRING_LIST_TYPE = new TypeToken<List<String>>() {}.getType();
+    private final ConnectionPool pool;                      // Connessioni keep-alive condivise
+    private volatile boolean keepAliveSupported = true;     // false se il server risponde solo a una richiesta per connessione
+    private volatile boolean pushSupported = true;          // false se il server non riconosce SUBSCRIBE
+    private volatile boolean batchSupported = true;         // false se il server non riconosce BATCH
 
     /**
-     * Costruttore: inizializza Gson con l'adapter per LocalDateTime.
+     * Risultato del login: validità dell'indirizzo, prima sincronizzazione delle ricevute (la pagina più recente
+     * e il cursore da cui proseguire) e prima pagina delle inviate.
+     */
+    public static class LoginResult {
+        private final boolean valid;
+        private final SyncResult receivedSync;
+        private final EmailPage sentPage;
+
+        public LoginResult(boolean valid, SyncResult receivedSync, EmailPage sentPage) {
+            this.valid = valid;
+            this.receivedSync = receivedSync;
+            this.sentPage = sentPage;
+        }
+
+        public boolean isValid() { return valid; }
+
+        public EmailPage getReceivedPage() { return receivedSync.toPage(); }
+
+        public String getSyncCursor() { return receivedSync.getCursor(); }
+
+        public EmailPage getSentPage() { return sentPage; }
+
+        public List<Email> getReceivedEmails() { return receivedSync.getEmails(); }
+
+        public List<Email> getSentEmails() { return sentPage.getEmails(); }
+    }
+
+    /**
+     * Costruttore: prepara il pool di connessioni verso il server.
+     * La serializzazione JSON usa il codec condiviso {@link EmailCodec}.
      */
     public ServerConnection() {
-        this.gson = new GsonBuilder()
-                .registerTypeAdapter(LocalDateTime.class, new LocalDateTimeTypeAdapter())
-                .create();
+        this.pool = new ConnectionPool(SERVER_HOST, SERVER_PORT, POOL_SIZE,
+                MAX_IDLE_MILLIS, HEALTH_CHECK_AFTER_MILLIS, CONNECT_TIMEOUT_MILLIS, PREFER_BINARY);
     }
 
     /**
@@ -37,17 +91,66 @@ public class ServerConnection {
      * @return true se l'email è valida, false altrimenti
      */
     public boolean validateEmail(String email) {
-        return sendRequest("VALIDATE_EMAIL:" + email).startsWith("OK");
+        return sendRequest(validateRequest(email)).isOk();
+    }
+
+    /**
+     * Valida l'indirizzo e scarica la pagina più recente di email ricevute e inviate con un'unica richiesta
+     * BATCH (o in pipeline se il server non la supporta). Le ricevute arrivano con una SYNC senza cursore,
+     * che restituisce anche il cursore per le sincronizzazioni successive. Le pagine precedenti si chiedono
+     * con {@link #getEmailPage}.
+     * @param email indirizzo email dell'utente
+     * @param pageSize numero massimo di email per cartella
+     * @return esito della validazione e pagine iniziali (vuote se l'indirizzo non è valido)
+     */
+    public LoginResult login(String email, int pageSize) {
+        List<Response> responses = sendBatch(Arrays.asList(
+                validateRequest(email),
+                syncRequest(email, null, pageSize),
+                getPageRequest(email, true, pageSize, null)));
+        if (!responses.get(0).isOk()) {
+            return new LoginResult(false, EMPTY_SYNC, EMPTY_PAGE);
+        }
+        SyncResult received = syncOf(responses.get(1));
+        EmailPage sent = pageOf(responses.get(2));
+        return new LoginResult(true,
+                received != null ? received : EMPTY_SYNC,
+                sent != null ? sent : EMPTY_PAGE);
+    }
+
+    /**
+     * Sincronizza le email ricevute a partire da un cursore: il server restituisce solo le email aggiunte
+     * e gli id di quelle eliminate da allora, oppure un reset con le più recenti se il cursore non è più utilizzabile.
+     * @param emailAddress indirizzo email dell'utente
+     * @param cursor cursore dell'ultima sincronizzazione, oppure null per ripartire dalle email più recenti
+     * @param limit numero massimo di email nella risposta
+     * @return modifiche e nuovo cursore, oppure null in caso di errore
+     */
+    public SyncResult sync(String emailAddress, String cursor, int limit) {
+        return syncOf(sendRequest(syncRequest(emailAddress, cursor, limit)));
     }
 
     /**
-     * Invia una email al server serializzando l'oggetto Email in formato JSON.
+     * Recupera una pagina di email ricevute o inviate, dalla più recente verso le meno recenti.
+     * @param emailAddress indirizzo email dell'utente
+     * @param sent true per le email inviate, false per le ricevute
+     * @param pageSize numero massimo di email nella pagina
+     * @param cursor cursore restituito dalla pagina precedente, oppure null per la pagina più recente
+     * @return pagina di email o null in caso di errore
+     */
+    public EmailPage getEmailPage(String emailAddress, boolean sent, int pageSize, String cursor) {
+        return pageOf(sendRequest(getPageRequest(emailAddress, sent, pageSize, cursor)));
+    }
+
+    /**
+     * Invia una email al server (codifica binaria, oppure JSON con il protocollo testuale).
      * @param email oggetto Email da inviare
      * @return risposta del server come stringa (ad esempio "OK" o messaggio di errore)
      */
     public String sendEmail(Email email) {
-        String emailJson = gson.toJson(email);
-        return sendRequest("SEND_EMAIL:" + emailJson);
+        return sendRequest(new Request(BinaryProtocol.OP_SEND_EMAIL,
+                () -> "SEND_EMAIL:" + EmailCodec.toJson(email),
+                payload -> payload.writeEmail(email))).toLine();
     }
 
     /**
@@ -57,13 +160,7 @@ public class ServerConnection {
      * @return lista di email ricevute o null in caso di errore
      */
     public List<Email> getNewEmails(String emailAddress, int fromIndex) {
-        String response = sendRequest("GET_EMAILS:" + emailAddress + "," + fromIndex);
-        if (response.startsWith("OK:")) {
-            String emailsJson = response.substring(3);
-            TypeToken<List<Email>> typeToken = new TypeToken<List<Email>>() {};
-            return gson.fromJson(emailsJson, typeToken.getType());
-        }
-        return null;
+        return emailsOf(sendRequest(getEmailsRequest(emailAddress, fromIndex)));
     }
 
     /**
@@ -72,12 +169,8 @@ public class ServerConnection {
      * @return lista di email inviate o lista vuota in caso di errore
      */
     public List<Email> getSentEmails(String emailAddress) {
-        String response = sendRequest("GET_SENT_EMAILS:" + emailAddress);
-        if (response.startsWith("OK:")) {
-            String emailsJson = response.substring(3);
-            return gson.fromJson(emailsJson, new TypeToken<List<Email>>(){}.getType());
-        }
-        return Collections.emptyList();
+        List<Email> sentEmails = emailsOf(sendRequest(getSentEmailsRequest(emailAddress)));
+        return sentEmails != null ? sentEmails : Collections.emptyList();
     }
 
     /**
@@ -88,43 +181,366 @@ public class ServerConnection {
      * @return true se l'eliminazione ha avuto successo, false altrimenti
      */
     public boolean deleteEmail(String emailAddress, String emailId, boolean isSent) {
-        return sendRequest("DELETE_EMAIL:" + emailAddress + "," + emailId + "," + isSent).startsWith("OK");
+        return sendRequest(deleteRequest(emailAddress, emailId, isSent)).isOk();
+    }
+
+    /**
+     * Elimina più email della stessa cartella con un'unica richiesta BATCH: il server le rimuove
+     * con un solo accesso alla casella e un solo salvataggio su disco.
+     * @param emailAddress indirizzo email dell'utente
+     * @param emailIds identificativi delle email da eliminare
+     * @param isSent true se si tratta di email inviate, false se ricevute
+     * @return esito dell'eliminazione per ciascuna email, nello stesso ordine
+     */
+    public boolean[] deleteEmails(String emailAddress, List<String> emailIds, boolean isSent) {
+        List<Request> requests = new ArrayList<>(emailIds.size());
+        for (String emailId : emailIds) {
+            requests.add(deleteRequest(emailAddress, emailId, isSent));
+        }
+        List<Response> responses = sendBatch(requests);
+        boolean[] deleted = new boolean[responses.size()];
+        for (int i = 0; i < deleted.length; i++) {
+            deleted[i] = responses.get(i).isOk();
+        }
+        return deleted;
     }
 
     /**
-     * Verifica la connessione al server.
+     * Verifica la connessione al server riusando una connessione del pool (PING) invece di aprire un socket apposito.
      * @return true se la connessione è riuscita, false altrimenti
      */
     public boolean testConnection() {
-        try (Socket socket = new Socket(SERVER_HOST, SERVER_PORT)) {
+        if (keepAliveSupported) {
+            return sendRequest(Request.PING).isOk();
+        }
+        try (Socket socket = new Socket()) {
+            socket.connect(new InetSocketAddress(SERVER_HOST, SERVER_PORT), CONNECT_TIMEOUT_MILLIS);
             return true;
         } catch (Exception e) {
             return false;
         }
     }
 
+    /**
+     * Apre una connessione dedicata in modalità SUBSCRIBE: il server invia subito le modifiche successive
+     * al cursore (come {@link #sync}) e poi notifica ogni nuova email appena consegnata, senza bisogno di polling.
+     * @param emailAddress indirizzo email dell'utente
+     * @param cursor cursore dell'ultima sincronizzazione, oppure null
+     * @param limit numero massimo di email nel recupero iniziale
+     * @param backlog riceve, prima del ritorno, la prima pagina di modifiche successive al cursore
+     *                (con {@link SyncResult#hasMore()} le altre vanno lette con {@link #sync})
+     * @param onPush riceve le nuove email notificate dal server
+     * @param onClosed invocato quando la sottoscrizione si interrompe
+     * @return sottoscrizione attiva, oppure null se non è stato possibile attivarla
+     */
+    public PushSubscription subscribe(String emailAddress, String cursor, int limit, Consumer<SyncResult> backlog,
+                                      Consumer<List<Email>> onPush, Runnable onClosed) {
+        if (!pushSupported) {
+            return null;
+        }
+        Socket socket = null;
+        try {
+            socket = new Socket();
+            socket.connect(new InetSocketAddress(SERVER_HOST, SERVER_PORT), CONNECT_TIMEOUT_MILLIS);
+            socket.setSoTimeout(PUSH_READ_TIMEOUT_MILLIS);
+            PrintWriter out = new PrintWriter(socket.getOutputStream(), true);
+            BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+
+            out.println("SUBSCRIBE:" + emailAddress + "," + limit + "," + (cursor != null ? cursor : ""));
+            String response = in.readLine();
+            SyncResult initial = response != null && response.startsWith("OK:") ? parseSync(response.substring(3)) : null;
+            if (initial == null) {
+                if (response != null && response.contains("Comando non riconosciuto")) {
+                    pushSupported = false; // Server senza push: resta il polling
+                }
+                socket.close();
+                return null;
+            }
+            backlog.accept(initial);
+
+            PushSubscription subscription = new PushSubscription(socket, in,
+                    json -> {
+                        List<Email> emails = parseEmailList(json);
+                        if (emails != null) {
+                            onPush.accept(emails);
+                        }
+                    }, onClosed);
+            subscription.start();
+            return subscription;
+        } catch (Exception e) {
+            if (socket != null) {
+                try {
+                    socket.close();
+                } catch (IOException ignored) {
+                    // Chiusura best-effort
+                }
+            }
+            return null;
+        }
+    }
+
+    /**
+     * Converte una risposta "OK:[...]" nella lista di email corrispondente.
+     * @param response risposta del server
+     * @return lista di email, oppure null se la risposta è un errore
+     */
+    private List<Email> parseEmails(String response) {
+        return response.startsWith("OK:") ? parseEmailList(response.substring(3)) : null;
+    }
+
+    /**
+     * Decodifica un array JSON di email con il codec condiviso.
+     * @param emailsJson array JSON
+     * @return lista di email, oppure null se il JSON non è valido
+     */
+    private List<Email> parseEmailList(String emailsJson) {
+        try {
+            return EmailCodec.listFromJson(emailsJson);
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Decodifica il risultato JSON di una sincronizzazione con il codec condiviso.
+     * @param syncJson oggetto JSON
+     * @return risultato, oppure null se il JSON non è valido
+     */
+    private SyncResult parseSync(String syncJson) {
+        try {
+            return EmailCodec.syncFromJson(syncJson);
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Estrae il risultato di una sincronizzazione da una risposta: già decodificato con il protocollo binario,
+     * da JSON con quello testuale.
+     * @param response risposta del server
+     * @return risultato, oppure null se la risposta è un errore
+     */
+    private SyncResult syncOf(Response response) {
+        if (!response.isOk()) {
+            return null;
+        }
+        return response.getSync() != null ? response.getSync() : parseSync(response.getMessage());
+    }
+
+    /**
+     * Estrae le email da una risposta: già decodificate con il protocollo binario, da JSON con quello testuale.
+     * @param response risposta del server
+     * @return lista di email, oppure null se la risposta è un errore
+     */
+    private List<Email> emailsOf(Response response) {
+        if (!response.isOk()) {
+            return null;
+        }
+        return response.getEmails() != null ? response.getEmails() : parseEmails("OK:" + response.getMessage());
+    }
+
+    /**
+     * Estrae la pagina da una risposta: già decodificata con il protocollo binario, da JSON con quello testuale.
+     * @param response risposta del server
+     * @return pagina di email, oppure null se la risposta è un errore
+     */
+    private EmailPage pageOf(Response response) {
+        if (!response.isOk()) {
+            return null;
+        }
+        if (response.getPage() != null) {
+            return response.getPage();
+        }
+        try {
+            return EmailCodec.pageFromJson(response.getMessage());
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    private static Request getPageRequest(String emailAddress, boolean sent, int pageSize, String cursor) {
+        return new Request(sent ? BinaryProtocol.OP_GET_SENT_EMAILS_PAGE : BinaryProtocol.OP_GET_EMAILS_PAGE,
+                () -> (sent ? "GET_SENT_EMAILS_PAGE:" : "GET_EMAILS_PAGE:") + emailAddress + "," + pageSize
+                        + (cursor != null ? "," + cursor : ""),
+                payload -> {
+                    payload.writeString(emailAddress);
+                    payload.writeVarInt(pageSize);
+                    payload.writeString(cursor);
+                });
+    }
+
+    private static Request syncRequest(String emailAddress, String cursor, int limit) {
+        return new Request(BinaryProtocol.OP_SYNC,
+                () -> "SYNC:" + emailAddress + "," + limit + (cursor != null ? "," + cursor : ""),
+                payload -> {
+                    payload.writeString(emailAddress);
+                    payload.writeVarInt(limit);
+                    payload.writeString(cursor);
+                });
+    }
+
+    private static Request validateRequest(String email) {
+        return new Request(BinaryProtocol.OP_VALIDATE_EMAIL,
+                () -> "VALIDATE_EMAIL:" + email,
+                payload -> payload.writeString(email));
+    }
+
+    private static Request deleteRequest(String emailAddress, String emailId, boolean isSent) {
+        return new Request(BinaryProtocol.OP_DELETE_EMAIL,
+                () -> "DELETE_EMAIL:" + emailAddress + "," + emailId + "," + isSent,
+                payload -> {
+                    payload.writeString(emailAddress);
+                    payload.writeString(emailId);
+                    payload.writeBoolean(isSent);
+                });
+    }
+
+    private static Request getEmailsRequest(String emailAddress, int fromIndex) {
+        return new Request(BinaryProtocol.OP_GET_EMAILS,
+                () -> "GET_EMAILS:" + emailAddress + "," + fromIndex,
+                payload -> {
+                    payload.writeString(emailAddress);
+                    payload.writeVarInt(fromIndex);
+                });
+    }
+
+    private static Request getSentEmailsRequest(String emailAddress) {
+        return new Request(BinaryProtocol.OP_GET_SENT_EMAILS,
+                () -> "GET_SENT_EMAILS:" + emailAddress,
+                payload -> payload.writeString(emailAddress));
+    }
+
     /**
      * Invia una richiesta al server e restituisce la risposta.
-     * @param request stringa della richiesta da inviare
-     * @return risposta del server come stringa
+     * @param request richiesta da inviare
+     * @return risposta del server
+     */
+    private Response sendRequest(Request request) {
+        return sendPipelined(Collections.singletonList(request)).get(0);
+    }
+
+    /**
+     * Invia più richieste come un'unica richiesta BATCH e ne restituisce le risposte in ordine.
+     * Se il server non riconosce BATCH le richieste vengono inviate in pipeline, ora e in seguito.
+     * @param requests richieste da inviare
+     * @return risposte del server, una per richiesta, nello stesso ordine
+     */
+    private List<Response> sendBatch(List<Request> requests) {
+        if (!batchSupported || requests.size() < 2) {
+            return sendPipelined(requests);
+        }
+        Response response = sendRequest(Request.batch(requests));
+        List<Response> results = batchResultsOf(response);
+        if (results != null && results.size() == requests.size()) {
+            return results;
+        }
+        if (!response.isOk() && response.getMessage().contains("Comando non riconosciuto")) {
+            batchSupported = false;
+            return sendPipelined(requests);
+        }
+        return Collections.nCopies(requests.size(), response.isOk() ? Response.fromLine(CONNECTION_ERROR) : response);
+    }
+
+    /**
+     * Estrae i risultati di un BATCH: già decodificati con il protocollo binario, da JSON con quello testuale.
+     * @param response risposta del server
+     * @return risultati, oppure null se la risposta è un errore o non è valida
+     */
+    private List<Response> batchResultsOf(Response response) {
+        if (!response.isOk()) {
+            return null;
+        }
+        if (response.getResults() != null) {
+            return response.getResults();
+        }
+        try {
+            List<String> lines = EmailCodec.GSON.fromJson(response.getMessage(), STRING_LIST_TYPE);
+            if (lines == null) {
+                return null;
+            }
+            List<Response> results = new ArrayList<>(lines.size());
+            for (String line : lines) {
+                results.add(Response.fromLine(line));
+            }
+            return results;
+        } catch (RuntimeException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Invia più richieste in pipeline su una connessione del pool e ne legge le risposte in ordine.
+     * Se una connessione riusata risulta chiusa dal server le richieste vengono ritentate una volta
+     * su una nuova connessione, ma solo se sono tutte idempotenti: il server potrebbe averle già eseguite
+     * e aver perso solo la risposta, e un invio ripetuto consegnerebbe due volte la stessa email.
+     * Le connessioni guaste vengono scartate dal pool.
+     * @param requests richieste da inviare
+     * @return risposte del server, una per richiesta, nello stesso ordine
+     */
+    private List<Response> sendPipelined(List<Request> requests) {
+        for (int attempt = 0; attempt < 2 && keepAliveSupported; attempt++) {
+            PooledConnection connection;
+            try {
+                connection = pool.borrow();
+            } catch (PooledConnection.KeepAliveUnsupportedException e) {
+                keepAliveSupported = false;
+                break;
+            } catch (IOException e) {
+                return Collections.nCopies(requests.size(), Response.fromLine(CONNECTION_ERROR));
+            }
+
+            try {
+                List<Response> responses = connection.exchange(requests);
+                pool.release(connection);
+                return responses;
+            } catch (IOException e) {
+                pool.invalidate(connection);
+                if (!connection.isReused() || !allIdempotent(requests)) {
+                    return Collections.nCopies(requests.size(), Response.fromLine(CONNECTION_ERROR));
+                }
+            }
+        }
+
+        if (!keepAliveSupported) {
+            List<Response> responses = new ArrayList<>();
+            for (Request request : requests) {
+                responses.add(Response.fromLine(sendSingleRequest(request.toText())));
+            }
+            return responses;
+        }
+        return Collections.nCopies(requests.size(), Response.fromLine(CONNECTION_ERROR));
+    }
+
+    private static boolean allIdempotent(List<Request> requests) {
+        for (Request request : requests) {
+            if (!request.isIdempotent()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Invia una richiesta su una connessione dedicata (server senza keep-alive).
      */
-    private String sendRequest(String request) {
+    private String sendSingleRequest(String request) {
         try (Socket socket = new Socket(SERVER_HOST, SERVER_PORT);
              PrintWriter out = new PrintWriter(socket.getOutputStream(), true);
              BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()))) {
 
             out.println(request);
-            return in.readLine();
+            String response = in.readLine();
+            return response != null ? response : CONNECTION_ERROR;
 
         } catch (Exception e) {
-            return "ERROR:Errore di connessione al server";
+            return CONNECTION_ERROR;
         }
     }
 
     /**
-     * Metodo per eventuali operazioni di cleanup (attualmente vuoto).
+     * Chiude il pool e le connessioni keep-alive aperte, avvisando il server.
      */
     public void close() {
-        // Cleanup se necessario
+        pool.close();
     }
 }
\ No newline at end of file
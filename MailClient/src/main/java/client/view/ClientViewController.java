@@ -17,6 +17,8 @@ import javafx.stage.Stage;
 
 import java.io.IOException;
 import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.ResourceBundle;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
@@ -49,6 +51,8 @@ public class ClientViewController implements Initializable {
     @FXML private SplitPane mainSplitPane;
     @FXML private ListView<Email> inboxListView;
     @FXML private ListView<Email> sentListView;
+    @FXML private Button loadOlderInboxButton;
+    @FXML private Button loadOlderSentButton;
     @FXML private Button replyButton;
     @FXML private Button replyAllButton;
     @FXML private Button forwardButton;
@@ -93,6 +97,7 @@ public class ClientViewController implements Initializable {
             sentListView.setItems(model.getSentEmails());
 
             setupListViews();               // Configura celle, listener e sincronizzazione selezioni
+            bindLoadOlderButtons();         // Mostra "Carica email meno recenti" solo se il server ne ha altre
             startConnectionStatusUpdater(); // Aggiornamento periodico dello stato di connessione
 
             emailField.requestFocus();
@@ -106,6 +111,9 @@ public class ClientViewController implements Initializable {
     private void setupListViews() {
         EmailListViewConfigurator.configure(inboxListView, false, this::handleEmailSelection);
         EmailListViewConfigurator.configure(sentListView, true, this::handleEmailSelection);
+        // Selezione multipla per l'eliminazione di più email con una sola richiesta
+        inboxListView.getSelectionModel().setSelectionMode(SelectionMode.MULTIPLE);
+        sentListView.getSelectionModel().setSelectionMode(SelectionMode.MULTIPLE);
 
         inboxListView.getSelectionModel().selectedItemProperty().addListener((obs, oldV, newV) -> {
         // Se seleziono nella Inbox, svuoto la selezione della Sent
@@ -117,6 +125,16 @@ public class ClientViewController implements Initializable {
         });
     }
 
+    /**
+     * Collega la visibilità dei pulsanti di caricamento delle pagine precedenti allo stato del modello.
+     */
+    private void bindLoadOlderButtons() {
+        loadOlderInboxButton.visibleProperty().bind(model.moreInboxProperty());
+        loadOlderInboxButton.managedProperty().bind(model.moreInboxProperty());
+        loadOlderSentButton.visibleProperty().bind(model.moreSentProperty());
+        loadOlderSentButton.managedProperty().bind(model.moreSentProperty());
+    }
+
     /**
      * Avvia un task schedulato che aggiorna periodicamente (ogni 2 secondi) lo stato di connessione
      * visualizzato nella UI. L'aggiornamento del label avviene sul thread JavaFX.
@@ -171,15 +189,23 @@ public class ClientViewController implements Initializable {
     @FXML
     /**
      * Gestione eliminazione email: chiede conferma e, se positivo, invoca la cancellazione asincrona
-     * lato controller. In caso di esito positivo, pulisce i dettagli e disabilita le azioni.
+     * lato controller. Con più email selezionate vengono eliminate tutte con una sola richiesta al server.
+     * In caso di esito positivo, pulisce i dettagli e disabilita le azioni.
      */
     private void handleDelete() {
         if (selectedEmail == null) return;
 
+        boolean isSent = sentListView.getSelectionModel().getSelectedItem() != null;
+        ListView<Email> listView = isSent ? sentListView : inboxListView;
+        List<Email> selected = new ArrayList<>(listView.getSelectionModel().getSelectedItems());
+        if (selected.size() > 1) {
+            deleteSelected(selected, isSent);
+            return;
+        }
+
         DialogManager.showConfirmation("Conferma eliminazione", "Eliminare questa email?", "L'operazione non può essere annullata.")
                 .filter(response -> response == ButtonType.OK)
                 .ifPresent(response -> {
-                    boolean isSent = sentListView.getSelectionModel().getSelectedItem() != null;
                     controller.deleteEmailAsync(selectedEmail, isSent, success -> {
                         if (success) {
                             uiManager.clearEmailDetails();
@@ -192,6 +218,26 @@ public class ClientViewController implements Initializable {
                 });
     }
 
+    /**
+     * Elimina tutte le email selezionate in una cartella, dopo conferma.
+     * @param emails email selezionate
+     * @param isSent true se le email sono nella cartella inviati
+     */
+    private void deleteSelected(List<Email> emails, boolean isSent) {
+        DialogManager.showConfirmation("Conferma eliminazione", "Eliminare " + emails.size() + " email?", "L'operazione non può essere annullata.")
+                .filter(response -> response == ButtonType.OK)
+                .ifPresent(response -> {
+                    controller.deleteEmailsAsync(emails, isSent, deleted -> {
+                        uiManager.clearEmailDetails();
+                        uiManager.enableEmailActions(false, false);
+                        selectedEmail = null;
+                        if (deleted < emails.size()) {
+                            DialogManager.showAlert("Errore", "Impossibile eliminare " + (emails.size() - deleted) + " email", Alert.AlertType.ERROR);
+                        }
+                    });
+                });
+    }
+
     @FXML
     /**
      * Logout: arresta le risorse e ripristina lo stato iniziale dell'applicazione.
@@ -233,6 +279,37 @@ public class ClientViewController implements Initializable {
         if (selectedEmail != null) openComposeWindow(selectedEmail, false, false);
     }
 
+    @FXML
+    /**
+     * Carica la pagina di email ricevute precedente a quelle mostrate.
+     */
+    private void handleLoadOlderInbox() {
+        loadOlderEmails(loadOlderInboxButton, false);
+    }
+
+    @FXML
+    /**
+     * Carica la pagina di email inviate precedente a quelle mostrate.
+     */
+    private void handleLoadOlderSent() {
+        loadOlderEmails(loadOlderSentButton, true);
+    }
+
+    /**
+     * Richiede in background la pagina precedente della cartella, disabilitando il pulsante durante il caricamento.
+     * @param button pulsante che ha avviato il caricamento
+     * @param sent true per la cartella inviati
+     */
+    private void loadOlderEmails(Button button, boolean sent) {
+        button.setDisable(true);
+        controller.loadOlderEmailsAsync(sent, success -> {
+            button.setDisable(false);
+            if (!success) {
+                DialogManager.showAlert("Errore", "Impossibile caricare le email meno recenti", Alert.AlertType.ERROR);
+            }
+        });
+    }
+
     @FXML
     /**
      * Forza una sincronizzazione manuale con il server se connessi. Eseguito su thread separato.
@@ -0,0 +1,262 @@
+package server;
+
+/**
+ * Parametri di configurazione del server letti dalle proprietà di sistema (-Dmailserver.xxx=...).
+ * Ogni parametro ha un valore di default che riproduce il comportamento originale del server,
+ * così l'avvio con {@code mvn javafx:run} senza opzioni resta invariato.
+ */
+public final class ServerConfig {
+    private static final String PREFIX = "mailserver.";
+
+    private ServerConfig() {
+    }
+
+    /**
+     * Porta TCP su cui il server accetta le connessioni.
+     * @return porta configurata (default 8080)
+     */
+    public static int port() {
+        return intProperty("port", 8080);
+    }
+
+    /**
+     * Motore di trasporto: "blocking" (SocketServer, un handler per connessione) oppure "nio" (NioSocketServer).
+     * @return nome del motore configurato (default "blocking")
+     */
+    public static String engine() {
+        return stringProperty("engine", "blocking");
+    }
+
+    /**
+     * Numero di thread di I/O del motore NIO, ognuno con il proprio Selector.
+     * @return numero di thread di I/O (default: metà dei core disponibili, almeno 1)
+     */
+    public static int nioIoThreads() {
+        return intProperty("nio.ioThreads", Math.max(1, Runtime.getRuntime().availableProcessors() / 2));
+    }
+
+    /**
+     * Modalità di esecuzione dei ClientHandler: "virtual", "pool" oppure "thread".
+     * @return nome della modalità configurata (default "virtual")
+     */
+    public static String executionMode() {
+        return stringProperty("executor", "virtual");
+    }
+
+    /**
+     * Numero massimo di ClientHandler in esecuzione contemporaneamente.
+     * @return limite di handler concorrenti (default 256)
+     */
+    public static int maxConcurrentHandlers() {
+        return intProperty("executor.maxHandlers", 256);
+    }
+
+    /**
+     * Connessioni in attesa di un handler libero, in tutte le modalità; oltre vengono rifiutate.
+     * @return numero massimo di connessioni in coda (default 1024)
+     */
+    public static int handlerQueueCapacity() {
+        return intProperty("executor.queueCapacity", 1024);
+    }
+
+    /**
+     * Tempo massimo concesso agli handler attivi per terminare durante lo stop del server.
+     * @return timeout di drain in millisecondi (default 5000)
+     */
+    public static long drainTimeoutMillis() {
+        return longProperty("executor.drainTimeoutMs", 5000L);
+    }
+
+    /**
+     * Tempo massimo di inattività di una connessione keep-alive prima che il server la chiuda.
+     * @return timeout di inattività in millisecondi (default 60000)
+     */
+    public static int keepAliveIdleTimeoutMillis() {
+        return intProperty("keepAlive.idleTimeoutMs", 60000);
+    }
+
+    /**
+     * Intervallo dei messaggi PING inviati alle connessioni SUBSCRIBE per verificarne lo stato.
+     * @return intervallo di heartbeat in millisecondi (default 30000)
+     */
+    public static long pushHeartbeatMillis() {
+        return longProperty("push.heartbeatMs", 30000L);
+    }
+
+    /**
+     * Numero massimo di email restituite da una richiesta paginata (GET_EMAILS_PAGE / GET_SENT_EMAILS_PAGE).
+     * @return dimensione massima della pagina (default 500)
+     */
+    public static int maxPageSize() {
+        return intProperty("page.maxSize", 500);
+    }
+
+    /**
+     * Numero massimo di sotto-comandi in una richiesta BATCH.
+     * @return dimensione massima del batch (default 1000)
+     */
+    public static int maxBatchSize() {
+        return intProperty("batch.maxSize", 1000);
+    }
+
+    /**
+     * Modalità di salvataggio delle mailbox: "journal" (un record append-only per modifica) oppure
+     * "snapshot" (riscrittura completa del file .dat a ogni modifica, comportamento originale).
+     * @return nome della modalità configurata (default "journal")
+     */
+    public static String storageMode() {
+        return stringProperty("storage", "journal");
+    }
+
+    /**
+     * Momento in cui una modifica è confermata al client: "fsync" (dopo la scrittura sincronizzata su disco
+     * del gruppo che la contiene) oppure "enqueue" (appena accodata per la scrittura asincrona).
+     * @return nome della politica configurata (default "fsync")
+     */
+    public static String persistenceDurability() {
+        return stringProperty("persistence.durability", "fsync");
+    }
+
+    /**
+     * Numero massimo di modifiche in attesa di scrittura; oltre questo limite le nuove modifiche attendono.
+     * @return capacità della coda di persistenza (default 10000)
+     */
+    public static int persistenceMaxPending() {
+        return intProperty("persistence.maxPending", 10000);
+    }
+
+    /**
+     * Dimensione dei file di segmento in cui vengono salvati i corpi delle email (modalità journal).
+     * @return dimensione di un segmento in MB (default 64)
+     */
+    public static int segmentSizeMegabytes() {
+        return intProperty("segment.sizeMB", 64);
+    }
+
+    /**
+     * Intervallo tra due passaggi della compattazione in background dei journal.
+     * @return intervallo in millisecondi (default 60000)
+     */
+    public static long compactionIntervalMillis() {
+        return longProperty("compaction.intervalMs", 60000L);
+    }
+
+    /**
+     * Dimensione del journal di una casella oltre la quale la compattazione ne esegue il checkpoint;
+     * limita il lavoro di recupero al riavvio.
+     * @return soglia in KB (default 1024)
+     */
+    public static long compactionJournalKilobytes() {
+        return longProperty("compaction.journalKB", 1024L);
+    }
+
+    /**
+     * Memoria stimata massima delle caselle residenti; le caselle usate meno di recente vengono espulse
+     * e ricaricate da disco al prossimo accesso.
+     * @return budget in MB (default 256)
+     */
+    public static long cacheMaxMegabytes() {
+        return longProperty("cache.maxMB", 256L);
+    }
+
+    /**
+     * Thread che precaricano in parallelo le mailbox all'avvio; 0 disattiva il precaricamento
+     * (le caselle vengono caricate solo al primo accesso).
+     * @return numero di thread (default: core disponibili)
+     */
+    public static int preloadThreads() {
+        return intProperty("preload.threads", Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Compressione dei corpi salvati nei segmenti: "deflate" oppure "none".
+     * I corpi già scritti restano leggibili qualunque sia il valore.
+     * @return nome dell'algoritmo (default "deflate")
+     */
+    public static String compressionCodec() {
+        return stringProperty("compression.codec", "deflate");
+    }
+
+    /**
+     * Livello di compressione dei corpi, da 1 (veloce) a 9 (compatto).
+     * @return livello (default 6)
+     */
+    public static int compressionLevel() {
+        return intProperty("compression.level", 6);
+    }
+
+    /**
+     * Dimensione minima di un corpo perché venga compresso: i corpi brevi guadagnano poco
+     * e pagherebbero comunque la decompressione a ogni lettura.
+     * @return soglia in byte (default 1024)
+     */
+    public static int compressionMinBytes() {
+        return intProperty("compression.minBytes", 1024);
+    }
+
+    /**
+     * Directory in cui vengono scritti gli archivi di backup.
+     * @return percorso della directory (default "backup")
+     */
+    public static String backupDirectory() {
+        return stringProperty("backup.dir", "backup");
+    }
+
+    /**
+     * Velocità massima di lettura dei file durante il backup, per non sottrarre banda di disco alle richieste.
+     * @return limite in MB al secondo (default 20, 0 per nessun limite)
+     */
+    public static long backupMaxMegabytesPerSecond() {
+        return longProperty("backup.maxMBps", 20L);
+    }
+
+    /**
+     * Record del buffer circolare del log; oltre questo numero di messaggi non ancora mostrati
+     * i nuovi vengono scartati (e contati) invece di rallentare le richieste.
+     * @return numero di record, arrotondato a una potenza di due (default 8192)
+     */
+    public static int logBufferSize() {
+        return intProperty("log.bufferSize", 8192);
+    }
+
+    /**
+     * Righe di log conservate nella vista del server; le più vecchie vengono rimosse.
+     * @return numero di righe (default 5000)
+     */
+    public static int logHistoryLines() {
+        return intProperty("log.historyLines", 5000);
+    }
+
+    /**
+     * Legge una proprietà stringa con prefisso "mailserver.".
+     * @param name nome della proprietà senza prefisso
+     * @param defaultValue valore restituito se la proprietà è assente o vuota
+     * @return valore della proprietà
+     */
+    private static String stringProperty(String name, String defaultValue) {
+        String value = System.getProperty(PREFIX + name);
+        return value == null || value.trim().isEmpty() ? defaultValue : value.trim();
+    }
+
+    /**
+     * Legge una proprietà intera; valori non numerici ricadono sul default.
+     */
+    private static int intProperty(String name, int defaultValue) {
+        try {
+            return Integer.parseInt(stringProperty(name, String.valueOf(defaultValue)));
+        } catch (NumberFormatException e) {
+            return defaultValue;
+        }
+    }
+
+    /**
+     * Legge una proprietà long; valori non numerici ricadono sul default.
+     */
+    private static long longProperty(String name, long defaultValue) {
+        try {
+            return Long.parseLong(stringProperty(name, String.valueOf(defaultValue)));
+        } catch (NumberFormatException e) {
+            return defaultValue;
+        }
+    }
+}
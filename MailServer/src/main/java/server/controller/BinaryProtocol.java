@@ -0,0 +1,107 @@
+package server.controller;
+
+import server.model.BinaryWriter;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+
+/**
+ * Costanti e framing del protocollo binario negoziato con la richiesta testuale {@code BINARY}.
+ * <p>
+ * Dopo la risposta {@code OK:binary} entrambe le parti scambiano solo frame:
+ * {@code [lunghezza int32][opcode u8][requestId int32][payload]}, dove la lunghezza conta opcode, requestId e payload.
+ * Il payload usa la codifica compatta di {@link BinaryWriter} (varint, stringhe UTF-8 con lunghezza, timestamp epoch).
+ * Le risposte riportano il requestId della richiesta e arrivano nello stesso ordine, quindi il client può inviarle in pipeline.
+ * </p>
+ */
+public final class BinaryProtocol {
+    /** Richiesta testuale che attiva il protocollo binario sulla connessione. */
+    public static final String NEGOTIATION = "BINARY";
+    /** Risposta testuale che conferma il passaggio al protocollo binario. */
+    public static final String NEGOTIATION_OK = "OK:binary";
+    /** Dimensione massima di un frame, oltre la quale la connessione viene chiusa. */
+    public static final int MAX_FRAME_LENGTH = 32 * 1024 * 1024;
+
+    // Opcode delle richieste
+    public static final int OP_VALIDATE_EMAIL = 0x01;   // payload: email
+    public static final int OP_SEND_EMAIL = 0x02;       // payload: Email
+    public static final int OP_GET_EMAILS = 0x03;       // payload: email, varint fromIndex
+    public static final int OP_GET_SENT_EMAILS = 0x04;  // payload: email
+    public static final int OP_DELETE_EMAIL = 0x05;     // payload: email, id, boolean isSent
+    public static final int OP_PING = 0x06;             // payload vuoto
+    public static final int OP_QUIT = 0x07;             // payload vuoto, nessuna risposta
+    public static final int OP_GET_EMAILS_PAGE = 0x08;  // payload: email, varint pageSize, cursore (stringa o null)
+    public static final int OP_GET_SENT_EMAILS_PAGE = 0x09; // come OP_GET_EMAILS_PAGE, per le email inviate
+    public static final int OP_BATCH = 0x0A;            // payload: varint n, n x (opcode u8, varint lunghezza, payload)
+    public static final int OP_SYNC = 0x0B;             // payload: email, varint limite, cursore (stringa o null)
+
+    // Opcode delle risposte
+    public static final int OP_OK = 0x80;               // payload: messaggio
+    public static final int OP_OK_EMAILS = 0x81;        // payload: Email consecutive fino a fine frame (ultima parte)
+    public static final int OP_EMAILS_PART = 0x82;      // payload: Email consecutive, seguono altri frame
+    public static final int OP_OK_PAGE = 0x83;          // payload: varint total, cursore successivo, Email fino a fine frame
+    public static final int OP_BATCH_RESULT = 0x84;     // payload: varint n, n x (opcode u8, varint lunghezza, payload)
+    public static final int OP_OK_SYNC = 0x85;          // payload: cursore, boolean reset, boolean more, varint total,
+                                                        // cursore di pagina, varint n, n x id eliminato, Email fino a fine frame
+    public static final int OP_ERROR = 0xFF;            // payload: messaggio di errore
+
+    private static final int HEADER_LENGTH = 5;         // opcode + requestId
+
+    private BinaryProtocol() {
+    }
+
+    /**
+     * Frame decodificato.
+     */
+    public static final class Frame {
+        public final int opcode;
+        public final int requestId;
+        public final byte[] payload;
+
+        Frame(int opcode, int requestId, byte[] payload) {
+            this.opcode = opcode;
+            this.requestId = requestId;
+            this.payload = payload;
+        }
+    }
+
+    /**
+     * Legge un frame completo.
+     * @param in stream di input della connessione
+     * @return frame letto, oppure null se il client ha chiuso la connessione tra un frame e l'altro
+     * @throws IOException se il frame è troncato o supera la dimensione massima
+     */
+    public static Frame readFrame(DataInputStream in) throws IOException {
+        int length;
+        try {
+            length = in.readInt();
+        } catch (EOFException e) {
+            return null;
+        }
+        if (length < HEADER_LENGTH || length > MAX_FRAME_LENGTH) {
+            throw new IOException("Lunghezza del frame non valida: " + length);
+        }
+        int opcode = in.readUnsignedByte();
+        int requestId = in.readInt();
+        byte[] payload = new byte[length - HEADER_LENGTH];
+        in.readFully(payload);
+        return new Frame(opcode, requestId, payload);
+    }
+
+    /**
+     * Scrive un frame (senza flush, così più risposte in pipeline partono insieme).
+     * @param out stream di output della connessione
+     * @param opcode opcode del frame
+     * @param requestId identificativo della richiesta
+     * @param payload contenuto già codificato
+     * @throws IOException in caso di errori di scrittura
+     */
+    public static void writeFrame(DataOutputStream out, int opcode, int requestId, BinaryWriter payload) throws IOException {
+        out.writeInt(HEADER_LENGTH + payload.size());
+        out.writeByte(opcode);
+        out.writeInt(requestId);
+        payload.writeTo(out);
+    }
+}
@@ -0,0 +1,316 @@
+package server.controller;
+
+import server.ServerConfig;
+import server.model.BinaryReader;
+import server.model.BinaryWriter;
+import server.model.Email;
+import server.model.EmailPage;
+import server.model.ServerModel;
+import server.model.SyncResult;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Esegue le richieste di una connessione in protocollo binario ({@link BinaryProtocol}).
+ * Decodifica i campi direttamente dal payload, senza split di stringhe né JSON, e risponde con frame.
+ * Un'istanza per connessione: riusa lo stesso buffer di codifica per tutte le risposte.
+ * Le liste di email vengono inviate a frame parziali di circa {@link #EMAILS_PART_BYTES} byte,
+ * così la memoria usata per risposta resta limitata qualunque sia la dimensione della casella.
+ * Una richiesta BATCH contiene più sotto-richieste e riceve un unico frame con tutti i risultati.
+ */
+public class BinaryRequestHandler {
+    private static final int EMAILS_PART_BYTES = 64 * 1024; // Dimensione oltre la quale si invia un frame parziale
+
+    private final ServerModel model;            // Modello del server
+    private final RequestProcessor processor;   // Regole di consegna condivise con il protocollo testuale
+    private final BinaryWriter payload = new BinaryWriter(4096); // Buffer riusato per le risposte
+
+    /**
+     * Costruttore dell'handler binario.
+     * @param model modello del server
+     * @param processor interprete testuale, di cui si riusano le regole di consegna e validazione
+     */
+    public BinaryRequestHandler(ServerModel model, RequestProcessor processor) {
+        this.model = model;
+        this.processor = processor;
+    }
+
+    /**
+     * Esegue una richiesta e ne scrive la risposta (senza flush).
+     * @param frame richiesta ricevuta
+     * @param out stream di output della connessione
+     * @throws IOException in caso di errori di scrittura
+     */
+    public void handle(BinaryProtocol.Frame frame, DataOutputStream out) throws IOException {
+        payload.reset();
+        int opcode;
+        try {
+            opcode = execute(frame, new BinaryReader(frame.payload), out);
+        } catch (IOException e) {
+            // Errore di decodifica del payload: la connessione resta utilizzabile
+            payload.reset();
+            payload.writeString("Richiesta malformata: " + e.getMessage());
+            opcode = BinaryProtocol.OP_ERROR;
+        } catch (Exception e) {
+            payload.reset();
+            payload.writeString("Errore nel processare richiesta: " + e.getMessage());
+            opcode = BinaryProtocol.OP_ERROR;
+            model.addToLog("Errore nel processare richiesta binaria: " + e.getMessage());
+        }
+        BinaryProtocol.writeFrame(out, opcode, frame.requestId, payload);
+    }
+
+    /**
+     * Decodifica ed esegue la richiesta, scrivendo il payload della risposta.
+     * @return opcode della risposta
+     */
+    private int execute(BinaryProtocol.Frame frame, BinaryReader in, DataOutputStream out) throws IOException {
+        switch (frame.opcode) {
+            case BinaryProtocol.OP_VALIDATE_EMAIL: {
+                boolean valid = processor.validateEmail(in.readString());
+                return message(valid, valid ? "Email valida" : "Email non esistente");
+            }
+            case BinaryProtocol.OP_SEND_EMAIL: {
+                String error = processor.deliver(in.readEmail());
+                return message(error == null, error == null ? "Email inviata con successo" : error);
+            }
+            case BinaryProtocol.OP_GET_EMAILS: {
+                String emailAddress = in.readString();
+                int fromIndex = in.readVarInt();
+                List<Email> emails = model.isValidEmail(emailAddress) ? model.getNewEmails(emailAddress, fromIndex) : null;
+                return emails(emails, frame.requestId, out);
+            }
+            case BinaryProtocol.OP_GET_SENT_EMAILS: {
+                String emailAddress = in.readString();
+                List<Email> emails = model.isValidEmail(emailAddress) ? model.getSentEmails(emailAddress) : null;
+                return emails(emails, frame.requestId, out);
+            }
+            case BinaryProtocol.OP_GET_EMAILS_PAGE:
+            case BinaryProtocol.OP_GET_SENT_EMAILS_PAGE: {
+                String emailAddress = in.readString();
+                int pageSize = RequestProcessor.clampPageSize(in.readVarInt());
+                String cursor = in.readString();
+                boolean sent = frame.opcode == BinaryProtocol.OP_GET_SENT_EMAILS_PAGE;
+                EmailPage page;
+                try {
+                    page = model.isValidEmail(emailAddress) ? model.getEmailPage(emailAddress, sent, pageSize, cursor) : null;
+                } catch (IllegalArgumentException e) {
+                    return message(false, e.getMessage());
+                }
+                if (page == null) {
+                    return message(false, "Email non valida");
+                }
+                payload.writeVarInt(page.getTotal());
+                payload.writeString(page.getNextCursor());
+                for (Email email : page.getEmails()) {
+                    payload.writeEmail(email);
+                }
+                return BinaryProtocol.OP_OK_PAGE;
+            }
+            case BinaryProtocol.OP_SYNC: {
+                String emailAddress = in.readString();
+                int limit = RequestProcessor.clampPageSize(in.readVarInt());
+                String cursor = in.readString();
+                SyncResult sync;
+                try {
+                    sync = model.isValidEmail(emailAddress) ? model.sync(emailAddress, cursor, limit) : null;
+                } catch (IllegalArgumentException e) {
+                    return message(false, e.getMessage());
+                }
+                if (sync == null) {
+                    return message(false, "Email non valida");
+                }
+                payload.writeString(sync.getCursor());
+                payload.writeBoolean(sync.isReset());
+                payload.writeBoolean(sync.hasMore());
+                payload.writeVarInt(sync.getTotal());
+                payload.writeString(sync.getNextCursor());
+                payload.writeVarInt(sync.getDeletedIds().size());
+                for (String emailId : sync.getDeletedIds()) {
+                    payload.writeString(emailId);
+                }
+                for (Email email : sync.getEmails()) {
+                    payload.writeEmail(email);
+                }
+                return BinaryProtocol.OP_OK_SYNC;
+            }
+            case BinaryProtocol.OP_DELETE_EMAIL: {
+                String emailAddress = in.readString();
+                String emailId = in.readString();
+                boolean isSent = in.readBoolean();
+                boolean deleted = model.deleteEmail(emailAddress, emailId, isSent);
+                return message(deleted, deleted ? "Email eliminata" : "Email non trovata");
+            }
+            case BinaryProtocol.OP_BATCH:
+                return batch(frame.requestId, in);
+            case BinaryProtocol.OP_PING:
+                return message(true, "PONG");
+            default:
+                return message(false, "Comando non riconosciuto");
+        }
+    }
+
+    private int message(boolean ok, String text) {
+        payload.writeString(text);
+        return ok ? BinaryProtocol.OP_OK : BinaryProtocol.OP_ERROR;
+    }
+
+    /**
+     * Codifica le email una alla volta; ogni volta che il buffer supera la soglia lo invia come frame parziale.
+     * Le email restanti (anche nessuna) formano il frame finale OK_EMAILS.
+     * Con {@code out} null (sotto-richiesta di un BATCH) tutte le email restano nel payload.
+     */
+    private int emails(List<Email> emails, int requestId, DataOutputStream out) throws IOException {
+        if (emails == null) {
+            return message(false, "Email non valida");
+        }
+        for (Email email : emails) {
+            payload.writeEmail(email);
+            if (out != null && payload.size() >= EMAILS_PART_BYTES) {
+                BinaryProtocol.writeFrame(out, BinaryProtocol.OP_EMAILS_PART, requestId, payload);
+                payload.reset();
+            }
+        }
+        return BinaryProtocol.OP_OK_EMAILS;
+    }
+
+    /**
+     * Esegue una richiesta BATCH. Le sequenze consecutive di DELETE_EMAIL e di SEND_EMAIL vengono applicate
+     * al modello con una sola operazione (un lock, un salvataggio per casella), le altre sotto-richieste
+     * una alla volta. I risultati sono nello stesso ordine delle sotto-richieste.
+     * @return opcode della risposta
+     */
+    private int batch(int requestId, BinaryReader in) throws IOException {
+        int count = in.readVarInt();
+        if (count < 0 || count > ServerConfig.maxBatchSize()) {
+            return message(false, "Batch troppo grande (massimo " + ServerConfig.maxBatchSize() + " comandi)");
+        }
+        int[] opcodes = new int[count];
+        byte[][] requests = new byte[count][];
+        for (int i = 0; i < count; i++) {
+            opcodes[i] = in.readByte();
+            requests[i] = in.readBytes(in.readVarInt());
+        }
+
+        BinaryWriter results = new BinaryWriter(4096);
+        results.writeVarInt(count);
+        int start = 0;
+        while (start < count) {
+            int end = start + 1;
+            while (end < count && opcodes[end] == opcodes[start]) {
+                end++;
+            }
+            if (opcodes[start] == BinaryProtocol.OP_DELETE_EMAIL) {
+                batchDeletes(requests, start, end, results);
+            } else if (opcodes[start] == BinaryProtocol.OP_SEND_EMAIL) {
+                batchSends(requests, start, end, results);
+            } else {
+                for (int i = start; i < end; i++) {
+                    batchSingle(opcodes[i], requestId, requests[i], results);
+                }
+            }
+            start = end;
+        }
+        payload.reset();
+        payload.writeBytes(results.toByteArray(), 0, results.size());
+        return BinaryProtocol.OP_BATCH_RESULT;
+    }
+
+    /**
+     * Esegue una singola sotto-richiesta di un BATCH e ne accoda il risultato.
+     */
+    private void batchSingle(int opcode, int requestId, byte[] request, BinaryWriter results) {
+        payload.reset();
+        int resultOpcode;
+        if (opcode == BinaryProtocol.OP_BATCH || opcode == BinaryProtocol.OP_QUIT) {
+            resultOpcode = message(false, "Comando non consentito in BATCH");
+        } else {
+            try {
+                resultOpcode = execute(new BinaryProtocol.Frame(opcode, requestId, request), new BinaryReader(request), null);
+            } catch (IOException e) {
+                payload.reset();
+                resultOpcode = message(false, "Richiesta malformata: " + e.getMessage());
+            }
+        }
+        appendResult(resultOpcode, results);
+    }
+
+    /**
+     * Applica una sequenza di DELETE_EMAIL con una sola chiamata a {@link ServerModel#deleteEmails(List)}.
+     */
+    private void batchDeletes(byte[][] requests, int start, int end, BinaryWriter results) {
+        String[] errors = new String[end - start];
+        List<ServerModel.Deletion> deletions = new ArrayList<>();
+        for (int i = start; i < end; i++) {
+            try {
+                BinaryReader in = new BinaryReader(requests[i]);
+                deletions.add(new ServerModel.Deletion(in.readString(), in.readString(), in.readBoolean()));
+            } catch (IOException e) {
+                errors[i - start] = "Richiesta malformata: " + e.getMessage();
+            }
+        }
+        boolean[] deleted;
+        String failure = null;
+        try {
+            deleted = model.deleteEmails(deletions);
+        } catch (IllegalStateException e) {
+            deleted = new boolean[deletions.size()];
+            failure = "Errore nell'eliminazione dell'email: " + e.getMessage();
+        }
+        int next = 0;
+        for (String error : errors) {
+            payload.reset();
+            int resultOpcode;
+            if (error != null) {
+                resultOpcode = message(false, error);
+            } else if (failure != null) {
+                next++;
+                resultOpcode = message(false, failure);
+            } else {
+                boolean ok = deleted[next++];
+                resultOpcode = message(ok, ok ? "Email eliminata" : "Email non trovata");
+            }
+            appendResult(resultOpcode, results);
+        }
+    }
+
+    /**
+     * Applica una sequenza di SEND_EMAIL con una sola chiamata a {@link RequestProcessor#deliverAll(List)}.
+     */
+    private void batchSends(byte[][] requests, int start, int end, BinaryWriter results) {
+        String[] errors = new String[end - start];
+        List<Email> emails = new ArrayList<>();
+        for (int i = start; i < end; i++) {
+            try {
+                emails.add(new BinaryReader(requests[i]).readEmail());
+            } catch (IOException e) {
+                errors[i - start] = "Richiesta malformata: " + e.getMessage();
+            }
+        }
+        List<String> deliveryErrors = processor.deliverAll(emails);
+        int next = 0;
+        for (String error : errors) {
+            payload.reset();
+            int resultOpcode;
+            if (error != null) {
+                resultOpcode = message(false, error);
+            } else {
+                String deliveryError = deliveryErrors.get(next++);
+                resultOpcode = message(deliveryError == null, deliveryError == null ? "Email inviata con successo" : deliveryError);
+            }
+            appendResult(resultOpcode, results);
+        }
+    }
+
+    /**
+     * Accoda a {@code results} il risultato contenuto nel buffer delle risposte.
+     */
+    private void appendResult(int opcode, BinaryWriter results) {
+        results.writeByte(opcode);
+        results.writeVarInt(payload.size());
+        results.writeBytes(payload.toByteArray(), 0, payload.size());
+    }
+}
@@ -1,215 +1,188 @@
 package server.controller;
 
-import com.google.gson.Gson;
-import com.google.gson.GsonBuilder;
-
-import server.model.*;
-
+import server.ServerConfig;
+import server.model.ServerModel;
 
 import java.io.*;
 import java.net.Socket;
-import java.time.LocalDateTime;
-import java.util.List;
-import java.util.stream.Collectors;
+import java.net.SocketTimeoutException;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
 
 /**
  * Gestisce la comunicazione con un singolo client.
  * Ogni istanza viene eseguita in un thread separato.
+ * <p>
+ * Di default la connessione trasporta una sola richiesta (come HTTP). Se la prima riga è
+ * {@link RequestProcessor#KEEP_ALIVE} la connessione resta aperta: il client può inviare più richieste,
+ * anche in pipeline senza attendere le risposte, fino a {@link RequestProcessor#QUIT}, alla chiusura
+ * o al timeout di inattività. Una richiesta SUBSCRIBE passa la connessione al {@link SubscriptionManager},
+ * che la mantiene aperta per le notifiche push senza occupare questo handler. Una prima riga
+ * {@link BinaryProtocol#NEGOTIATION} passa la connessione al protocollo binario a frame.
+ * </p>
  */
 public class ClientHandler implements Runnable {
-    private final Socket clientSocket;      // Socket associato al client
-    private final ServerModel model;        // Modello del server per accedere ai dati e alle operazioni
-    private final Gson gson;                // Oggetto Gson per la serializzazione/deserializzazione JSON
+    private final Socket clientSocket;          // Socket associato al client
+    private final ServerModel model;            // Modello del server per accedere ai dati e alle operazioni
+    private final RequestProcessor processor;   // Interpreta le richieste e produce le risposte (condiviso)
 
     /**
      * Costruttore della classe ClientHandler.
      * @param clientSocket socket del client connesso
      * @param model modello del server
+     * @param processor interprete del protocollo condiviso tra le connessioni
      */
-    public ClientHandler(Socket clientSocket, ServerModel model) {
+    public ClientHandler(Socket clientSocket, ServerModel model, RequestProcessor processor) {
         this.clientSocket = clientSocket;
         this.model = model;
-        this.gson = new GsonBuilder()
-                .registerTypeAdapter(LocalDateTime.class, new LocalDateTimeTypeAdapter())
-                .create();
+        this.processor = processor;
     }
 
     /**
      * Metodo principale eseguito dal thread.
-     * Gestisce una singola richiesta per connessione.
+     * Gestisce una singola richiesta per connessione, oppure una sequenza di richieste in modalità keep-alive.
      */
     @Override
     public void run() {
-        try (BufferedReader in = new BufferedReader(new InputStreamReader(clientSocket.getInputStream()));
-             PrintWriter out = new PrintWriter(clientSocket.getOutputStream(), true)) {
+        boolean detached = false; // true se la connessione è passata al SubscriptionManager
+        try {
+            // La prima riga viene letta byte per byte: se negozia il protocollo binario
+            // nessun byte dei frame successivi deve finire nel buffer di un Reader
+            BufferedInputStream rawIn = new BufferedInputStream(clientSocket.getInputStream());
+            String request = readFirstLine(rawIn);
+            if (request == null) {
+                return;
+            }
+            if (BinaryProtocol.NEGOTIATION.equals(request)) {
+                serveBinary(rawIn);
+                return;
+            }
+
+            BufferedReader in = new BufferedReader(new InputStreamReader(rawIn));
+            PrintWriter out = new PrintWriter(new BufferedWriter(new OutputStreamWriter(clientSocket.getOutputStream())));
+            if (RequestProcessor.isSubscribe(request)) {
+                detached = processor.subscribe(request, new SocketPushSink(out));
+                return;
+            }
+            boolean completed = processor.handleRequest(request, out);
+            out.flush();
+
+            // Client "una richiesta per connessione": comportamento originale
+            if (!completed || !RequestProcessor.KEEP_ALIVE.equals(request)) {
+                return;
+            }
 
-            // Legge SOLO UNA richiesta per connessione (come HTTP)
-            String request = in.readLine();
-            if (request != null) {
-                handleRequest(request, out);
+            clientSocket.setSoTimeout(ServerConfig.keepAliveIdleTimeoutMillis());
+            while ((request = in.readLine()) != null && !RequestProcessor.QUIT.equals(request)) {
+                if (RequestProcessor.isSubscribe(request)) {
+                    out.flush();
+                    clientSocket.setSoTimeout(0);
+                    detached = processor.subscribe(request, new SocketPushSink(out));
+                    return;
+                }
+                if (!processor.handleRequest(request, out)) {
+                    // Risposta interrotta: la riga è incompleta, la connessione non è più utilizzabile
+                    out.flush();
+                    return;
+                }
+                // Pipelining: le risposte vengono inviate insieme quando non restano richieste già ricevute
+                if (!in.ready()) {
+                    out.flush();
+                }
             }
+            out.flush();
 
+        } catch (SocketTimeoutException e) {
+            model.addToLog("Connessione keep-alive inattiva chiusa: " + clientSocket.getInetAddress());
         } catch (IOException e) {
             model.addToLog("Errore nella comunicazione con il client: " + e.getMessage());
         } finally {
-            try {
-                clientSocket.close();
-                model.addToLog("Connessione chiusa con: " + clientSocket.getInetAddress());
-            } catch (IOException e) {
-                model.addToLog("Errore nella chiusura della connessione: " + e.getMessage());
+            if (!detached) {
+                closeSocket();
             }
         }
     }
 
     /**
-     * Gestisce la richiesta ricevuta dal client, smistandola in base al comando.
-     * @param request richiesta ricevuta
-     * @param out stream di output verso il client
+     * Legge la prima riga della connessione senza bufferizzare oltre il terminatore.
+     * @param in stream di input della connessione
+     * @return riga letta senza terminatore, oppure null se il client ha chiuso senza inviare nulla
+     * @throws IOException in caso di errori di lettura
      */
-    private void handleRequest(String request, PrintWriter out) {
-        try {
-            String[] parts = request.split(":", 2);
-            String command = parts[0];
-            String data = parts.length > 1 ? parts[1] : "";
-
-            switch (command) {
-                case "VALIDATE_EMAIL":
-                    handleValidateEmail(data, out);
-                    break;
-                case "SEND_EMAIL":
-                    handleSendEmail(data, out);
-                    break;
-                case "GET_EMAILS":
-                    handleGetEmails(data, out);
-                    break;
-                case "GET_SENT_EMAILS":
-                    handleGetSentEmails(data, out);
-                    break;
-                case "DELETE_EMAIL":
-                    handleDeleteEmail(data, out);
-                    break;
-                default:
-                    out.println("ERROR:Comando non riconosciuto");
-            }
-        } catch (Exception e) {
-            out.println("ERROR:" + e.getMessage());
-            model.addToLog("Errore nel processare richiesta: " + e.getMessage());
+    private static String readFirstLine(InputStream in) throws IOException {
+        ByteArrayOutputStream line = new ByteArrayOutputStream(128);
+        int b;
+        while ((b = in.read()) != -1 && b != '\n') {
+            line.write(b);
         }
+        if (b == -1 && line.size() == 0) {
+            return null;
+        }
+        byte[] bytes = line.toByteArray();
+        int length = bytes.length > 0 && bytes[bytes.length - 1] == '\r' ? bytes.length - 1 : bytes.length;
+        return new String(bytes, 0, length, Charset.defaultCharset());
     }
 
     /**
-     * Gestisce la validazione di un indirizzo email.
-     * @param email indirizzo email da validare
-     * @param out stream di output verso il client
-     */
-    private void handleValidateEmail(String email, PrintWriter out) {
-        boolean valid = model.isValidEmail(email);
-        out.println(valid ? "OK:Email valida" : "ERROR:Email non esistente");
-        model.addToLog("Validazione email " + email + ": " + (valid ? "valida" : "non valida"));
-    }
-
-    /**
-     * Gestisce la richiesta di invio di una email da parte del client.
-     * Deserializza l'oggetto Email dal formato JSON, verifica la validità del mittente e dei destinatari,
-     * consegna l'email tramite il modello e invia la risposta al client.
-     * In caso di errore, restituisce un messaggio di errore appropriato.
-     *
-     * @param emailJson email in formato JSON da inviare
-     * @param out stream di output verso il client
+     * Serve la connessione con il protocollo binario ({@link BinaryProtocol}) fino a QUIT, chiusura o timeout.
+     * Come in keep-alive, le risposte alle richieste in pipeline vengono inviate insieme.
+     * @param rawIn stream di input già posizionato dopo la riga di negoziazione
+     * @throws IOException in caso di errori di comunicazione
      */
-    private void handleSendEmail(String emailJson, PrintWriter out) {
-        try {
-            Email email = gson.fromJson(emailJson, Email.class);
-
-            // Verifica mittente
-            if (!model.isValidEmail(email.getSender())) {
-                out.println("ERROR: Mittente non registrato: " + email.getSender());
-                return;
+    private void serveBinary(BufferedInputStream rawIn) throws IOException {
+        DataInputStream in = new DataInputStream(rawIn);
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(clientSocket.getOutputStream(), 64 * 1024));
+        out.write((BinaryProtocol.NEGOTIATION_OK + "\n").getBytes(StandardCharsets.US_ASCII));
+        out.flush();
+
+        clientSocket.setSoTimeout(ServerConfig.keepAliveIdleTimeoutMillis());
+        BinaryRequestHandler handler = new BinaryRequestHandler(model, processor);
+        BinaryProtocol.Frame frame;
+        while ((frame = BinaryProtocol.readFrame(in)) != null && frame.opcode != BinaryProtocol.OP_QUIT) {
+            handler.handle(frame, out);
+            if (rawIn.available() == 0) {
+                out.flush();
             }
-
-            // Verifica destinatari
-            List<String> invalidRecipients = email.getRecipients().stream()
-                    .filter(recipient -> !model.isValidEmail(recipient))
-                    .collect(Collectors.toList());
-
-            if (!invalidRecipients.isEmpty()) {
-                out.println("ERROR: Destinatari non validi: " + String.join(", ", invalidRecipients));
-                return;
-            }
-
-            model.deliverEmail(email);
-            out.println("OK:Email inviata con successo");
-            model.addToLog("Email inviata da: " + email.getSender());
-
-        } catch (Exception e) {
-            out.println("ERROR:Errore nell'invio dell'email: " + e.getMessage());
         }
+        out.flush();
     }
 
     /**
-     * Gestisce la richiesta di recupero delle nuove email per un utente.
-     * @param data dati della richiesta (email, indice di partenza)
-     * @param out stream di output verso il client
+     * Chiude il socket del client e registra la chiusura nel log.
      */
-    private void handleGetEmails(String data, PrintWriter out) {
+    private void closeSocket() {
         try {
-            String[] parts = data.split(",");
-            String emailAddress = parts[0];
-            int fromIndex = Integer.parseInt(parts[1]);
-
-            if (!model.isValidEmail(emailAddress)) {
-                out.println("ERROR:Email non valida");
-                return;
-            }
-
-            List<Email> newEmails = model.getNewEmails(emailAddress, fromIndex);
-            String emailsJson = gson.toJson(newEmails);
-            out.println("OK:" + emailsJson);
-
-        } catch (Exception e) {
-            out.println("ERROR:Errore nel recuperare le email: " + e.getMessage());
+            clientSocket.close();
+            model.addToLog("Connessione chiusa con: " + clientSocket.getInetAddress());
+        } catch (IOException e) {
+            model.addToLog("Errore nella chiusura della connessione: " + e.getMessage());
         }
     }
 
     /**
-     * Gestisce la richiesta di recupero delle email inviate da un utente.
-     * @param emailAddress indirizzo email dell'utente
-     * @param out stream di output verso il client
+     * Invio delle notifiche push sul socket bloccante di questo client.
      */
-    private void handleGetSentEmails(String emailAddress, PrintWriter out) {
-        try {
-            if (!model.isValidEmail(emailAddress)) {
-                out.println("ERROR:Email non valida");
-                return;
-            }
-
-            List<Email> sentEmails = model.getSentEmails(emailAddress);
-            String emailsJson = gson.toJson(sentEmails);
-            out.println("OK:" + emailsJson);
+    private final class SocketPushSink implements PushSink {
+        private final PrintWriter out;
 
-        } catch (Exception e) {
-            out.println("ERROR:Errore nel recuperare le email inviate: " + e.getMessage());
+        SocketPushSink(PrintWriter out) {
+            this.out = out;
         }
-    }
 
-    /**
-     * Gestisce la richiesta di eliminazione di una email.
-     * @param data dati della richiesta (email, id email, flag inviata/ricevuta)
-     * @param out stream di output verso il client
-     */
-    private void handleDeleteEmail(String data, PrintWriter out) {
-        try {
-            String[] parts = data.split(",");
-            String emailAddress = parts[0];
-            String emailId = parts[1];
-            boolean isSent = Boolean.parseBoolean(parts[2]);
-
-            boolean deleted = model.deleteEmail(emailAddress, emailId, isSent);
-            out.println(deleted ? "OK:Email eliminata" : "ERROR:Email non trovata");
-//            model.addToLog("Email eliminata da: " + emailAddress);
+        @Override
+        public synchronized void send(String line) throws IOException {
+            out.println(line);
+            out.flush();
+            if (out.checkError()) {
+                throw new IOException("Client non raggiungibile");
+            }
+        }
 
-        } catch (Exception e) {
-            out.println("ERROR:Errore nell'eliminazione dell'email: " + e.getMessage());
+        @Override
+        public void close() {
+            if (!clientSocket.isClosed()) {
+                closeSocket();
+            }
         }
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,22 @@
+package server.controller;
+
+import java.io.IOException;
+
+/**
+ * Destinazione delle righe inviate a un client in modalità SUBSCRIBE.
+ * Ogni motore di trasporto fornisce la propria implementazione (socket bloccante o canale NIO).
+ */
+public interface PushSink {
+
+    /**
+     * Invia una riga al client.
+     * @param line riga da inviare, senza terminatore
+     * @throws IOException se il client non è più raggiungibile
+     */
+    void send(String line) throws IOException;
+
+    /**
+     * Chiude la connessione del client.
+     */
+    void close();
+}
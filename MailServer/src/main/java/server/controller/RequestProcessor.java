@@ -0,0 +1,607 @@
+package server.controller;
+
+import com.google.gson.reflect.TypeToken;
+import com.google.gson.stream.JsonWriter;
+import server.ServerConfig;
+import server.model.*;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.lang.reflect.Type;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.stream.Collectors;
+
+/**
+ * Interpreta le richieste testuali del protocollo (COMANDO:dati) e scrive la risposta sullo stream indicato.
+ * Non dipende dal tipo di trasporto: è usato sia dal ClientHandler (I/O bloccante)
+ * sia dal motore NIO, che gli passa un PrintWriter che inoltra la risposta a blocchi.
+ * Le liste di email vengono serializzate in streaming sullo stream, senza costruire la risposta in memoria.
+ */
+public class RequestProcessor {
+    /** Richiesta che attiva la modalità keep-alive: la connessione resta aperta per più richieste. */
+    public static final String KEEP_ALIVE = "KEEP_ALIVE";
+    /** Richiesta che chiude una connessione keep-alive. */
+    public static final String QUIT = "QUIT";
+    /** Prefisso della richiesta che trasforma la connessione in un canale di notifiche push. */
+    public static final String SUBSCRIBE_PREFIX = "SUBSCRIBE:";
+    /** Comando che esegue una lista di sotto-comandi in una sola richiesta. */
+    public static final String BATCH = "BATCH";
+    private static final int ERROR_CHECK_CHARS = 64 * 1024; // Caratteri di risposta scritti tra due controlli dello stato dello stream
+    private static final Type STRING_LIST_TYPE = new TypeToken<List<String>>() {}.getType();
+
+    private final ServerModel model;        // Modello del server per accedere ai dati e alle operazioni
+    private final SubscriptionManager subscriptions; // Gestore delle connessioni in modalità SUBSCRIBE
+
+    /**
+     * Costruttore della classe RequestProcessor.
+     * L'istanza è thread-safe e può essere condivisa da tutte le connessioni.
+     * @param model modello del server
+     * @param subscriptions gestore delle sottoscrizioni push
+     */
+    public RequestProcessor(ServerModel model, SubscriptionManager subscriptions) {
+        this.model = model;
+        this.subscriptions = subscriptions;
+    }
+
+    /**
+     * Indica se la richiesta è una SUBSCRIBE, che il trasporto deve passare a {@link #subscribe(String, PushSink)}
+     * invece che a handleRequest, perché cambia la modalità della connessione.
+     * @param request richiesta ricevuta
+     * @return true se si tratta di una SUBSCRIBE
+     */
+    public static boolean isSubscribe(String request) {
+        return request.startsWith(SUBSCRIBE_PREFIX);
+    }
+
+    /**
+     * Trasforma la connessione in un canale di notifiche push per la casella indicata nella richiesta.
+     * @param request richiesta SUBSCRIBE:email,fromIndex oppure SUBSCRIBE:email,limite,cursore
+     * @param sink destinazione delle righe verso il client
+     * @return true se la connessione è passata al SubscriptionManager e non deve essere chiusa dal chiamante
+     */
+    public boolean subscribe(String request, PushSink sink) {
+        return subscriptions.subscribe(request.substring(SUBSCRIBE_PREFIX.length()), sink);
+    }
+
+    /**
+     * Gestisce la richiesta ricevuta dal client, smistandola in base al comando.
+     * Se la scrittura di una risposta già iniziata fallisce (client disconnesso o errore durante la serializzazione)
+     * la riga inviata è incompleta: il metodo restituisce false e il trasporto deve chiudere la connessione.
+     * @param request richiesta ricevuta
+     * @param out stream di output verso il client
+     * @return true se la risposta è completa, false se la connessione va chiusa
+     */
+    public boolean handleRequest(String request, PrintWriter out) {
+        try {
+            String[] parts = request.split(":", 2);
+            String command = parts[0];
+            String data = parts.length > 1 ? parts[1] : "";
+
+            switch (command) {
+                case "VALIDATE_EMAIL":
+                    handleValidateEmail(data, out);
+                    break;
+                case "SEND_EMAIL":
+                    handleSendEmail(data, out);
+                    break;
+                case "GET_EMAILS":
+                    handleGetEmails(data, out);
+                    break;
+                case "GET_SENT_EMAILS":
+                    handleGetSentEmails(data, out);
+                    break;
+                case "GET_EMAILS_PAGE":
+                    handleGetPage(data, false, out);
+                    break;
+                case "GET_SENT_EMAILS_PAGE":
+                    handleGetPage(data, true, out);
+                    break;
+                case "DELETE_EMAIL":
+                    handleDeleteEmail(data, out);
+                    break;
+                case "SYNC":
+                    handleSync(data, out);
+                    break;
+                case BATCH:
+                    handleBatch(data, out);
+                    break;
+                case KEEP_ALIVE:
+                    out.println("OK:keep-alive");
+                    break;
+                case "PING":
+                    // Health check delle connessioni keep-alive del client
+                    out.println("OK:PONG");
+                    break;
+                default:
+                    out.println("ERROR:Comando non riconosciuto");
+            }
+        } catch (ResponseAbortedException e) {
+            model.addToLog("Risposta interrotta, connessione chiusa: " + e.getMessage());
+            return false;
+        } catch (Exception e) {
+            out.println("ERROR:" + e.getMessage());
+            model.addToLog("Errore nel processare richiesta: " + e.getMessage());
+        }
+        return true;
+    }
+
+    /**
+     * Gestisce la validazione di un indirizzo email.
+     * @param email indirizzo email da validare
+     * @param out stream di output verso il client
+     */
+    private void handleValidateEmail(String email, PrintWriter out) {
+        boolean valid = validateEmail(email);
+        out.println(valid ? "OK:Email valida" : "ERROR:Email non esistente");
+    }
+
+    /**
+     * Verifica l'esistenza di un indirizzo e registra l'esito nel log (condiviso con il protocollo binario).
+     * @param email indirizzo email da validare
+     * @return true se l'indirizzo esiste sul server
+     */
+    public boolean validateEmail(String email) {
+        boolean valid = model.isValidEmail(email);
+        model.addToLog("Validazione email " + email + ": " + (valid ? "valida" : "non valida"));
+        return valid;
+    }
+
+    /**
+     * Gestisce la richiesta di invio di una email da parte del client.
+     * Deserializza l'oggetto Email dal formato JSON e la consegna tramite {@link #deliver(Email)},
+     * poi invia la risposta al client. In caso di errore, restituisce un messaggio di errore appropriato.
+     *
+     * @param emailJson email in formato JSON da inviare
+     * @param out stream di output verso il client
+     */
+    private void handleSendEmail(String emailJson, PrintWriter out) {
+        try {
+            Email email = EmailCodec.emailFromJson(emailJson);
+            String error = deliver(email);
+            out.println(error == null ? "OK:Email inviata con successo" : "ERROR: " + error);
+        } catch (Exception e) {
+            out.println("ERROR:Errore nell'invio dell'email: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Verifica la validità del mittente e dei destinatari e consegna l'email tramite il modello
+     * (condiviso con il protocollo binario).
+     * @param email email da consegnare
+     * @return null se l'email è stata consegnata, altrimenti il messaggio di errore
+     */
+    public String deliver(Email email) {
+        return deliverAll(Collections.singletonList(email)).get(0);
+    }
+
+    /**
+     * Verifica e consegna più email con una sola operazione sul modello, così ogni casella coinvolta
+     * viene salvata una sola volta (usato dai BATCH).
+     * @param emails email da consegnare
+     * @return per ciascuna email null se consegnata, altrimenti il messaggio di errore
+     */
+    public List<String> deliverAll(List<Email> emails) {
+        List<String> errors = new ArrayList<>(emails.size());
+        List<Email> valid = new ArrayList<>(emails.size());
+        for (Email email : emails) {
+            String error = validateDelivery(email);
+            errors.add(error);
+            if (error == null) {
+                valid.add(email);
+            }
+        }
+        if (!valid.isEmpty()) {
+            try {
+                model.deliverEmails(valid);
+            } catch (IllegalStateException e) {
+                // Consegna non confermata su disco: nessuna email del gruppo risulta inviata
+                for (int i = 0; i < errors.size(); i++) {
+                    if (errors.get(i) == null) {
+                        errors.set(i, e.getMessage());
+                    }
+                }
+                model.addToLog("Invio non confermato: " + e.getMessage());
+                return errors;
+            }
+            for (Email email : valid) {
+                model.addToLog("Email inviata da: " + email.getSender());
+            }
+        }
+        return errors;
+    }
+
+    /**
+     * Verifica mittente e destinatari di un'email.
+     * @return null se l'email può essere consegnata, altrimenti il messaggio di errore
+     */
+    private String validateDelivery(Email email) {
+        // Verifica mittente
+        if (!model.isValidEmail(email.getSender())) {
+            return "Mittente non registrato: " + email.getSender();
+        }
+
+        // Verifica destinatari
+        List<String> invalidRecipients = email.getRecipients().stream()
+                .filter(recipient -> !model.isValidEmail(recipient))
+                .collect(Collectors.toList());
+
+        if (!invalidRecipients.isEmpty()) {
+            return "Destinatari non validi: " + String.join(", ", invalidRecipients);
+        }
+        return null;
+    }
+
+    /**
+     * Gestisce la richiesta di recupero delle nuove email per un utente.
+     * @param data dati della richiesta (email, indice di partenza)
+     * @param out stream di output verso il client
+     */
+    private void handleGetEmails(String data, PrintWriter out) throws ResponseAbortedException {
+        try {
+            String[] parts = data.split(",");
+            String emailAddress = parts[0];
+            int fromIndex = Integer.parseInt(parts[1]);
+
+            if (!model.isValidEmail(emailAddress)) {
+                out.println("ERROR:Email non valida");
+                return;
+            }
+
+            List<Email> newEmails = model.getNewEmails(emailAddress, fromIndex);
+            writeResponse(out, writer -> EmailCodec.writeList(newEmails, writer));
+
+        } catch (ResponseAbortedException e) {
+            throw e;
+        } catch (Exception e) {
+            out.println("ERROR:Errore nel recuperare le email: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Gestisce la richiesta di recupero delle email inviate da un utente.
+     * @param emailAddress indirizzo email dell'utente
+     * @param out stream di output verso il client
+     */
+    private void handleGetSentEmails(String emailAddress, PrintWriter out) throws ResponseAbortedException {
+        try {
+            if (!model.isValidEmail(emailAddress)) {
+                out.println("ERROR:Email non valida");
+                return;
+            }
+
+            List<Email> sentEmails = model.getSentEmails(emailAddress);
+            writeResponse(out, writer -> EmailCodec.writeList(sentEmails, writer));
+
+        } catch (ResponseAbortedException e) {
+            throw e;
+        } catch (Exception e) {
+            out.println("ERROR:Errore nel recuperare le email inviate: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Gestisce una richiesta BATCH: {@code BATCH:["COMANDO:dati", ...]}. La risposta è {@code OK:["risposta", ...]}
+     * con una risposta per sotto-comando, nello stesso ordine.
+     * @param data array JSON dei sotto-comandi
+     * @param out stream di output verso il client
+     * @throws IOException in caso di errori di scrittura
+     */
+    private void handleBatch(String data, PrintWriter out) throws IOException {
+        List<String> requests;
+        try {
+            requests = EmailCodec.GSON.fromJson(data, STRING_LIST_TYPE);
+        } catch (RuntimeException e) {
+            requests = null;
+        }
+        if (requests == null) {
+            out.println("ERROR:Batch non valido");
+            return;
+        }
+        if (requests.size() > ServerConfig.maxBatchSize()) {
+            out.println("ERROR:Batch troppo grande (massimo " + ServerConfig.maxBatchSize() + " comandi)");
+            return;
+        }
+
+        String[] results = executeBatch(requests);
+        out.print("OK:");
+        JsonWriter writer = new JsonWriter(out);
+        writer.beginArray();
+        for (String result : results) {
+            writer.value(result);
+        }
+        writer.endArray();
+        out.println();
+    }
+
+    /**
+     * Esegue i sotto-comandi in ordine. Le sequenze consecutive di DELETE_EMAIL e di SEND_EMAIL vengono
+     * applicate al modello con una sola operazione (un lock, un salvataggio per casella); gli altri comandi
+     * vengono eseguiti singolarmente. L'ordine osservabile resta quello della richiesta.
+     * @param requests sotto-comandi
+     * @return risposte, una per sotto-comando
+     */
+    private String[] executeBatch(List<String> requests) {
+        String[] results = new String[requests.size()];
+        int start = 0;
+        while (start < requests.size()) {
+            String command = commandOf(requests.get(start));
+            int end = start + 1;
+            while (end < requests.size() && command.equals(commandOf(requests.get(end)))) {
+                end++;
+            }
+            if (command.equals("DELETE_EMAIL")) {
+                batchDeletes(requests, start, end, results);
+            } else if (command.equals("SEND_EMAIL")) {
+                batchSends(requests, start, end, results);
+            } else {
+                for (int i = start; i < end; i++) {
+                    results[i] = executeSingle(requests.get(i));
+                }
+            }
+            start = end;
+        }
+        return results;
+    }
+
+    private static String commandOf(String request) {
+        int separator = request.indexOf(':');
+        return separator < 0 ? request : request.substring(0, separator);
+    }
+
+    /**
+     * Esegue un sotto-comando con handleRequest e restituisce la risposta senza terminatore di riga.
+     */
+    private String executeSingle(String request) {
+        String command = commandOf(request);
+        if (command.equals(BATCH) || command.equals(KEEP_ALIVE) || command.equals(QUIT) || isSubscribe(request)) {
+            return "ERROR:Comando non consentito in BATCH";
+        }
+        StringWriter buffer = new StringWriter();
+        PrintWriter out = new PrintWriter(buffer);
+        if (!handleRequest(request, out)) {
+            return "ERROR:Risposta interrotta";
+        }
+        out.flush();
+        String response = buffer.toString();
+        int end = response.length();
+        while (end > 0 && (response.charAt(end - 1) == '\n' || response.charAt(end - 1) == '\r')) {
+            end--;
+        }
+        return response.substring(0, end);
+    }
+
+    /**
+     * Applica una sequenza di DELETE_EMAIL con una sola chiamata a {@link ServerModel#deleteEmails(List)}.
+     */
+    private void batchDeletes(List<String> requests, int start, int end, String[] results) {
+        List<ServerModel.Deletion> deletions = new ArrayList<>();
+        List<Integer> positions = new ArrayList<>();
+        for (int i = start; i < end; i++) {
+            try {
+                String[] parts = requests.get(i).substring("DELETE_EMAIL:".length()).split(",");
+                deletions.add(new ServerModel.Deletion(parts[0], parts[1], Boolean.parseBoolean(parts[2])));
+                positions.add(i);
+            } catch (Exception e) {
+                results[i] = "ERROR:Errore nell'eliminazione dell'email: " + e.getMessage();
+            }
+        }
+        boolean[] deleted;
+        try {
+            deleted = model.deleteEmails(deletions);
+        } catch (IllegalStateException e) {
+            for (int position : positions) {
+                results[position] = "ERROR:Errore nell'eliminazione dell'email: " + e.getMessage();
+            }
+            return;
+        }
+        for (int k = 0; k < deleted.length; k++) {
+            results[positions.get(k)] = deleted[k] ? "OK:Email eliminata" : "ERROR:Email non trovata";
+        }
+    }
+
+    /**
+     * Applica una sequenza di SEND_EMAIL con una sola chiamata a {@link #deliverAll(List)}.
+     */
+    private void batchSends(List<String> requests, int start, int end, String[] results) {
+        List<Email> emails = new ArrayList<>();
+        List<Integer> positions = new ArrayList<>();
+        for (int i = start; i < end; i++) {
+            try {
+                emails.add(EmailCodec.emailFromJson(requests.get(i).substring("SEND_EMAIL:".length())));
+                positions.add(i);
+            } catch (Exception e) {
+                results[i] = "ERROR:Errore nell'invio dell'email: " + e.getMessage();
+            }
+        }
+        List<String> errors = deliverAll(emails);
+        for (int k = 0; k < errors.size(); k++) {
+            results[positions.get(k)] = errors.get(k) == null ? "OK:Email inviata con successo" : "ERROR: " + errors.get(k);
+        }
+    }
+
+    /**
+     * Gestisce la richiesta di una pagina di email ricevute o inviate.
+     * @param data dati della richiesta (email, dimensione pagina, cursore opzionale)
+     * @param sent true per le email inviate, false per le ricevute
+     * @param out stream di output verso il client
+     */
+    private void handleGetPage(String data, boolean sent, PrintWriter out) throws ResponseAbortedException {
+        try {
+            String[] parts = data.split(",");
+            String emailAddress = parts[0];
+            int pageSize = clampPageSize(Integer.parseInt(parts[1]));
+            String cursor = parts.length > 2 && !parts[2].isEmpty() ? parts[2] : null;
+
+            EmailPage page = model.isValidEmail(emailAddress)
+                    ? model.getEmailPage(emailAddress, sent, pageSize, cursor) : null;
+            if (page == null) {
+                out.println("ERROR:Email non valida");
+                return;
+            }
+            writeResponse(out, writer -> EmailCodec.writePage(page, writer));
+
+        } catch (ResponseAbortedException e) {
+            throw e;
+        } catch (IllegalArgumentException e) {
+            out.println("ERROR:" + e.getMessage());
+        } catch (Exception e) {
+            out.println("ERROR:Errore nel recuperare le email: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Gestisce la sincronizzazione incrementale delle email ricevute: {@code SYNC:email,limite[,cursore]}.
+     * Senza cursore (prima sincronizzazione) restituisce le email più recenti come reset.
+     * @param data dati della richiesta (email, numero massimo di email, cursore opzionale)
+     * @param out stream di output verso il client
+     */
+    private void handleSync(String data, PrintWriter out) throws ResponseAbortedException {
+        try {
+            String[] parts = data.split(",");
+            String emailAddress = parts[0];
+            int limit = clampPageSize(Integer.parseInt(parts[1]));
+            String cursor = parts.length > 2 && !parts[2].isEmpty() ? parts[2] : null;
+
+            SyncResult sync = model.isValidEmail(emailAddress) ? model.sync(emailAddress, cursor, limit) : null;
+            if (sync == null) {
+                out.println("ERROR:Email non valida");
+                return;
+            }
+            writeResponse(out, writer -> EmailCodec.writeSync(sync, writer));
+
+        } catch (ResponseAbortedException e) {
+            throw e;
+        } catch (IllegalArgumentException e) {
+            out.println("ERROR:" + e.getMessage());
+        } catch (Exception e) {
+            out.println("ERROR:Errore nella sincronizzazione: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Limita la dimensione di pagina richiesta dal client al massimo configurato.
+     * @param requested dimensione richiesta
+     * @return dimensione effettiva, tra 1 e {@link ServerConfig#maxPageSize()}
+     */
+    public static int clampPageSize(int requested) {
+        return Math.max(1, Math.min(requested, ServerConfig.maxPageSize()));
+    }
+
+    /**
+     * Scrive la risposta "OK:..." serializzando il JSON direttamente sullo stream: la memoria usata non dipende
+     * dalla dimensione della casella, perché il JSON passa dal buffer dello stream al socket man mano che viene prodotto.
+     * Nessun flush a fine risposta: lo decide il trasporto.
+     * <p>
+     * Dopo "OK:" non è più possibile rispondere con un errore, quindi qualsiasi fallimento interrompe la risposta.
+     * Il PrintWriter non propaga gli errori del socket: lo stato viene controllato con {@link PrintWriter#checkError()}
+     * ogni {@link #ERROR_CHECK_CHARS} caratteri (il controllo fa un flush, farlo a ogni email
+     * trasformerebbe ogni email in una scrittura sul socket), così dopo una disconnessione la serializzazione si ferma.
+     * </p>
+     * @param out stream di output verso il client
+     * @param body scrittura del JSON della risposta
+     * @throws ResponseAbortedException se la risposta è stata interrotta dopo "OK:"
+     */
+    private static void writeResponse(PrintWriter out, ResponseBody body) throws ResponseAbortedException {
+        out.print("OK:");
+        try {
+            body.writeTo(new CheckedWriter(out));
+        } catch (IOException | RuntimeException e) {
+            throw new ResponseAbortedException(e.getMessage(), e);
+        }
+        out.println();
+    }
+
+    /**
+     * Gestisce la richiesta di eliminazione di una email.
+     * @param data dati della richiesta (email, id email, flag inviata/ricevuta)
+     * @param out stream di output verso il client
+     */
+    private void handleDeleteEmail(String data, PrintWriter out) {
+        try {
+            String[] parts = data.split(",");
+            String emailAddress = parts[0];
+            String emailId = parts[1];
+            boolean isSent = Boolean.parseBoolean(parts[2]);
+
+            boolean deleted = model.deleteEmail(emailAddress, emailId, isSent);
+            out.println(deleted ? "OK:Email eliminata" : "ERROR:Email non trovata");
+//            model.addToLog("Email eliminata da: " + emailAddress);
+
+        } catch (Exception e) {
+            out.println("ERROR:Errore nell'eliminazione dell'email: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Scrittura del corpo JSON di una risposta "OK:".
+     */
+    private interface ResponseBody {
+        void writeTo(Writer out) throws IOException;
+    }
+
+    /**
+     * Risposta interrotta dopo "OK:": la riga inviata al client è incompleta.
+     */
+    private static final class ResponseAbortedException extends IOException {
+        private static final long serialVersionUID = 1L; // Versione per la serializzazione
+
+        ResponseAbortedException(String message, Throwable cause) {
+            super(message, cause);
+        }
+    }
+
+    /**
+     * Writer che inoltra al PrintWriter della risposta e ne controlla lo stato ogni {@link #ERROR_CHECK_CHARS} caratteri,
+     * trasformando in IOException l'errore che il PrintWriter nasconderebbe.
+     */
+    private static final class CheckedWriter extends Writer {
+        private final PrintWriter out;
+        private int unchecked = 0;      // Caratteri scritti dall'ultimo controllo
+
+        CheckedWriter(PrintWriter out) {
+            this.out = out;
+        }
+
+        @Override
+        public void write(char[] buffer, int offset, int length) throws IOException {
+            out.write(buffer, offset, length);
+            written(length);
+        }
+
+        @Override
+        public void write(String text, int offset, int length) throws IOException {
+            out.write(text, offset, length);
+            written(length);
+        }
+
+        @Override
+        public void write(int c) throws IOException {
+            out.write(c);
+            written(1);
+        }
+
+        @Override
+        public void flush() {
+            out.flush();
+        }
+
+        @Override
+        public void close() {
+            // La chiusura dello stream spetta al trasporto
+        }
+
+        private void written(int length) throws IOException {
+            unchecked += length;
+            if (unchecked >= ERROR_CHECK_CHARS) {
+                unchecked = 0;
+                if (out.checkError()) {
+                    throw new IOException("Client non raggiungibile");
+                }
+            }
+        }
+    }
+}
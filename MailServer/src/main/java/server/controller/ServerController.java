@@ -1,10 +1,13 @@
 package server.controller;
 
+import javafx.collections.FXCollections;
 import javafx.fxml.FXML;
 import javafx.fxml.Initializable;
 import javafx.scene.control.ListView;
+import server.ServerConfig;
 import server.model.ServerModel;
 import server.network.SocketServer;
+import server.view.LogDrain;
 import java.net.URL;
 import java.util.ResourceBundle;
 
@@ -15,6 +18,7 @@ public class ServerController implements Initializable {
     @FXML private ListView<String> logListView; // Riferimento alla ListView per visualizzare i log del server nell'interfaccia grafica
     private ServerModel model;                  // Modello che gestisce i dati e i log del server
     private SocketServer socketServer;          // Istanza del server socket che gestisce le connessioni di rete
+    private LogDrain logDrain;                  // Porta i messaggi del log del modello nella ListView
 
     /**
      * Metodo chiamato automaticamente all'inizializzazione del controller.
@@ -29,7 +33,9 @@ public class ServerController implements Initializable {
         model = new ServerModel();
 
         // Collega la ListView ai log del modello
-        logListView.setItems(model.getServerLog());
+        logListView.setItems(FXCollections.observableArrayList());
+        logDrain = new LogDrain(model.getServerLog(), logListView.getItems(), ServerConfig.logHistoryLines());
+        logDrain.start();
 
         // Crea e avvia il server socket sulla porta 8080, passandogli il modello
         socketServer = new SocketServer(8080, model);
@@ -48,5 +54,8 @@ public class ServerController implements Initializable {
         if (socketServer != null) {
             socketServer.stop();
         }
+        if (logDrain != null) {
+            logDrain.stop();
+        }
     }
 }
\ No newline at end of file
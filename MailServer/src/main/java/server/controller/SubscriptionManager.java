@@ -0,0 +1,204 @@
+package server.controller;
+
+import server.model.Email;
+import server.model.EmailCodec;
+import server.model.MailboxListener;
+import server.model.ServerModel;
+import server.model.SyncResult;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Gestisce le connessioni in modalità SUBSCRIBE, a cui il server invia le nuove email appena consegnate.
+ * <p>
+ * Protocollo: il client invia {@code SUBSCRIBE:email,fromIndex}; il server risponde {@code OK:[...]} con le email
+ * già presenti da fromIndex. Con {@code SUBSCRIBE:email,limite,cursore} (cursore vuoto alla prima volta) risponde
+ * invece {@code OK:{...}} con la sincronizzazione incrementale dal cursore, come la richiesta SYNC.
+ * Poi mantiene aperta la connessione e invia:
+ * - {@code PUSH:[...]} con le email arrivate nel frattempo;
+ * - {@code PING} periodico, per rilevare i client non più raggiungibili.
+ * Il client non invia altro: chiudendo la connessione termina la sottoscrizione.
+ * </p>
+ * Le consegne accodano le email nella coda della sottoscrizione senza bloccare; un thread di scrittura
+ * per sottoscrizione le invia al client raggruppandole.
+ */
+public class SubscriptionManager {
+    private static final int MAX_PENDING_EMAILS = 1000;     // Email in attesa oltre le quali il client lento viene disconnesso
+
+    private final ServerModel model;                        // Modello da cui ricevere le notifiche di consegna
+    private final ExecutorService writers;                  // Esegue i thread di scrittura delle sottoscrizioni
+    private final long heartbeatMillis;                     // Intervallo dei PING verso i client inattivi
+    private final Set<Subscription> active = ConcurrentHashMap.newKeySet(); // Sottoscrizioni attive
+    private final AtomicLong pushedEmails = new AtomicLong();                 // Email inviate in push
+    private volatile boolean closed = false;
+
+    /**
+     * Costruttore del gestore delle sottoscrizioni.
+     * @param model modello del server
+     * @param writers executor su cui eseguire i thread di scrittura (uno per sottoscrizione)
+     * @param heartbeatMillis intervallo dei PING di heartbeat
+     */
+    public SubscriptionManager(ServerModel model, ExecutorService writers, long heartbeatMillis) {
+        this.model = model;
+        this.writers = writers;
+        this.heartbeatMillis = heartbeatMillis;
+    }
+
+    /**
+     * Gestisce una richiesta SUBSCRIBE: invia il recupero iniziale e avvia l'invio delle nuove email.
+     * In caso di errore risponde con ERROR e lascia la connessione al chiamante.
+     * @param data dati della richiesta (email e indice di partenza, oppure email, limite e cursore)
+     * @param sink destinazione delle righe verso il client
+     * @return true se la sottoscrizione è attiva e la connessione è ora gestita da questo oggetto
+     */
+    public boolean subscribe(String data, PushSink sink) {
+        try {
+            String[] parts = data.split(",", -1);
+            String emailAddress = parts[0];
+            boolean incremental = parts.length > 2;
+
+            if (closed) {
+                sink.send("ERROR:Server in arresto");
+                return false;
+            }
+
+            Subscription subscription = new Subscription(emailAddress, sink);
+            String backlog;
+            if (incremental) {
+                int limit = RequestProcessor.clampPageSize(Integer.parseInt(parts[1]));
+                SyncResult sync = model.subscribe(emailAddress, parts[2].isEmpty() ? null : parts[2], limit, subscription);
+                backlog = sync == null ? null : syncJson(sync);
+            } else {
+                int fromIndex = parts.length > 1 ? Integer.parseInt(parts[1]) : 0;
+                List<Email> emails = model.subscribe(emailAddress, fromIndex, subscription);
+                backlog = emails == null ? null : EmailCodec.toJson(emails);
+            }
+            if (backlog == null) {
+                sink.send("ERROR:Email non valida");
+                return false;
+            }
+            try {
+                sink.send("OK:" + backlog);
+            } catch (IOException e) {
+                model.unsubscribe(emailAddress, subscription);
+                throw e;
+            }
+
+            active.add(subscription);
+            writers.execute(subscription);
+            model.addToLog("Sottoscrizione push attiva per: " + emailAddress);
+            return true;
+        } catch (Exception e) {
+            try {
+                sink.send("ERROR:Errore nella sottoscrizione: " + e.getMessage());
+            } catch (IOException ignored) {
+                // Il client non è più raggiungibile
+            }
+            return false;
+        }
+    }
+
+    private static String syncJson(SyncResult sync) throws IOException {
+        StringWriter buffer = new StringWriter(256 * Math.max(1, sync.getEmails().size()));
+        EmailCodec.writeSync(sync, buffer);
+        return buffer.toString();
+    }
+
+    /**
+     * Chiude tutte le sottoscrizioni attive (arresto del server).
+     */
+    public void close() {
+        closed = true;
+        for (Subscription subscription : active) {
+            subscription.stop();
+        }
+        writers.shutdownNow();
+    }
+
+    /**
+     * Numero di sottoscrizioni attive.
+     * @return sottoscrizioni attive
+     */
+    public int getActiveCount() {
+        return active.size();
+    }
+
+    /**
+     * Numero complessivo di email inviate in push.
+     * @return email inviate in push
+     */
+    public long getPushedCount() {
+        return pushedEmails.get();
+    }
+
+    /**
+     * Singola sottoscrizione: riceve le notifiche di consegna e le invia al client sul proprio thread.
+     */
+    private final class Subscription implements MailboxListener, Runnable {
+        private final String emailAddress;
+        private final PushSink sink;
+        private final BlockingQueue<Email> pending = new LinkedBlockingQueue<>(MAX_PENDING_EMAILS);
+        private volatile boolean running = true;
+
+        Subscription(String emailAddress, PushSink sink) {
+            this.emailAddress = emailAddress;
+            this.sink = sink;
+        }
+
+        /**
+         * Chiamato durante la consegna: accoda senza bloccare. Se il client non smaltisce la coda
+         * viene disconnesso e recupererà le email con la sincronizzazione di fallback.
+         */
+        @Override
+        public void emailReceived(Email email) {
+            if (!pending.offer(email)) {
+                stop();
+            }
+        }
+
+        void stop() {
+            running = false;
+            sink.close();
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (running) {
+                    Email first = pending.poll(heartbeatMillis, TimeUnit.MILLISECONDS);
+                    if (!running) {
+                        break;
+                    }
+                    if (first == null) {
+                        sink.send("PING");
+                        continue;
+                    }
+                    List<Email> batch = new ArrayList<>();
+                    batch.add(first);
+                    pending.drainTo(batch);
+                    sink.send("PUSH:" + EmailCodec.toJson(batch));
+                    pushedEmails.addAndGet(batch.size());
+                }
+            } catch (IOException e) {
+                // Client disconnesso: la sottoscrizione termina
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                model.unsubscribe(emailAddress, this);
+                active.remove(this);
+                sink.close();
+                model.addToLog("Sottoscrizione push terminata per: " + emailAddress);
+            }
+        }
+    }
+}
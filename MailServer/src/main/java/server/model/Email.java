@@ -16,8 +16,9 @@ public class Email implements Serializable {
     private String sender;              // Mittente dell'email
     private List<String> recipients;    // Lista dei destinatari
     private String subject;             // Oggetto dell'email
-    private String body;                // Corpo del messaggio
+    private volatile String body;       // Corpo del messaggio (null se conservato in storedBody)
     private LocalDateTime timestamp;    // Data e ora di creazione
+    private transient volatile StoredBody storedBody; // Corpo conservato fuori dallo heap, letto a richiesta
 
     /**
      * Costruttore che inizializza i campi principali e genera un id e timestamp.
@@ -35,6 +36,14 @@ public class Email implements Serializable {
         this.timestamp = LocalDateTime.now(); // Imposta il timestamp corrente
     }
 
+    /**
+     * Costruttore vuoto usato dai codec durante la decodifica: evita di generare un UUID
+     * e un timestamp che verrebbero subito sovrascritti dai valori letti.
+     * Pubblico per il formato degli snapshot ({@code server.storage.MailboxCodec}).
+     */
+    public Email() {
+    }
+
     // Getter e setter per tutti i campi
 
     public String getId() { return id; }
@@ -53,9 +62,35 @@ public class Email implements Serializable {
 
     public void setSubject(String subject) { this.subject = subject; }
 
-    public String getBody() { return body; }
+    /**
+     * Restituisce il corpo: quello in memoria, oppure quello letto dallo store se è stato spostato fuori dallo heap.
+     * @return corpo del messaggio
+     */
+    public String getBody() {
+        String inline = body;
+        if (inline != null) {
+            return inline;
+        }
+        StoredBody stored = storedBody;
+        return stored != null ? stored.load() : null;
+    }
+
+    public void setBody(String body) {
+        this.body = body;
+        this.storedBody = null;
+    }
+
+    public StoredBody getStoredBody() { return storedBody; }
 
-    public void setBody(String body) { this.body = body; }
+    /**
+     * Sostituisce il corpo in memoria con il riferimento al corpo conservato nello store.
+     * @param storedBody corpo conservato
+     */
+    public void setStoredBody(StoredBody storedBody) {
+        // Prima il riferimento, poi il rilascio del testo: un lettore concorrente vede sempre uno dei due
+        this.storedBody = storedBody;
+        this.body = null;
+    }
 
     public LocalDateTime getTimestamp() { return timestamp; }
 
@@ -0,0 +1,455 @@
+package server.model;
+
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.RandomAccess;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Cartella di email (ricevute o inviate) ottimizzata per l'aggiunta in coda, l'eliminazione per id e la lettura
+ * senza lock.
+ * <p>
+ * Le email sono in blocchi di dimensione fissa; lo stato corrente (blocchi, posizioni occupate ed email eliminate)
+ * è pubblicato con un riferimento volatile a un {@link Snapshot} immutabile. Un lettore legge il riferimento una
+ * volta e ottiene una vista coerente della cartella, senza lock e senza copie: le posizioni già pubblicate non
+ * vengono più modificate. Un'aggiunta scrive la nuova email oltre la fine pubblicata e poi pubblica il nuovo
+ * numero; quando i blocchi finiscono si ingrandisce solo l'indice dei blocchi, senza copiare le email.
+ * </p>
+ * <p>
+ * Un indice hash associa l'id di ogni email alla sua posizione, quindi ricerca ed eliminazione per id non
+ * scorrono la cartella. L'eliminazione non sposta le altre email: la posizione diventa una lapide (tombstone),
+ * esclusa dalla vista, e le lapidi vengono rimosse tutte insieme quando superano una frazione della cartella
+ * (compattazione pigra, di costo ammortizzato costante per eliminazione).
+ * </p>
+ * <p>
+ * Ogni aggiunta ed eliminazione riceve un numero di sequenza crescente. Le email conservano il numero con cui
+ * sono state aggiunte e le eliminazioni recenti restano in un registro limitato, così {@link #changesSince}
+ * restituisce le modifiche successive a un numero con un lavoro proporzionale alle modifiche stesse.
+ * I numeri valgono all'interno di un'epoca, scelta a ogni caricamento della cartella ({@link #setAll}).
+ * </p>
+ * Le scritture vanno serializzate dal chiamante (lock della casella); le letture possono avvenire in qualsiasi momento.
+ */
+final class EmailFolder {
+    private static final int CHUNK_BITS = 8;
+    private static final int CHUNK_SIZE = 1 << CHUNK_BITS;      // Email per blocco
+    private static final int CHUNK_MASK = CHUNK_SIZE - 1;
+    private static final int MIN_TOMBSTONES = 32;               // Lapidi sempre tollerate prima di compattare
+    private static final int TOMBSTONE_RATIO = 16;              // Oltre 1/16 della cartella si compatta
+    private static final int DELETION_LOG = 1024;               // Eliminazioni sempre conservate nel registro
+    private static final int[] NO_TOMBSTONES = new int[0];
+    private static final AtomicLong EPOCHS = new AtomicLong(System.currentTimeMillis()); // Epoche mai ripetute
+
+    private volatile Snapshot current = new Snapshot(new Email[0][], new long[0][], 0, NO_TOMBSTONES,
+            EPOCHS.incrementAndGet(), 0, null, 0, 0);           // Stato pubblicato
+    private final Map<String, Integer> index = new ConcurrentHashMap<>(); // Id -> posizione (prima occorrenza)
+    private volatile boolean duplicateIds = false;              // true se un id compare più volte nella cartella
+
+    /**
+     * Vista immutabile della cartella in un certo istante: contiene solo le email non eliminate, con accesso
+     * per posizione in tempo costante se non ci sono lapidi, logaritmico nel numero di lapidi altrimenti.
+     */
+    static final class Snapshot extends AbstractList<Email> implements RandomAccess {
+        private final Email[][] chunks;     // Blocchi (condivisi con gli stati successivi, letti solo fino a slots)
+        private final long[][] seqChunks;   // Numero di sequenza di ogni posizione, in blocchi paralleli a chunks
+        private final int slots;            // Posizioni occupate, lapidi comprese
+        private final int[] tombstones;     // Posizioni eliminate, in ordine crescente
+        private final long epoch;           // Epoca dei numeri di sequenza
+        private final long lastSeq;         // Ultimo numero di sequenza assegnato
+        private final Deletion deletions;   // Eliminazione più recente del registro, null se vuoto
+        private final int deletionCount;    // Eliminazioni nel registro
+        private final long deletionFloor;   // Numero dell'eliminazione più recente uscita dal registro (0 se nessuna)
+
+        private Snapshot(Email[][] chunks, long[][] seqChunks, int slots, int[] tombstones, long epoch, long lastSeq,
+                         Deletion deletions, int deletionCount, long deletionFloor) {
+            this.chunks = chunks;
+            this.seqChunks = seqChunks;
+            this.slots = slots;
+            this.tombstones = tombstones;
+            this.epoch = epoch;
+            this.lastSeq = lastSeq;
+            this.deletions = deletions;
+            this.deletionCount = deletionCount;
+            this.deletionFloor = deletionFloor;
+        }
+
+        // Getter per la posizione nella sequenza delle modifiche
+        long getEpoch() { return epoch; }
+        long getLastSeq() { return lastSeq; }
+
+        @Override
+        public Email get(int index) {
+            if (index < 0 || index >= size()) {
+                throw new IndexOutOfBoundsException("Indice " + index + " fuori dalla cartella di " + size() + " email");
+            }
+            return slot(toSlot(index));
+        }
+
+        @Override
+        public int size() {
+            return slots - tombstones.length;
+        }
+
+        private Email slot(int position) {
+            return chunks[position >>> CHUNK_BITS][position & CHUNK_MASK];
+        }
+
+        private long seq(int position) {
+            return seqChunks[position >>> CHUNK_BITS][position & CHUNK_MASK];
+        }
+
+        /**
+         * Prima posizione con numero di sequenza maggiore di {@code seq}: i numeri crescono con la posizione.
+         */
+        private int firstSlotAfter(long seq) {
+            int low = 0;
+            int high = slots;
+            while (low < high) {
+                int mid = (low + high) >>> 1;
+                if (seq(mid) <= seq) {
+                    low = mid + 1;
+                } else {
+                    high = mid;
+                }
+            }
+            return low;
+        }
+
+        /**
+         * Converte l'indice di un'email visibile nella sua posizione: l'indice più il numero di lapidi che la
+         * precedono. Per la lapide j le email visibili prima sono {@code tombstones[j] - j}, valore non decrescente,
+         * quindi basta una ricerca binaria.
+         */
+        private int toSlot(int index) {
+            int low = 0;
+            int high = tombstones.length;
+            while (low < high) {
+                int mid = (low + high) >>> 1;
+                if (tombstones[mid] - mid <= index) {
+                    low = mid + 1;
+                } else {
+                    high = mid;
+                }
+            }
+            return index + low;
+        }
+
+        /**
+         * Converte la posizione di un'email visibile nel suo indice nella vista.
+         */
+        private int toIndex(int position) {
+            int before = Arrays.binarySearch(tombstones, position);
+            return position - (before >= 0 ? before : -before - 1);
+        }
+
+        private boolean isTombstone(int position) {
+            return tombstones.length > 0 && Arrays.binarySearch(tombstones, position) >= 0;
+        }
+    }
+
+    /**
+     * Voce immutabile del registro delle eliminazioni. Le voci formano una catena dalla più recente: ogni stato
+     * condivide la catena di quelli precedenti e ne aggiunge in testa.
+     */
+    private static final class Deletion {
+        private final long seq;             // Numero di sequenza dell'eliminazione
+        private final long addedSeq;        // Numero di sequenza con cui l'email era stata aggiunta
+        private final String emailId;       // Id dell'email eliminata
+        private final Deletion previous;    // Eliminazione precedente, null alla fine del registro
+
+        private Deletion(long seq, long addedSeq, String emailId, Deletion previous) {
+            this.seq = seq;
+            this.addedSeq = addedSeq;
+            this.emailId = emailId;
+            this.previous = previous;
+        }
+    }
+
+    /**
+     * Modifiche di una cartella successive a un numero di sequenza, lette da una sola vista.
+     */
+    static final class Changes {
+        final long epoch;               // Epoca della vista
+        final long seq;                 // Numero fino al quale le modifiche sono comprese
+        final List<Email> added;        // Email aggiunte e ancora presenti, in ordine di aggiunta
+        final List<String> deletedIds;  // Id delle email eliminate che il chiamante aveva già ricevuto
+        final boolean more;             // true se le aggiunte sono state troncate al limite
+
+        private Changes(long epoch, long seq, List<Email> added, List<String> deletedIds, boolean more) {
+            this.epoch = epoch;
+            this.seq = seq;
+            this.added = added;
+            this.deletedIds = deletedIds;
+            this.more = more;
+        }
+    }
+
+    /**
+     * Restituisce lo stato corrente, senza lock e senza copie.
+     * @return vista immutabile della cartella
+     */
+    Snapshot snapshot() {
+        return current;
+    }
+
+    /**
+     * Cerca un'email per id in una vista, usando l'indice.
+     * @param folder vista in cui cercare (ottenuta da {@link #snapshot()})
+     * @param emailId identificativo dell'email
+     * @return indice dell'email nella vista, oppure -1 se non è presente
+     */
+    int indexOf(Snapshot folder, String emailId) {
+        if (emailId == null) {
+            return -1;
+        }
+        Integer position = index.get(emailId);
+        if (position != null && position < folder.slots && emailId.equals(folder.slot(position).getId())
+                && !folder.isTombstone(position)) {
+            return folder.toIndex(position);
+        }
+        if (position == null && !duplicateIds) {
+            return -1;
+        }
+        // Vista precedente a una compattazione (le posizioni nell'indice sono cambiate) o id ripetuto
+        for (int i = folder.size() - 1; i >= 0; i--) {
+            if (emailId.equals(folder.get(i).getId())) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Restituisce le modifiche di una vista successive al numero di sequenza {@code since}: le email aggiunte
+     * dopo di esso e ancora presenti, e gli id delle email eliminate dopo di esso ma aggiunte prima (quelle che
+     * il chiamante conosce). Le email aggiunte ed eliminate nel frattempo non compaiono affatto.
+     * Con più di {@code limit} aggiunte restituisce le prime e si ferma al numero dell'ultima restituita.
+     * @param folder vista da leggere (ottenuta da {@link #snapshot()})
+     * @param since numero di sequenza già noto al chiamante, nell'epoca della vista
+     * @param limit numero massimo di email aggiunte
+     * @return modifiche, oppure null se non si possono ricostruire (numero fuori dall'intervallo della vista
+     *         o eliminazioni già uscite dal registro): il chiamante deve ripartire da zero
+     */
+    static Changes changesSince(Snapshot folder, long since, int limit) {
+        if (since < folder.deletionFloor || since > folder.lastSeq) {
+            return null;
+        }
+        long upTo = folder.lastSeq;
+        List<Email> added = new ArrayList<>();
+        boolean more = false;
+        for (int position = folder.firstSlotAfter(since); position < folder.slots; position++) {
+            if (folder.isTombstone(position)) {
+                continue;
+            }
+            if (added.size() == limit) {
+                // Le modifiche successive all'ultima email restituita arriveranno con la prossima richiesta
+                upTo = folder.seq(position) - 1;
+                more = true;
+                break;
+            }
+            added.add(folder.slot(position));
+        }
+        List<String> deletedIds = new ArrayList<>();
+        for (Deletion deletion = folder.deletions; deletion != null && deletion.seq > since; deletion = deletion.previous) {
+            if (deletion.seq <= upTo && deletion.addedSeq <= since) {
+                deletedIds.add(deletion.emailId);
+            }
+        }
+        Collections.reverse(deletedIds);
+        return new Changes(folder.epoch, upTo, added, deletedIds, more);
+    }
+
+    /**
+     * Aggiunge un'email in coda e la rende visibile ai lettori.
+     * @param email email da aggiungere
+     */
+    void add(Email email) {
+        Snapshot state = current;
+        Email[][] chunks = state.chunks;
+        long[][] seqChunks = state.seqChunks;
+        int position = state.slots;
+        int chunk = position >>> CHUNK_BITS;
+        if (chunk == chunks.length) {
+            // Si copia solo l'indice dei blocchi: le email restano dove sono
+            chunks = Arrays.copyOf(chunks, Math.max(4, chunks.length * 2));
+            seqChunks = Arrays.copyOf(seqChunks, chunks.length);
+        }
+        if (chunks[chunk] == null) {
+            chunks[chunk] = new Email[CHUNK_SIZE];
+            seqChunks[chunk] = new long[CHUNK_SIZE];
+        }
+        long seq = state.lastSeq + 1;
+        chunks[chunk][position & CHUNK_MASK] = email;
+        seqChunks[chunk][position & CHUNK_MASK] = seq;
+        indexEmail(email, position);
+        current = new Snapshot(chunks, seqChunks, position + 1, state.tombstones, state.epoch, seq,
+                state.deletions, state.deletionCount, state.deletionFloor);
+    }
+
+    /**
+     * Elimina le email con gli id indicati; ogni id elimina al più un'email. Le email restano al loro posto
+     * come lapidi: si copia solo l'elenco delle lapidi, limitato a una frazione della cartella, e la compattazione
+     * ha costo ammortizzato costante. Ogni eliminazione riceve un numero di sequenza e viene registrata.
+     * @param emailIds identificativi delle email da eliminare
+     * @return email eliminate, nell'ordine delle richieste
+     */
+    List<Email> removeAll(Collection<String> emailIds) {
+        Snapshot state = current;
+        List<Email> removed = new ArrayList<>();
+        int[] positions = new int[emailIds.size()];
+        int count = 0;
+        long seq = state.lastSeq;
+        Deletion deletions = state.deletions;
+        int deletionCount = state.deletionCount;
+        long deletionFloor = state.deletionFloor;
+        // Ogni id elimina al più un'email, anche se ripetuto nella richiesta
+        for (String emailId : new LinkedHashSet<>(emailIds)) {
+            Integer position = emailId == null ? null : index.remove(emailId);
+            if (position == null) {
+                continue;
+            }
+            removed.add(state.slot(position));
+            positions[count++] = position;
+            deletions = new Deletion(++seq, state.seq(position), emailId, deletions);
+            deletionCount++;
+            if (duplicateIds) {
+                reindex(state, emailId, position, positions, count);
+            }
+        }
+        if (count == 0) {
+            return removed;
+        }
+
+        // Unione ordinata delle nuove lapidi con quelle esistenti
+        Arrays.sort(positions, 0, count);
+        int[] previous = state.tombstones;
+        int[] tombstones = new int[previous.length + count];
+        int i = 0;
+        int j = 0;
+        int k = 0;
+        while (i < previous.length || j < count) {
+            tombstones[k++] = j == count || (i < previous.length && previous[i] < positions[j]) ? previous[i++] : positions[j++];
+        }
+
+        if (deletionCount > 2 * DELETION_LOG) {
+            // Si tengono le DELETION_LOG più recenti: una copia ogni DELETION_LOG eliminazioni
+            Deletion[] kept = new Deletion[DELETION_LOG];
+            Deletion deletion = deletions;
+            for (int d = 0; d < DELETION_LOG; d++) {
+                kept[d] = deletion;
+                deletion = deletion.previous;
+            }
+            deletionFloor = deletion.seq;
+            deletions = null;
+            for (int d = DELETION_LOG - 1; d >= 0; d--) {
+                deletions = new Deletion(kept[d].seq, kept[d].addedSeq, kept[d].emailId, deletions);
+            }
+            deletionCount = DELETION_LOG;
+        }
+
+        Snapshot next = new Snapshot(state.chunks, state.seqChunks, state.slots, tombstones, state.epoch, seq,
+                deletions, deletionCount, deletionFloor);
+        if (tombstones.length > Math.max(MIN_TOMBSTONES, next.size() / TOMBSTONE_RATIO)) {
+            compact(next);
+        } else {
+            current = next;
+        }
+        return removed;
+    }
+
+    /**
+     * Con id ripetuti, dopo l'eliminazione di una posizione indicizza la successiva occorrenza ancora visibile.
+     */
+    private void reindex(Snapshot state, String emailId, int removedPosition, int[] pending, int pendingCount) {
+        for (int position = removedPosition + 1; position < state.slots; position++) {
+            if (emailId.equals(state.slot(position).getId()) && !state.isTombstone(position)
+                    && !contains(pending, pendingCount, position)) {
+                index.put(emailId, position);
+                return;
+            }
+        }
+    }
+
+    private static boolean contains(int[] values, int count, int value) {
+        for (int i = 0; i < count; i++) {
+            if (values[i] == value) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Rimuove le lapidi ricostruendo i blocchi con le sole email visibili e aggiornando le posizioni nell'indice.
+     * Le email conservano i loro numeri di sequenza. Le viste già restituite continuano a usare i blocchi precedenti.
+     */
+    private void compact(Snapshot state) {
+        long[] seqs = new long[state.size()];
+        int i = 0;
+        for (int position = 0; position < state.slots; position++) {
+            if (!state.isTombstone(position)) {
+                seqs[i++] = state.seq(position);
+            }
+        }
+        rebuild(state, seqs, state);
+    }
+
+    /**
+     * Sostituisce il contenuto della cartella e inizia una nuova epoca: le email ricevono i numeri di sequenza
+     * da 1 e i numeri dati in precedenza non sono più validi.
+     * @param emails nuove email, nell'ordine
+     */
+    void setAll(List<Email> emails) {
+        long[] seqs = new long[emails.size()];
+        for (int i = 0; i < seqs.length; i++) {
+            seqs[i] = i + 1;
+        }
+        rebuild(emails, seqs, new Snapshot(new Email[0][], new long[0][], 0, NO_TOMBSTONES,
+                EPOCHS.incrementAndGet(), seqs.length, null, 0, 0));
+    }
+
+    /**
+     * Ricostruisce blocchi e indice con le email indicate, prendendo epoca, sequenza e registro da {@code base}.
+     */
+    private void rebuild(List<Email> emails, long[] seqs, Snapshot base) {
+        int size = emails.size();
+        int chunkCount = (size + CHUNK_MASK) >>> CHUNK_BITS;
+        Email[][] chunks = new Email[Math.max(4, chunkCount)][];
+        long[][] seqChunks = new long[chunks.length][];
+        Map<String, Integer> positions = new HashMap<>(size * 2);
+        boolean duplicates = false;
+        int i = 0;
+        for (Email email : emails) {
+            int chunk = i >>> CHUNK_BITS;
+            if (chunks[chunk] == null) {
+                chunks[chunk] = new Email[CHUNK_SIZE];
+                seqChunks[chunk] = new long[CHUNK_SIZE];
+            }
+            chunks[chunk][i & CHUNK_MASK] = email;
+            seqChunks[chunk][i & CHUNK_MASK] = seqs[i];
+            if (email.getId() != null && positions.putIfAbsent(email.getId(), i) != null) {
+                duplicates = true;
+            }
+            i++;
+        }
+        // Le voci vengono sovrascritte, non svuotate: un lettore concorrente non trova mai l'indice vuoto
+        index.keySet().retainAll(positions.keySet());
+        index.putAll(positions);
+        duplicateIds = duplicates;
+        current = new Snapshot(chunks, seqChunks, size, NO_TOMBSTONES, base.epoch, base.lastSeq,
+                base.deletions, base.deletionCount, base.deletionFloor);
+    }
+
+    private void indexEmail(Email email, int position) {
+        if (email.getId() != null && index.putIfAbsent(email.getId(), position) != null) {
+            duplicateIds = true;
+        }
+    }
+}
@@ -0,0 +1,28 @@
+package server.model;
+
+import java.util.List;
+
+/**
+ * Pagina di una cartella (ricevute o inviate) restituita dalle richieste paginate.
+ * Le email sono in ordine cronologico (dalla meno recente); il cursore, opaco per il client,
+ * permette di chiedere la pagina di email precedenti ed è null se non ce ne sono altre.
+ */
+public class EmailPage {
+    private final List<Email> emails;   // Email della pagina, in ordine cronologico
+    private final String nextCursor;    // Cursore della pagina precedente (meno recente), null se finita
+    private final int total;            // Numero totale di email nella cartella
+
+    public EmailPage(List<Email> emails, String nextCursor, int total) {
+        this.emails = emails;
+        this.nextCursor = nextCursor;
+        this.total = total;
+    }
+
+    public List<Email> getEmails() { return emails; }
+
+    public String getNextCursor() { return nextCursor; }
+
+    public boolean hasMore() { return nextCursor != null; }
+
+    public int getTotal() { return total; }
+}
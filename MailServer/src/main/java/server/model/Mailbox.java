@@ -1,16 +1,31 @@
 package server.model;
 
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.List;
 
 /**
  * Rappresenta una casella di posta elettronica con gestione delle email ricevute e inviate.
+ * <p>
+ * Le letture ({@link #getNewEmails(int)}, {@link #getPage(boolean, int, String)}, {@link #getEmails()},
+ * {@link #getSentEmails()}) non acquisiscono lock e non copiano le email: leggono una vista immutabile della
+ * cartella ({@link EmailFolder}). Le modifiche sono sincronizzate tra loro e non bloccano i lettori.
+ * Ricerca ed eliminazione per id usano l'indice della cartella e non dipendono dal numero di email.
+ * </p>
+ * <p>
+ * Le email ricevute si sincronizzano anche per numero di sequenza ({@link #sync(String, int)}): il client
+ * riceve solo aggiunte ed eliminazioni successive al suo cursore, qualunque sia la dimensione della casella.
+ * </p>
  */
 public class Mailbox {
     private String emailAddress;                // Indirizzo email associato alla casella
-    private List<Email> emails;                 // Lista delle email ricevute
-    private List<Email> sentEmails;             // Lista delle email inviate
+    private final EmailFolder emails;           // Email ricevute
+    private final EmailFolder sentEmails;       // Email inviate
     private int lastSyncIndex;                  // Indice dell'ultima sincronizzazione (non utilizzato attivamente nel codice)
+    private volatile long estimatedBytes;       // Memoria stimata delle email residenti (per MailboxCache)
 
     /**
      * Costruttore della casella di posta.
@@ -18,45 +33,243 @@ public class Mailbox {
      */
     public Mailbox(String emailAddress) {
         this.emailAddress = emailAddress;
-        this.emails = new ArrayList<>();
-        this.sentEmails = new ArrayList<>();
+        this.emails = new EmailFolder();
+        this.sentEmails = new EmailFolder();
         this.lastSyncIndex = 0;
     }
 
     public synchronized void addEmail(Email email) {
         emails.add(email);
+        estimatedBytes += estimateBytes(email);
     }
 
     public synchronized void addSentEmail(Email email) {
         sentEmails.add(email);
+        estimatedBytes += estimateBytes(email);
     }
 
-    public synchronized List<Email> getNewEmails(int fromIndex) {
-        if (fromIndex >= emails.size()) {
-            return new ArrayList<>();
+    /**
+     * Stima la memoria occupata da un'email: oggetti e stringhe delle intestazioni, più il corpo se è
+     * ancora in memoria (un corpo salvato nei segmenti è fuori dallo heap).
+     * La stima è approssimata e serve solo a confrontare le caselle con il budget della cache.
+     */
+    static long estimateBytes(Email email) {
+        long bytes = 160 + chars(email.getId()) + chars(email.getSender()) + chars(email.getSubject());
+        List<String> recipients = email.getRecipients();
+        if (recipients != null) {
+            for (String recipient : recipients) {
+                bytes += 48 + chars(recipient);
+            }
         }
-        return new ArrayList<>(emails.subList(fromIndex, emails.size()));
+        if (email.getStoredBody() == null) {
+            bytes += chars(email.getBody());
+        }
+        return bytes;
+    }
+
+    private static long chars(String value) {
+        return value == null ? 0 : 40 + 2L * value.length();
     }
 
+    /**
+     * Restituisce le email ricevute da un certo indice in poi, senza lock. Il risultato è una vista immutabile:
+     * le consegne e le eliminazioni successive non la modificano.
+     * @param fromIndex indice da cui partire
+     * @return email ricevute da fromIndex, lista vuota se non ce ne sono di nuove
+     */
+    public List<Email> getNewEmails(int fromIndex) {
+        EmailFolder.Snapshot folder = emails.snapshot();
+        if (fromIndex >= folder.size()) {
+            return Collections.emptyList();
+        }
+        return folder.subList(fromIndex, folder.size());
+    }
+
+    /**
+     * Restituisce una pagina di email ricevute o inviate, dalle più recenti verso le meno recenti.
+     * Senza cursore restituisce le ultime {@code pageSize} email; con il cursore di una pagina precedente
+     * restituisce le {@code pageSize} email immediatamente più vecchie. Il lavoro è proporzionale alla
+     * dimensione della pagina, non a quella della cartella.
+     * @param sent true per le email inviate, false per le ricevute
+     * @param pageSize numero massimo di email nella pagina
+     * @param cursor cursore restituito dalla pagina precedente, oppure null per la prima pagina
+     * @return pagina di email in ordine cronologico
+     * @throws IllegalArgumentException se il cursore non è valido
+     */
+    public EmailPage getPage(boolean sent, int pageSize, String cursor) {
+        EmailFolder source = sent ? sentEmails : emails;
+        EmailFolder.Snapshot folder = source.snapshot();
+        int end = cursor == null ? folder.size() : resolveCursor(source, folder, cursor);
+        int start = Math.max(0, end - Math.max(1, pageSize));
+        List<Email> page = new ArrayList<>(folder.subList(start, end));
+        String nextCursor = start > 0 ? encodeCursor(start, folder.get(start).getId()) : null;
+        return new EmailPage(page, nextCursor, folder.size());
+    }
+
+    /**
+     * Restituisce le modifiche delle email ricevute successive a un cursore di sincronizzazione, senza lock.
+     * Aggiunte ed eliminazioni vengono lette dalla stessa vista della cartella, quindi sono coerenti tra loro
+     * e con il nuovo cursore. Senza cursore, con un cursore di un'epoca precedente (casella ricaricata) o
+     * troppo vecchio per il registro delle eliminazioni, restituisce un reset: le ultime {@code limit} email,
+     * con il totale e il cursore di pagina per le precedenti.
+     * @param cursor cursore di una sincronizzazione precedente, oppure null per la prima
+     * @param limit numero massimo di email nel risultato
+     * @return modifiche e nuovo cursore
+     * @throws IllegalArgumentException se il cursore non è valido
+     */
+    public SyncResult sync(String cursor, int limit) {
+        EmailFolder.Snapshot folder = emails.snapshot();
+        int max = Math.max(1, limit);
+        if (cursor != null) {
+            long[] position = decodeSyncCursor(cursor);
+            if (position[0] == folder.getEpoch()) {
+                EmailFolder.Changes changes = EmailFolder.changesSince(folder, position[1], max);
+                if (changes != null) {
+                    return new SyncResult(encodeSyncCursor(changes.epoch, changes.seq), false, changes.more,
+                            changes.added, changes.deletedIds, folder.size(), null);
+                }
+            }
+        }
+        int start = Math.max(0, folder.size() - max);
+        List<Email> latest = new ArrayList<>(folder.subList(start, folder.size()));
+        String nextCursor = start > 0 ? encodeCursor(start, folder.get(start).getId()) : null;
+        return new SyncResult(encodeSyncCursor(folder.getEpoch(), folder.getLastSeq()), true, false, latest,
+                Collections.emptyList(), folder.size(), nextCursor);
+    }
+
+    private static String encodeSyncCursor(long epoch, long seq) {
+        byte[] raw = (epoch + ":" + seq).getBytes(StandardCharsets.UTF_8);
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(raw);
+    }
+
+    /**
+     * Decodifica un cursore di sincronizzazione in {epoca, numero di sequenza}.
+     */
+    private static long[] decodeSyncCursor(String cursor) {
+        try {
+            String decoded = new String(Base64.getUrlDecoder().decode(cursor), StandardCharsets.UTF_8);
+            int separator = decoded.indexOf(':');
+            long[] position = {Long.parseLong(decoded.substring(0, separator)), Long.parseLong(decoded.substring(separator + 1))};
+            if (position[1] < 0) {
+                throw new IllegalArgumentException("Cursore non valido");
+            }
+            return position;
+        } catch (RuntimeException e) {
+            throw new IllegalArgumentException("Cursore non valido");
+        }
+    }
+
+    /**
+     * Codifica il cursore come posizione e id della email più vecchia già restituita.
+     */
+    private static String encodeCursor(int index, String emailId) {
+        byte[] raw = (index + ":" + emailId).getBytes(StandardCharsets.UTF_8);
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(raw);
+    }
+
+    /**
+     * Trova la posizione (esclusa) da cui proseguire verso le email più vecchie.
+     * Se nel frattempo sono state eliminate email meno recenti la posizione salvata non corrisponde più
+     * all'id: in quel caso l'email viene cercata per id con l'indice; se è stata eliminata proprio lei, le email
+     * precedenti non si sono spostate e la posizione salvata resta valida.
+     */
+    private static int resolveCursor(EmailFolder source, EmailFolder.Snapshot folder, String cursor) {
+        int index;
+        String emailId;
+        try {
+            String decoded = new String(Base64.getUrlDecoder().decode(cursor), StandardCharsets.UTF_8);
+            int separator = decoded.indexOf(':');
+            index = Integer.parseInt(decoded.substring(0, separator));
+            emailId = decoded.substring(separator + 1);
+        } catch (RuntimeException e) {
+            throw new IllegalArgumentException("Cursore non valido");
+        }
+        if (index < 0) {
+            throw new IllegalArgumentException("Cursore non valido");
+        }
+        if (index < folder.size() && emailId.equals(folder.get(index).getId())) {
+            return index;
+        }
+        int found = source.indexOf(folder, emailId);
+        return found >= 0 && found < index ? found : Math.min(index, folder.size());
+    }
+
+    /**
+     * Rimuove un'email ricevuta per id; con più copie dello stesso id rimuove solo la più vecchia.
+     * @param emailId identificativo dell'email
+     * @return true se un'email è stata rimossa
+     */
     public synchronized boolean removeEmail(String emailId) {
-        return emails.removeIf(email -> email.getId().equals(emailId));
+        List<Email> removed = emails.removeAll(Collections.singletonList(emailId));
+        release(removed);
+        return !removed.isEmpty();
+    }
+
+    /**
+     * Cerca un'email per id, senza lock e senza scorrere la cartella.
+     * @param emailId identificativo dell'email
+     * @param sent true per le email inviate, false per le ricevute
+     * @return email, oppure null se non è presente
+     */
+    public Email findEmail(String emailId, boolean sent) {
+        EmailFolder source = sent ? sentEmails : emails;
+        EmailFolder.Snapshot folder = source.snapshot();
+        int index = source.indexOf(folder, emailId);
+        return index < 0 ? null : folder.get(index);
+    }
+
+    /**
+     * Sottrae le email rimosse dalla memoria stimata.
+     */
+    private void release(List<Email> removed) {
+        long bytes = estimatedBytes;
+        for (Email email : removed) {
+            bytes -= estimateBytes(email);
+        }
+        estimatedBytes = Math.max(0, bytes);
+    }
+
+    /**
+     * Rimuove più email per id; il costo dipende dal numero di id, non dalla dimensione della cartella.
+     * @param emailIds identificativi delle email da rimuovere (ogni id, anche se ripetuto, rimuove al più un'email: la copia più vecchia)
+     * @param sent true per le email inviate, false per le ricevute
+     * @return email effettivamente rimosse
+     */
+    public synchronized List<Email> removeEmails(Collection<String> emailIds, boolean sent) {
+        List<Email> removed = (sent ? sentEmails : emails).removeAll(emailIds);
+        release(removed);
+        return removed;
     }
 
     public String getEmailAddress() { return emailAddress; }
 
-    public List<Email> getEmails() { return emails; }
+    // Viste immutabili delle cartelle, lette senza lock
+    public List<Email> getEmails() { return emails.snapshot(); }
 
-    public List<Email> getSentEmails() { return sentEmails; }
+    public List<Email> getSentEmails() { return sentEmails.snapshot(); }
 
-    public int getEmailCount() { return emails.size(); }
+    public int getEmailCount() { return emails.snapshot().size(); }
 
-    public void setEmails(List<Email> emailList) {
-        emails.clear();
-        emails.addAll(emailList);
+    public long getEstimatedBytes() { return estimatedBytes; }
+
+    public synchronized void setEmails(List<Email> emailList) {
+        emails.setAll(emailList);
+        recomputeEstimate();
     }
 
-    public void setSentEmails(List<Email> sentEmailList) {
-        sentEmails.clear();
-        sentEmails.addAll(sentEmailList);
+    public synchronized void setSentEmails(List<Email> sentEmailList) {
+        sentEmails.setAll(sentEmailList);
+        recomputeEstimate();
+    }
+
+    private void recomputeEstimate() {
+        long bytes = 0;
+        for (Email email : emails.snapshot()) {
+            bytes += estimateBytes(email);
+        }
+        for (Email email : sentEmails.snapshot()) {
+            bytes += estimateBytes(email);
+        }
+        estimatedBytes = bytes;
     }
 }
\ No newline at end of file
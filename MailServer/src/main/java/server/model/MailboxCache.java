@@ -0,0 +1,419 @@
+package server.model;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.BiPredicate;
+import java.util.function.Function;
+
+/**
+ * Caselle di posta residenti in memoria, caricate al primo accesso ed espulse in ordine LRU.
+ * <p>
+ * Gli account validi sono noti senza caricarne i dati; una casella viene letta da disco solo quando
+ * serve, quindi il tempo di avvio e la memoria dipendono dagli utenti attivi e non dal totale degli utenti.
+ * Quando la dimensione stimata delle caselle residenti supera il budget, {@link #trim()} espelle quelle usate
+ * meno di recente. Una casella con modifiche non ancora scritte su disco (sporca) non viene mai espulsa:
+ * ricaricarla dai file prima della scrittura perderebbe quelle modifiche.
+ * </p>
+ * È thread-safe. Il registro degli account è una mappa concorrente e ogni account ha un proprio lock:
+ * chi modifica una o più caselle le blocca con {@link #lock(Collection)}, sempre in ordine di indirizzo, così
+ * due operazioni su caselle diverse procedono in parallelo e due operazioni sulle stesse caselle non possono
+ * bloccarsi a vicenda. Una casella bloccata non viene espulsa; il caricamento da disco avviene con il solo lock
+ * di quella casella.
+ */
+public class MailboxCache {
+    private final Map<String, Slot> accounts;               // Account esistenti (caricati o no), immutabile dopo la creazione
+    private final Set<String> addresses;                    // Indirizzi degli account, nell'ordine di creazione
+    private final long maxBytes;                            // Budget di memoria stimata delle caselle residenti
+    private final Function<String, Mailbox> loader;         // Caricamento di una casella da disco
+    private final BiPredicate<String, Long> written;        // true se la modifica della casella con quella sequenza è scritta
+    private final ReentrantLock trimLock = new ReentrantLock(); // Un solo trim alla volta
+    private final AtomicLong residentBytes = new AtomicLong(); // Memoria stimata all'ultimo trim più le caselle caricate dopo
+    private volatile boolean trimNeeded = false;            // true se dopo l'ultimo trim le caselle residenti sono cresciute
+    private volatile boolean trimDeferred = false;          // Ultimo trim oltre il budget per caselle sporche o in uso
+
+    // Metriche
+    private final LongAdder hits = new LongAdder();         // Accessi a caselle residenti
+    private final LongAdder misses = new LongAdder();       // Accessi che hanno richiesto il caricamento
+    private final LongAdder evictions = new LongAdder();    // Caselle espulse
+    private final LongAdder skippedDirty = new LongAdder(); // Espulsioni rimandate perché la casella era sporca o in uso
+    private final LongAdder preloaded = new LongAdder();    // Caselle inserite dal precaricamento
+    private final LongAdder loadNanos = new LongAdder();    // Tempo complessivo di caricamento
+    private final LongAdder lockWaitNanos = new LongAdder(); // Attesa complessiva dei lock delle caselle occupate
+    private final LongAdder contended = new LongAdder();    // Acquisizioni che hanno trovato il lock occupato
+
+    /**
+     * Stato di un account: lock, casella residente (null se non caricata) e sequenza dell'ultima modifica
+     * accodata per la scrittura.
+     */
+    private static final class Slot {
+        private final ReentrantLock lock = new ReentrantLock();
+        private volatile Mailbox mailbox;           // null: non residente
+        private volatile long lastAccess;           // Istante dell'ultimo accesso (System.nanoTime), per l'ordine LRU
+        private volatile boolean everResident;      // Caricata almeno una volta (su richiesta o precaricata)
+        private long dirtySeq = 0;                  // 0: nessuna modifica da scrivere (protetto da lock)
+    }
+
+    /**
+     * Crea la cache.
+     * @param accounts indirizzi degli account esistenti
+     * @param maxBytes memoria stimata massima delle caselle residenti
+     * @param loader carica una casella da disco
+     * @param written indica se la modifica di una casella con una certa sequenza di persistenza è già stata scritta
+     */
+    public MailboxCache(Collection<String> accounts, long maxBytes, Function<String, Mailbox> loader,
+                        BiPredicate<String, Long> written) {
+        Map<String, Slot> slots = new ConcurrentHashMap<>();
+        for (String account : accounts) {
+            slots.put(account, new Slot());
+        }
+        this.accounts = slots;
+        this.addresses = Collections.unmodifiableSet(new LinkedHashSet<>(accounts));
+        this.maxBytes = maxBytes;
+        this.loader = loader;
+        this.written = written;
+    }
+
+    /**
+     * Verifica se un account esiste, senza caricarne la casella.
+     * @param emailAddress indirizzo email
+     * @return true se l'account esiste
+     */
+    public boolean contains(String emailAddress) {
+        return emailAddress != null && accounts.containsKey(emailAddress);
+    }
+
+    /**
+     * Blocca le caselle indicate, nell'ordine naturale degli indirizzi (senza duplicati), così due chiamanti
+     * che bloccano caselle in comune le acquisiscono nello stesso ordine e non possono bloccarsi a vicenda.
+     * Gli indirizzi senza account vengono ignorati. Finché sono bloccate le caselle non vengono espulse.
+     * @param emailAddresses indirizzi delle caselle
+     * @return indirizzi bloccati, da passare a {@link #unlock(List)}
+     */
+    public List<String> lock(Collection<String> emailAddresses) {
+        List<String> locked = new ArrayList<>(emailAddresses.size());
+        Collection<String> ordered = emailAddresses.size() == 1 ? emailAddresses : new TreeSet<>();
+        if (ordered != emailAddresses) {
+            for (String address : emailAddresses) {
+                if (address != null) {
+                    ordered.add(address);
+                }
+            }
+        }
+        for (String address : ordered) {
+            Slot slot = address == null ? null : accounts.get(address);
+            if (slot == null) {
+                continue;
+            }
+            if (!slot.lock.tryLock()) {
+                long start = System.nanoTime();
+                slot.lock.lock();
+                contended.increment();
+                lockWaitNanos.add(System.nanoTime() - start);
+            }
+            locked.add(address);
+        }
+        return locked;
+    }
+
+    /**
+     * Blocca una sola casella (vedi {@link #lock(Collection)}).
+     * @param emailAddress indirizzo della casella
+     * @return indirizzi bloccati, da passare a {@link #unlock(List)}
+     */
+    public List<String> lock(String emailAddress) {
+        return lock(Collections.singletonList(emailAddress));
+    }
+
+    /**
+     * Sblocca le caselle bloccate con {@link #lock(Collection)}, in ordine inverso.
+     * @param locked indirizzi restituiti da lock
+     */
+    public void unlock(List<String> locked) {
+        for (int i = locked.size() - 1; i >= 0; i--) {
+            accounts.get(locked.get(i)).lock.unlock();
+        }
+    }
+
+    /**
+     * Restituisce la casella di un account, caricandola da disco se non è residente.
+     * Una casella residente viene restituita senza lock; il caricamento avviene con il lock della sola casella,
+     * quindi due richieste per la stessa casella la leggono da disco una volta.
+     * Per modificare la casella va prima bloccata con {@link #lock(Collection)}: solo così resta quella residente
+     * fino alla fine dell'operazione.
+     * @param emailAddress indirizzo email
+     * @return casella, oppure null se l'account non esiste
+     */
+    public Mailbox get(String emailAddress) {
+        Slot slot = emailAddress == null ? null : accounts.get(emailAddress);
+        if (slot == null) {
+            return null;
+        }
+        Mailbox mailbox = slot.mailbox;
+        if (mailbox != null) {
+            hits.increment();
+            slot.lastAccess = System.nanoTime();
+            return mailbox;
+        }
+        slot.lock.lock();
+        try {
+            mailbox = slot.mailbox;
+            if (mailbox != null) {
+                hits.increment();
+            } else {
+                misses.increment();
+                long start = System.nanoTime();
+                mailbox = loader.apply(emailAddress);
+                loadNanos.add(System.nanoTime() - start);
+                slot.mailbox = mailbox;
+                slot.everResident = true;
+                residentBytes.addAndGet(mailbox.getEstimatedBytes());
+                trimNeeded = true;
+            }
+            slot.lastAccess = System.nanoTime();
+            return mailbox;
+        } finally {
+            slot.lock.unlock();
+        }
+    }
+
+    /**
+     * Indica se una casella va ancora caricata: l'account esiste e la casella non è mai stata residente.
+     * @param emailAddress indirizzo email
+     * @return true se la casella non è mai stata caricata
+     */
+    public boolean needsLoad(String emailAddress) {
+        Slot slot = emailAddress == null ? null : accounts.get(emailAddress);
+        return slot != null && !slot.everResident;
+    }
+
+    /**
+     * Inserisce una casella caricata senza lock (precaricamento), se c'è spazio nel budget.
+     * La casella viene scartata se è già stata residente: in quel caso può essere stata modificata dopo la
+     * lettura dei file, mentre una casella mai residente non può aver ricevuto modifiche.
+     * @param emailAddress indirizzo email
+     * @param mailbox casella letta da disco
+     * @return true se la casella è stata inserita
+     */
+    public boolean offer(String emailAddress, Mailbox mailbox) {
+        Slot slot = accounts.get(emailAddress);
+        if (slot == null) {
+            return false;
+        }
+        slot.lock.lock();
+        try {
+            if (slot.everResident || residentBytes.get() + mailbox.getEstimatedBytes() > maxBytes) {
+                return false;
+            }
+            slot.mailbox = mailbox;
+            slot.everResident = true;
+            slot.lastAccess = System.nanoTime();
+            residentBytes.addAndGet(mailbox.getEstimatedBytes());
+            preloaded.increment();
+            return true;
+        } finally {
+            slot.lock.unlock();
+        }
+    }
+
+    /**
+     * Indica se la memoria stimata delle caselle residenti ha raggiunto il budget.
+     * @return true se non c'è spazio per altre caselle
+     */
+    public boolean isFull() {
+        return residentBytes.get() >= maxBytes;
+    }
+
+    /**
+     * Registra che una casella ha modifiche accodate per la scrittura. Va chiamato con la casella bloccata.
+     * @param emailAddress indirizzo email
+     * @param seq sequenza restituita dalla coda di persistenza
+     */
+    public void markDirty(String emailAddress, long seq) {
+        Slot slot = accounts.get(emailAddress);
+        if (slot != null && slot.mailbox != null) {
+            slot.dirtySeq = Math.max(slot.dirtySeq, seq);
+            trimNeeded = true;
+        }
+    }
+
+    /**
+     * Espelle le caselle usate meno di recente finché la memoria stimata rientra nel budget.
+     * Le caselle sporche o bloccate da un'operazione in corso restano residenti: il trim non viene ripetuto
+     * a ogni chiamata, ma solo dopo un nuovo caricamento, una nuova modifica o la scrittura su disco di un gruppo
+     * ({@link #writesCompleted()}). Va chiamato senza caselle bloccate; se un altro thread sta già eseguendo
+     * il trim, o non è cambiato nulla dall'ultimo, restituisce subito.
+     */
+    public void trim() {
+        if (!trimNeeded || !trimLock.tryLock()) {
+            return;
+        }
+        try {
+            trimNeeded = false;
+            List<Map.Entry<String, Slot>> candidates = new ArrayList<>();
+            long total = 0;
+            for (Map.Entry<String, Slot> entry : accounts.entrySet()) {
+                Mailbox mailbox = entry.getValue().mailbox;
+                if (mailbox != null) {
+                    total += mailbox.getEstimatedBytes();
+                    candidates.add(entry);
+                }
+            }
+            if (total > maxBytes) {
+                candidates.sort(Comparator.comparingLong(entry -> entry.getValue().lastAccess));
+                // La casella usata più di recente resta sempre residente
+                for (int i = 0; i < candidates.size() - 1 && total > maxBytes; i++) {
+                    long freed = evict(candidates.get(i).getKey(), candidates.get(i).getValue());
+                    if (freed < 0) {
+                        skippedDirty.increment();
+                    } else {
+                        total -= freed;
+                    }
+                }
+            }
+            residentBytes.set(total);
+            // Oltre il budget solo per caselle sporche o in uso: si riprova quando vengono scritte su disco
+            trimDeferred = total > maxBytes;
+        } finally {
+            trimLock.unlock();
+        }
+    }
+
+    /**
+     * Registra che la coda di persistenza ha scritto un gruppo di modifiche: se l'ultimo trim è rimasto
+     * oltre il budget per caselle sporche, il prossimo trim le riconsidera.
+     */
+    public void writesCompleted() {
+        if (trimDeferred) {
+            trimDeferred = false;
+            trimNeeded = true;
+        }
+    }
+
+    /**
+     * Espelle una casella se non è bloccata da altri e non ha modifiche da scrivere.
+     * @return byte stimati liberati, oppure -1 se la casella resta residente
+     */
+    private long evict(String emailAddress, Slot slot) {
+        if (!slot.lock.tryLock()) {
+            return -1;
+        }
+        try {
+            Mailbox mailbox = slot.mailbox;
+            // Un lock già tenuto dal chiamante conta come casella in uso
+            if (mailbox == null || slot.lock.getHoldCount() > 1) {
+                return mailbox == null ? 0 : -1;
+            }
+            if (slot.dirtySeq != 0) {
+                if (!written.test(emailAddress, slot.dirtySeq)) {
+                    return -1;
+                }
+                slot.dirtySeq = 0;
+            }
+            slot.mailbox = null;
+            evictions.increment();
+            return mailbox.getEstimatedBytes();
+        } finally {
+            slot.lock.unlock();
+        }
+    }
+
+    /**
+     * Indica se la casella di un account è residente in memoria.
+     * @param emailAddress indirizzo email
+     * @return true se la casella è residente
+     */
+    public boolean isResident(String emailAddress) {
+        Slot slot = emailAddress == null ? null : accounts.get(emailAddress);
+        return slot != null && slot.mailbox != null;
+    }
+
+    /**
+     * Restituisce gli account esistenti.
+     * @return indirizzi degli account
+     */
+    public Set<String> getAccounts() {
+        return addresses;
+    }
+
+    /**
+     * Restituisce gli indirizzi delle caselle residenti, dalla meno alla più recente.
+     * @return indirizzi delle caselle residenti
+     */
+    public List<String> getResidentAddresses() {
+        Map<String, Long> byAccess = new LinkedHashMap<>();
+        for (Map.Entry<String, Slot> entry : accounts.entrySet()) {
+            if (entry.getValue().mailbox != null) {
+                byAccess.put(entry.getKey(), entry.getValue().lastAccess);
+            }
+        }
+        List<String> addresses = new ArrayList<>(byAccess.keySet());
+        addresses.sort(Comparator.comparingLong(byAccess::get));
+        return addresses;
+    }
+
+    /**
+     * Memoria stimata delle caselle residenti.
+     * @return byte stimati
+     */
+    public long getResidentBytes() {
+        long total = 0;
+        for (Slot slot : accounts.values()) {
+            Mailbox mailbox = slot.mailbox;
+            if (mailbox != null) {
+                total += mailbox.getEstimatedBytes();
+            }
+        }
+        return total;
+    }
+
+    /**
+     * Restituisce un riepilogo testuale delle metriche, adatto al log del server.
+     * @return stringa con caselle residenti, hit, miss, espulsioni e attese dei lock
+     */
+    public String getStats() {
+        long hitCount = hits.sum();
+        long missCount = misses.sum();
+        long accesses = hitCount + missCount;
+        long contendedCount = contended.sum();
+        return "residenti=" + getResidentCount() + "/" + accounts.size()
+                + ", memoria stimata=" + getResidentBytes() / 1024 + "KB/" + maxBytes / 1024 + "KB"
+                + ", hit=" + hitCount
+                + ", miss=" + missCount
+                + ", hit ratio=" + (accesses == 0 ? 0 : hitCount * 100 / accesses) + "%"
+                + ", espulsioni=" + evictions.sum()
+                + ", precaricate=" + preloaded.sum()
+                + ", rinvii (sporche o in uso)=" + skippedDirty.sum()
+                + ", caricamento medio=" + (missCount == 0 ? 0 : loadNanos.sum() / missCount / 1000) + "µs"
+                + ", lock contesi=" + contendedCount
+                + ", attesa media lock=" + (contendedCount == 0 ? 0 : lockWaitNanos.sum() / contendedCount / 1000) + "µs";
+    }
+
+    // Getter per le metriche principali
+    public long getHitCount() { return hits.sum(); }
+    public long getMissCount() { return misses.sum(); }
+    public long getEvictionCount() { return evictions.sum(); }
+    public long getPreloadedCount() { return preloaded.sum(); }
+    public long getContendedLockCount() { return contended.sum(); }
+
+    public int getResidentCount() {
+        int count = 0;
+        for (Slot slot : accounts.values()) {
+            if (slot.mailbox != null) {
+                count++;
+            }
+        }
+        return count;
+    }
+}
@@ -0,0 +1,15 @@
+package server.model;
+
+/**
+ * Osservatore delle nuove email consegnate a una casella di posta.
+ * Viene invocato dal ServerModel durante la consegna: le implementazioni non devono bloccare
+ * (tipicamente accodano l'email e la elaborano su un altro thread).
+ */
+public interface MailboxListener {
+
+    /**
+     * Notifica l'arrivo di una nuova email nella posta in arrivo osservata.
+     * @param email email appena consegnata
+     */
+    void emailReceived(Email email);
+}
@@ -0,0 +1,115 @@
+package server.model;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Precaricamento in parallelo delle mailbox all'avvio del server.
+ * <p>
+ * Le caselle vengono lette e decodificate da un gruppo di thread dedicati, senza bloccare le caselle e fuori dal
+ * thread JavaFX, e inserite nella {@link MailboxCache} man mano che sono pronte. Il server accetta richieste
+ * fin da subito: una casella già precaricata è servita dalla memoria, una non ancora letta viene caricata
+ * su richiesta come di consueto (e il precaricamento poi la salta).
+ * </p>
+ * Il numero di thread limita anche le letture concorrenti dei file. Il precaricamento si ferma quando
+ * la memoria stimata delle caselle residenti raggiunge il budget della cache.
+ */
+public class MailboxPreloader {
+    private final ServerModel model;                // Modello in cui inserire le caselle
+    private final List<String> addresses;           // Caselle da precaricare, nell'ordine
+    private final ExecutorService workers;          // Thread "mailbox-preload-N"
+    private final int progressStep;                 // Caselle tra due messaggi di avanzamento
+    private volatile boolean stopped = false;       // true dopo close()
+    private long startNanos;                        // Inizio del precaricamento
+
+    // Metriche
+    private final AtomicInteger processed = new AtomicInteger();    // Caselle esaminate
+    private final AtomicInteger loaded = new AtomicInteger();       // Caselle inserite nella cache
+    private final AtomicInteger failed = new AtomicInteger();       // Letture fallite
+
+    /**
+     * Crea il precaricamento senza avviarlo.
+     * @param model modello del server
+     * @param addresses indirizzi delle caselle da precaricare
+     * @param threads numero di thread di lettura (almeno 1)
+     */
+    public MailboxPreloader(ServerModel model, List<String> addresses, int threads) {
+        this.model = model;
+        this.addresses = new ArrayList<>(addresses);
+        this.progressStep = Math.max(1, this.addresses.size() / 10);
+        AtomicInteger counter = new AtomicInteger();
+        this.workers = Executors.newFixedThreadPool(Math.max(1, threads), r -> {
+            Thread thread = new Thread(r, "mailbox-preload-" + counter.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Avvia il precaricamento e restituisce subito.
+     */
+    public void start() {
+        startNanos = System.nanoTime();
+        model.addToLog("Precaricamento di " + addresses.size() + " mailbox avviato");
+        for (String address : addresses) {
+            workers.execute(() -> preload(address));
+        }
+        workers.shutdown();
+    }
+
+    /**
+     * Legge una casella e la inserisce nella cache, se nel frattempo non è stata caricata su richiesta.
+     */
+    private void preload(String address) {
+        try {
+            if (!stopped && !model.isCacheFull() && model.needsPreload(address)) {
+                Mailbox mailbox = model.readMailbox(address);
+                if (model.offerPreloaded(address, mailbox)) {
+                    loaded.incrementAndGet();
+                }
+            }
+        } catch (RuntimeException e) {
+            failed.incrementAndGet();
+            System.err.println("Errore nel precaricare la mailbox per " + address + ": " + e.getMessage());
+        }
+        int done = processed.incrementAndGet();
+        if (done == addresses.size()) {
+            model.addToLog("Precaricamento completato [" + getStats() + "]");
+        } else if (done % progressStep == 0) {
+            model.addToLog("Precaricamento mailbox: " + done + "/" + addresses.size());
+        }
+    }
+
+    /**
+     * Interrompe il precaricamento; le caselle già inserite restano nella cache.
+     * @param timeoutMillis tempo massimo di attesa delle letture in corso
+     */
+    public void close(long timeoutMillis) {
+        stopped = true;
+        workers.shutdownNow();
+        try {
+            workers.awaitTermination(timeoutMillis, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Restituisce un riepilogo testuale delle metriche, adatto al log del server.
+     * @return stringa con caselle esaminate, caricate e durata
+     */
+    public String getStats() {
+        return "esaminate=" + processed.get() + "/" + addresses.size()
+                + ", precaricate=" + loaded.get()
+                + ", errori=" + failed.get()
+                + ", durata=" + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos) + "ms";
+    }
+
+    // Getter per le metriche principali
+    public boolean isFinished() { return processed.get() == addresses.size(); }
+    public int getLoadedCount() { return loaded.get(); }
+}
@@ -0,0 +1,119 @@
+package server.model;
+
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Log del server su un buffer circolare senza lock.
+ * <p>
+ * I record (istante e messaggio) sono preallocati in array di dimensione fissa, potenza di due. Un produttore
+ * prenota una posizione con un compare-and-set sul contatore di coda, scrive i campi e pubblica il record
+ * aggiornandone il numero di sequenza: nessun lock, nessuna allocazione oltre al messaggio, nessun
+ * {@code Platform.runLater}. Se il buffer è pieno (il consumatore non lo svuota) il messaggio viene scartato
+ * e contato, così chi scrive nel log non attende mai.
+ * </p>
+ * Il consumatore è uno solo (il thread JavaFX della vista): {@link #drain(List, int)} legge i record pubblicati
+ * in ordine, a lotti, e li formatta con l'orario; la formattazione non pesa quindi sul thread che ha scritto.
+ */
+public final class ServerLog {
+    private static final DateTimeFormatter TIME_FORMAT = DateTimeFormatter.ofPattern("HH:mm:ss")
+            .withZone(ZoneId.systemDefault());
+
+    private final int mask;                     // Capacità - 1
+    private final AtomicLongArray sequences;    // Per posizione: pos + 1 se pubblicato, pos + capacità se libero
+    private final long[] times;                 // Istante di ogni record (ms dall'epoch)
+    private final String[] messages;            // Messaggio di ogni record
+    private final AtomicLong tail = new AtomicLong();   // Prossima posizione da prenotare
+    private long head;                          // Prossima posizione da leggere (solo consumatore)
+    private final LongAdder dropped = new LongAdder();  // Messaggi scartati a buffer pieno
+    private long reportedDropped;               // Scarti già segnalati nel log (solo consumatore)
+
+    /**
+     * Crea il buffer.
+     * @param capacity numero di record, arrotondato alla potenza di due successiva (almeno 2)
+     */
+    public ServerLog(int capacity) {
+        int size = Integer.highestOneBit(Math.max(2, Math.min(capacity, 1 << 24)) - 1) << 1;
+        this.mask = size - 1;
+        this.sequences = new AtomicLongArray(size);
+        this.times = new long[size];
+        this.messages = new String[size];
+        for (int i = 0; i < size; i++) {
+            sequences.set(i, i);
+        }
+    }
+
+    /**
+     * Aggiunge un messaggio senza bloccare; può essere chiamato da qualsiasi thread.
+     * @param message messaggio da registrare
+     * @return false se il buffer era pieno e il messaggio è stato scartato
+     */
+    public boolean add(String message) {
+        long position = tail.get();
+        int index;
+        while (true) {
+            index = (int) (position & mask);
+            long difference = sequences.get(index) - position;
+            if (difference == 0) {
+                if (tail.compareAndSet(position, position + 1)) {
+                    break;
+                }
+                position = tail.get();
+            } else if (difference < 0) {
+                // Posizione non ancora letta dal giro precedente: buffer pieno
+                dropped.increment();
+                return false;
+            } else {
+                position = tail.get(); // Prenotata da un altro produttore
+            }
+        }
+        times[index] = System.currentTimeMillis();
+        messages[index] = message;
+        sequences.lazySet(index, position + 1); // Pubblica il record (scrittura ordinata dopo i campi)
+        return true;
+    }
+
+    /**
+     * Legge fino a {@code max} record pubblicati, in ordine, e li aggiunge a {@code out} come righe
+     * {@code [HH:mm:ss] messaggio}. Se nel frattempo sono stati scartati messaggi aggiunge in fondo una riga
+     * che lo segnala. Va chiamato da un solo thread alla volta.
+     * @param out destinazione delle righe
+     * @param max numero massimo di record da leggere
+     * @return numero di record letti
+     */
+    public int drain(List<String> out, int max) {
+        long position = head;
+        int count = 0;
+        while (count < max) {
+            int index = (int) (position & mask);
+            if (sequences.get(index) != position + 1) {
+                break; // Nessun altro record pubblicato
+            }
+            String message = messages[index];
+            long time = times[index];
+            messages[index] = null;
+            sequences.lazySet(index, position + mask + 1); // Libera la posizione per il giro successivo
+            out.add("[" + TIME_FORMAT.format(Instant.ofEpochMilli(time)) + "] " + message);
+            position++;
+            count++;
+        }
+        head = position;
+        // I messaggi scartati sono successivi a quelli rimasti nel buffer: la segnalazione va in fondo
+        long lost = dropped.sum();
+        if (lost > reportedDropped) {
+            out.add("[" + TIME_FORMAT.format(Instant.now()) + "] " + (lost - reportedDropped)
+                    + " messaggi di log scartati (buffer pieno)");
+            reportedDropped = lost;
+        }
+        return count;
+    }
+
+    // Getter per le metriche del buffer
+    public int getCapacity() { return mask + 1; }
+    public long getDroppedCount() { return dropped.sum(); }
+}
@@ -1,63 +1,192 @@
 package server.model;
 
-import javafx.application.Platform;
-import javafx.collections.FXCollections;
-import javafx.collections.ObservableList;
+import java.io.File;
+import java.io.IOException;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
 import java.util.ArrayList;
+import java.util.Arrays;
 
+import server.ServerConfig;
+import server.storage.BackupWriter;
+import server.storage.Compactor;
 import server.storage.FileManager;
+import server.storage.PersistenceQueue;
+import server.storage.StoreSnapshot;
 
-import java.util.HashMap;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Modello principale del server che gestisce le caselle di posta, il log del server
  * e l'interazione con il FileManager per la persistenza dei dati.
+ * <p>
+ * Non esiste un lock globale: ogni operazione blocca solo le caselle che usa ({@link MailboxCache#lock}),
+ * in ordine di indirizzo, quindi le richieste su caselle diverse procedono in parallelo. La verifica degli
+ * account non blocca nulla; le letture di una casella residente usano solo la sincronizzazione della casella.
+ * </p>
  */
 public class ServerModel {
-    private Map<String, Mailbox> mailboxesMap;     // Mappa che associa ogni indirizzo email alla relativa Mailbox
-    private ObservableList<String> serverLog;   // Lista osservabile per il log del server (usata per aggiornare la GUI)
+    private final MailboxCache mailboxes;       // Caselle di posta, caricate al primo accesso ed espulse se fredde
+    private final ServerLog serverLog;          // Log del server su buffer circolare, svuotato dalla vista
     private FileManager fileManager;            // Gestore per il salvataggio e caricamento delle mailbox su disco
+    private final PersistenceQueue persistence; // Scrittura asincrona a gruppi delle modifiche
+    private final Compactor compactor;          // Checkpoint periodico dei journal in background
+    private MailboxPreloader preloader;         // Precaricamento delle mailbox all'avvio (null se non avviato)
+    private Thread backupThread;                // Backup in corso (null se nessuno)
+    private final Map<String, List<MailboxListener>> listeners = new ConcurrentHashMap<>(); // Osservatori delle nuove email per casella
 
     /**
-     * Costruttore: inizializza le strutture dati, crea account predefiniti e carica le mailbox.
+     * Costruttore: inizializza le strutture dati e crea gli account predefiniti. Le mailbox non vengono lette
+     * all'avvio: ciascuna è caricata da disco al primo accesso.
      */
     public ServerModel() {
-        this.mailboxesMap = new HashMap<>();
-        this.serverLog = FXCollections.observableArrayList();
+        this.serverLog = new ServerLog(ServerConfig.logBufferSize());
         this.fileManager = new FileManager();
 
+        // Le modifiche vengono scritte in modo asincrono, a gruppi
+        this.persistence = new PersistenceQueue(fileManager,
+                PersistenceQueue.Durability.fromName(ServerConfig.persistenceDurability()),
+                ServerConfig.persistenceMaxPending());
+        this.compactor = new Compactor(fileManager, ServerConfig.compactionIntervalMillis(),
+                ServerConfig.compactionJournalKilobytes() * 1024);
         // Inizializza account predefiniti
-        initializeDefaultAccounts();
-        // Carica le mailbox da file
-        loadMailboxes();
+        this.mailboxes = new MailboxCache(initializeDefaultAccounts(),
+                ServerConfig.cacheMaxMegabytes() * 1024 * 1024,
+                this::loadMailbox, persistence::isWritten);
+        // Le caselle sporche diventano espellibili solo dopo la scrittura su disco
+        persistence.setWriteListener(mailboxes::writesCompleted);
     }
 
     /**
-     * Crea alcuni account email predefiniti e li aggiunge alla mappa delle mailbox.
+     * Avvia il precaricamento in parallelo delle mailbox ({@link MailboxPreloader}), fuori dal thread che lo
+     * chiama; le richieste vengono servite anche prima che termini.
+     * Il numero di thread è letto da {@link ServerConfig#preloadThreads()}.
      */
-    private void initializeDefaultAccounts() {
+    public void startPreload() {
+        int threads = ServerConfig.preloadThreads();
+        List<String> accounts;
+        synchronized (this) {
+            if (threads <= 0 || preloader != null) {
+                return;
+            }
+            accounts = new ArrayList<>(mailboxes.getAccounts());
+            preloader = new MailboxPreloader(this, accounts, threads);
+        }
+        preloader.start();
+    }
+
+    /**
+     * Avvia in background il backup online dei dati: cattura una vista coerente di tutte le mailbox tra due
+     * gruppi di scrittura (le consegne continuano) e la scrive in un archivio ZIP in
+     * {@link ServerConfig#backupDirectory()}, con la velocità limitata da {@link ServerConfig#backupMaxMegabytesPerSecond()}.
+     * @return true se il backup è stato avviato, false se ne è già in corso uno
+     */
+    public synchronized boolean startBackup() {
+        if (backupThread != null) {
+            return false;
+        }
+        backupThread = new Thread(this::runBackup, "mailbox-backup");
+        backupThread.setDaemon(true);
+        backupThread.setPriority(Thread.MIN_PRIORITY);
+        backupThread.start();
+        return true;
+    }
+
+    /**
+     * Esegue il backup avviato da {@link #startBackup()}.
+     */
+    private void runBackup() {
+        long start = System.nanoTime();
+        StoreSnapshot snapshot = persistence.betweenGroups(fileManager::captureSnapshot);
+        long pauseMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        try {
+            if (snapshot == null) {
+                addToLog("ERRORE: backup non riuscito, impossibile catturare lo stato delle mailbox");
+                return;
+            }
+            String name = "maildata-" + LocalDateTime.now().format(DateTimeFormatter.ofPattern("yyyyMMdd-HHmmss")) + ".zip";
+            File archive = new File(ServerConfig.backupDirectory(), name);
+            addToLog("Backup avviato: " + snapshot.fileCount() + " file, " + snapshot.totalBytes() / 1024
+                    + "KB catturati in " + pauseMillis + "ms");
+            long bytes = BackupWriter.write(snapshot, archive,
+                    ServerConfig.backupMaxMegabytesPerSecond() * 1024 * 1024);
+            long millis = Math.max(1, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+            addToLog("Backup completato: " + archive.getPath() + " [file=" + snapshot.fileCount()
+                    + ", copiati senza link=" + snapshot.copiedCount()
+                    + ", dati=" + bytes / 1024 + "KB"
+                    + ", archivio=" + archive.length() / 1024 + "KB"
+                    + ", durata=" + millis + "ms"
+                    + ", velocità=" + bytes * 1000 / millis / 1024 + "KB/s]");
+        } catch (IOException e) {
+            addToLog("ERRORE: backup non riuscito: " + e.getMessage());
+        } finally {
+            if (snapshot != null) {
+                snapshot.discard();
+            }
+            synchronized (this) {
+                backupThread = null;
+            }
+        }
+    }
+
+    /**
+     * Indica se una casella va ancora precaricata (non è mai stata caricata su richiesta).
+     */
+    boolean needsPreload(String emailAddress) {
+        return mailboxes.needsLoad(emailAddress);
+    }
+
+    /**
+     * Indica se la cache ha raggiunto il budget di memoria, quindi il precaricamento può fermarsi.
+     */
+    boolean isCacheFull() {
+        return mailboxes.isFull();
+    }
+
+    /**
+     * Legge una casella da disco senza bloccarla (usato dal precaricamento).
+     */
+    Mailbox readMailbox(String emailAddress) {
+        return loadMailbox(emailAddress);
+    }
+
+    /**
+     * Inserisce nella cache una casella precaricata (vedi {@link MailboxCache#offer(String, Mailbox)}).
+     */
+    boolean offerPreloaded(String emailAddress, Mailbox mailbox) {
+        return mailboxes.offer(emailAddress, mailbox);
+    }
+
+    /**
+     * Crea alcuni account email predefiniti.
+     * @return indirizzi degli account
+     */
+    private List<String> initializeDefaultAccounts() {
         String[] defaultAccounts = {
                 "cl16@mail.com",
                 "mv33@mail.com",
                 "op81@mail.com"
         };
 
-        for (String account : defaultAccounts) {
-            mailboxesMap.put(account, new Mailbox(account));
-        }
-
         addToLog("Server inizializzato con " + defaultAccounts.length + " account");
+        return Arrays.asList(defaultAccounts);
     }
 
     /**
-     * Verifica se un indirizzo email esiste tra le mailbox gestite dal server.
+     * Verifica se un indirizzo email esiste tra le mailbox gestite dal server, senza caricarne la casella.
      * @param email indirizzo email da verificare
      * @return true se l'email esiste, false altrimenti
      */
-    public synchronized boolean isValidEmail(String email) {
-        return mailboxesMap.containsKey(email);
+    public boolean isValidEmail(String email) {
+        return mailboxes.contains(email);
     }
 
     /**
@@ -67,12 +196,69 @@ public class ServerModel {
      * Se il mittente o tutti i destinatari non sono validi, registra un errore nel log.
      *
      * @param email oggetto Email da consegnare
+     * @throws IllegalStateException se la consegna non è stata scritta su disco (politica FSYNC)
+     */
+    public void deliverEmail(Email email) {
+        deliverEmails(Collections.singletonList(email));
+    }
+
+    /**
+     * Consegna più email bloccando una sola volta le caselle coinvolte (mittenti e destinatari, in ordine di
+     * indirizzo): le caselle vengono aggiornate in memoria e le loro modifiche accodate insieme, una sola volta
+     * ciascuna anche se ricevono più email; infine vengono notificati gli osservatori. Le consegne che non hanno
+     * caselle in comune procedono in parallelo. L'eventuale attesa della scrittura su disco avviene dopo aver
+     * sbloccato le caselle.
+     * Le notifiche push partono prima della scrittura, come le letture vedono le caselle in memoria prima che
+     * siano su disco: solo la risposta al mittente attende la conferma. Se la scrittura fallisce le email restano
+     * consegnate in memoria (la casella non viene più espulsa) ma il mittente riceve un errore.
+     * @param emails email da consegnare, nell'ordine
+     * @throws IllegalStateException se la consegna non è stata scritta su disco (politica FSYNC)
      */
-    public synchronized void deliverEmail(Email email) {
+    public void deliverEmails(List<Email> emails) {
+        long ticket;
+        List<String> involved = new ArrayList<>();
+        for (Email email : emails) {
+            involved.add(email.getSender());
+            if (email.getRecipients() != null) {
+                involved.addAll(email.getRecipients());
+            }
+        }
+        List<String> locked = mailboxes.lock(involved);
+        try {
+            Map<String, List<FileManager.Change>> changes = new LinkedHashMap<>();
+            List<Email> delivered = new ArrayList<>(emails.size());
+            for (Email email : emails) {
+                if (applyDelivery(email, changes)) {
+                    delivered.add(email);
+                }
+            }
+
+            ticket = persist(changes);
+            for (Email email : delivered) {
+                for (String recipient : email.getRecipients()) {
+                    notifyListeners(recipient, email);
+                    addToLog("Email consegnata a: " + recipient + " da: " + email.getSender());
+                }
+            }
+        } finally {
+            mailboxes.unlock(locked);
+        }
+        mailboxes.trim();
+        awaitDurable(ticket);
+    }
+
+    /**
+     * Aggiunge in memoria l'email alle caselle di mittente e destinatari validi, senza salvare.
+     * Da chiamare con le caselle di mittente e destinatari bloccate.
+     * @param email email da consegnare
+     * @param changes raccoglie le modifiche di ciascuna casella, da rendere persistenti
+     * @return true se l'email è stata consegnata ad almeno un destinatario
+     */
+    private boolean applyDelivery(Email email, Map<String, List<FileManager.Change>> changes) {
         // Verifica esistenza mittente
         if (!isValidEmail(email.getSender())) {
             addToLog("ERRORE: Mittente non valido: " + email.getSender());
-            return;
+            return false;
         }
 
         List<String> validRecipients = new ArrayList<>();
@@ -86,21 +272,99 @@ public class ServerModel {
 
         if (validRecipients.isEmpty()) {
             addToLog("ERRORE: Nessun destinatario valido per l'email da: " + email.getSender());
-            return;
+            return false;
         }
 
         // Aggiorna i destinatari con solo quelli validi
         email.setRecipients(validRecipients);
 
-        // Salva nella casella del mittente (inviati)
-        mailboxesMap.get(email.getSender()).addSentEmail(email);
-        saveMailbox(email.getSender());
+        // Aggiunge alla casella del mittente (inviati)
+        mailboxes.get(email.getSender()).addSentEmail(email);
+        changes.computeIfAbsent(email.getSender(), k -> new ArrayList<>()).add(FileManager.Change.added(email, true));
 
-        // Salva nella casella dei destinatari (ricevuti)
+        // Aggiunge alla casella dei destinatari (ricevuti)
         for (String recipient : validRecipients) {
-            mailboxesMap.get(recipient).addEmail(email);
-            saveMailbox(recipient);
-            addToLog("Email consegnata a: " + recipient + " da: " + email.getSender());
+            mailboxes.get(recipient).addEmail(email);
+            changes.computeIfAbsent(recipient, k -> new ArrayList<>()).add(FileManager.Change.added(email, false));
+        }
+        return true;
+    }
+
+    /**
+     * Registra un osservatore delle nuove email di una casella e restituisce, in modo atomico rispetto
+     * alle consegne, le email già presenti da un certo indice in poi: nessuna email va persa o duplicata
+     * tra il recupero iniziale e le notifiche successive.
+     * @param emailAddress indirizzo email della mailbox
+     * @param fromIndex indice da cui recuperare le email già presenti
+     * @param listener osservatore da registrare
+     * @return email già presenti da fromIndex, o null se la mailbox non esiste (l'osservatore non viene registrato)
+     */
+    public List<Email> subscribe(String emailAddress, int fromIndex, MailboxListener listener) {
+        List<Email> emails;
+        // Le consegne notificano con la casella bloccata: registrazione e lettura avvengono tra due consegne
+        List<String> locked = mailboxes.lock(emailAddress);
+        try {
+            Mailbox mailbox = mailboxes.get(emailAddress);
+            if (mailbox == null) {
+                return null;
+            }
+            listeners.computeIfAbsent(emailAddress, k -> new CopyOnWriteArrayList<>()).add(listener);
+            emails = mailbox.getNewEmails(fromIndex);
+        } finally {
+            mailboxes.unlock(locked);
+        }
+        mailboxes.trim();
+        return emails;
+    }
+
+    /**
+     * Come {@link #subscribe(String, int, MailboxListener)}, ma il recupero iniziale è una sincronizzazione
+     * incrementale a partire da un cursore (vedi {@link Mailbox#sync(String, int)}).
+     * @param emailAddress indirizzo email della mailbox
+     * @param cursor cursore dell'ultima sincronizzazione, oppure null
+     * @param limit numero massimo di email nel recupero iniziale
+     * @param listener osservatore da registrare
+     * @return modifiche successive al cursore, o null se la mailbox non esiste (l'osservatore non viene registrato)
+     * @throws IllegalArgumentException se il cursore non è valido (l'osservatore non viene registrato)
+     */
+    public SyncResult subscribe(String emailAddress, String cursor, int limit, MailboxListener listener) {
+        SyncResult result;
+        List<String> locked = mailboxes.lock(emailAddress);
+        try {
+            Mailbox mailbox = mailboxes.get(emailAddress);
+            if (mailbox == null) {
+                return null;
+            }
+            result = mailbox.sync(cursor, limit);
+            listeners.computeIfAbsent(emailAddress, k -> new CopyOnWriteArrayList<>()).add(listener);
+        } finally {
+            mailboxes.unlock(locked);
+        }
+        mailboxes.trim();
+        return result;
+    }
+
+    /**
+     * Rimuove un osservatore registrato con subscribe().
+     * @param emailAddress indirizzo email della mailbox
+     * @param listener osservatore da rimuovere
+     */
+    public void unsubscribe(String emailAddress, MailboxListener listener) {
+        List<MailboxListener> mailboxListeners = listeners.get(emailAddress);
+        if (mailboxListeners != null) {
+            mailboxListeners.remove(listener);
+        }
+    }
+
+    /**
+     * Notifica agli osservatori di una casella l'arrivo di una nuova email.
+     */
+    private void notifyListeners(String emailAddress, Email email) {
+        List<MailboxListener> mailboxListeners = listeners.get(emailAddress);
+        if (mailboxListeners != null) {
+            for (MailboxListener listener : mailboxListeners) {
+                listener.emailReceived(email);
+            }
         }
     }
 
@@ -110,10 +374,32 @@ public class ServerModel {
      * @param fromIndex indice da cui partire
      * @return lista di Email o null se la mailbox non esiste
      */
-    public synchronized List<Email> getNewEmails(String emailAddress, int fromIndex) {
-        server.model.Mailbox mailbox = mailboxesMap.get(emailAddress);
+    public List<Email> getNewEmails(String emailAddress, int fromIndex) {
+        server.model.Mailbox mailbox = mailboxes.get(emailAddress);
+        if (mailbox != null) {
+            List<Email> emails = mailbox.getNewEmails(fromIndex);
+            mailboxes.trim();
+            return emails;
+        }
+        return null;
+    }
+
+    /**
+     * Restituisce le modifiche delle email ricevute successive a un cursore (vedi {@link Mailbox#sync(String, int)}).
+     * @param emailAddress indirizzo email della mailbox
+     * @param cursor cursore dell'ultima sincronizzazione, oppure null per ripartire dalle email più recenti
+     * @param limit numero massimo di email nel risultato
+     * @return modifiche e nuovo cursore, o null se la mailbox non esiste
+     * @throws IllegalArgumentException se il cursore non è valido
+     */
+    public SyncResult sync(String emailAddress, String cursor, int limit) {
+        Mailbox mailbox = mailboxes.get(emailAddress);
         if (mailbox != null) {
-            return mailbox.getNewEmails(fromIndex);
+            try {
+                return mailbox.sync(cursor, limit);
+            } finally {
+                mailboxes.trim();
+            }
         }
         return null;
     }
@@ -123,82 +409,303 @@ public class ServerModel {
      * @param emailAddress indirizzo email della mailbox
      * @return lista di Email inviate o null se la mailbox non esiste
      */
-    public synchronized List<Email> getSentEmails(String emailAddress) {
-        Mailbox mailbox = mailboxesMap.get(emailAddress);
+    public List<Email> getSentEmails(String emailAddress) {
+        Mailbox mailbox = mailboxes.get(emailAddress);
         if (mailbox != null) {
-            return new ArrayList<>(mailbox.getSentEmails());
+            List<Email> emails = mailbox.getSentEmails();
+            mailboxes.trim();
+            return emails;
+        }
+        return null;
+    }
+
+    /**
+     * Restituisce una pagina di email ricevute o inviate (vedi {@link Mailbox#getPage(boolean, int, String)}).
+     * @param emailAddress indirizzo email della mailbox
+     * @param sent true per le email inviate, false per le ricevute
+     * @param pageSize numero massimo di email nella pagina
+     * @param cursor cursore della pagina precedente, oppure null per la pagina più recente
+     * @return pagina di email o null se la mailbox non esiste
+     * @throws IllegalArgumentException se il cursore non è valido
+     */
+    public EmailPage getEmailPage(String emailAddress, boolean sent, int pageSize, String cursor) {
+        Mailbox mailbox = mailboxes.get(emailAddress);
+        if (mailbox != null) {
+            try {
+                return mailbox.getPage(sent, pageSize, cursor);
+            } finally {
+                mailboxes.trim();
+            }
         }
         return null;
     }
 
     /**
      * Elimina una email dalla mailbox specificata (posta inviata o ricevuta).
+     * Se la cartella contiene più copie con lo stesso id ne elimina solo la più vecchia, come {@link #deleteEmails(List)}.
      * @param emailAddress indirizzo email della mailbox
      * @param emailId id dell'email da eliminare
      * @param isSent true se si tratta di una email inviata, false se ricevuta
      * @return true se l'email è stata eliminata, false altrimenti
+     * @throws IllegalStateException se l'eliminazione non è stata scritta su disco (politica FSYNC)
      */
-    public synchronized boolean deleteEmail(String emailAddress, String emailId, boolean isSent) {
-        Mailbox mailbox = mailboxesMap.get(emailAddress);
-        if (mailbox != null) {
-            boolean deleted;
-            if (isSent) {
-                // Elimina da sentEmails
-                deleted = mailbox.getSentEmails().removeIf(email -> email.getId().equals(emailId));
-            } else {
-                // Elimina da receivedEmails
-                deleted = mailbox.removeEmail(emailId);
+    public boolean deleteEmail(String emailAddress, String emailId, boolean isSent) {
+        long ticket;
+        List<String> locked = mailboxes.lock(emailAddress);
+        try {
+            Mailbox mailbox = mailboxes.get(emailAddress);
+            if (mailbox == null) {
+                return false;
+            }
+            // Elimina da sentEmails o da receivedEmails
+            List<Email> removed = mailbox.removeEmails(Collections.singletonList(emailId), isSent);
+            if (removed.isEmpty()) {
+                return false;
             }
 
-            if (deleted) {
-                saveMailbox(emailAddress);
-                addToLog("Email eliminata per: " + emailAddress + " (tipo: " + (isSent ? "INVIATA" : "RICEVUTA") + ")");
+            ticket = persist(emailAddress, Collections.singletonList(FileManager.Change.removed(removed.get(0), isSent)));
+            addToLog("Email eliminata per: " + emailAddress + " (tipo: " + (isSent ? "INVIATA" : "RICEVUTA") + ")");
+        } finally {
+            mailboxes.unlock(locked);
+        }
+        mailboxes.trim();
+        // Attesa della scrittura su disco fuori dal lock
+        awaitDurable(ticket);
+        return true;
+    }
+
+    /**
+     * Elimina più email bloccando una sola volta le caselle coinvolte: le eliminazioni vengono raggruppate
+     * per casella e le modifiche di ogni casella vengono accodate una sola volta.
+     * Ogni eliminazione rimuove al più un'email (la copia più vecchia con quell'id); un id ripetuto nella lista
+     * risulta eliminato una sola volta, le ripetizioni successive falliscono.
+     * @param deletions eliminazioni richieste, nell'ordine
+     * @return esito di ciascuna eliminazione, nello stesso ordine
+     * @throws IllegalStateException se le eliminazioni non sono state scritte su disco (politica FSYNC)
+     */
+    public boolean[] deleteEmails(List<Deletion> deletions) {
+        long ticket;
+        boolean[] results = new boolean[deletions.size()];
+        List<String> involved = new ArrayList<>(deletions.size());
+        for (Deletion deletion : deletions) {
+            involved.add(deletion.getEmailAddress());
+        }
+        List<String> locked = mailboxes.lock(involved);
+        try {
+            ticket = applyDeletions(deletions, results);
+        } finally {
+            mailboxes.unlock(locked);
+        }
+        mailboxes.trim();
+        awaitDurable(ticket);
+        return results;
+    }
+
+    /**
+     * Attende la scrittura su disco delle modifiche accodate (politica FSYNC).
+     * @param ticket sequenza restituita da {@link #persist(Map)}
+     * @throws IllegalStateException se la scrittura è fallita: la richiesta non va confermata al client
+     */
+    private void awaitDurable(long ticket) {
+        if (!persistence.awaitDurable(ticket)) {
+            throw new IllegalStateException("Salvataggio su disco non riuscito");
+        }
+    }
+
+    /**
+     * Applica le eliminazioni di {@link #deleteEmails(List)} e ne accoda le modifiche, con le caselle bloccate.
+     * @param deletions eliminazioni richieste
+     * @param results riceve l'esito di ciascuna eliminazione
+     * @return sequenza da attendere per la conferma su disco
+     */
+    private long applyDeletions(List<Deletion> deletions, boolean[] results) {
+        Map<String, List<FileManager.Change>> changesByMailbox = new LinkedHashMap<>();
+        // Posizioni delle eliminazioni raggruppate per casella: l'esito è per posizione, anche se la stessa Deletion è ripetuta
+        Map<String, List<Integer>> byMailbox = new LinkedHashMap<>();
+        for (int i = 0; i < deletions.size(); i++) {
+            byMailbox.computeIfAbsent(deletions.get(i).getEmailAddress(), k -> new ArrayList<>()).add(i);
+        }
+
+        for (Map.Entry<String, List<Integer>> entry : byMailbox.entrySet()) {
+            Mailbox mailbox = mailboxes.get(entry.getKey());
+            if (mailbox == null) {
+                continue;
+            }
+            List<String> receivedIds = new ArrayList<>();
+            List<String> sentIds = new ArrayList<>();
+            for (int position : entry.getValue()) {
+                Deletion deletion = deletions.get(position);
+                (deletion.isSent() ? sentIds : receivedIds).add(deletion.getEmailId());
+            }
+            Set<String> removedReceived = new HashSet<>();
+            Set<String> removedSent = new HashSet<>();
+            List<FileManager.Change> changes = new ArrayList<>();
+            if (!receivedIds.isEmpty()) {
+                for (Email email : mailbox.removeEmails(receivedIds, false)) {
+                    removedReceived.add(email.getId());
+                    changes.add(FileManager.Change.removed(email, false));
+                }
+            }
+            if (!sentIds.isEmpty()) {
+                for (Email email : mailbox.removeEmails(sentIds, true)) {
+                    removedSent.add(email.getId());
+                    changes.add(FileManager.Change.removed(email, true));
+                }
+            }
+            int count = 0;
+            for (int position : entry.getValue()) {
+                Deletion deletion = deletions.get(position);
+                Set<String> removed = deletion.isSent() ? removedSent : removedReceived;
+                // Un id ripetuto nella stessa richiesta risulta eliminato una sola volta
+                results[position] = removed.remove(deletion.getEmailId());
+                if (results[position]) {
+                    count++;
+                }
+            }
+            if (count > 0) {
+                changesByMailbox.put(entry.getKey(), changes);
+                addToLog("Email eliminate per: " + entry.getKey() + " (" + count + ")");
             }
-            return deleted;
         }
-        return false;
+        return persist(changesByMailbox);
     }
 
     /**
-     * Aggiunge un messaggio al log del server, con timestamp, in modo thread-safe sulla GUI.
+     * Eliminazione richiesta in {@link #deleteEmails(List)}.
+     */
+    public static final class Deletion {
+        private final String emailAddress;  // Casella da cui eliminare
+        private final String emailId;       // Identificativo dell'email
+        private final boolean sent;         // true per la posta inviata, false per la ricevuta
+
+        public Deletion(String emailAddress, String emailId, boolean sent) {
+            this.emailAddress = emailAddress;
+            this.emailId = emailId;
+            this.sent = sent;
+        }
+
+        public String getEmailAddress() { return emailAddress; }
+
+        public String getEmailId() { return emailId; }
+
+        public boolean isSent() { return sent; }
+    }
+
+    /**
+     * Aggiunge un messaggio al log del server senza bloccare: il messaggio va nel buffer circolare con il suo
+     * istante e la vista lo mostra al prossimo aggiornamento, formattato con l'orario.
      * @param message messaggio da aggiungere al log
      */
     public void addToLog(String message) {
-        Platform.runLater(() -> {
-            String timestamp = java.time.LocalDateTime.now()
-                    .format(java.time.format.DateTimeFormatter.ofPattern("HH:mm:ss"));
-            serverLog.add("[" + timestamp + "] " + message);
-        });
+        serverLog.add(message);
     }
 
     /**
-     * Carica le email ricevute e inviate per ogni mailbox dagli archivi su disco.
+     * Carica da disco le email ricevute e inviate di una mailbox; usato dalla cache al primo accesso
+     * e dopo un'espulsione.
+     * @param email indirizzo email della mailbox
+     * @return mailbox caricata
      */
-    private void loadMailboxes() {
-        for (String email : mailboxesMap.keySet()) {
-            FileManager.MailboxData data = fileManager.loadMailbox(email);
-            mailboxesMap.get(email).setEmails(data.getReceivedEmails());
-            mailboxesMap.get(email).setSentEmails(data.getSentEmails());
+    private Mailbox loadMailbox(String email) {
+        FileManager.MailboxData data = fileManager.loadMailbox(email);
+        if (data.getRecoveryWarning() != null) {
+            addToLog("ATTENZIONE: mailbox " + email + " caricata con errori: " + data.getRecoveryWarning());
         }
+        Mailbox mailbox = new Mailbox(email);
+        mailbox.setEmails(data.getReceivedEmails());
+        mailbox.setSentEmails(data.getSentEmails());
+        return mailbox;
     }
 
     /**
-     * Salva la mailbox specificata su disco.
-     * @param email indirizzo email della mailbox da salvare
+     * Accoda le modifiche della mailbox specificata per la scrittura su disco (vedi {@link #persist(Map)}).
+     * @param email indirizzo email della mailbox modificata
+     * @param changes modifiche applicate alla mailbox
+     * @return sequenza da passare a {@link PersistenceQueue#awaitDurable(long)}
      */
-    private void saveMailbox(String email) {
-        Mailbox mailbox = mailboxesMap.get(email);
-        if (mailbox != null) {
-            fileManager.saveMailbox(
-                    email,
-                    mailbox.getEmails(),
-                    mailbox.getSentEmails()
-            );
+    private long persist(String email, List<FileManager.Change> changes) {
+        return persist(Collections.singletonMap(email, changes));
+    }
+
+    /**
+     * Accoda insieme le modifiche di più mailbox per la scrittura su disco: un record di journal per modifica,
+     * oppure il salvataggio completo se il journal è disattivato. Da chiamare con le caselle bloccate.
+     * @param changes modifiche applicate a ciascuna mailbox
+     * @return sequenza da passare a {@link PersistenceQueue#awaitDurable(long)}, 0 se non c'è nulla da scrivere
+     */
+    private long persist(Map<String, List<FileManager.Change>> changes) {
+        List<PersistenceQueue.Update> updates = new ArrayList<>(changes.size());
+        for (Map.Entry<String, List<FileManager.Change>> entry : changes.entrySet()) {
+            Mailbox mailbox = mailboxes.get(entry.getKey());
+            if (mailbox != null) {
+                updates.add(new PersistenceQueue.Update(entry.getKey(), entry.getValue(),
+                        mailbox.getEmails(), mailbox.getSentEmails()));
+            }
+        }
+        if (updates.isEmpty()) {
+            return 0;
+        }
+        long ticket = persistence.submit(updates);
+        // Finché la modifica non è scritta le caselle non possono essere espulse
+        for (PersistenceQueue.Update update : updates) {
+            mailboxes.markDirty(update.getEmailAddress(), ticket);
+        }
+        return ticket;
+    }
+
+    /**
+     * Interrompe il backup in corso, se presente; l'archivio incompleto viene eliminato.
+     */
+    private void stopBackup(long timeoutMillis) {
+        Thread backup;
+        synchronized (this) {
+            backup = backupThread;
+        }
+        if (backup != null) {
+            backup.interrupt();
+            try {
+                backup.join(timeoutMillis);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Scrive su disco le modifiche ancora in coda e arresta la coda di persistenza, poi esegue il checkpoint
+     * dei journal. Le modifiche successive vengono scritte in modo sincrono.
+     * @param timeoutMillis tempo massimo di attesa in millisecondi
+     * @return true se tutte le modifiche sono state scritte entro il timeout
+     */
+    public boolean close(long timeoutMillis) {
+        MailboxPreloader activePreloader;
+        synchronized (this) {
+            activePreloader = preloader;
+        }
+        if (activePreloader != null) {
+            activePreloader.close(timeoutMillis);
+        }
+        stopBackup(timeoutMillis);
+        boolean flushed = persistence.close(timeoutMillis);
+        addToLog((flushed ? "Modifiche salvate su disco" : "Salvataggio delle modifiche interrotto per timeout")
+                + " [" + persistence.getStats() + "]");
+        compactor.close(timeoutMillis);
+        addToLog("Compattazione [" + compactor.getStats() + "]");
+        addToLog("Cache delle mailbox [" + getCacheStats() + "]");
+        addToLog("Snapshot [" + fileManager.getSnapshotStats() + "]");
+        String bodyStats = fileManager.getBodyStats();
+        if (bodyStats != null) {
+            addToLog("Archivio dei corpi [" + bodyStats + "]");
         }
+        return flushed;
     }
 
     // Getter per il log del server
-    public ObservableList<String> getServerLog() { return serverLog; }
-    // Getter per la mappa delle mailbox
-    public Map<String, Mailbox> getMailboxesMap() { return mailboxesMap; }
+    public ServerLog getServerLog() { return serverLog; }
+    // Getter per la cache delle mailbox (per modificare una casella va prima bloccata con MailboxCache.lock)
+    public MailboxCache getMailboxCache() { return mailboxes; }
+    // Riepilogo delle metriche della cache delle mailbox
+    public String getCacheStats() { return mailboxes.getStats(); }
+    // Getter per la coda di persistenza, utile per consultarne le metriche
+    public PersistenceQueue getPersistence() { return persistence; }
 }
\ No newline at end of file
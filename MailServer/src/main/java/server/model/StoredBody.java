@@ -0,0 +1,20 @@
+package server.model;
+
+/**
+ * Corpo di un'email conservato fuori dallo heap (ad esempio in un file mappato in memoria)
+ * e letto solo quando serve, ad esempio per inviarlo a un client.
+ */
+public interface StoredBody {
+
+    /**
+     * Legge il corpo dell'email.
+     * @return testo del corpo, oppure null se non è più disponibile
+     */
+    String load();
+
+    /**
+     * Posizione del corpo nello store, usata nei riferimenti salvati su disco.
+     * @return posizione del corpo
+     */
+    long location();
+}
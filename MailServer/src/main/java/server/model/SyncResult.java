@@ -0,0 +1,44 @@
+package server.model;
+
+import java.util.List;
+
+/**
+ * Risultato di una sincronizzazione incrementale delle email ricevute ({@link Mailbox#sync(String, int)}).
+ * Il cursore, opaco per il client, va passato alla sincronizzazione successiva.
+ * Con {@code reset} le modifiche non erano ricostruibili: le email sono le più recenti della cartella,
+ * da usare al posto di quelle già note, con il totale e il cursore di pagina per le più vecchie.
+ */
+public class SyncResult {
+    private final String cursor;            // Cursore da usare per la prossima sincronizzazione
+    private final boolean reset;            // true se il client deve ripartire da queste email
+    private final boolean more;             // true se ci sono altre modifiche da chiedere subito
+    private final List<Email> emails;       // Email aggiunte (o, con reset, le più recenti), in ordine cronologico
+    private final List<String> deletedIds;  // Id delle email eliminate (vuota con reset)
+    private final int total;                // Numero di email nella cartella
+    private final String nextCursor;        // Con reset: cursore di pagina delle email precedenti, null se finite
+
+    public SyncResult(String cursor, boolean reset, boolean more, List<Email> emails, List<String> deletedIds,
+                      int total, String nextCursor) {
+        this.cursor = cursor;
+        this.reset = reset;
+        this.more = more;
+        this.emails = emails;
+        this.deletedIds = deletedIds;
+        this.total = total;
+        this.nextCursor = nextCursor;
+    }
+
+    public String getCursor() { return cursor; }
+
+    public boolean isReset() { return reset; }
+
+    public boolean hasMore() { return more; }
+
+    public List<Email> getEmails() { return emails; }
+
+    public List<String> getDeletedIds() { return deletedIds; }
+
+    public int getTotal() { return total; }
+
+    public String getNextCursor() { return nextCursor; }
+}
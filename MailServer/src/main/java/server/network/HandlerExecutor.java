@@ -0,0 +1,255 @@
+package server.network;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Esegue i ClientHandler secondo una modalità configurabile, limitando il numero di handler
+ * attivi contemporaneamente e raccogliendo metriche su coda ed esecuzione.
+ * <p>
+ * Modalità disponibili:
+ * - VIRTUAL: un virtual thread per connessione (JDK 21+); su JDK precedenti si ricade su POOL;
+ * - POOL: pool di thread di piattaforma di dimensione fissa con coda limitata;
+ * - THREAD: un nuovo thread di piattaforma per connessione (comportamento originale).
+ * </p>
+ * In tutte le modalità al massimo {@code maxConcurrent} handler sono in esecuzione e al massimo {@code queueCapacity}
+ * restano in coda in attesa di un permesso; oltre, {@link #submit(Runnable)} rifiuta l'handler.
+ */
+public class HandlerExecutor {
+
+    /**
+     * Modalità di esecuzione degli handler.
+     */
+    public enum Mode {
+        VIRTUAL, POOL, THREAD;
+
+        /**
+         * Converte il nome configurato nella modalità corrispondente (default VIRTUAL).
+         * @param name nome della modalità, case-insensitive
+         * @return modalità corrispondente
+         */
+        public static Mode fromName(String name) {
+            for (Mode mode : values()) {
+                if (mode.name().equalsIgnoreCase(name)) {
+                    return mode;
+                }
+            }
+            return VIRTUAL;
+        }
+    }
+
+    private final Mode mode;                        // Modalità effettivamente in uso
+    private final ExecutorService executor;         // Executor sottostante (null in modalità THREAD)
+    private final Semaphore permits;                // Limita gli handler in esecuzione contemporanea
+    private final int queueCapacity;                // Handler in attesa di un permesso accettati al massimo
+    private final AtomicInteger threadCounter = new AtomicInteger();
+
+    // Metriche
+    private final AtomicInteger active = new AtomicInteger();       // Handler in esecuzione
+    private final AtomicInteger queued = new AtomicInteger();       // Handler in attesa di un permesso
+    private final AtomicInteger peakActive = new AtomicInteger();   // Massimo numero di handler attivi osservato
+    private final AtomicLong submitted = new AtomicLong();          // Handler accettati
+    private final AtomicLong completed = new AtomicLong();          // Handler terminati
+    private final AtomicLong rejected = new AtomicLong();           // Handler rifiutati (coda piena o executor chiuso)
+    private final AtomicLong totalQueueNanos = new AtomicLong();    // Tempo complessivo trascorso in coda
+
+    private volatile boolean shutdown = false;
+
+    /**
+     * Crea l'executor nella modalità richiesta.
+     * @param requestedMode modalità desiderata
+     * @param maxConcurrent numero massimo di handler attivi contemporaneamente
+     * @param queueCapacity numero massimo di handler in attesa (coda del pool in modalità POOL,
+     *                      thread in attesa di un permesso nelle modalità VIRTUAL e THREAD)
+     */
+    public HandlerExecutor(Mode requestedMode, int maxConcurrent, int queueCapacity) {
+        int limit = Math.max(1, maxConcurrent);
+        this.permits = new Semaphore(limit);
+        this.queueCapacity = Math.max(1, queueCapacity);
+
+        ExecutorService virtualExecutor = requestedMode == Mode.VIRTUAL ? createVirtualThreadExecutor() : null;
+        if (virtualExecutor != null) {
+            this.mode = Mode.VIRTUAL;
+            this.executor = virtualExecutor;
+        } else if (requestedMode == Mode.THREAD) {
+            this.mode = Mode.THREAD;
+            this.executor = null;
+        } else {
+            // POOL richiesto esplicitamente, oppure VIRTUAL non disponibile su questa JVM
+            this.mode = Mode.POOL;
+            this.executor = new ThreadPoolExecutor(limit, limit, 60L, TimeUnit.SECONDS,
+                    new LinkedBlockingQueue<>(Math.max(1, queueCapacity)), namedThreadFactory());
+        }
+    }
+
+    /**
+     * Sottomette un handler all'esecuzione.
+     * @param handler handler da eseguire
+     * @return true se l'handler è stato accettato, false se è stato rifiutato
+     */
+    public boolean submit(Runnable handler) {
+        if (shutdown) {
+            rejected.incrementAndGet();
+            return false;
+        }
+        long enqueuedAt = System.nanoTime();
+        Runnable task = () -> runWithPermit(handler, enqueuedAt);
+        int waiting = queued.incrementAndGet();
+        if (mode != Mode.POOL && waiting > queueCapacity + permits.availablePermits()) {
+            // Senza la coda limitata del pool ogni handler in attesa sarebbe un thread fermo sul semaforo
+            queued.decrementAndGet();
+            rejected.incrementAndGet();
+            return false;
+        }
+        try {
+            if (executor != null) {
+                executor.execute(task);
+            } else {
+                Thread thread = namedThreadFactory().newThread(task);
+                thread.start();
+            }
+            submitted.incrementAndGet();
+            return true;
+        } catch (RejectedExecutionException e) {
+            queued.decrementAndGet();
+            rejected.incrementAndGet();
+            return false;
+        }
+    }
+
+    /**
+     * Esegue l'handler dopo aver ottenuto un permesso, aggiornando le metriche.
+     */
+    private void runWithPermit(Runnable handler, long enqueuedAt) {
+        try {
+            permits.acquire();
+        } catch (InterruptedException e) {
+            queued.decrementAndGet();
+            rejected.incrementAndGet();
+            Thread.currentThread().interrupt();
+            return;
+        }
+        queued.decrementAndGet();
+        totalQueueNanos.addAndGet(System.nanoTime() - enqueuedAt);
+        int nowActive = active.incrementAndGet();
+        peakActive.accumulateAndGet(nowActive, Math::max);
+        try {
+            handler.run();
+        } finally {
+            active.decrementAndGet();
+            completed.incrementAndGet();
+            permits.release();
+        }
+    }
+
+    /**
+     * Smette di accettare nuovi handler e attende che quelli in corso terminino.
+     * Se il timeout scade, interrompe gli handler ancora attivi.
+     * @param timeoutMillis tempo massimo di attesa in millisecondi
+     * @return true se tutti gli handler sono terminati entro il timeout
+     */
+    public boolean shutdownAndDrain(long timeoutMillis) {
+        shutdown = true;
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        if (executor != null) {
+            executor.shutdown();
+            try {
+                if (executor.awaitTermination(timeoutMillis, TimeUnit.MILLISECONDS)) {
+                    return true;
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            executor.shutdownNow();
+            return false;
+        }
+
+        // Modalità THREAD: attende che il contatore degli handler si azzeri
+        while (active.get() + queued.get() > 0 && System.nanoTime() < deadline) {
+            try {
+                Thread.sleep(20);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+        }
+        return active.get() + queued.get() == 0;
+    }
+
+    /**
+     * Restituisce un riepilogo testuale delle metriche, adatto al log del server.
+     * @return stringa con modalità e contatori
+     */
+    public String getStats() {
+        long done = completed.get();
+        long avgQueueMicros = done == 0 ? 0 : TimeUnit.NANOSECONDS.toMicros(totalQueueNanos.get() / done);
+        return "modalità=" + mode
+                + ", attivi=" + active.get()
+                + ", in coda=" + queued.get()
+                + ", picco attivi=" + peakActive.get()
+                + ", accettati=" + submitted.get()
+                + ", completati=" + done
+                + ", rifiutati=" + rejected.get()
+                + ", attesa media in coda=" + avgQueueMicros + "µs";
+    }
+
+    // Getter per le metriche principali
+    public Mode getMode() { return mode; }
+    public int getActiveCount() { return active.get(); }
+    public int getQueuedCount() { return queued.get(); }
+    public int getPeakActiveCount() { return peakActive.get(); }
+    public long getSubmittedCount() { return submitted.get(); }
+    public long getCompletedCount() { return completed.get(); }
+    public long getRejectedCount() { return rejected.get(); }
+
+    /**
+     * Crea un executor senza limite di thread per attività lunghe e poco costose (es. scrittori delle sottoscrizioni push):
+     * virtual thread se disponibili, altrimenti un pool di thread daemon creati su richiesta.
+     * @param threadNamePrefix prefisso del nome dei thread di piattaforma
+     * @return executor senza limite
+     */
+    public static ExecutorService newUnboundedExecutor(String threadNamePrefix) {
+        ExecutorService virtualExecutor = createVirtualThreadExecutor();
+        if (virtualExecutor != null) {
+            return virtualExecutor;
+        }
+        AtomicInteger counter = new AtomicInteger();
+        return java.util.concurrent.Executors.newCachedThreadPool(runnable -> {
+            Thread thread = new Thread(runnable, threadNamePrefix + "-" + counter.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Crea un executor a virtual thread tramite reflection, così il progetto resta compilabile con target 11.
+     * @return executor a virtual thread, oppure null se la JVM non li supporta
+     */
+    private static ExecutorService createVirtualThreadExecutor() {
+        try {
+            Method factory = java.util.concurrent.Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (ExecutorService) factory.invoke(null);
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Factory di thread daemon con nome progressivo, usata in modalità POOL e THREAD.
+     */
+    private ThreadFactory namedThreadFactory() {
+        return runnable -> {
+            Thread thread = new Thread(runnable, "client-handler-" + threadCounter.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+}
@@ -0,0 +1,631 @@
+package server.network;
+
+import server.ServerConfig;
+import server.controller.PushSink;
+import server.controller.RequestProcessor;
+import server.model.ServerModel;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.Writer;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Motore di trasporto non bloccante basato su {@link Selector} e {@link SocketChannel}.
+ * <p>
+ * Parla lo stesso protocollo testuale a righe (COMANDO:dati) del {@link SocketServer}:
+ * - un thread accetta le connessioni e le distribuisce a rotazione su pochi thread di I/O;
+ * - ogni thread di I/O possiede un Selector e un buffer diretto di lettura riusato per tutte le sue connessioni;
+ * - le righe complete vengono elaborate dal {@link RequestProcessor} sui worker dell'{@link HandlerExecutor},
+ *   così le operazioni su disco del modello non bloccano il Selector;
+ * - le risposte di una stessa connessione sono inviate nell'ordine delle richieste;
+ * - le risposte vengono codificate a blocchi mentre il worker le produce; se il client non legge,
+ *   il worker attende che i byte accodati scendano sotto {@code MAX_QUEUED_BYTES}, così la memoria per
+ *   connessione resta limitata anche per risposte molto grandi (es. GET_EMAILS di una casella piena).
+ * </p>
+ * La connessione resta aperta finché il client non la chiude o invia QUIT: i client che inviano una sola
+ * richiesta e poi chiudono continuano a funzionare senza modifiche, quelli keep-alive possono usare il pipelining.
+ */
+public class NioSocketServer implements ServerEngine {
+    private static final int READ_BUFFER_SIZE = 64 * 1024;          // Dimensione del buffer diretto di lettura per thread di I/O
+    private static final int MAX_LINE_LENGTH = 32 * 1024 * 1024;    // Lunghezza massima di una richiesta, oltre la quale la connessione viene chiusa
+    private static final int RESPONSE_CHUNK_CHARS = 16 * 1024;     // Caratteri di risposta codificati e accodati per volta
+    private static final int MAX_QUEUED_BYTES = 256 * 1024;         // Byte accodati per connessione oltre i quali il worker attende
+    private static final long IDLE_CHECK_INTERVAL_MILLIS = 1000;    // Intervallo massimo tra due controlli delle connessioni inattive
+
+    private final int port;                         // Porta su cui il server ascolta le connessioni
+    private final ServerModel model;                // Modello del server per la gestione della logica applicativa
+    private final RequestProcessor processor;       // Interprete del protocollo condiviso da tutte le connessioni
+    private final HandlerExecutor workers;          // Esegue l'elaborazione delle richieste fuori dai thread di I/O
+    private final long drainTimeoutMillis;          // Tempo concesso alle richieste in corso durante lo stop
+    private final long idleTimeoutMillis = ServerConfig.keepAliveIdleTimeoutMillis(); // Inattività dopo cui una connessione viene chiusa (0 = mai)
+    private final IoLoop[] ioLoops;                 // Thread di I/O, ognuno con il proprio Selector
+    private final Charset charset = Charset.defaultCharset(); // Stessa codifica usata dal ClientHandler
+
+    private ServerSocketChannel serverChannel;      // Canale in ascolto
+    private Selector acceptSelector;                // Selector usato solo per accettare le connessioni
+    private volatile boolean running = true;        // Flag per controllare lo stato di esecuzione del server
+
+    /**
+     * Costruttore del motore NIO.
+     * @param port porta su cui il server ascolta
+     * @param model modello del server
+     * @param processor interprete del protocollo condiviso dalle connessioni
+     * @param ioThreads numero di thread di I/O
+     * @param workers executor su cui elaborare le richieste decodificate
+     * @param drainTimeoutMillis tempo massimo di attesa delle richieste in corso in stop()
+     */
+    public NioSocketServer(int port, ServerModel model, RequestProcessor processor, int ioThreads,
+                           HandlerExecutor workers, long drainTimeoutMillis) {
+        this.port = port;
+        this.model = model;
+        this.processor = processor;
+        this.workers = workers;
+        this.drainTimeoutMillis = drainTimeoutMillis;
+        this.ioLoops = new IoLoop[Math.max(1, ioThreads)];
+    }
+
+    /**
+     * Metodo principale del thread: apre il canale in ascolto, avvia i thread di I/O e accetta le connessioni.
+     */
+    @Override
+    public void run() {
+        try {
+            acceptSelector = Selector.open();
+            serverChannel = ServerSocketChannel.open();
+            serverChannel.bind(new InetSocketAddress(port));
+            serverChannel.configureBlocking(false);
+            serverChannel.register(acceptSelector, SelectionKey.OP_ACCEPT);
+
+            for (int i = 0; i < ioLoops.length; i++) {
+                ioLoops[i] = new IoLoop();
+                Thread thread = new Thread(ioLoops[i], "nio-io-" + (i + 1));
+                thread.setDaemon(true);
+                thread.start();
+            }
+            model.addToLog("Server NIO in ascolto sulla porta " + port + " (" + ioLoops.length + " thread di I/O)");
+
+            int next = 0;
+            while (running) {
+                acceptSelector.select();
+                Iterator<SelectionKey> keys = acceptSelector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    if (!key.isValid() || !key.isAcceptable()) {
+                        continue;
+                    }
+                    SocketChannel channel = serverChannel.accept();
+                    if (channel == null) {
+                        continue;
+                    }
+                    channel.configureBlocking(false);
+                    channel.socket().setTcpNoDelay(true);
+                    model.addToLog("Nuova connessione da: " + channel.socket().getInetAddress());
+                    ioLoops[next].register(channel);
+                    next = (next + 1) % ioLoops.length;
+                }
+            }
+        } catch (IOException e) {
+            if (running) {
+                model.addToLog("Errore nel server NIO: " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Ferma il motore: chiude il canale in ascolto, attende le richieste in corso e chiude le connessioni.
+     */
+    @Override
+    public void stop() {
+        running = false;
+        try {
+            if (serverChannel != null) {
+                serverChannel.close();
+            }
+            if (acceptSelector != null) {
+                acceptSelector.wakeup();
+            }
+        } catch (IOException e) {
+            System.err.println("Errore nella chiusura del server NIO: " + e.getMessage());
+        }
+
+        boolean drained = workers.shutdownAndDrain(drainTimeoutMillis);
+        for (IoLoop loop : ioLoops) {
+            if (loop != null) {
+                loop.shutdown();
+            }
+        }
+        model.addToLog((drained ? "Richieste NIO terminate" : "Drain delle richieste NIO interrotto per timeout")
+                + " [" + workers.getStats() + "]");
+    }
+
+    /**
+     * Elabora in ordine le richieste accodate su una connessione, una alla volta.
+     * Eseguito su un worker: le risposte vengono consegnate al thread di I/O della connessione.
+     * @param connection connessione di cui elaborare le richieste
+     */
+    private void processPending(Connection connection) {
+        while (true) {
+            String request;
+            synchronized (connection) {
+                request = connection.pendingRequests.poll();
+                if (request == null) {
+                    connection.processing = false;
+                    break;
+                }
+            }
+            if (RequestProcessor.QUIT.equals(request)) {
+                // Il client chiude la sessione keep-alive: le richieste successive vengono ignorate
+                synchronized (connection) {
+                    connection.pendingRequests.clear();
+                }
+                connection.loop.execute(connection::finishInput);
+                continue;
+            }
+            if (RequestProcessor.isSubscribe(request)) {
+                // La connessione diventa un canale push: le richieste successive vengono ignorate
+                synchronized (connection) {
+                    connection.pendingRequests.clear();
+                    connection.subscribed = true;
+                }
+                if (!processor.subscribe(request, connection.pushSink())) {
+                    connection.loop.execute(connection::finishInput);
+                }
+                continue;
+            }
+            PrintWriter out = new PrintWriter(new ResponseWriter(connection));
+            boolean completed = processor.handleRequest(request, out);
+            out.flush();
+            if (!completed) {
+                // Risposta interrotta: la riga è incompleta, la connessione si chiude dopo le risposte già accodate
+                synchronized (connection) {
+                    connection.pendingRequests.clear();
+                }
+                connection.loop.execute(connection::finishInput);
+            }
+        }
+        connection.loop.execute(connection::closeIfFinished);
+    }
+
+    /**
+     * Thread di I/O: gestisce letture e scritture di un sottoinsieme delle connessioni.
+     */
+    private final class IoLoop implements Runnable {
+        private final Selector selector;
+        private final ByteBuffer readBuffer = ByteBuffer.allocateDirect(READ_BUFFER_SIZE); // Riusato da tutte le connessioni del loop
+        private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();              // Operazioni da eseguire sul thread di I/O
+        private volatile boolean active = true;
+        private long lastIdleCheck = System.nanoTime();                                   // Ultimo controllo delle connessioni inattive
+
+        IoLoop() throws IOException {
+            this.selector = Selector.open();
+        }
+
+        /**
+         * Registra un nuovo canale su questo loop (thread-safe).
+         */
+        void register(SocketChannel channel) {
+            execute(() -> {
+                try {
+                    Connection connection = new Connection(channel, this);
+                    connection.key = channel.register(selector, SelectionKey.OP_READ, connection);
+                } catch (IOException e) {
+                    closeQuietly(channel);
+                }
+            });
+        }
+
+        /**
+         * Accoda un'operazione da eseguire sul thread di I/O e risveglia il Selector.
+         */
+        void execute(Runnable task) {
+            tasks.add(task);
+            selector.wakeup();
+        }
+
+        void shutdown() {
+            active = false;
+            selector.wakeup();
+        }
+
+        @Override
+        public void run() {
+            try {
+                long selectTimeout = idleTimeoutMillis > 0 ? Math.min(idleTimeoutMillis, IDLE_CHECK_INTERVAL_MILLIS) : 0;
+                while (active) {
+                    selector.select(selectTimeout);
+                    Runnable task;
+                    while ((task = tasks.poll()) != null) {
+                        task.run();
+                    }
+                    Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                    while (keys.hasNext()) {
+                        SelectionKey key = keys.next();
+                        keys.remove();
+                        Connection connection = (Connection) key.attachment();
+                        if (key.isValid() && key.isReadable()) {
+                            connection.read(readBuffer);
+                        }
+                        if (key.isValid() && key.isWritable()) {
+                            connection.flushWrites();
+                        }
+                    }
+                    if (selectTimeout > 0) {
+                        closeIdleConnections(selectTimeout);
+                    }
+                }
+            } catch (IOException e) {
+                model.addToLog("Errore nel thread di I/O NIO: " + e.getMessage());
+            } finally {
+                for (SelectionKey key : selector.keys()) {
+                    closeQuietly(key.channel());
+                }
+                try {
+                    selector.close();
+                } catch (IOException ignored) {
+                    // Chiusura best-effort
+                }
+            }
+        }
+
+        /**
+         * Chiude le connessioni senza traffico da più di {@link ServerConfig#keepAliveIdleTimeoutMillis()},
+         * come fa il timeout del socket sul motore bloccante. Il controllo viene eseguito al più una volta per intervallo.
+         * @param interval intervallo minimo tra due controlli in millisecondi
+         */
+        private void closeIdleConnections(long interval) {
+            long now = System.nanoTime();
+            if (now - lastIdleCheck < interval * 1_000_000L) {
+                return;
+            }
+            lastIdleCheck = now;
+            long idleSince = now - idleTimeoutMillis * 1_000_000L;
+            for (SelectionKey key : selector.keys()) {
+                Connection connection = (Connection) key.attachment();
+                if (key.isValid() && connection.isIdleSince(idleSince)) {
+                    model.addToLog("Connessione keep-alive inattiva chiusa: " + connection.channel.socket().getInetAddress());
+                    connection.close();
+                }
+            }
+        }
+    }
+
+    /**
+     * Stato di una singola connessione: buffer della riga in lettura, richieste in attesa e risposte da scrivere.
+     * I campi di I/O sono usati solo dal thread del loop; le richieste in attesa sono protette dal monitor.
+     */
+    private final class Connection {
+        private final SocketChannel channel;
+        private final IoLoop loop;
+        private SelectionKey key;
+
+        private byte[] line = new byte[256];                                    // Byte della riga corrente non ancora terminata
+        private int lineLength = 0;
+        private final ArrayDeque<ByteBuffer> pendingWrites = new ArrayDeque<>(); // Risposte non ancora scritte sul canale
+        private boolean inputClosed = false;                                    // Il client ha chiuso il proprio lato
+        private long lastActivity = System.nanoTime();                          // Ultima lettura o scrittura sul canale
+
+        private final Queue<String> pendingRequests = new ArrayDeque<>();       // Richieste decodificate da elaborare (monitor)
+        private boolean processing = false;                                     // Un worker sta elaborando le richieste (monitor)
+        private boolean subscribed = false;                                     // Connessione in modalità SUBSCRIBE (monitor)
+
+        private final AtomicInteger queuedBytes = new AtomicInteger();          // Byte di risposta accodati e non ancora scritti
+        private final Object writeCredit = new Object();                        // Monitor su cui i worker attendono spazio in coda
+
+        Connection(SocketChannel channel, IoLoop loop) {
+            this.channel = channel;
+            this.loop = loop;
+        }
+
+        /**
+         * Legge i byte disponibili, separa le righe complete e le affida ai worker.
+         */
+        void read(ByteBuffer buffer) {
+            buffer.clear();
+            int count;
+            try {
+                count = channel.read(buffer);
+            } catch (IOException e) {
+                close();
+                return;
+            }
+            if (count < 0) {
+                finishInput();
+                return;
+            }
+            lastActivity = System.nanoTime();
+            buffer.flip();
+
+            boolean hasNewRequests = false;
+            while (buffer.hasRemaining()) {
+                byte b = buffer.get();
+                if (b == '\n') {
+                    int length = lineLength > 0 && line[lineLength - 1] == '\r' ? lineLength - 1 : lineLength;
+                    String request = new String(line, 0, length, charset);
+                    lineLength = 0;
+                    synchronized (this) {
+                        pendingRequests.add(request);
+                    }
+                    hasNewRequests = true;
+                } else {
+                    if (lineLength == MAX_LINE_LENGTH) {
+                        model.addToLog("Richiesta troppo lunga da: " + channel.socket().getInetAddress());
+                        close();
+                        return;
+                    }
+                    if (lineLength == line.length) {
+                        line = Arrays.copyOf(line, Math.min(MAX_LINE_LENGTH, line.length * 2));
+                    }
+                    line[lineLength++] = b;
+                }
+            }
+            if (hasNewRequests) {
+                synchronized (this) {
+                    if (subscribed) {
+                        // In modalità SUBSCRIBE il client non invia altre richieste: vengono scartate
+                        pendingRequests.clear();
+                        return;
+                    }
+                }
+                scheduleProcessing();
+            }
+        }
+
+        /**
+         * Smette di leggere dal client e chiude la connessione appena le risposte pendenti sono state scritte.
+         */
+        void finishInput() {
+            inputClosed = true;
+            if (key.isValid()) {
+                key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+            }
+            closeIfFinished();
+        }
+
+        /**
+         * Destinazione push che accoda le righe sul thread di I/O della connessione.
+         */
+        PushSink pushSink() {
+            return new PushSink() {
+                @Override
+                public void send(String line) throws IOException {
+                    if (!channel.isOpen()) {
+                        throw new IOException("Client non raggiungibile");
+                    }
+                    post(ByteBuffer.wrap((line + System.lineSeparator()).getBytes(charset)));
+                }
+
+                @Override
+                public void close() {
+                    loop.execute(Connection.this::close);
+                }
+            };
+        }
+
+        /**
+         * Avvia un worker sulla connessione se nessuno la sta già elaborando.
+         */
+        private void scheduleProcessing() {
+            synchronized (this) {
+                if (processing) {
+                    return;
+                }
+                processing = true;
+            }
+            if (!workers.submit(() -> processPending(this))) {
+                rejectPending();
+            }
+        }
+
+        /**
+         * Risponde con un errore a tutte le richieste in attesa quando i worker sono saturi.
+         */
+        private void rejectPending() {
+            synchronized (this) {
+                while (pendingRequests.poll() != null) {
+                    ByteBuffer error = ByteBuffer.wrap("ERROR:Server sovraccarico, riprovare più tardi\n".getBytes(charset));
+                    queuedBytes.addAndGet(error.remaining());
+                    queueWrite(error);
+                }
+                processing = false;
+            }
+            closeIfFinished();
+        }
+
+        /**
+         * Accoda dei byte di risposta da un thread qualsiasi; la scrittura avviene sul thread di I/O.
+         */
+        void post(ByteBuffer bytes) {
+            queuedBytes.addAndGet(bytes.remaining());
+            loop.execute(() -> queueWrite(bytes));
+        }
+
+        /**
+         * Attende che i byte accodati scendano sotto la soglia (eseguito dai worker).
+         * @throws IOException se la connessione viene chiusa durante l'attesa
+         */
+        void awaitWriteCredit() throws IOException {
+            synchronized (writeCredit) {
+                while (queuedBytes.get() > MAX_QUEUED_BYTES && channel.isOpen()) {
+                    try {
+                        writeCredit.wait(100);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new IOException("Scrittura della risposta interrotta");
+                    }
+                }
+            }
+            if (!channel.isOpen()) {
+                throw new IOException("Client non raggiungibile");
+            }
+        }
+
+        /**
+         * Accoda una risposta e prova a scriverla subito (thread di I/O).
+         */
+        void queueWrite(ByteBuffer response) {
+            if (!channel.isOpen()) {
+                return;
+            }
+            pendingWrites.add(response);
+            flushWrites();
+        }
+
+        /**
+         * Scrive quanto possibile delle risposte accodate; se il socket è pieno attende OP_WRITE.
+         */
+        void flushWrites() {
+            try {
+                while (!pendingWrites.isEmpty()) {
+                    ByteBuffer head = pendingWrites.peek();
+                    if (channel.write(head) > 0) {
+                        lastActivity = System.nanoTime();
+                    }
+                    if (head.hasRemaining()) {
+                        key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+                        return;
+                    }
+                    pendingWrites.poll();
+                    releaseWriteCredit(head.capacity());
+                }
+                if (key.isValid()) {
+                    key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+                }
+                closeIfFinished();
+            } catch (IOException e) {
+                close();
+            }
+        }
+
+        /**
+         * Sottrae i byte scritti dal conteggio e sveglia i worker in attesa se la coda è scesa sotto la soglia.
+         */
+        private void releaseWriteCredit(int bytes) {
+            int previous = queuedBytes.getAndAdd(-bytes);
+            if (previous > MAX_QUEUED_BYTES && previous - bytes <= MAX_QUEUED_BYTES) {
+                synchronized (writeCredit) {
+                    writeCredit.notifyAll();
+                }
+            }
+        }
+
+        /**
+         * Chiude la connessione se il client ha terminato di inviare e tutte le risposte sono state scritte.
+         */
+        void closeIfFinished() {
+            if (!inputClosed || !pendingWrites.isEmpty()) {
+                return;
+            }
+            synchronized (this) {
+                if (processing || !pendingRequests.isEmpty()) {
+                    return;
+                }
+            }
+            close();
+        }
+
+        /**
+         * Indica se la connessione è ferma dall'istante dato: nessun traffico, nessuna risposta in coda
+         * e nessuna richiesta in elaborazione. Le connessioni SUBSCRIBE sono escluse, il loro stato è verificato dall'heartbeat.
+         * @param idleSince istante (System.nanoTime) prima del quale deve risalire l'ultima attività
+         */
+        boolean isIdleSince(long idleSince) {
+            if (lastActivity - idleSince > 0 || !pendingWrites.isEmpty()) {
+                return false;
+            }
+            synchronized (this) {
+                return !processing && !subscribed && pendingRequests.isEmpty();
+            }
+        }
+
+        void close() {
+            if (channel.isOpen()) {
+                model.addToLog("Connessione chiusa con: " + channel.socket().getInetAddress());
+            }
+            if (key != null) {
+                key.cancel();
+            }
+            closeQuietly(channel);
+        }
+    }
+
+    /**
+     * Writer che codifica la risposta a blocchi di {@link #RESPONSE_CHUNK_CHARS} caratteri e li accoda
+     * sulla connessione man mano che vengono prodotti, applicando la contropressione di {@link Connection#awaitWriteCredit()}.
+     * Usato da un solo worker alla volta.
+     */
+    private final class ResponseWriter extends Writer {
+        private final Connection connection;
+        private final StringBuilder chunk = new StringBuilder(RESPONSE_CHUNK_CHARS);
+
+        ResponseWriter(Connection connection) {
+            this.connection = connection;
+        }
+
+        @Override
+        public void write(char[] buffer, int offset, int length) throws IOException {
+            chunk.append(buffer, offset, length);
+            if (chunk.length() >= RESPONSE_CHUNK_CHARS) {
+                emit(false);
+            }
+        }
+
+        @Override
+        public void write(String text, int offset, int length) throws IOException {
+            chunk.append(text, offset, offset + length);
+            if (chunk.length() >= RESPONSE_CHUNK_CHARS) {
+                emit(false);
+            }
+        }
+
+        @Override
+        public void flush() throws IOException {
+            emit(true);
+        }
+
+        @Override
+        public void close() throws IOException {
+            flush();
+        }
+
+        /**
+         * Codifica e accoda i caratteri raccolti; un surrogato alto finale resta nel blocco successivo.
+         */
+        private void emit(boolean all) throws IOException {
+            int length = chunk.length();
+            if (!all && length > 0 && Character.isHighSurrogate(chunk.charAt(length - 1))) {
+                length--;
+            }
+            if (length == 0) {
+                return;
+            }
+            connection.awaitWriteCredit();
+            connection.post(ByteBuffer.wrap(chunk.substring(0, length).getBytes(charset)));
+            chunk.delete(0, length);
+        }
+    }
+
+    /**
+     * Chiude un canale ignorando eventuali errori.
+     */
+    private static void closeQuietly(java.nio.channels.Channel channel) {
+        try {
+            channel.close();
+        } catch (IOException ignored) {
+            // Chiusura best-effort
+        }
+    }
+}
@@ -0,0 +1,13 @@
+package server.network;
+
+/**
+ * Motore di trasporto del server: accetta le connessioni dei client e inoltra le richieste al modello.
+ * Le implementazioni vengono eseguite in un thread dedicato tramite {@link #run()} e arrestate con {@link #stop()}.
+ */
+public interface ServerEngine extends Runnable {
+
+    /**
+     * Arresta il motore: smette di accettare connessioni e rilascia le risorse di rete.
+     */
+    void stop();
+}
@@ -1,29 +1,61 @@
 package server.network;
 
+import server.ServerConfig;
 import server.controller.ClientHandler;
+import server.controller.RequestProcessor;
+import server.controller.SubscriptionManager;
 import server.model.ServerModel;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.nio.charset.StandardCharsets;
 
 /**
  * Classe che rappresenta un server socket che accetta connessioni dai client.
- * Ogni client viene gestito in un thread separato tramite ClientHandler.
+ * Ogni client viene gestito da un ClientHandler eseguito dall'HandlerExecutor configurato
+ * (virtual thread, pool limitato o thread dedicato).
  */
-public class SocketServer implements Runnable {
+public class SocketServer implements ServerEngine {
     private final int port;                     // Porta su cui il server ascolta le connessioni
     private final ServerModel model;            // Modello del server per la gestione della logica applicativa
+    private final RequestProcessor processor;   // Interprete del protocollo condiviso dai ClientHandler
     private ServerSocket serverSocket;          // Socket del server per accettare le connessioni
+    private final HandlerExecutor handlerExecutor; // Esegue i ClientHandler con limite di concorrenza
+    private final long drainTimeoutMillis;      // Tempo concesso agli handler attivi durante lo stop
     private volatile boolean running = true;    // Flag per controllare lo stato di esecuzione del server
 
     /**
-     * Costruttore della classe SocketServer.
+     * Costruttore della classe SocketServer con la modalità di esecuzione letta da ServerConfig.
      * @param port la porta su cui il server ascolta
      * @param model il modello del server
      */
     public SocketServer(int port, ServerModel model) {
+        this(port, model,
+                new RequestProcessor(model, new SubscriptionManager(model,
+                        HandlerExecutor.newUnboundedExecutor("push-writer"), ServerConfig.pushHeartbeatMillis())),
+                new HandlerExecutor(
+                HandlerExecutor.Mode.fromName(ServerConfig.executionMode()),
+                ServerConfig.maxConcurrentHandlers(),
+                ServerConfig.handlerQueueCapacity()),
+                ServerConfig.drainTimeoutMillis());
+    }
+
+    /**
+     * Costruttore della classe SocketServer con un executor esplicito.
+     * @param port la porta su cui il server ascolta
+     * @param model il modello del server
+     * @param processor interprete del protocollo condiviso dai ClientHandler
+     * @param handlerExecutor executor che esegue i ClientHandler
+     * @param drainTimeoutMillis tempo massimo di attesa degli handler attivi in stop()
+     */
+    public SocketServer(int port, ServerModel model, RequestProcessor processor,
+                        HandlerExecutor handlerExecutor, long drainTimeoutMillis) {
         this.port = port;
         this.model = model;
+        this.processor = processor;
+        this.handlerExecutor = handlerExecutor;
+        this.drainTimeoutMillis = drainTimeoutMillis;
     }
 
     /**
@@ -34,7 +66,7 @@ public class SocketServer implements Runnable {
         try {
             // Crea il ServerSocket sulla porta specificata
             serverSocket = new ServerSocket(port);
-            model.addToLog("Server in ascolto sulla porta " + port);
+            model.addToLog("Server in ascolto sulla porta " + port + " (handler: " + handlerExecutor.getMode() + ")");
 
             // Ciclo principale: accetta nuove connessioni finché il server è in esecuzione
             while (running) {
@@ -43,10 +75,11 @@ public class SocketServer implements Runnable {
                     Socket clientSocket = serverSocket.accept();
                     model.addToLog("Nuova connessione da: " + clientSocket.getInetAddress());
 
-                    // Gestisce ogni client in un thread separato
-                    ClientHandler handler = new ClientHandler(clientSocket, model);
-                    Thread handlerThread = new Thread(handler);
-                    handlerThread.start();
+                    // Affida il client all'executor; se la coda è piena la connessione viene rifiutata
+                    ClientHandler handler = new ClientHandler(clientSocket, model, processor);
+                    if (!handlerExecutor.submit(handler)) {
+                        rejectConnection(clientSocket);
+                    }
 
                 } catch (IOException e) {
                     // Gestisce eventuali errori durante l'accettazione delle connessioni
@@ -62,8 +95,25 @@ public class SocketServer implements Runnable {
     }
 
     /**
-     * Ferma il server chiudendo il ServerSocket e impostando il flag running a false.
+     * Risponde con un errore e chiude una connessione che l'executor non ha potuto accettare.
+     * @param clientSocket socket del client rifiutato
      */
+    private void rejectConnection(Socket clientSocket) {
+        model.addToLog("Connessione rifiutata (server sovraccarico): " + clientSocket.getInetAddress());
+        try (Socket socket = clientSocket) {
+            OutputStream out = socket.getOutputStream();
+            out.write("ERROR:Server sovraccarico, riprovare più tardi\n".getBytes(StandardCharsets.UTF_8));
+            out.flush();
+        } catch (IOException e) {
+            // Il client potrebbe aver già chiuso la connessione: nulla da fare
+        }
+    }
+
+    /**
+     * Ferma il server chiudendo il ServerSocket e impostando il flag running a false,
+     * poi attende che gli handler ancora attivi terminino entro il timeout di drain.
+     */
+    @Override
     public void stop() {
         running = false;
         try {
@@ -73,5 +123,17 @@ public class SocketServer implements Runnable {
         } catch (IOException e) {
             System.err.println("Errore nella chiusura del server: " + e.getMessage());
         }
+
+        boolean drained = handlerExecutor.shutdownAndDrain(drainTimeoutMillis);
+        model.addToLog((drained ? "Handler terminati" : "Drain degli handler interrotto per timeout")
+                + " [" + handlerExecutor.getStats() + "]");
+    }
+
+    /**
+     * Restituisce l'executor degli handler, utile per consultarne le metriche.
+     * @return executor degli handler
+     */
+    public HandlerExecutor getHandlerExecutor() {
+        return handlerExecutor;
     }
 }
\ No newline at end of file
@@ -0,0 +1,144 @@
+package server.storage;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.time.Instant;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.Deflater;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Scrive una {@link StoreSnapshot} in un unico archivio ZIP, con un limite di velocità di lettura
+ * così il backup non sottrae banda di disco alle richieste.
+ * <p>
+ * L'archivio contiene {@code MANIFEST.txt} (istante della cattura e lunghezza di ogni file) e i file con
+ * i percorsi relativi alla directory dei dati: per ripristinare basta estrarlo in una directory
+ * {@code maildata} vuota, a server fermo. L'archivio viene scritto su un file temporaneo e rinominato
+ * solo se completo.
+ * </p>
+ */
+public final class BackupWriter {
+    private static final int CHUNK = 64 * 1024;     // Byte letti per volta (unità del limite di velocità)
+
+    private BackupWriter() {
+    }
+
+    /**
+     * Scrive l'archivio. Il thread chiamante può interrompere la scrittura con {@link Thread#interrupt()}.
+     * @param snapshot vista da archiviare
+     * @param archive file dell'archivio
+     * @param maxBytesPerSecond byte letti al secondo al massimo (0 o negativo: nessun limite)
+     * @return byte dei file archiviati
+     * @throws IOException in caso di errori di lettura o scrittura, o se il thread viene interrotto
+     */
+    public static long write(StoreSnapshot snapshot, File archive, long maxBytesPerSecond) throws IOException {
+        File parent = archive.getAbsoluteFile().getParentFile();
+        if (parent != null) {
+            Files.createDirectories(parent.toPath());
+        }
+        File temp = new File(archive.getPath() + ".tmp");
+        long start = System.nanoTime();
+        long copied = 0;
+        boolean complete = false;
+        try (FileOutputStream fos = new FileOutputStream(temp);
+             ZipOutputStream zip = new ZipOutputStream(new BufferedOutputStream(fos, CHUNK))) {
+            zip.setLevel(Deflater.BEST_SPEED);
+            zip.putNextEntry(new ZipEntry("MANIFEST.txt"));
+            zip.write(manifest(snapshot).getBytes(StandardCharsets.UTF_8));
+            zip.closeEntry();
+
+            byte[] buffer = new byte[CHUNK];
+            for (StoreSnapshot.Item item : snapshot.items()) {
+                zip.putNextEntry(new ZipEntry(item.name));
+                try (InputStream in = new FileInputStream(item.file)) {
+                    long remaining = item.length;
+                    long position = 0;
+                    while (remaining > 0) {
+                        int read = in.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+                        if (read < 0) {
+                            throw new IOException("file più corto del previsto: " + item.name);
+                        }
+                        if (item.segmentEnd >= 0) {
+                            patchSegmentEnd(buffer, position, read, item.segmentEnd);
+                        }
+                        zip.write(buffer, 0, read);
+                        remaining -= read;
+                        position += read;
+                        copied += read;
+                        throttle(copied, start, maxBytesPerSecond);
+                    }
+                }
+                zip.closeEntry();
+            }
+            zip.finish();
+            zip.flush();
+            fos.getFD().sync();
+            complete = true;
+        } finally {
+            if (!complete && !temp.delete()) {
+                System.err.println("Impossibile eliminare l'archivio incompleto " + temp.getName());
+            }
+        }
+        try {
+            Files.move(temp.toPath(), archive.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(temp.toPath(), archive.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+        return copied;
+    }
+
+    private static String manifest(StoreSnapshot snapshot) {
+        StringBuilder manifest = new StringBuilder();
+        manifest.append("created=").append(Instant.ofEpochMilli(snapshot.getCreatedMillis())).append('\n');
+        manifest.append("files=").append(snapshot.fileCount()).append('\n');
+        for (StoreSnapshot.Item item : snapshot.items()) {
+            manifest.append(item.name).append(' ').append(item.length).append('\n');
+        }
+        return manifest.toString();
+    }
+
+    /**
+     * Sostituisce la fine dei dati nell'intestazione di un segmento (byte 4-7) con quella dell'istante della
+     * cattura: dopo la cattura il segmento corrente può aver ricevuto altri corpi.
+     */
+    private static void patchSegmentEnd(byte[] buffer, long position, int length, int segmentEnd) {
+        for (int i = 0; i < 4; i++) {
+            long offset = 4 + i - position;
+            if (offset >= 0 && offset < length) {
+                buffer[(int) offset] = (byte) (segmentEnd >>> (24 - 8 * i));
+            }
+        }
+    }
+
+    /**
+     * Attende quanto serve per non superare la velocità massima.
+     */
+    private static void throttle(long bytes, long startNanos, long maxBytesPerSecond) throws IOException {
+        if (Thread.currentThread().isInterrupted()) {
+            throw new InterruptedIOException("backup interrotto");
+        }
+        if (maxBytesPerSecond <= 0) {
+            return;
+        }
+        long expectedNanos = (long) (bytes * (double) TimeUnit.SECONDS.toNanos(1) / maxBytesPerSecond);
+        long aheadNanos = expectedNanos - (System.nanoTime() - startNanos);
+        if (aheadNanos > 0) {
+            try {
+                TimeUnit.NANOSECONDS.sleep(aheadNanos);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("backup interrotto");
+            }
+        }
+    }
+}
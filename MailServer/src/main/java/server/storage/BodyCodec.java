@@ -0,0 +1,67 @@
+package server.storage;
+
+import java.io.IOException;
+
+/**
+ * Algoritmo di compressione dei corpi salvati nei segmenti ({@link SegmentStore}).
+ * <p>
+ * Ogni voce compressa riporta l'identificativo dell'algoritmo, quindi i corpi scritti con un algoritmo restano
+ * leggibili anche se la configurazione cambia. Per aggiungere un algoritmo basta implementare l'interfaccia
+ * con un identificativo nuovo e registrarlo in {@link #forId(int)} e {@link #forName(String)}.
+ * </p>
+ * Le implementazioni devono essere thread-safe: la decompressione avviene in parallelo nei thread delle richieste.
+ */
+public interface BodyCodec {
+
+    /**
+     * Identificativo scritto nelle voci compresse (1-255).
+     * @return identificativo dell'algoritmo
+     */
+    int id();
+
+    /**
+     * Nome usato nella configurazione e nel log.
+     * @return nome dell'algoritmo
+     */
+    String name();
+
+    /**
+     * Comprime un corpo.
+     * @param data corpo in UTF-8
+     * @return dati compressi
+     */
+    byte[] compress(byte[] data);
+
+    /**
+     * Decomprime un corpo.
+     * @param data buffer con i dati compressi
+     * @param offset inizio dei dati compressi
+     * @param length lunghezza dei dati compressi
+     * @param originalLength lunghezza del corpo originale in byte
+     * @return corpo in UTF-8
+     * @throws IOException se i dati compressi non sono validi
+     */
+    byte[] decompress(byte[] data, int offset, int length, int originalLength) throws IOException;
+
+    /**
+     * Algoritmo con l'identificativo indicato, per leggere le voci compresse.
+     * @param id identificativo letto dalla voce
+     * @return algoritmo, oppure null se sconosciuto
+     */
+    static BodyCodec forId(int id) {
+        return id == DeflateCodec.ID ? DeflateCodec.DEFAULT : null;
+    }
+
+    /**
+     * Algoritmo configurato per le nuove scritture.
+     * @param name nome dell'algoritmo ("deflate" oppure "none")
+     * @param level livello di compressione (significato dipendente dall'algoritmo)
+     * @return algoritmo, oppure null per non comprimere
+     */
+    static BodyCodec forName(String name, int level) {
+        if ("deflate".equalsIgnoreCase(name)) {
+            return new DeflateCodec(level);
+        }
+        return null;
+    }
+}
@@ -0,0 +1,355 @@
+package server.storage;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import server.model.BinaryReader;
+import server.model.BinaryWriter;
+import server.model.StoredBody;
+
+/**
+ * Archivio a istanza singola dei corpi delle email, sopra ai segmenti di {@link SegmentStore}.
+ * <p>
+ * Ogni corpo è indirizzato dal proprio contenuto (SHA-256): salvare un corpo già presente restituisce
+ * la copia esistente, così un messaggio inviato a N destinatari occupa spazio una sola volta.
+ * Ogni riferimento da una casella (ricevuta o inviata) incrementa il contatore del corpo; quando l'ultimo
+ * riferimento viene rilasciato il corpo è libero e un segmento senza più corpi in uso viene eliminato.
+ * </p>
+ * Il catalogo (impronta, posizione e riferimenti di ogni corpo) è salvato in {@code catalog.log}, un file
+ * append-only con un record per operazione, riscritto in forma compatta all'apertura. Gli incrementi vanno
+ * su disco prima dei record delle caselle che li usano e i rilasci dopo, quindi un'interruzione può solo
+ * lasciare un corpo non più usato, mai eliminarne uno ancora referenziato.
+ */
+public class BodyStore {
+    private static final int CATALOG_MAGIC = 0x4D534331;    // "MSC1"
+    private static final int OP_ENTRY = 1;      // payload: posizione, impronta, riferimenti
+    private static final int OP_RETAIN = 2;     // payload: posizione
+    private static final int OP_RELEASE = 3;    // payload: posizione
+    private static final int OP_PIN = 4;        // payload: numero del segmento
+    private static final int DIGEST_LENGTH = 32;
+
+    private final SegmentStore segments;                    // Segmenti con i corpi
+    private final File catalogFile;                         // Log del catalogo
+    private final MessageDigest digest;                     // Calcolo delle impronte (usato con il lock)
+    private final Map<String, Entry> byDigest = new HashMap<>(); // Corpi in uso per impronta
+    private final Map<Long, Entry> byLocation = new HashMap<>();  // Corpi in uso per posizione
+    private final Map<Integer, Integer> liveBySegment = new HashMap<>(); // Corpi in uso in ogni segmento
+    private final Set<Integer> pinnedSegments = new HashSet<>(); // Segmenti senza contatori (mai eliminati)
+    private final BinaryWriter pendingLog = new BinaryWriter(1024); // Record del catalogo non ancora scritti
+
+    // Metriche
+    private long sharedHits = 0;                // Corpi non scritti perché già presenti
+    private long freedBodies = 0;               // Corpi liberati al rilascio dell'ultimo riferimento
+    private long deletedSegments = 0;           // Segmenti eliminati
+
+    /**
+     * Voce del catalogo: un corpo e il numero di caselle che lo usano.
+     */
+    private static final class Entry {
+        private final long location;    // Posizione nei segmenti
+        private final String digest;    // Impronta del contenuto
+        private int references;         // Riferimenti dalle caselle
+
+        private Entry(long location, String digest, int references) {
+            this.location = location;
+            this.digest = digest;
+            this.references = references;
+        }
+    }
+
+    /**
+     * Apre l'archivio: mappa i segmenti e ricostruisce il catalogo dal suo log.
+     * I segmenti scritti prima del catalogo non hanno contatori e vengono conservati.
+     * @param directory directory dei segmenti e del catalogo
+     * @param segmentSize dimensione dei nuovi segmenti in byte
+     * @param codec compressione dei nuovi corpi, oppure null per salvarli così come sono
+     * @param minCompressBytes dimensione minima in byte di un corpo da comprimere
+     * @throws IOException se i segmenti o il catalogo non possono essere aperti
+     */
+    public BodyStore(File directory, int segmentSize, BodyCodec codec, int minCompressBytes) throws IOException {
+        this.segments = new SegmentStore(directory, segmentSize, codec, minCompressBytes);
+        this.catalogFile = new File(directory, "catalog.log");
+        try {
+            this.digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException("SHA-256 non disponibile", e);
+        }
+        if (catalogFile.exists()) {
+            replayCatalog(Files.readAllBytes(catalogFile.toPath()));
+        } else {
+            pinnedSegments.addAll(segments.segmentIds());
+        }
+        rewriteCatalog();
+    }
+
+    /**
+     * Salva un corpo, oppure riusa la copia già presente con lo stesso contenuto, e ne registra un riferimento.
+     * @param body testo del corpo
+     * @return riferimento al corpo salvato
+     * @throws IOException se il corpo non può essere scritto nei segmenti
+     */
+    public synchronized StoredBody store(String body) throws IOException {
+        byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+        String key = hex(digest.digest(bytes));
+        Entry entry = byDigest.get(key);
+        if (entry != null) {
+            sharedHits++;
+            retain(entry);
+            return segments.reference(entry.location);
+        }
+        StoredBody stored = segments.append(body);
+        entry = new Entry(stored.location(), key, 1);
+        byDigest.put(key, entry);
+        byLocation.put(entry.location, entry);
+        liveBySegment.merge(SegmentStore.segmentOf(entry.location), 1, Integer::sum);
+        pendingLog.writeByte(OP_ENTRY);
+        writeEntry(pendingLog, entry);
+        return stored;
+    }
+
+    /**
+     * Registra un ulteriore riferimento a un corpo già salvato (la stessa email in un'altra casella).
+     * @param body corpo salvato
+     */
+    public synchronized void retain(StoredBody body) {
+        Entry entry = byLocation.get(body.location());
+        if (entry != null) {
+            retain(entry);
+        }
+    }
+
+    private void retain(Entry entry) {
+        entry.references++;
+        pendingLog.writeByte(OP_RETAIN);
+        pendingLog.writeVarLong(entry.location);
+    }
+
+    /**
+     * Rilascia un riferimento a un corpo; all'ultimo rilascio il corpo viene liberato e, se il suo segmento
+     * non contiene più corpi in uso, il segmento viene eliminato.
+     * Va chiamato solo quando la rimozione dell'email è già stata scritta nei file della casella.
+     * @param body corpo salvato
+     */
+    public synchronized void release(StoredBody body) {
+        Entry entry = byLocation.get(body.location());
+        if (entry == null) {
+            return; // Corpo di un segmento precedente al catalogo
+        }
+        pendingLog.writeByte(OP_RELEASE);
+        pendingLog.writeVarLong(entry.location);
+        if (--entry.references > 0) {
+            return;
+        }
+        free(entry);
+        int segment = SegmentStore.segmentOf(entry.location);
+        if (liveBySegment.getOrDefault(segment, 0) == 0 && !pinnedSegments.contains(segment)
+                && segments.delete(segment)) {
+            liveBySegment.remove(segment);
+            deletedSegments++;
+        }
+    }
+
+    private void free(Entry entry) {
+        byDigest.remove(entry.digest);
+        byLocation.remove(entry.location);
+        liveBySegment.merge(SegmentStore.segmentOf(entry.location), -1, Integer::sum);
+        freedBodies++;
+    }
+
+    /**
+     * Restituisce il riferimento al corpo salvato in una posizione, senza registrare un nuovo riferimento.
+     * @param location posizione del corpo
+     * @return riferimento al corpo
+     */
+    public StoredBody reference(long location) {
+        return segments.reference(location);
+    }
+
+    /**
+     * Aggiunge al log del catalogo le operazioni registrate finora.
+     * @param sync true per sincronizzare su disco segmenti e catalogo (prima dei record delle caselle che li usano)
+     */
+    public synchronized void flush(boolean sync) {
+        if (sync) {
+            segments.force();
+        }
+        if (pendingLog.size() == 0) {
+            return;
+        }
+        try (FileOutputStream fos = new FileOutputStream(catalogFile, true)) {
+            pendingLog.writeTo(fos);
+            if (sync) {
+                fos.getFD().sync();
+            }
+            pendingLog.reset();
+        } catch (IOException e) {
+            // I record restano in memoria e vengono ritentati alla prossima scrittura
+            System.err.println("Errore nell'aggiornare il catalogo dei corpi: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Riscrive il catalogo in forma compatta se il suo log ha superato la dimensione indicata.
+     * @param thresholdBytes dimensione del log oltre la quale il catalogo viene riscritto
+     * @return true se il catalogo è stato riscritto
+     */
+    public synchronized boolean compactCatalog(long thresholdBytes) {
+        if (catalogFile.length() + pendingLog.size() < thresholdBytes) {
+            return false;
+        }
+        try {
+            // Il catalogo riscritto contiene anche le operazioni non ancora aggiunte al log
+            segments.force();
+            rewriteCatalog();
+            pendingLog.reset();
+            return true;
+        } catch (IOException e) {
+            System.err.println("Errore nel compattare il catalogo dei corpi: " + e.getMessage());
+            return false;
+        }
+    }
+
+    /**
+     * Aggiunge segmenti e catalogo a una vista coerente dello store. Le operazioni del catalogo ancora in
+     * memoria vengono prima scritte, così la vista contiene i contatori aggiornati.
+     * @param snapshot vista in costruzione
+     * @param prefix percorso dei file dei corpi nella vista
+     * @throws IOException se un file non può essere catturato
+     */
+    synchronized void capture(StoreSnapshot snapshot, String prefix) throws IOException {
+        flush(false);
+        segments.capture(snapshot, prefix);
+        snapshot.add(prefix + catalogFile.getName(), catalogFile, catalogFile.length(), -1);
+    }
+
+    /**
+     * Restituisce un riepilogo testuale dell'archivio, adatto al log del server.
+     * @return stringa con corpi in uso, riferimenti e spazio recuperato
+     */
+    public synchronized String getStats() {
+        long references = 0;
+        for (Entry entry : byLocation.values()) {
+            references += entry.references;
+        }
+        return "corpi=" + byLocation.size()
+                + ", riferimenti=" + references
+                + ", corpi condivisi=" + sharedHits
+                + ", corpi liberati=" + freedBodies
+                + ", segmenti eliminati=" + deletedSegments
+                + ", " + segments.getStats();
+    }
+
+    /**
+     * Ricostruisce il catalogo dal log; un record incompleto in coda termina la lettura.
+     */
+    private void replayCatalog(byte[] content) {
+        BinaryReader in = new BinaryReader(content);
+        try {
+            if (in.readInt() != CATALOG_MAGIC) {
+                throw new IOException("intestazione non valida");
+            }
+            while (in.hasRemaining()) {
+                int op = in.readByte();
+                switch (op) {
+                    case OP_ENTRY: {
+                        long location = in.readVarLong();
+                        String key = hex(in.readBytes(DIGEST_LENGTH));
+                        Entry entry = new Entry(location, key, in.readVarInt());
+                        byDigest.put(key, entry);
+                        byLocation.put(location, entry);
+                        break;
+                    }
+                    case OP_RETAIN:
+                    case OP_RELEASE: {
+                        Entry entry = byLocation.get(in.readVarLong());
+                        if (entry != null) {
+                            entry.references += op == OP_RETAIN ? 1 : -1;
+                            if (entry.references <= 0) {
+                                byDigest.remove(entry.digest);
+                                byLocation.remove(entry.location);
+                            }
+                        }
+                        break;
+                    }
+                    case OP_PIN:
+                        pinnedSegments.add(in.readVarInt());
+                        break;
+                    default:
+                        throw new IOException("record sconosciuto " + op);
+                }
+            }
+        } catch (IOException e) {
+            System.err.println("Catalogo dei corpi troncato: " + e.getMessage());
+        }
+
+        for (Entry entry : byLocation.values()) {
+            liveBySegment.merge(SegmentStore.segmentOf(entry.location), 1, Integer::sum);
+        }
+        // Segmenti rimasti senza corpi in uso (ad esempio per un'interruzione prima dell'eliminazione)
+        for (int segment : segments.segmentIds()) {
+            if (!liveBySegment.containsKey(segment) && !pinnedSegments.contains(segment) && segments.delete(segment)) {
+                deletedSegments++;
+            }
+        }
+    }
+
+    /**
+     * Riscrive il catalogo in forma compatta (una voce per corpo in uso) su un file temporaneo poi rinominato.
+     */
+    private void rewriteCatalog() throws IOException {
+        BinaryWriter out = new BinaryWriter(4096);
+        out.writeInt(CATALOG_MAGIC);
+        for (int segment : pinnedSegments) {
+            out.writeByte(OP_PIN);
+            out.writeVarInt(segment);
+        }
+        for (Entry entry : byLocation.values()) {
+            out.writeByte(OP_ENTRY);
+            writeEntry(out, entry);
+        }
+        File temp = new File(catalogFile.getPath() + ".tmp");
+        try (FileOutputStream fos = new FileOutputStream(temp)) {
+            out.writeTo(fos);
+            fos.getFD().sync();
+        }
+        try {
+            Files.move(temp.toPath(), catalogFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(temp.toPath(), catalogFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    private static void writeEntry(BinaryWriter out, Entry entry) {
+        out.writeVarLong(entry.location);
+        byte[] raw = unhex(entry.digest);
+        out.writeBytes(raw, 0, raw.length);
+        out.writeVarInt(entry.references);
+    }
+
+    private static String hex(byte[] bytes) {
+        StringBuilder sb = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            sb.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+        }
+        return sb.toString();
+    }
+
+    private static byte[] unhex(String hex) {
+        byte[] bytes = new byte[hex.length() / 2];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = (byte) Integer.parseInt(hex.substring(2 * i, 2 * i + 2), 16);
+        }
+        return bytes;
+    }
+}
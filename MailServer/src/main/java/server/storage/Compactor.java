@@ -0,0 +1,110 @@
+package server.storage;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Compattazione in background dei file delle mailbox.
+ * <p>
+ * A intervalli regolari esegue il checkpoint ({@link FileManager#compact(String)}) delle caselle il cui journal
+ * ha superato una soglia: lo stato su disco diventa un nuovo snapshot, le email eliminate spariscono dai file
+ * e il journal riparte vuoto. Così il lavoro di recupero al riavvio dipende dalle modifiche successive
+ * all'ultimo checkpoint e non dalla storia completa delle caselle. Con lo stesso criterio riscrive il catalogo
+ * dei corpi ({@link BodyStore}).
+ * </p>
+ * Alla chiusura esegue un ultimo passaggio su tutti i journal non vuoti, così un riavvio dopo uno stop
+ * regolare non deve rileggere alcun journal.
+ */
+public class Compactor {
+    private final FileManager fileManager;                  // File delle mailbox
+    private final long journalThresholdBytes;               // Dimensione del journal oltre la quale si esegue il checkpoint
+    private final ScheduledExecutorService scheduler;       // Thread "mailbox-compactor"
+
+    // Metriche
+    private final AtomicLong runs = new AtomicLong();               // Passaggi eseguiti
+    private final AtomicLong checkpoints = new AtomicLong();        // Checkpoint scritti
+    private final AtomicLong compactedBytes = new AtomicLong();     // Byte di journal assorbiti negli snapshot
+    private final AtomicLong catalogRewrites = new AtomicLong();    // Riscritture del catalogo dei corpi
+    private volatile long lastRunMillis = 0;                        // Durata dell'ultimo passaggio
+
+    /**
+     * Crea il compattatore e ne pianifica l'esecuzione periodica.
+     * @param fileManager gestore dei file delle mailbox
+     * @param intervalMillis intervallo tra due passaggi in millisecondi
+     * @param journalThresholdBytes dimensione del journal oltre la quale si esegue il checkpoint
+     */
+    public Compactor(FileManager fileManager, long intervalMillis, long journalThresholdBytes) {
+        this.fileManager = fileManager;
+        this.journalThresholdBytes = Math.max(1, journalThresholdBytes);
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "mailbox-compactor");
+            thread.setDaemon(true);
+            thread.setPriority(Thread.MIN_PRIORITY);
+            return thread;
+        });
+        long interval = Math.max(1, intervalMillis);
+        this.scheduler.scheduleWithFixedDelay(() -> run(this.journalThresholdBytes), interval, interval, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Esegue un passaggio: checkpoint delle caselle con il journal oltre la soglia.
+     * @param thresholdBytes soglia del journal per questo passaggio
+     */
+    private void run(long thresholdBytes) {
+        long start = System.nanoTime();
+        try {
+            List<String> addresses = new ArrayList<>(fileManager.getMailboxAddresses());
+            for (String address : addresses) {
+                long length = fileManager.journalLength(address);
+                if (length >= thresholdBytes && length > 0 && fileManager.compact(address)) {
+                    checkpoints.incrementAndGet();
+                    compactedBytes.addAndGet(length);
+                }
+            }
+            if (fileManager.compactBodyCatalog(thresholdBytes)) {
+                catalogRewrites.incrementAndGet();
+            }
+        } catch (RuntimeException e) {
+            // Il passaggio successivo riprova; il thread pianificato non deve terminare
+            System.err.println("Errore nella compattazione delle mailbox: " + e.getMessage());
+        }
+        runs.incrementAndGet();
+        lastRunMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+    }
+
+    /**
+     * Arresta la compattazione periodica ed esegue il checkpoint di tutti i journal non vuoti.
+     * Va chiamato dopo aver svuotato la coda di persistenza.
+     * @param timeoutMillis tempo massimo di attesa del passaggio in corso
+     */
+    public void close(long timeoutMillis) {
+        scheduler.shutdown();
+        try {
+            scheduler.awaitTermination(timeoutMillis, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        run(1);
+    }
+
+    /**
+     * Restituisce un riepilogo testuale delle metriche, adatto al log del server.
+     * @return stringa con passaggi, checkpoint e byte compattati
+     */
+    public String getStats() {
+        return "passaggi=" + runs.get()
+                + ", checkpoint=" + checkpoints.get()
+                + ", journal compattati=" + compactedBytes.get() / 1024 + "KB"
+                + ", catalogo riscritto=" + catalogRewrites.get()
+                + ", durata ultimo passaggio=" + lastRunMillis + "ms";
+    }
+
+    // Getter per le metriche principali
+    public long getCheckpointCount() { return checkpoints.get(); }
+    public long getCompactedBytes() { return compactedBytes.get(); }
+    public long getLastRunMillis() { return lastRunMillis; }
+}
@@ -0,0 +1,79 @@
+package server.storage;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Compressione DEFLATE dei corpi ({@link Deflater}/{@link Inflater} del JDK), senza intestazione zlib:
+ * lunghezza originale e algoritmo sono già nella voce del segmento.
+ * Deflater e Inflater sono riusati per thread, perché crearli alloca memoria nativa.
+ */
+public class DeflateCodec implements BodyCodec {
+    static final int ID = 1;
+    static final DeflateCodec DEFAULT = new DeflateCodec(Deflater.DEFAULT_COMPRESSION);
+
+    private final int level;                            // Livello di compressione (0-9, -1 predefinito)
+    private final ThreadLocal<Deflater> deflaters;
+    private final ThreadLocal<Inflater> inflaters = ThreadLocal.withInitial(() -> new Inflater(true));
+
+    /**
+     * Crea l'algoritmo con il livello indicato.
+     * @param level livello di compressione da 1 (veloce) a 9 (compatto); -1 per il predefinito
+     */
+    public DeflateCodec(int level) {
+        this.level = level < -1 || level > 9 ? Deflater.DEFAULT_COMPRESSION : level;
+        this.deflaters = ThreadLocal.withInitial(() -> new Deflater(this.level, true));
+    }
+
+    @Override
+    public int id() {
+        return ID;
+    }
+
+    @Override
+    public String name() {
+        return "deflate";
+    }
+
+    @Override
+    public byte[] compress(byte[] data) {
+        Deflater deflater = deflaters.get();
+        deflater.reset();
+        deflater.setInput(data);
+        deflater.finish();
+        ByteArrayOutputStream out = new ByteArrayOutputStream(Math.max(64, data.length / 2));
+        byte[] chunk = new byte[8192];
+        while (!deflater.finished()) {
+            int written = deflater.deflate(chunk);
+            out.write(chunk, 0, written);
+        }
+        return out.toByteArray();
+    }
+
+    @Override
+    public byte[] decompress(byte[] data, int offset, int length, int originalLength) throws IOException {
+        Inflater inflater = inflaters.get();
+        inflater.reset();
+        inflater.setInput(data, offset, length);
+        byte[] result = new byte[originalLength];
+        try {
+            int read = 0;
+            while (read < originalLength) {
+                int n = inflater.inflate(result, read, originalLength - read);
+                if (n == 0 && (inflater.finished() || inflater.needsInput() || inflater.needsDictionary())) {
+                    break;
+                }
+                read += n;
+            }
+            if (read != originalLength) {
+                throw new IOException("corpo compresso troncato");
+            }
+        } catch (DataFormatException e) {
+            throw new IOException("corpo compresso non valido: " + e.getMessage(), e);
+        }
+        return result;
+    }
+}
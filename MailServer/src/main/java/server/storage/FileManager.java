@@ -1,36 +1,119 @@
 package server.storage;
 
+import java.io.ByteArrayInputStream;
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
+import java.io.RandomAccessFile;
 import java.io.Serializable;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Objects;
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.zip.CRC32;
 
+import server.ServerConfig;
+import server.model.BinaryReader;
+import server.model.BinaryWriter;
 import server.model.Email;
+import server.model.StoredBody;
 
 /**
  * Gestisce la persistenza delle mailbox degli utenti su file.
+ * <p>
+ * Ogni mailbox ha uno snapshot completo ({@code .dat}) e, in modalità journal, un file append-only
+ * ({@code .journal}) con le modifiche successive: una consegna o un'eliminazione aggiunge un record
+ * piccolo invece di riscrivere l'intera casella, quindi il costo di scrittura dipende dal messaggio e non
+ * dalla dimensione della mailbox. Al caricamento lo stato viene ricostruito applicando il journal allo
+ * snapshot, che viene poi riscritto (checkpoint) per ripartire da un journal vuoto.
+ * </p>
+ * Snapshot e journal riportano una generazione: il journal viene applicato solo se ha la stessa generazione
+ * dello snapshot, così un journal già incluso in uno snapshot (ad esempio per un'interruzione durante il
+ * checkpoint) viene ignorato invece di essere applicato due volte.
+ * <p>
+ * Snapshot e record del journal hanno un checksum CRC32. Un checkpoint conserva lo snapshot precedente
+ * ({@code .dat.prev}), usato se quello corrente risulta danneggiato; un file danneggiato viene rinominato
+ * ({@code .corrupt}) invece di essere sovrascritto. Il {@link Compactor} esegue periodicamente il checkpoint
+ * delle caselle con il journal più lungo, così al riavvio va riletta solo la coda scritta dall'ultimo checkpoint.
+ * </p>
+ * <p>
+ * In modalità journal i corpi delle email vengono spostati nei segmenti mappati di {@link SegmentStore}:
+ * snapshot e journal contengono solo la loro posizione e le email in memoria li leggono a richiesta.
+ * I corpi sono a istanza singola ({@link BodyStore}): un messaggio con N destinatari è salvato una volta
+ * e ogni casella ne conserva un riferimento; al caricamento le copie della stessa email in caselle diverse
+ * vengono sostituite da un'unica istanza.
+ * </p>
  */
 public class FileManager {
     // Directory dove vengono salvati i dati delle mailbox
     private static final String DATA_DIR = "maildata";
+    // Intestazione dei file di journal ("MBJ1": record senza checksum), seguita dalla generazione
+    private static final int JOURNAL_MAGIC = 0x4D424A31;
+    // Intestazione dei journal con checksum ("MBJ2"): record [lunghezza int32][crc32 int32][record]
+    private static final int JOURNAL_MAGIC_CRC = 0x4D424A32;
+    // Intestazione degli snapshot con checksum ("MBS1"), seguita da crc32 e lunghezza dei dati serializzati
+    private static final int SNAPSHOT_MAGIC = 0x4D425331;
+    // Prefisso delle directory temporanee delle viste catturate per il backup
+    private static final String CAPTURE_DIR_PREFIX = "capture-";
+    // Intestazione degli snapshot nel formato binario di MailboxCodec ("MBS2"), seguita da crc32 e lunghezza
+    private static final int SNAPSHOT_MAGIC_BINARY = 0x4D425332;
     // Mappa per gestire i lock sui file delle mailbox, uno per ogni utente
     private final ConcurrentHashMap<String, Lock> fileLocksMap;
+    // Generazione corrente dello snapshot di ogni mailbox caricata o salvata
+    private final ConcurrentHashMap<String, Long> generations;
+    // Mailbox il cui journal è ancora nel formato senza checksum (rimasto in uso per un checkpoint fallito)
+    private final Set<String> legacyJournals = ConcurrentHashMap.newKeySet();
+    // true se le modifiche vengono aggiunte al journal, false se ogni modifica riscrive lo snapshot
+    private final boolean journalEnabled;
+    // Corpi delle email (null se non è stato possibile aprirli: i corpi restano nei file delle mailbox)
+    private final BodyStore bodies;
+    // Email già caricate per id, per condividere un'unica istanza tra le caselle che la contengono
+    private final ConcurrentHashMap<String, LoadedEmail> loadedEmails = new ConcurrentHashMap<>();
+    // Riferimenti delle email caricate non più in uso, da togliere da loadedEmails
+    private final ReferenceQueue<Email> unusedEmails = new ReferenceQueue<>();
+
+    // Escluso durante la cattura di una vista coerente (captureSnapshot); condiviso da checkpoint e caricamenti,
+    // le sole operazioni fuori dalla coda di persistenza che sostituiscono o eliminano file
+    private final ReentrantReadWriteLock captureLock = new ReentrantReadWriteLock();
+
+    // Metriche degli snapshot
+    private final AtomicLong snapshotsWritten = new AtomicLong();   // Snapshot scritti
+    private final AtomicLong snapshotBytes = new AtomicLong();       // Byte di snapshot scritti
+    private final AtomicLong encodeNanos = new AtomicLong();        // Tempo complessivo di codifica
+    private final AtomicLong snapshotsRead = new AtomicLong();      // Snapshot binari letti
+    private final AtomicLong decodeNanos = new AtomicLong();        // Tempo complessivo di decodifica
+    private final AtomicLong legacyRead = new AtomicLong();         // Snapshot letti con la serializzazione Java
+    private final AtomicLong legacyDecodeNanos = new AtomicLong();  // Tempo complessivo di lettura dei precedenti
 
     /**
      * Classe interna che rappresenta i dati di una mailbox,
      * contenente sia le email ricevute che quelle inviate.
+     * Gli snapshot sono scritti con {@link MailboxCodec}; la serializzazione Java resta solo per leggere i file
+     * precedenti.
      */
     public static class MailboxData implements Serializable {
+        // Valore calcolato sulla versione precedente della classe, così i file .dat esistenti restano leggibili
+        private static final long serialVersionUID = 4953460628009618677L;
+
         private final List<Email> receivedEmails;
         private final List<Email> sentEmails;
+        long journalGeneration;             // Generazione del journal da applicare (0 nei file precedenti)
+        long[] receivedBodies;              // Posizione nei segmenti del corpo di ogni ricevuta (-1 se nel file)
+        long[] sentBodies;                  // Posizione nei segmenti del corpo di ogni inviata (-1 se nel file)
+        private transient boolean legacyFormat;     // true se letto da uno snapshot con serializzazione Java
+        private transient long journalLength = -1;  // Parte valida del journal applicato (-1 se non applicato)
+        private transient String recoveryWarning;   // Problema incontrato nel caricamento, se presente
 
         /**
          * Costruttore della MailboxData.
@@ -57,15 +140,156 @@ public class FileManager {
         public List<Email> getSentEmails() {
             return sentEmails;
         }
+
+        /**
+         * Restituisce l'eventuale problema incontrato nel caricamento (snapshot danneggiato o sostituito
+         * da quello precedente, journal danneggiato).
+         * @return descrizione del problema, oppure null se il caricamento è avvenuto senza errori
+         */
+        public String getRecoveryWarning() {
+            return recoveryWarning;
+        }
+
+        private void addWarning(String warning) {
+            recoveryWarning = recoveryWarning == null ? warning : recoveryWarning + "; " + warning;
+        }
+    }
+
+    /**
+     * Riferimento debole a un'email caricata: l'istanza resta condivisa finché almeno una casella la contiene.
+     */
+    private static final class LoadedEmail extends WeakReference<Email> {
+        private final String id;    // Chiave in loadedEmails
+
+        private LoadedEmail(Email email, ReferenceQueue<Email> queue) {
+            super(email, queue);
+            this.id = email.getId();
+        }
+    }
+
+    /**
+     * Modifica di una mailbox, registrata come record del journal.
+     */
+    public static final class Change {
+        private static final int ADD_RECEIVED = 1;      // payload: Email
+        private static final int ADD_SENT = 2;          // payload: Email
+        private static final int REMOVE_RECEIVED = 3;   // payload: id dell'email
+        private static final int REMOVE_SENT = 4;       // payload: id dell'email
+        private static final int ADD_RECEIVED_STORED = 5; // payload: Email senza corpo, varint posizione del corpo
+        private static final int ADD_SENT_STORED = 6;   // payload: Email senza corpo, varint posizione del corpo
+
+        private final int type;         // Tipo di record
+        private final Email email;      // Email aggiunta o rimossa
+        private final String emailId;   // Email rimossa (solo REMOVE_*)
+
+        private Change(int type, Email email, String emailId) {
+            this.type = type;
+            this.email = email;
+            this.emailId = emailId;
+        }
+
+        private boolean isAdd() {
+            return type == ADD_RECEIVED || type == ADD_SENT;
+        }
+
+        /**
+         * Aggiunta di un'email alla posta ricevuta o inviata.
+         */
+        public static Change added(Email email, boolean sent) {
+            return new Change(sent ? ADD_SENT : ADD_RECEIVED, email, null);
+        }
+
+        /**
+         * Rimozione di un'email dalla posta ricevuta o inviata; l'email serve a rilasciarne il corpo.
+         */
+        public static Change removed(Email email, boolean sent) {
+            return new Change(sent ? REMOVE_SENT : REMOVE_RECEIVED, email, email.getId());
+        }
+
+        private void writeTo(BinaryWriter out) {
+            StoredBody stored = isAdd() ? email.getStoredBody() : null;
+            if (stored != null) {
+                // Il corpo è già nei segmenti: il record contiene solo la sua posizione
+                out.writeByte(type == ADD_SENT ? ADD_SENT_STORED : ADD_RECEIVED_STORED);
+                out.writeEmail(email, null);
+                out.writeVarLong(stored.location());
+                return;
+            }
+            out.writeByte(type);
+            if (isAdd()) {
+                out.writeEmail(email);
+            } else {
+                out.writeString(emailId);
+            }
+        }
+
+        /**
+         * Applica un record del journal alle liste della mailbox.
+         */
+        private static void apply(BinaryReader in, MailboxData data, BodyStore bodies) throws IOException {
+            int type = in.readByte();
+            switch (type) {
+                case ADD_RECEIVED:
+                    data.receivedEmails.add(in.readEmail());
+                    break;
+                case ADD_SENT:
+                    data.sentEmails.add(in.readEmail());
+                    break;
+                case ADD_RECEIVED_STORED:
+                case ADD_SENT_STORED: {
+                    Email email = in.readEmail();
+                    long location = in.readVarLong();
+                    if (bodies != null) {
+                        email.setStoredBody(bodies.reference(location));
+                    }
+                    (type == ADD_SENT_STORED ? data.sentEmails : data.receivedEmails).add(email);
+                    break;
+                }
+                case REMOVE_RECEIVED:
+                case REMOVE_SENT: {
+                    String emailId = in.readString();
+                    List<Email> folder = type == REMOVE_SENT ? data.sentEmails : data.receivedEmails;
+                    // Stessa regola di EmailFolder.removeAll: ogni record rimuove una sola copia, la più vecchia
+                    for (int i = 0; i < folder.size(); i++) {
+                        if (emailId.equals(folder.get(i).getId())) {
+                            folder.remove(i);
+                            break;
+                        }
+                    }
+                    break;
+                }
+                default:
+                    throw new IOException("Tipo di record sconosciuto: " + type);
+            }
+        }
     }
 
     /**
      * Costruttore della classe FileManager.
      * Inizializza la mappa dei lock e crea la directory dati se non esiste.
+     * La modalità di salvataggio è letta da {@link ServerConfig#storageMode()}.
      */
     public FileManager() {
         this.fileLocksMap = new ConcurrentHashMap<>();
+        this.generations = new ConcurrentHashMap<>();
+        this.journalEnabled = !"snapshot".equalsIgnoreCase(ServerConfig.storageMode());
         createDataDirectory();
+        this.bodies = openSegments();
+    }
+
+    /**
+     * Apre l'archivio dei corpi (anche in modalità snapshot, per leggere i corpi già spostati).
+     */
+    private static BodyStore openSegments() {
+        try {
+            return new BodyStore(new File(DATA_DIR, "segments"),
+                    (int) Math.min(Integer.MAX_VALUE, ServerConfig.segmentSizeMegabytes() * 1024L * 1024L),
+                    BodyCodec.forName(ServerConfig.compressionCodec(), ServerConfig.compressionLevel()),
+                    ServerConfig.compressionMinBytes());
+        } catch (IOException e) {
+            System.err.println("Errore nell'aprire i segmenti dei corpi: " + e.getMessage());
+            return null;
+        }
     }
 
     /**
@@ -76,30 +300,89 @@ public class FileManager {
         if (!dir.exists()) {
             dir.mkdirs();
         }
+        // Viste rimaste da un backup interrotto
+        File[] captures = dir.listFiles((parent, name) -> name.startsWith(CAPTURE_DIR_PREFIX));
+        if (captures != null) {
+            for (File capture : captures) {
+                StoreSnapshot.delete(capture);
+            }
+        }
+    }
+
+    /**
+     * Indica se le modifiche vengono registrate nel journal.
+     * @return true in modalità journal, false in modalità snapshot
+     */
+    public boolean isJournalEnabled() {
+        return journalEnabled;
+    }
+
+    /**
+     * Restituisce le metriche dell'archivio dei corpi.
+     * @return riepilogo testuale, oppure null se l'archivio non è disponibile
+     */
+    public String getBodyStats() {
+        return bodies != null ? bodies.getStats() : null;
+    }
+
+    /**
+     * Restituisce le metriche degli snapshot: scritture nel formato binario e letture nei due formati.
+     * @return riepilogo testuale
+     */
+    public String getSnapshotStats() {
+        long written = snapshotsWritten.get();
+        long read = snapshotsRead.get();
+        long legacy = legacyRead.get();
+        return "scritti=" + written
+                + ", dimensione media=" + (written == 0 ? 0 : snapshotBytes.get() / written) + "B"
+                + ", codifica media=" + (written == 0 ? 0 : encodeNanos.get() / written / 1000) + "µs"
+                + ", letti=" + read
+                + ", decodifica media=" + (read == 0 ? 0 : decodeNanos.get() / read / 1000) + "µs"
+                + ", letti nel formato precedente=" + legacy
+                + ", lettura media formato precedente=" + (legacy == 0 ? 0 : legacyDecodeNanos.get() / legacy / 1000) + "µs";
+    }
+
+    /**
+     * Rende persistenti le modifiche di una mailbox: in modalità journal aggiunge un record per modifica,
+     * altrimenti riscrive lo snapshot completo a partire dalle liste correnti.
+     * @param emailAddress indirizzo email dell'utente
+     * @param changes modifiche applicate alla mailbox, nell'ordine
+     * @param receivedEmails lista corrente delle email ricevute (usata solo in modalità snapshot)
+     * @param sentEmails lista corrente delle email inviate (usata solo in modalità snapshot)
+     * @param sync true per sincronizzare il file su disco (fsync) prima di restituire
+     * @return true se la scrittura è riuscita
+     */
+    public boolean recordChanges(String emailAddress, List<Change> changes, List<Email> receivedEmails,
+                                 List<Email> sentEmails, boolean sync) {
+        if (journalEnabled) {
+            return appendToJournal(emailAddress, changes, sync);
+        }
+        boolean saved = saveMailbox(emailAddress, receivedEmails, sentEmails, sync);
+        if (saved) {
+            releaseBodies(changes);
+        }
+        return saved;
     }
 
     /**
      * Salva la mailbox di un utente su file in modo thread-safe.
+     * Lo snapshot sostituisce anche l'eventuale journal, che da quel momento non viene più applicato.
      * @param emailAddress indirizzo email dell'utente
      * @param receivedEmails lista delle email ricevute
      * @param sentEmails lista delle email inviate
      */
     public void saveMailbox(String emailAddress, List<Email> receivedEmails, List<Email> sentEmails) {
+        saveMailbox(emailAddress, receivedEmails, sentEmails, false);
+    }
+
+    private boolean saveMailbox(String emailAddress, List<Email> receivedEmails, List<Email> sentEmails, boolean sync) {
         // Ottiene o crea un lock per l'utente
-    Lock lock = fileLocksMap.computeIfAbsent(emailAddress, k -> new ReentrantLock());
-    // Acquisisce il lock
+        Lock lock = fileLocksMap.computeIfAbsent(emailAddress, k -> new ReentrantLock());
+        // Acquisisce il lock
         lock.lock();
         try {
-            // Costruisce il nome del file a partire dall'indirizzo email
-            String fileName = DATA_DIR + File.separator + emailAddress.replace("@", "_") + ".dat";
-
-            // Scrive l'oggetto MailboxData su file
-            try (ObjectOutputStream oos = new ObjectOutputStream(new FileOutputStream(fileName))) {
-                MailboxData data = new MailboxData(new ArrayList<>(receivedEmails), new ArrayList<>(sentEmails));
-                oos.writeObject(data);
-            } catch (IOException e) {
-                System.err.println("Errore nel salvare la mailbox per " + emailAddress + ": " + e.getMessage());
-            }
+            MailboxData data = new MailboxData(new ArrayList<>(receivedEmails), new ArrayList<>(sentEmails));
+            return checkpoint(emailAddress, data, generations.getOrDefault(emailAddress, 0L), sync);
         } finally {
             lock.unlock();
         }
@@ -108,7 +391,7 @@ public class FileManager {
     /**
      * Carica la mailbox di un utente da file in modo thread-safe.
      * Se il file non esiste, restituisce una mailbox vuota.
-     * Gestisce la compatibilità con il vecchio formato (solo lista di email ricevute).
+     * Se esiste un journal, lo applica allo snapshot e scrive un nuovo snapshot che lo include.
      * @param emailAddress indirizzo email dell'utente
      * @return oggetto MailboxData con le email ricevute e inviate
      */
@@ -116,27 +399,576 @@ public class FileManager {
         // Ottiene o crea un lock per l'utente
         Lock lock = fileLocksMap.computeIfAbsent(emailAddress, k -> new ReentrantLock());
         lock.lock();
+        captureLock.readLock().lock();
         try {
-            // Costruisce il nome del file a partire dall'indirizzo email
-            String fileName = DATA_DIR + File.separator + emailAddress.replace("@", "_") + ".dat";
-            File file = new File(fileName);
+            MailboxData data = recover(emailAddress);
+            long generation = data.journalGeneration;
+            long validLength = data.journalLength;
+            generations.put(emailAddress, generation);
+            File journal = journalFile(emailAddress);
+            // In modalità journal i corpi ancora nel file (dati precedenti ai segmenti) vengono spostati nei segmenti
+            boolean moved = false;
+            if (journalEnabled && bodies != null) {
+                for (Email email : data.receivedEmails) {
+                    moved |= storeBody(email);
+                }
+                for (Email email : data.sentEmails) {
+                    moved |= storeBody(email);
+                }
+                if (moved) {
+                    // I corpi spostati vanno su disco prima del checkpoint che ne riporta la posizione
+                    bodies.flush(true);
+                }
+            }
+            share(data.receivedEmails);
+            share(data.sentEmails);
+            // Uno snapshot nel formato precedente viene riscritto subito nel formato binario
+            if (journal.exists() || moved || data.legacyFormat) {
+                // Lo snapshot va sincronizzato prima di eliminare il journal che sostituisce
+                if (!checkpoint(emailAddress, data, generation, true) && validLength >= 0) {
+                    // Senza checkpoint il journal resta in uso: si scarta l'eventuale record incompleto in coda
+                    replaceJournal(journal, validLength);
+                    if (readJournalMagic(journal) == JOURNAL_MAGIC) {
+                        legacyJournals.add(emailAddress);
+                    }
+                }
+            }
+            return data;
+        } finally {
+            captureLock.readLock().unlock();
+            lock.unlock();
+        }
+    }
 
-            // Se il file non esiste, restituisce una mailbox vuota
-            if (!file.exists()) {
-                return new MailboxData(new ArrayList<>(), new ArrayList<>());
+    /**
+     * Cattura una vista coerente di tutti i file delle mailbox ({@link StoreSnapshot}): snapshot, journal,
+     * segmenti e catalogo dei corpi. Va chiamato tra due gruppi della coda di persistenza
+     * ({@link PersistenceQueue#betweenGroups}), così nessuna scrittura è a metà; checkpoint e caricamenti
+     * attendono la fine della cattura, che crea solo hard link e quindi dura poco.
+     * @return vista catturata, oppure null se non è stato possibile crearla
+     */
+    public StoreSnapshot captureSnapshot() {
+        captureLock.writeLock().lock();
+        StoreSnapshot snapshot = null;
+        try {
+            snapshot = new StoreSnapshot(new File(DATA_DIR, CAPTURE_DIR_PREFIX + System.currentTimeMillis()));
+            File[] files = new File(DATA_DIR).listFiles((dir, name) -> name.endsWith(".dat") || name.endsWith(".journal"));
+            if (files != null) {
+                for (File file : files) {
+                    snapshot.add(file.getName(), file, file.length(), -1);
+                }
+            }
+            if (bodies != null) {
+                bodies.capture(snapshot, "segments/");
+            }
+            return snapshot;
+        } catch (IOException e) {
+            System.err.println("Errore nel catturare lo stato delle mailbox: " + e.getMessage());
+            if (snapshot != null) {
+                snapshot.discard();
+            }
+            return null;
+        } finally {
+            captureLock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Esegue il checkpoint di una mailbox a partire dai file: lo stato scritto su disco (snapshot più journal)
+     * diventa il nuovo snapshot e il journal viene eliminato. Le email rimosse non compaiono più in nessun file.
+     * Non usa lo stato in memoria, quindi può essere eseguito in background mentre il server riceve richieste:
+     * le scritture della stessa mailbox attendono la fine del checkpoint.
+     * @param emailAddress indirizzo email dell'utente
+     * @return true se è stato scritto un nuovo snapshot
+     */
+    public boolean compact(String emailAddress) {
+        if (!journalEnabled) {
+            return false;
+        }
+        Lock lock = fileLocksMap.computeIfAbsent(emailAddress, k -> new ReentrantLock());
+        lock.lock();
+        captureLock.readLock().lock();
+        try {
+            File journal = journalFile(emailAddress);
+            if (!journal.exists() || journal.length() == 0) {
+                return false;
+            }
+            MailboxData data = recover(emailAddress);
+            if (data.recoveryWarning != null || data.journalLength < 0) {
+                // Non si sostituiscono file che non è stato possibile leggere correttamente
+                System.err.println("Checkpoint di " + emailAddress + " non eseguito: "
+                        + (data.recoveryWarning != null ? data.recoveryWarning : "journal non applicabile"));
+                return false;
             }
+            return checkpoint(emailAddress, data, data.journalGeneration, true);
+        } finally {
+            captureLock.readLock().unlock();
+            lock.unlock();
+        }
+    }
 
-            // Legge l'oggetto dal file
-            try (ObjectInputStream ois = new ObjectInputStream(new FileInputStream(fileName))) {
-                Object obj = ois.readObject();
-                return (MailboxData) obj;
+    /**
+     * Compatta il catalogo dell'archivio dei corpi se ha superato la dimensione indicata.
+     * @param thresholdBytes dimensione oltre la quale il catalogo viene riscritto
+     * @return true se il catalogo è stato riscritto
+     */
+    public boolean compactBodyCatalog(long thresholdBytes) {
+        return bodies != null && bodies.compactCatalog(thresholdBytes);
+    }
+
+    /**
+     * Restituisce le mailbox caricate o salvate, candidate al checkpoint.
+     * @return indirizzi delle mailbox
+     */
+    public Set<String> getMailboxAddresses() {
+        return generations.keySet();
+    }
 
-            } catch (IOException | ClassNotFoundException e) {
+    /**
+     * Restituisce la dimensione del journal di una mailbox.
+     * @param emailAddress indirizzo email dell'utente
+     * @return dimensione in byte (0 se il journal non esiste)
+     */
+    public long journalLength(String emailAddress) {
+        return journalFile(emailAddress).length();
+    }
+
+    /**
+     * Ricostruisce lo stato scritto su disco di una mailbox: snapshot (o il precedente, se quello corrente è
+     * danneggiato) più la coda del journal. Da chiamare con il lock della mailbox acquisito.
+     */
+    private MailboxData recover(String emailAddress) {
+        MailboxData data = readSnapshot(emailAddress);
+        attachBodies(data.receivedEmails, data.receivedBodies);
+        attachBodies(data.sentEmails, data.sentBodies);
+        File journal = journalFile(emailAddress);
+        data.journalLength = journal.exists() ? replayJournal(emailAddress, journal, data) : -1;
+        return data;
+    }
+
+    /**
+     * Legge lo snapshot di una mailbox, verificandone il checksum. Se lo snapshot è danneggiato viene
+     * rinominato in {@code .corrupt} e si usa quello precedente; se nessuno dei due è leggibile la mailbox
+     * risulta vuota, con un avviso in {@link MailboxData#getRecoveryWarning()}.
+     */
+    private MailboxData readSnapshot(String emailAddress) {
+        File file = snapshotFile(emailAddress);
+        File previous = previousSnapshotFile(emailAddress);
+        String warning = null;
+
+        if (file.exists()) {
+            try {
+                return readSnapshotFile(file);
+            } catch (IOException | ClassNotFoundException | ClassCastException e) {
+                warning = "snapshot danneggiato (" + e.getMessage() + ")";
                 System.err.println("Errore nel caricare la mailbox per " + emailAddress + ": " + e.getMessage());
-                return new MailboxData(new ArrayList<>(), new ArrayList<>());
+                quarantine(file);
             }
+        }
+        // Snapshot precedente: dopo un errore, o se il checkpoint si è interrotto tra le due rinomine
+        if (previous.exists()) {
+            try {
+                MailboxData data = readSnapshotFile(previous);
+                if (warning != null) {
+                    data.addWarning(warning + ", ripristinato lo snapshot precedente");
+                }
+                return data;
+            } catch (IOException | ClassNotFoundException | ClassCastException e) {
+                System.err.println("Errore nel caricare lo snapshot precedente per " + emailAddress + ": " + e.getMessage());
+                warning = (warning == null ? "" : warning + "; ") + "snapshot precedente danneggiato (" + e.getMessage() + ")";
+                quarantine(previous);
+            }
+        }
+        MailboxData empty = new MailboxData(new ArrayList<>(), new ArrayList<>());
+        if (warning != null) {
+            empty.addWarning(warning + ", mailbox vuota");
+        }
+        return empty;
+    }
+
+    /**
+     * Legge un file di snapshot: con intestazione e checksum, oppure nel formato precedente (solo serializzazione).
+     * Un file con una semplice lista di email (formato più vecchio) viene letto come posta ricevuta.
+     */
+    private MailboxData readSnapshotFile(File file) throws IOException, ClassNotFoundException {
+        byte[] content = Files.readAllBytes(file.toPath());
+        long start = System.nanoTime();
+        int offset = 0;
+        int length = content.length;
+        BinaryReader header = new BinaryReader(content);
+        int magic = content.length >= 12 ? header.readInt() : 0;
+        if (magic == SNAPSHOT_MAGIC || magic == SNAPSHOT_MAGIC_BINARY) {
+            int checksum = header.readInt();
+            length = header.readInt();
+            offset = header.position();
+            if (length < 0 || offset + length > content.length || crc(content, offset, length) != checksum) {
+                throw new IOException("checksum non valido");
+            }
+        }
+        if (magic == SNAPSHOT_MAGIC_BINARY) {
+            MailboxData data = MailboxCodec.decode(new BinaryReader(content, offset, length));
+            snapshotsRead.incrementAndGet();
+            decodeNanos.addAndGet(System.nanoTime() - start);
+            return data;
+        }
+        // Formati precedenti: serializzazione Java, con o senza intestazione
+        MailboxData data;
+        try (ObjectInputStream ois = new ObjectInputStream(new ByteArrayInputStream(content, offset, length))) {
+            Object obj = ois.readObject();
+            if (obj instanceof List) {
+                @SuppressWarnings("unchecked")
+                List<Email> received = (List<Email>) obj;
+                data = new MailboxData(new ArrayList<>(received), new ArrayList<>());
+            } else {
+                data = (MailboxData) obj;
+            }
+        }
+        data.legacyFormat = true;
+        legacyRead.incrementAndGet();
+        legacyDecodeNanos.addAndGet(System.nanoTime() - start);
+        return data;
+    }
+
+    /**
+     * Rinomina un file danneggiato, così i checkpoint successivi non lo sovrascrivono.
+     */
+    private static void quarantine(File file) {
+        File target = new File(file.getPath() + "." + System.currentTimeMillis() + ".corrupt");
+        if (!file.renameTo(target)) {
+            System.err.println("Impossibile rinominare il file danneggiato " + file.getName());
+        }
+    }
+
+    /**
+     * Applica allo snapshot i record del journal, se il journal ha la generazione dello snapshot.
+     * Un record incompleto in coda (scrittura interrotta) termina la lettura senza errori; un record con
+     * checksum errato termina la lettura e viene segnalato come avviso del caricamento.
+     * @return lunghezza della parte valida del journal, oppure -1 se il journal non è stato applicato
+     */
+    private long replayJournal(String emailAddress, File journal, MailboxData data) {
+        byte[] content;
+        try {
+            content = Files.readAllBytes(journal.toPath());
+        } catch (IOException e) {
+            System.err.println("Errore nel leggere il journal per " + emailAddress + ": " + e.getMessage());
+            return -1;
+        }
+
+        BinaryReader in = new BinaryReader(content);
+        boolean checksums;
+        try {
+            int magic = in.readInt();
+            checksums = magic == JOURNAL_MAGIC_CRC;
+            if (magic != JOURNAL_MAGIC && !checksums || in.readVarLong() != data.journalGeneration) {
+                return -1; // Journal già incluso nello snapshot o non riconosciuto
+            }
+        } catch (IOException e) {
+            return 0; // Intestazione incompleta: nessun record da applicare
+        }
+
+        int applied = 0;
+        long validLength = in.position();
+        while (in.hasRemaining()) {
+            try {
+                int length = in.readInt();
+                int checksum = checksums ? in.readInt() : 0;
+                byte[] record = in.readBytes(length);
+                if (checksums && crc(record, 0, record.length) != checksum) {
+                    data.addWarning("journal danneggiato dopo " + applied + " record");
+                    System.err.println("Journal di " + emailAddress + " danneggiato dopo " + applied + " record");
+                    break;
+                }
+                Change.apply(new BinaryReader(record), data, bodies);
+                applied++;
+                validLength = in.position();
+            } catch (IOException e) {
+                System.err.println("Journal di " + emailAddress + " troncato dopo " + applied + " record: " + e.getMessage());
+                break;
+            }
+        }
+        return validLength;
+    }
+
+    /**
+     * Aggiunge le modifiche al journal della mailbox con una sola scrittura; se il journal non esiste
+     * lo crea con la generazione dello snapshot corrente.
+     * @return true se la scrittura è riuscita
+     */
+    private boolean appendToJournal(String emailAddress, List<Change> changes, boolean sync) {
+        Lock lock = fileLocksMap.computeIfAbsent(emailAddress, k -> new ReentrantLock());
+        lock.lock();
+        try {
+            File journal = journalFile(emailAddress);
+            if (bodies != null) {
+                // Ogni email aggiunta è un riferimento al suo corpo: il corpo viene salvato alla prima aggiunta
+                // e riusato dalle successive (la stessa email nelle altre caselle)
+                for (Change change : changes) {
+                    if (change.isAdd() && !storeBody(change.email) && change.email.getStoredBody() != null) {
+                        bodies.retain(change.email.getStoredBody());
+                    }
+                }
+                // Corpi e contatori vanno su disco prima dei record che ne riportano la posizione
+                bodies.flush(sync);
+            }
+
+            BinaryWriter out = new BinaryWriter(512);
+            if (!journal.exists() || journal.length() == 0) {
+                out.writeInt(JOURNAL_MAGIC_CRC);
+                out.writeVarLong(generations.getOrDefault(emailAddress, 0L));
+                legacyJournals.remove(emailAddress);
+            }
+            boolean checksums = !legacyJournals.contains(emailAddress);
+            BinaryWriter record = new BinaryWriter(256);
+            for (Change change : changes) {
+                record.reset();
+                change.writeTo(record);
+                byte[] bytes = record.toByteArray();
+                out.writeInt(record.size());
+                if (checksums) {
+                    out.writeInt(crc(bytes, 0, record.size()));
+                }
+                out.writeBytes(bytes, 0, record.size());
+            }
+
+            try (FileOutputStream fos = new FileOutputStream(journal, true)) {
+                out.writeTo(fos);
+                if (sync) {
+                    fos.getFD().sync();
+                }
+            } catch (IOException e) {
+                System.err.println("Errore nell'aggiornare il journal per " + emailAddress + ": " + e.getMessage());
+                return false;
+            }
+            releaseBodies(changes);
+            return true;
         } finally {
             lock.unlock();
         }
     }
-}
\ No newline at end of file
+
+    /**
+     * Scrive uno snapshot completo con la generazione successiva e poi elimina il journal, ormai incluso.
+     * Lo snapshot viene scritto su un file temporaneo e rinominato, così un'interruzione non lascia file parziali;
+     * lo snapshot sostituito resta come {@code .dat.prev}.
+     * Da chiamare con il lock della mailbox acquisito.
+     * @param sync true per sincronizzare lo snapshot su disco prima della rinomina
+     * @return true se lo snapshot è stato scritto
+     */
+    private boolean checkpoint(String emailAddress, MailboxData data, long generation, boolean sync) {
+        captureLock.readLock().lock();
+        try {
+            return writeCheckpoint(emailAddress, data, generation, sync);
+        } finally {
+            captureLock.readLock().unlock();
+        }
+    }
+
+    private boolean writeCheckpoint(String emailAddress, MailboxData data, long generation, boolean sync) {
+        data.journalGeneration = generation + 1;
+        data.receivedBodies = bodyLocations(data.receivedEmails);
+        data.sentBodies = bodyLocations(data.sentEmails);
+        File file = snapshotFile(emailAddress);
+        File temp = new File(file.getPath() + ".tmp");
+
+        // Scrive i dati della mailbox su file nel formato binario, preceduti da intestazione e checksum
+        try (FileOutputStream fos = new FileOutputStream(temp)) {
+            long start = System.nanoTime();
+            BinaryWriter encoded = new BinaryWriter(4096);
+            MailboxCodec.encode(data, encoded);
+            byte[] serialized = encoded.toByteArray();
+            encodeNanos.addAndGet(System.nanoTime() - start);
+            BinaryWriter header = new BinaryWriter(12);
+            header.writeInt(SNAPSHOT_MAGIC_BINARY);
+            header.writeInt(crc(serialized, 0, serialized.length));
+            header.writeInt(serialized.length);
+            header.writeTo(fos);
+            fos.write(serialized);
+            snapshotsWritten.incrementAndGet();
+            snapshotBytes.addAndGet(12 + serialized.length);
+            if (sync) {
+                fos.getFD().sync();
+            }
+        } catch (IOException e) {
+            System.err.println("Errore nel salvare la mailbox per " + emailAddress + ": " + e.getMessage());
+            data.journalGeneration = generation;
+            return false;
+        }
+        try {
+            if (file.exists()) {
+                move(file, previousSnapshotFile(emailAddress));
+            }
+            move(temp, file);
+        } catch (IOException e) {
+            System.err.println("Errore nel salvare la mailbox per " + emailAddress + ": " + e.getMessage());
+            data.journalGeneration = generation;
+            return false;
+        }
+
+        generations.put(emailAddress, generation + 1);
+        File journal = journalFile(emailAddress);
+        if (journal.exists() && !journal.delete()) {
+            // Sostituito da un file vuoto, il journal riceverà l'intestazione della nuova generazione alla prossima modifica
+            replaceJournal(journal, 0);
+        }
+        legacyJournals.remove(emailAddress);
+        return true;
+    }
+
+    private static void move(File source, File target) throws IOException {
+        try {
+            Files.move(source.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(source.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    private static int crc(byte[] bytes, int offset, int length) {
+        CRC32 crc = new CRC32();
+        crc.update(bytes, offset, length);
+        return (int) crc.getValue();
+    }
+
+    /**
+     * Legge l'intestazione di un journal (0 se il file è vuoto o non leggibile).
+     */
+    private static int readJournalMagic(File journal) {
+        try (RandomAccessFile file = new RandomAccessFile(journal, "r")) {
+            return file.length() >= 4 ? file.readInt() : 0;
+        } catch (IOException e) {
+            return 0;
+        }
+    }
+
+    /**
+     * Sposta nell'archivio dei corpi il corpo ancora in memoria di un'email, registrandone un riferimento.
+     * @return true se il corpo è stato spostato, false se era già salvato o non è stato possibile salvarlo
+     */
+    private boolean storeBody(Email email) {
+        String body = email.getStoredBody() == null ? email.getBody() : null;
+        if (body == null) {
+            return false;
+        }
+        try {
+            email.setStoredBody(bodies.store(body));
+            return true;
+        } catch (IOException e) {
+            System.err.println("Errore nel salvare il corpo dell'email " + email.getId() + ": " + e.getMessage());
+            return false; // Il corpo resta in memoria e nel file della casella
+        }
+    }
+
+    /**
+     * Rilascia i corpi delle email rimosse, dopo che la rimozione è stata scritta nei file della casella.
+     */
+    private void releaseBodies(List<Change> changes) {
+        if (bodies == null) {
+            return;
+        }
+        boolean released = false;
+        for (Change change : changes) {
+            StoredBody stored = change.isAdd() || change.email == null ? null : change.email.getStoredBody();
+            if (stored != null) {
+                bodies.release(stored);
+                released = true;
+            }
+        }
+        if (released) {
+            bodies.flush(false);
+        }
+    }
+
+    /**
+     * Sostituisce le email già caricate da un'altra casella con l'istanza esistente, così un messaggio
+     * con più destinatari occupa memoria una sola volta.
+     */
+    private void share(List<Email> emails) {
+        for (LoadedEmail cleared; (cleared = (LoadedEmail) unusedEmails.poll()) != null; ) {
+            loadedEmails.remove(cleared.id, cleared);
+        }
+        for (int i = 0; i < emails.size(); i++) {
+            Email email = emails.get(i);
+            LoadedEmail loaded = loadedEmails.get(email.getId());
+            Email existing = loaded != null ? loaded.get() : null;
+            if (existing != null && sameBody(existing, email)) {
+                emails.set(i, existing);
+            } else {
+                loadedEmails.put(email.getId(), new LoadedEmail(email, unusedEmails));
+            }
+        }
+    }
+
+    private static boolean sameBody(Email a, Email b) {
+        StoredBody storedA = a.getStoredBody();
+        StoredBody storedB = b.getStoredBody();
+        if (storedA != null || storedB != null) {
+            return storedA != null && storedB != null && storedA.location() == storedB.location();
+        }
+        return Objects.equals(a.getBody(), b.getBody());
+    }
+
+    /**
+     * Posizioni nei segmenti dei corpi delle email (-1 per i corpi salvati nel file della mailbox).
+     */
+    private static long[] bodyLocations(List<Email> emails) {
+        long[] locations = new long[emails.size()];
+        for (int i = 0; i < locations.length; i++) {
+            StoredBody stored = emails.get(i).getStoredBody();
+            locations[i] = stored != null ? stored.location() : -1;
+        }
+        return locations;
+    }
+
+    /**
+     * Collega alle email lette da uno snapshot i corpi salvati nei segmenti.
+     */
+    private void attachBodies(List<Email> emails, long[] locations) {
+        if (locations == null || bodies == null || locations.length != emails.size()) {
+            return;
+        }
+        for (int i = 0; i < locations.length; i++) {
+            if (locations[i] >= 0) {
+                emails.get(i).setStoredBody(bodies.reference(locations[i]));
+            }
+        }
+    }
+
+    /**
+     * Riduce il journal alla lunghezza indicata sostituendo il file: i primi byte vengono copiati su un file
+     * temporaneo che viene poi rinominato, come per lo snapshot. Il journal non viene mai troncato sul posto,
+     * perché una cattura ({@link #captureSnapshot()}) può avere un hard link allo stesso file ancora in lettura
+     * da parte del backup.
+     */
+    private static void replaceJournal(File journal, long length) {
+        File temp = new File(journal.getPath() + ".tmp");
+        try {
+            byte[] content = length > 0 ? Files.readAllBytes(journal.toPath()) : new byte[0];
+            try (FileOutputStream fos = new FileOutputStream(temp)) {
+                fos.write(content, 0, (int) Math.min(length, content.length));
+                fos.getFD().sync();
+            }
+            move(temp, journal);
+        } catch (IOException e) {
+            System.err.println("Impossibile sostituire il journal " + journal.getName() + ": " + e.getMessage());
+            temp.delete();
+        }
+    }
+
+    /**
+     * Costruisce il nome del file a partire dall'indirizzo email.
+     */
+    private static String baseName(String emailAddress) {
+        return DATA_DIR + File.separator + emailAddress.replace("@", "_");
+    }
+
+    private static File snapshotFile(String emailAddress) {
+        return new File(baseName(emailAddress) + ".dat");
+    }
+
+    private static File previousSnapshotFile(String emailAddress) {
+        return new File(baseName(emailAddress) + ".dat.prev");
+    }
+
+    private static File journalFile(String emailAddress) {
+        return new File(baseName(emailAddress) + ".journal");
+    }
+}
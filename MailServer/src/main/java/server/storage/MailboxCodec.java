@@ -0,0 +1,238 @@
+package server.storage;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+import server.model.BinaryReader;
+import server.model.BinaryWriter;
+import server.model.Email;
+
+/**
+ * Codifica binaria versionata dello snapshot di una mailbox ({@link FileManager.MailboxData}), al posto della
+ * serializzazione Java.
+ * <p>
+ * Formato (versione 1), con la codifica di {@link BinaryWriter}:
+ * {@code [versione varint][generazione varint][tabella degli indirizzi][ricevute][inviate]}.
+ * La tabella contiene una volta ciascun indirizzo di mittenti e destinatari; le email vi fanno riferimento
+ * con un indice. Ogni email è {@code [id][mittente][destinatari][oggetto][corpo][timestamp]}: l'id in forma
+ * di UUID occupa 16 byte, il corpo è la posizione nei segmenti oppure il testo, il timestamp è in secondi
+ * dall'epoch. Niente descrittori di classe: il formato non dipende dai campi delle classi Java.
+ * </p>
+ * Una versione sconosciuta viene rifiutata; le versioni successive dovranno continuare a leggere le precedenti.
+ */
+final class MailboxCodec {
+    static final int VERSION = 1;
+
+    private static final int ID_NULL = 0;       // Id assente
+    private static final int ID_UUID = 1;       // Id UUID in forma canonica: 16 byte
+    private static final int ID_STRING = 2;     // Altro id: stringa
+
+    private MailboxCodec() {
+    }
+
+    /**
+     * Codifica i dati di una mailbox.
+     * @param data dati da codificare, con le posizioni dei corpi già calcolate
+     * @param out buffer di destinazione
+     */
+    static void encode(FileManager.MailboxData data, BinaryWriter out) {
+        Map<String, Integer> addresses = new LinkedHashMap<>();
+        collectAddresses(data.getReceivedEmails(), addresses);
+        collectAddresses(data.getSentEmails(), addresses);
+
+        out.writeVarInt(VERSION);
+        out.writeVarLong(data.journalGeneration);
+        out.writeVarInt(addresses.size());
+        for (String address : addresses.keySet()) {
+            out.writeString(address);
+        }
+        writeFolder(data.getReceivedEmails(), data.receivedBodies, addresses, out);
+        writeFolder(data.getSentEmails(), data.sentBodies, addresses, out);
+    }
+
+    /**
+     * Decodifica i dati di una mailbox; i corpi nei segmenti restano come posizioni, da collegare.
+     * @param in lettore posizionato all'inizio dei dati
+     * @return dati della mailbox
+     * @throws IOException se i dati sono troncati, malformati o di una versione sconosciuta
+     */
+    static FileManager.MailboxData decode(BinaryReader in) throws IOException {
+        int version = in.readVarInt();
+        if (version != VERSION) {
+            throw new IOException("versione del formato non supportata: " + version);
+        }
+        long generation = in.readVarLong();
+        int addressCount = readCount(in);
+        List<String> addresses = new ArrayList<>(Math.min(addressCount, 4096));
+        for (int i = 0; i < addressCount; i++) {
+            addresses.add(in.readString());
+        }
+
+        List<Email> received = new ArrayList<>();
+        long[] receivedBodies = readFolder(in, addresses, received);
+        List<Email> sent = new ArrayList<>();
+        long[] sentBodies = readFolder(in, addresses, sent);
+
+        FileManager.MailboxData data = new FileManager.MailboxData(received, sent);
+        data.journalGeneration = generation;
+        data.receivedBodies = receivedBodies;
+        data.sentBodies = sentBodies;
+        return data;
+    }
+
+    private static void collectAddresses(List<Email> emails, Map<String, Integer> addresses) {
+        for (Email email : emails) {
+            intern(email.getSender(), addresses);
+            if (email.getRecipients() != null) {
+                for (String recipient : email.getRecipients()) {
+                    intern(recipient, addresses);
+                }
+            }
+        }
+    }
+
+    private static void intern(String address, Map<String, Integer> addresses) {
+        if (address != null) {
+            addresses.putIfAbsent(address, addresses.size());
+        }
+    }
+
+    private static void writeFolder(List<Email> emails, long[] locations, Map<String, Integer> addresses, BinaryWriter out) {
+        out.writeVarInt(emails.size());
+        for (int i = 0; i < emails.size(); i++) {
+            Email email = emails.get(i);
+            writeId(email.getId(), out);
+            writeAddress(email.getSender(), addresses, out);
+            List<String> recipients = email.getRecipients();
+            out.writeVarInt(recipients == null ? 0 : recipients.size() + 1);
+            if (recipients != null) {
+                for (String recipient : recipients) {
+                    writeAddress(recipient, addresses, out);
+                }
+            }
+            out.writeString(email.getSubject());
+            long location = locations != null && i < locations.length ? locations[i] : -1;
+            // 0: corpo nel file; altrimenti posizione nei segmenti + 1
+            out.writeVarLong(location + 1);
+            if (location < 0) {
+                out.writeString(email.getBody());
+            }
+            out.writeTimestamp(email.getTimestamp());
+        }
+    }
+
+    private static long[] readFolder(BinaryReader in, List<String> addresses, List<Email> emails) throws IOException {
+        int count = readCount(in);
+        long[] locations = new long[count];
+        for (int i = 0; i < count; i++) {
+            Email email = new Email();
+            email.setId(readId(in));
+            email.setSender(readAddress(in, addresses));
+            int recipientCount = in.readVarInt();
+            if (recipientCount > 0) {
+                List<String> recipients = new ArrayList<>(Math.min(recipientCount - 1, 1024));
+                for (int r = 0; r < recipientCount - 1; r++) {
+                    recipients.add(readAddress(in, addresses));
+                }
+                email.setRecipients(recipients);
+            } else {
+                email.setRecipients(null);
+            }
+            email.setSubject(in.readString());
+            locations[i] = in.readVarLong() - 1;
+            email.setBody(locations[i] < 0 ? in.readString() : null);
+            email.setTimestamp(in.readTimestamp());
+            emails.add(email);
+        }
+        return locations;
+    }
+
+    /**
+     * Legge un numero di elementi, rifiutando valori impossibili per i byte rimasti (ogni elemento occupa almeno un byte).
+     */
+    private static int readCount(BinaryReader in) throws IOException {
+        int count = in.readVarInt();
+        if (count < 0 || count > in.remaining()) {
+            throw new IOException("numero di elementi non valido: " + count);
+        }
+        return count;
+    }
+
+    private static void writeAddress(String address, Map<String, Integer> addresses, BinaryWriter out) {
+        out.writeVarInt(address == null ? 0 : addresses.get(address) + 1);
+    }
+
+    private static String readAddress(BinaryReader in, List<String> addresses) throws IOException {
+        int index = in.readVarInt();
+        if (index == 0) {
+            return null;
+        }
+        if (index > addresses.size()) {
+            throw new IOException("indirizzo fuori dalla tabella: " + index);
+        }
+        return addresses.get(index - 1);
+    }
+
+    /**
+     * Scrive l'id in 16 byte se è un UUID nella forma canonica (quella generata da {@link Email}),
+     * altrimenti come stringa.
+     */
+    private static void writeId(String id, BinaryWriter out) {
+        if (id == null) {
+            out.writeByte(ID_NULL);
+            return;
+        }
+        UUID uuid = parseCanonicalUuid(id);
+        if (uuid == null) {
+            out.writeByte(ID_STRING);
+            out.writeString(id);
+            return;
+        }
+        out.writeByte(ID_UUID);
+        writeLong(uuid.getMostSignificantBits(), out);
+        writeLong(uuid.getLeastSignificantBits(), out);
+    }
+
+    private static String readId(BinaryReader in) throws IOException {
+        int kind = in.readByte();
+        switch (kind) {
+            case ID_NULL:
+                return null;
+            case ID_UUID: {
+                long most = readLong(in);
+                return new UUID(most, readLong(in)).toString();
+            }
+            case ID_STRING:
+                return in.readString();
+            default:
+                throw new IOException("tipo di id sconosciuto: " + kind);
+        }
+    }
+
+    private static UUID parseCanonicalUuid(String id) {
+        if (id.length() != 36) {
+            return null;
+        }
+        try {
+            UUID uuid = UUID.fromString(id);
+            // Solo se la stringa si ricostruisce identica (minuscole, senza zeri omessi)
+            return uuid.toString().equals(id) ? uuid : null;
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    private static void writeLong(long value, BinaryWriter out) {
+        out.writeInt((int) (value >>> 32));
+        out.writeInt((int) value);
+    }
+
+    private static long readLong(BinaryReader in) throws IOException {
+        long high = in.readInt();
+        return (high << 32) | (in.readInt() & 0xFFFFFFFFL);
+    }
+}
@@ -0,0 +1,392 @@
+package server.storage;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Supplier;
+
+import server.model.Email;
+
+/**
+ * Coda di persistenza asincrona con group commit.
+ * <p>
+ * Le modifiche delle mailbox vengono accodate (operazione solo in memoria) e scritte da un unico thread:
+ * mentre un gruppo viene scritto, le nuove modifiche si accumulano e formano il gruppo successivo.
+ * In ogni gruppo le modifiche della stessa mailbox vengono unite, quindi ogni file riceve una sola scrittura
+ * (e un solo fsync) per gruppo, qualunque sia il numero di richieste che lo hanno modificato.
+ * </p>
+ * Politiche di conferma ({@link Durability}):
+ * - FSYNC: chi ha modificato i dati attende con {@link #awaitDurable(long)} che il gruppo sia scritto e sincronizzato su disco,
+ *   e riceve l'esito: una scrittura fallita non viene confermata;
+ * - ENQUEUE: la conferma avviene appena la modifica è in coda; in caso di crash o di errore di scrittura si perdono
+ *   le modifiche non ancora scritte.
+ * Le modifiche sono visibili in memoria (letture e notifiche push) appena accodate, prima della conferma.
+ */
+public class PersistenceQueue {
+
+    /**
+     * Momento in cui una modifica viene considerata confermata.
+     */
+    public enum Durability {
+        FSYNC, ENQUEUE;
+
+        /**
+         * Converte il nome configurato nella politica corrispondente (default FSYNC).
+         * @param name nome della politica, case-insensitive
+         * @return politica corrispondente
+         */
+        public static Durability fromName(String name) {
+            for (Durability durability : values()) {
+                if (durability.name().equalsIgnoreCase(name)) {
+                    return durability;
+                }
+            }
+            return FSYNC;
+        }
+    }
+
+    /**
+     * Modifiche in attesa di una mailbox, unite fino alla prossima scrittura.
+     */
+    private static final class Pending {
+        private final List<FileManager.Change> changes = new ArrayList<>(); // Modifiche (record del journal), nell'ordine
+        private List<Email> receivedEmails;     // Ultimo stato delle ricevute (solo modalità snapshot)
+        private List<Email> sentEmails;         // Ultimo stato delle inviate (solo modalità snapshot)
+        private int changeCount;                // Modifiche unite in questa voce
+        private final List<Long> tickets = new ArrayList<>(); // Sequenze delle submit unite in questa voce (solo FSYNC)
+    }
+
+    private final FileManager fileManager;      // Scrittura effettiva su disco
+    private final Durability durability;        // Politica di conferma
+    private final int maxPendingChanges;        // Modifiche in coda oltre le quali submit attende
+    private final Object lock = new Object();   // Protegge coda e numeri di sequenza
+    private final Thread writer;                // Thread che scrive i gruppi
+
+    private Map<String, Pending> pending = new LinkedHashMap<>(); // Modifiche in coda per mailbox
+    private int pendingChanges = 0;             // Modifiche attualmente in coda
+    private long enqueuedSeq = 0;               // Sequenza dell'ultima modifica accodata
+    private long durableSeq = 0;                // Sequenza dell'ultima modifica scritta
+    private final Set<Long> failedTickets = new HashSet<>(); // Sequenze la cui scrittura è fallita, finché awaitDurable non le legge (solo FSYNC)
+    private boolean running = true;             // false dopo close(): il thread di scrittura svuota la coda e termina
+    private boolean writerDone = false;         // true quando il thread di scrittura è terminato
+    private final Set<String> failedMailboxes = ConcurrentHashMap.newKeySet(); // Caselle con almeno una scrittura fallita
+    private final ReentrantLock groupLock = new ReentrantLock(); // Tenuto durante la scrittura di un gruppo
+    private volatile Runnable writeListener = () -> { };       // Avvisato dopo la scrittura di ogni gruppo
+
+    // Metriche
+    private volatile int peakPendingChanges = 0;                // Massima profondità della coda osservata
+    private final AtomicLong groups = new AtomicLong();         // Gruppi scritti
+    private final AtomicLong flushedChanges = new AtomicLong(); // Modifiche scritte
+    private final AtomicLong fileWrites = new AtomicLong();     // Scritture di file (una per mailbox per gruppo)
+    private final AtomicLong failedWrites = new AtomicLong();   // Scritture fallite
+    private final AtomicLong totalFlushNanos = new AtomicLong(); // Tempo complessivo di scrittura dei gruppi
+    private final AtomicLong maxFlushNanos = new AtomicLong();  // Gruppo più lento
+    private volatile long lastFlushNanos = 0;                   // Durata dell'ultimo gruppo
+
+    /**
+     * Crea la coda e avvia il thread di scrittura.
+     * @param fileManager gestore dei file delle mailbox
+     * @param durability politica di conferma
+     * @param maxPendingChanges numero massimo di modifiche in coda prima di rallentare chi scrive
+     */
+    public PersistenceQueue(FileManager fileManager, Durability durability, int maxPendingChanges) {
+        this.fileManager = fileManager;
+        this.durability = durability;
+        this.maxPendingChanges = Math.max(1, maxPendingChanges);
+        this.writer = new Thread(this::writeLoop, "persistence-writer");
+        this.writer.setDaemon(true);
+        this.writer.start();
+    }
+
+    /**
+     * Modifiche di una mailbox da accodare con {@link #submit(List)}.
+     */
+    public static final class Update {
+        private final String emailAddress;                  // Indirizzo email della mailbox
+        private final List<FileManager.Change> changes;     // Modifiche applicate, nell'ordine
+        private final List<Email> receivedEmails;           // Lista corrente delle email ricevute
+        private final List<Email> sentEmails;               // Lista corrente delle email inviate
+
+        public Update(String emailAddress, List<FileManager.Change> changes, List<Email> receivedEmails, List<Email> sentEmails) {
+            this.emailAddress = emailAddress;
+            this.changes = changes;
+            this.receivedEmails = receivedEmails;
+            this.sentEmails = sentEmails;
+        }
+
+        public String getEmailAddress() { return emailAddress; }
+    }
+
+    /**
+     * Accoda le modifiche di una mailbox (vedi {@link #submit(List)}).
+     * @param emailAddress indirizzo email della mailbox
+     * @param changes modifiche applicate, nell'ordine
+     * @param receivedEmails lista corrente delle email ricevute
+     * @param sentEmails lista corrente delle email inviate
+     * @return numero di sequenza da passare a {@link #awaitDurable(long)}
+     */
+    public long submit(String emailAddress, List<FileManager.Change> changes, List<Email> receivedEmails, List<Email> sentEmails) {
+        return submit(Collections.singletonList(new Update(emailAddress, changes, receivedEmails, sentEmails)));
+    }
+
+    /**
+     * Accoda le modifiche di una o più mailbox in modo atomico: finiscono tutte nello stesso gruppo, quindi
+     * una consegna è su disco (e in un backup) per tutte le caselle coinvolte oppure per nessuna.
+     * In modalità snapshot viene copiato lo stato corrente delle liste, quindi va chiamato mentre le liste
+     * non possono cambiare (con le caselle bloccate).
+     * Se la coda è piena attende che il thread di scrittura la svuoti.
+     * @param updates modifiche di ciascuna mailbox
+     * @return numero di sequenza da passare a {@link #awaitDurable(long)}
+     */
+    public long submit(List<Update> updates) {
+        synchronized (lock) {
+            if (writerDone) {
+                // Coda chiusa e già svuotata: scrittura sincrona, così nessuna modifica va persa
+                long seq = ++enqueuedSeq;
+                groupLock.lock();
+                try {
+                    for (Update update : updates) {
+                        if (!fileManager.recordChanges(update.emailAddress, update.changes,
+                                update.receivedEmails, update.sentEmails, true)) {
+                            failedMailboxes.add(update.emailAddress);
+                            if (durability == Durability.FSYNC) {
+                                failedTickets.add(seq);
+                            }
+                        }
+                    }
+                } finally {
+                    groupLock.unlock();
+                }
+                return seq;
+            }
+            while (pendingChanges >= maxPendingChanges && running) {
+                try {
+                    lock.wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+            }
+            long seq = enqueuedSeq + 1;
+            for (Update update : updates) {
+                Pending entry = pending.computeIfAbsent(update.emailAddress, k -> new Pending());
+                if (durability == Durability.FSYNC) {
+                    entry.tickets.add(seq);
+                }
+                // Anche in modalità snapshot le modifiche servono a rilasciare i corpi delle email rimosse
+                entry.changes.addAll(update.changes);
+                if (!fileManager.isJournalEnabled()) {
+                    entry.receivedEmails = new ArrayList<>(update.receivedEmails);
+                    entry.sentEmails = new ArrayList<>(update.sentEmails);
+                }
+                entry.changeCount += update.changes.size();
+                pendingChanges += update.changes.size();
+            }
+            if (pendingChanges > peakPendingChanges) {
+                peakPendingChanges = pendingChanges;
+            }
+            lock.notifyAll();
+            enqueuedSeq = seq;
+            return seq;
+        }
+    }
+
+    /**
+     * Attende che le modifiche fino alla sequenza indicata siano scritte su disco (solo con politica FSYNC).
+     * Va chiamato senza tenere bloccate le caselle, così l'attesa del disco non blocca le altre richieste;
+     * ogni sequenza va attesa una sola volta, perché l'esito di una scrittura fallita viene consumato.
+     * @param seq sequenza restituita da {@link #submit}
+     * @return true se le modifiche sono su disco (sempre true con ENQUEUE), false se la scrittura di una delle
+     *         caselle è fallita o l'attesa è stata interrotta
+     */
+    public boolean awaitDurable(long seq) {
+        if (durability != Durability.FSYNC) {
+            return true;
+        }
+        synchronized (lock) {
+            while (durableSeq < seq && !writerDone) {
+                try {
+                    lock.wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return false;
+                }
+            }
+            return !failedTickets.remove(seq);
+        }
+    }
+
+    /**
+     * Indica se le modifiche di una casella fino alla sequenza indicata sono state scritte su disco.
+     * Una casella per cui una scrittura è fallita non risulta mai scritta: la sua copia in memoria è l'unica
+     * completa e non va scartata.
+     * @param emailAddress indirizzo della casella
+     * @param seq sequenza restituita da {@link #submit}
+     * @return true se le modifiche sono su disco
+     */
+    public boolean isWritten(String emailAddress, long seq) {
+        if (failedMailboxes.contains(emailAddress)) {
+            return false;
+        }
+        synchronized (lock) {
+            return durableSeq >= seq;
+        }
+    }
+
+    /**
+     * Esegue un'azione tra due gruppi di scrittura: nessun gruppo è a metà, quindi i file riflettono
+     * esattamente le modifiche confermate fino a quel momento. Le richieste continuano ad accodare modifiche;
+     * la scrittura del gruppo successivo attende la fine dell'azione, che deve quindi essere breve.
+     * @param action azione da eseguire
+     * @param <T> tipo del risultato
+     * @return risultato dell'azione
+     */
+    public <T> T betweenGroups(Supplier<T> action) {
+        groupLock.lock();
+        try {
+            return action.get();
+        } finally {
+            groupLock.unlock();
+        }
+    }
+
+    /**
+     * Ciclo del thread di scrittura: preleva tutte le modifiche in coda e le scrive come un unico gruppo.
+     */
+    private void writeLoop() {
+        while (true) {
+            Map<String, Pending> group;
+            long groupSeq;
+            synchronized (lock) {
+                while (pending.isEmpty() && running) {
+                    try {
+                        lock.wait();
+                    } catch (InterruptedException e) {
+                        // Si continua fino a svuotare la coda
+                    }
+                }
+                if (pending.isEmpty()) {
+                    writerDone = true;
+                    lock.notifyAll();
+                    return;
+                }
+                group = pending;
+                groupSeq = enqueuedSeq;
+                pending = new LinkedHashMap<>();
+                pendingChanges = 0;
+                lock.notifyAll(); // Sblocca chi attende spazio in coda
+            }
+
+            groupLock.lock();
+            try {
+                writeGroup(group, groupSeq);
+            } finally {
+                groupLock.unlock();
+            }
+        }
+    }
+
+    /**
+     * Scrive un gruppo di modifiche e ne conferma la sequenza a chi attende.
+     */
+    private void writeGroup(Map<String, Pending> group, long groupSeq) {
+        long start = System.nanoTime();
+        boolean sync = durability == Durability.FSYNC;
+        int changes = 0;
+        List<Long> failed = new ArrayList<>();
+        for (Map.Entry<String, Pending> entry : group.entrySet()) {
+            Pending mailbox = entry.getValue();
+            changes += mailbox.changeCount;
+            boolean written;
+            try {
+                written = fileManager.recordChanges(entry.getKey(), mailbox.changes,
+                        mailbox.receivedEmails, mailbox.sentEmails, sync);
+            } catch (RuntimeException e) {
+                // Il thread di scrittura non deve terminare: chi attende la conferma resterebbe bloccato
+                System.err.println("Errore nel salvare la mailbox per " + entry.getKey() + ": " + e.getMessage());
+                written = false;
+            }
+            if (!written) {
+                failedWrites.incrementAndGet();
+                failedMailboxes.add(entry.getKey());
+                failed.addAll(mailbox.tickets);
+            }
+            fileWrites.incrementAndGet();
+        }
+        long elapsed = System.nanoTime() - start;
+        groups.incrementAndGet();
+        flushedChanges.addAndGet(changes);
+        totalFlushNanos.addAndGet(elapsed);
+        maxFlushNanos.accumulateAndGet(elapsed, Math::max);
+        lastFlushNanos = elapsed;
+
+        synchronized (lock) {
+            failedTickets.addAll(failed);
+            durableSeq = groupSeq;
+            lock.notifyAll();
+        }
+        writeListener.run();
+    }
+
+    /**
+     * Imposta l'azione eseguita dal thread di scrittura dopo ogni gruppo scritto; deve essere breve.
+     * @param listener azione da eseguire
+     */
+    public void setWriteListener(Runnable listener) {
+        this.writeListener = listener;
+    }
+
+    /**
+     * Smette di accettare modifiche asincrone, scrive quelle ancora in coda e arresta il thread di scrittura.
+     * @param timeoutMillis tempo massimo di attesa in millisecondi
+     * @return true se la coda è stata svuotata entro il timeout
+     */
+    public boolean close(long timeoutMillis) {
+        synchronized (lock) {
+            running = false;
+            lock.notifyAll();
+        }
+        try {
+            writer.join(timeoutMillis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        return !writer.isAlive();
+    }
+
+    /**
+     * Restituisce un riepilogo testuale delle metriche, adatto al log del server.
+     * @return stringa con politica, profondità della coda e latenza di scrittura
+     */
+    public String getStats() {
+        long done = groups.get();
+        long avgFlushMicros = done == 0 ? 0 : TimeUnit.NANOSECONDS.toMicros(totalFlushNanos.get() / done);
+        return "durabilità=" + durability
+                + ", in coda=" + getPendingCount()
+                + ", picco coda=" + peakPendingChanges
+                + ", gruppi=" + done
+                + ", modifiche scritte=" + flushedChanges.get()
+                + ", scritture file=" + fileWrites.get()
+                + ", errori=" + failedWrites.get()
+                + ", latenza media=" + avgFlushMicros + "µs"
+                + ", latenza massima=" + TimeUnit.NANOSECONDS.toMicros(maxFlushNanos.get()) + "µs";
+    }
+
+    // Getter per le metriche principali
+    public Durability getDurability() { return durability; }
+    public int getPendingCount() { synchronized (lock) { return pendingChanges; } }
+    public int getPeakPendingCount() { return peakPendingChanges; }
+    public long getGroupCount() { return groups.get(); }
+    public long getFlushedChangeCount() { return flushedChanges.get(); }
+    public long getFailedWriteCount() { return failedWrites.get(); }
+    public long getLastFlushMicros() { return TimeUnit.NANOSECONDS.toMicros(lastFlushNanos); }
+    public long getMaxFlushMicros() { return TimeUnit.NANOSECONDS.toMicros(maxFlushNanos.get()); }
+}
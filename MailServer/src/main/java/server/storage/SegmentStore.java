@@ -0,0 +1,339 @@
+package server.storage;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import server.model.StoredBody;
+
+/**
+ * Store append-only dei corpi delle email in file di segmento a dimensione fissa, mappati in memoria.
+ * <p>
+ * Ogni segmento ({@code maildata/segments/NNNNNNNN.seg}) inizia con un'intestazione
+ * {@code [magic int32][fine dei dati int32]} seguita da voci {@code [lunghezza int32][UTF-8]}.
+ * Un corpo di almeno {@code minCompressBytes} byte viene compresso con il {@link BodyCodec} configurato,
+ * se la compressione fa risparmiare almeno il 10%: la voce diventa
+ * {@code [~lunghezza int32][algoritmo u8][lunghezza originale int32][dati compressi]} (lunghezza negata:
+ * le voci non compresse dei segmenti esistenti restano valide). La decompressione avviene solo alla lettura
+ * del corpo, quindi le operazioni che usano le sole intestazioni non la pagano.
+ * Un corpo è identificato dalla sua posizione: {@code (numero del segmento << 32) | offset}.
+ * Le letture passano per i {@link MappedByteBuffer}, quindi i corpi non restano sullo heap:
+ * la cache è quella delle pagine del sistema operativo.
+ * </p>
+ * Le scritture sono serializzate (in pratica le esegue solo il thread di persistenza); le letture sono
+ * concorrenti e senza lock, su viste indipendenti del buffer mappato.
+ * Un segmento che non contiene più corpi in uso può essere eliminato con {@link #delete(int)}: i riferimenti
+ * già creati restano leggibili finché esistono, perché mantengono la mappatura del loro segmento.
+ */
+public class SegmentStore {
+    private static final int SEGMENT_MAGIC = 0x4D534731;    // "MSG1"
+    private static final int HEADER_LENGTH = 8;             // magic + fine dei dati
+    private static final String EXTENSION = ".seg";
+    private static final int COMPRESSED_HEADER = 5;         // Algoritmo + lunghezza originale di una voce compressa
+
+    private final File directory;                           // Directory dei segmenti
+    private final int segmentSize;                          // Dimensione dei nuovi segmenti in byte
+    private final BodyCodec codec;                          // Compressione dei nuovi corpi (null: nessuna)
+    private final int minCompressBytes;                     // Dimensione minima di un corpo da comprimere
+    private final Map<Integer, Segment> segments = new ConcurrentHashMap<>(); // Segmenti aperti per numero
+    private Segment current;                                // Segmento in cui si aggiungono i corpi
+    private boolean dirty;                                  // true se il segmento corrente ha scritture non sincronizzate
+
+    // Metriche della compressione
+    private long compressedBodies = 0;                      // Corpi salvati compressi
+    private long originalBytes = 0;                         // Byte originali dei corpi compressi
+    private long storedBytes = 0;                           // Byte scritti per i corpi compressi
+    private final AtomicLong decompressions = new AtomicLong();     // Corpi decompressi in lettura
+    private final AtomicLong decompressNanos = new AtomicLong();    // Tempo complessivo di decompressione
+
+    /**
+     * Segmento mappato in memoria.
+     */
+    private static final class Segment {
+        private final int id;                   // Numero del segmento
+        private final MappedByteBuffer buffer;  // Intero file mappato
+        private volatile int end;               // Fine dei dati scritti (offset della prossima voce)
+
+        private Segment(int id, MappedByteBuffer buffer, int end) {
+            this.id = id;
+            this.buffer = buffer;
+            this.end = end;
+        }
+
+        private int capacity() {
+            return buffer.capacity();
+        }
+    }
+
+    /**
+     * Riferimento a un corpo salvato in un segmento.
+     */
+    private static final class Body implements StoredBody {
+        private final SegmentStore store;   // Store che ha scritto il corpo (per decomprimerlo)
+        private final Segment segment;      // Segmento del corpo (null se non esiste)
+        private final long location;
+
+        private Body(SegmentStore store, Segment segment, long location) {
+            this.store = store;
+            this.segment = segment;
+            this.location = location;
+        }
+
+        @Override
+        public String load() {
+            return segment != null ? store.read(segment, (int) location) : null;
+        }
+
+        @Override
+        public long location() {
+            return location;
+        }
+    }
+
+    /**
+     * Apre lo store e mappa i segmenti esistenti.
+     * @param directory directory dei segmenti (creata se non esiste)
+     * @param segmentSize dimensione dei nuovi segmenti in byte
+     * @param codec compressione dei nuovi corpi, oppure null per salvarli così come sono
+     * @param minCompressBytes dimensione minima in byte (UTF-8) di un corpo da comprimere
+     * @throws IOException se un segmento esistente non può essere aperto
+     */
+    public SegmentStore(File directory, int segmentSize, BodyCodec codec, int minCompressBytes) throws IOException {
+        this.directory = directory;
+        this.segmentSize = Math.max(HEADER_LENGTH + 4, segmentSize);
+        this.codec = codec;
+        this.minCompressBytes = Math.max(1, minCompressBytes);
+        if (!directory.exists()) {
+            directory.mkdirs();
+        }
+        File[] files = directory.listFiles((dir, name) -> name.endsWith(EXTENSION));
+        if (files != null) {
+            for (File file : files) {
+                String name = file.getName();
+                int id;
+                try {
+                    id = Integer.parseInt(name.substring(0, name.length() - EXTENSION.length()));
+                } catch (NumberFormatException e) {
+                    continue;
+                }
+                Segment segment = open(file, id);
+                segments.put(id, segment);
+                if (current == null || id > current.id) {
+                    current = segment;
+                }
+            }
+        }
+    }
+
+    /**
+     * Aggiunge un corpo all'ultimo segmento, aprendone uno nuovo se non c'è spazio.
+     * Un corpo più grande della dimensione dei segmenti riceve un segmento dedicato.
+     * @param body testo del corpo
+     * @return riferimento al corpo salvato
+     * @throws IOException se non è possibile creare un nuovo segmento
+     */
+    public synchronized StoredBody append(String body) throws IOException {
+        byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+        byte[] compressed = null;
+        if (codec != null && bytes.length >= minCompressBytes) {
+            compressed = codec.compress(bytes);
+            if (COMPRESSED_HEADER + compressed.length > bytes.length * 9L / 10) {
+                // Risparmio inferiore al 10%: non vale il costo della decompressione
+                compressed = null;
+            }
+        }
+        int needed = 4 + (compressed != null ? COMPRESSED_HEADER + compressed.length : bytes.length);
+        if (current == null || current.capacity() - current.end < needed) {
+            int id = current == null ? 0 : current.id + 1;
+            current = create(id, Math.max(segmentSize, HEADER_LENGTH + needed));
+            segments.put(id, current);
+        }
+
+        int offset = current.end;
+        ByteBuffer view = current.buffer.duplicate();
+        view.position(offset);
+        if (compressed != null) {
+            view.putInt(~(COMPRESSED_HEADER + compressed.length));
+            view.put((byte) codec.id());
+            view.putInt(bytes.length);
+            view.put(compressed);
+            compressedBodies++;
+            originalBytes += bytes.length;
+            storedBytes += needed;
+        } else {
+            view.putInt(bytes.length);
+            view.put(bytes);
+        }
+        current.end = offset + needed;
+        current.buffer.putInt(4, current.end);
+        dirty = true;
+        return new Body(this, current, ((long) current.id << 32) | offset);
+    }
+
+    /**
+     * Restituisce il riferimento al corpo salvato in una posizione (ad esempio letta dal journal).
+     * @param location posizione del corpo
+     * @return riferimento al corpo
+     */
+    public StoredBody reference(long location) {
+        return new Body(this, segments.get(segmentOf(location)), location);
+    }
+
+    /**
+     * Numero del segmento che contiene una posizione.
+     * @param location posizione di un corpo
+     * @return numero del segmento
+     */
+    public static int segmentOf(long location) {
+        return (int) (location >>> 32);
+    }
+
+    /**
+     * Restituisce i numeri dei segmenti aperti.
+     * @return numeri dei segmenti
+     */
+    public List<Integer> segmentIds() {
+        return new ArrayList<>(segments.keySet());
+    }
+
+    /**
+     * Elimina un segmento che non contiene più corpi in uso. Il segmento corrente non viene eliminato,
+     * perché riceve ancora le nuove scritture.
+     * @param id numero del segmento
+     * @return true se il segmento è stato eliminato
+     */
+    public synchronized boolean delete(int id) {
+        if (current != null && current.id == id || segments.remove(id) == null) {
+            return false;
+        }
+        File file = new File(directory, String.format("%08d", id) + EXTENSION);
+        if (!file.delete()) {
+            System.err.println("Impossibile eliminare il segmento " + file.getName());
+        }
+        return true;
+    }
+
+    /**
+     * Aggiunge i segmenti a una vista coerente dello store, con la fine dei dati scritta fino a questo momento.
+     * @param snapshot vista in costruzione
+     * @param prefix percorso dei segmenti nella vista
+     * @throws IOException se un segmento non può essere catturato
+     */
+    synchronized void capture(StoreSnapshot snapshot, String prefix) throws IOException {
+        for (Segment segment : segments.values()) {
+            String name = String.format("%08d", segment.id) + EXTENSION;
+            snapshot.add(prefix + name, new File(directory, name), segment.end, segment.end);
+        }
+    }
+
+    /**
+     * Sincronizza su disco i segmenti modificati.
+     */
+    public synchronized void force() {
+        if (current != null && dirty) {
+            current.buffer.force();
+            dirty = false;
+        }
+        // I segmenti precedenti sono stati sincronizzati quando sono stati sostituiti da uno nuovo
+    }
+
+    /**
+     * Restituisce un riepilogo testuale della compressione, adatto al log del server.
+     * @return stringa con algoritmo, corpi compressi e rapporto di compressione
+     */
+    public synchronized String getStats() {
+        long count = decompressions.get();
+        return "compressione=" + (codec != null ? codec.name() : "nessuna")
+                + ", corpi compressi=" + compressedBodies
+                + ", rapporto=" + (originalBytes == 0 ? 100 : storedBytes * 100 / originalBytes) + "%"
+                + ", byte risparmiati=" + (originalBytes - storedBytes) / 1024 + "KB"
+                + ", decompressioni=" + count
+                + ", decompressione media=" + (count == 0 ? 0 : decompressNanos.get() / count / 1000) + "µs";
+    }
+
+    /**
+     * Legge un corpo dal segmento mappato, decomprimendolo se necessario.
+     * @return testo del corpo, oppure null se la posizione non corrisponde a dati scritti
+     */
+    private String read(Segment segment, int offset) {
+        if (offset < HEADER_LENGTH || offset + 4 > segment.end) {
+            return null;
+        }
+        ByteBuffer view = segment.buffer.duplicate();
+        view.position(offset);
+        int header = view.getInt();
+        boolean compressed = header < 0;
+        int length = compressed ? ~header : header;
+        if (offset + 4 + length > segment.end || compressed && length < COMPRESSED_HEADER) {
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        view.get(bytes);
+        if (!compressed) {
+            return new String(bytes, StandardCharsets.UTF_8);
+        }
+
+        long start = System.nanoTime();
+        BodyCodec entryCodec = BodyCodec.forId(bytes[0] & 0xFF);
+        int originalLength = ByteBuffer.wrap(bytes, 1, 4).getInt();
+        if (entryCodec == null || originalLength < 0) {
+            System.err.println("Corpo compresso non leggibile nel segmento " + segment.id + " (offset " + offset + ")");
+            return null;
+        }
+        try {
+            byte[] original = entryCodec.decompress(bytes, COMPRESSED_HEADER, length - COMPRESSED_HEADER, originalLength);
+            decompressions.incrementAndGet();
+            decompressNanos.addAndGet(System.nanoTime() - start);
+            return new String(original, StandardCharsets.UTF_8);
+        } catch (IOException e) {
+            System.err.println("Errore nel decomprimere il corpo nel segmento " + segment.id + ": " + e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Crea e mappa un nuovo segmento; il segmento precedente viene sincronizzato, così {@link #force()}
+     * deve occuparsi solo di quello corrente.
+     */
+    private Segment create(int id, int size) throws IOException {
+        if (current != null) {
+            current.buffer.force();
+        }
+        File file = new File(directory, String.format("%08d", id) + EXTENSION);
+        MappedByteBuffer buffer;
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.setLength(size);
+            buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+        }
+        buffer.putInt(0, SEGMENT_MAGIC);
+        buffer.putInt(4, HEADER_LENGTH);
+        return new Segment(id, buffer, HEADER_LENGTH);
+    }
+
+    /**
+     * Mappa un segmento esistente e ne legge la fine dei dati dall'intestazione.
+     */
+    private static Segment open(File file, int id) throws IOException {
+        MappedByteBuffer buffer;
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, raf.length());
+        }
+        if (buffer.capacity() < HEADER_LENGTH || buffer.getInt(0) != SEGMENT_MAGIC) {
+            throw new IOException("Segmento non valido: " + file.getName());
+        }
+        int end = buffer.getInt(4);
+        if (end < HEADER_LENGTH || end > buffer.capacity()) {
+            throw new IOException("Segmento danneggiato: " + file.getName());
+        }
+        return new Segment(id, buffer, end);
+    }
+}
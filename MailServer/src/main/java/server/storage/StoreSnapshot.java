@@ -0,0 +1,110 @@
+package server.storage;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Vista coerente dei file delle mailbox in un istante, catturata senza fermare il server
+ * (vedi {@link FileManager#captureSnapshot()}).
+ * <p>
+ * Ogni file viene collegato con un hard link in una directory dedicata: snapshot, catalogo e segmenti non
+ * vengono mai riscritti sul posto (un checkpoint scrive un file nuovo e lo rinomina, un segmento eliminato
+ * viene solo scollegato), quindi il link conserva il contenuto dell'istante della cattura. Journal, catalogo
+ * e segmenti crescono solo in coda: di questi si registra la lunghezza al momento della cattura e la copia
+ * si ferma lì. Se il file system non supporta gli hard link, il file viene copiato.
+ * </p>
+ * I file restano occupati finché non si chiama {@link #discard()}.
+ */
+public class StoreSnapshot {
+    private final File directory;                   // Directory con i link dei file catturati
+    private final List<Item> items = new ArrayList<>();
+    private final long createdMillis = System.currentTimeMillis();
+    private int copied = 0;                         // File copiati perché il link non è riuscito
+
+    /**
+     * File catturato.
+     */
+    static final class Item {
+        final String name;          // Percorso nell'archivio, relativo alla directory dei dati
+        final File file;            // Link (o copia) del file
+        final long length;          // Byte da copiare
+        final int segmentEnd;       // Fine dei dati da scrivere nell'intestazione di un segmento (-1 se non è un segmento)
+
+        private Item(String name, File file, long length, int segmentEnd) {
+            this.name = name;
+            this.file = file;
+            this.length = length;
+            this.segmentEnd = segmentEnd;
+        }
+    }
+
+    StoreSnapshot(File directory) throws IOException {
+        this.directory = directory;
+        Files.createDirectories(directory.toPath());
+    }
+
+    /**
+     * Aggiunge un file alla vista.
+     * @param name percorso nell'archivio
+     * @param source file da catturare
+     * @param length byte validi al momento della cattura
+     * @param segmentEnd fine dei dati di un segmento, -1 per gli altri file
+     * @throws IOException se il file non può essere né collegato né copiato
+     */
+    void add(String name, File source, long length, int segmentEnd) throws IOException {
+        File link = new File(directory, name);
+        Files.createDirectories(link.getParentFile().toPath());
+        try {
+            Files.createLink(link.toPath(), source.toPath());
+        } catch (IOException | UnsupportedOperationException e) {
+            Files.copy(source.toPath(), link.toPath());
+            copied++;
+        }
+        items.add(new Item(name, link, length, segmentEnd));
+    }
+
+    List<Item> items() {
+        return Collections.unmodifiableList(items);
+    }
+
+    /**
+     * Byte complessivi dei file catturati.
+     * @return dimensione della vista
+     */
+    public long totalBytes() {
+        long total = 0;
+        for (Item item : items) {
+            total += item.length;
+        }
+        return total;
+    }
+
+    public int fileCount() { return items.size(); }
+
+    public int copiedCount() { return copied; }
+
+    public long getCreatedMillis() { return createdMillis; }
+
+    /**
+     * Elimina i link: i file sostituiti o eliminati dopo la cattura liberano lo spazio.
+     */
+    public void discard() {
+        delete(directory);
+    }
+
+    static void delete(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+        if (file.exists() && !file.delete()) {
+            System.err.println("Impossibile eliminare " + file.getPath());
+        }
+    }
+}
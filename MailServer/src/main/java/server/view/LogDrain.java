@@ -0,0 +1,77 @@
+package server.view;
+
+import javafx.animation.Animation;
+import javafx.animation.KeyFrame;
+import javafx.animation.Timeline;
+import javafx.collections.ObservableList;
+import javafx.util.Duration;
+import server.model.ServerLog;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Svuota il {@link ServerLog} nella lista mostrata dalla vista, a frequenza fissa e a lotti.
+ * <p>
+ * A ogni aggiornamento (ogni {@link #FRAME_MILLIS} ms, sul thread JavaFX) legge i messaggi arrivati nel frattempo
+ * e li aggiunge alla lista con una sola modifica, poi rimuove in un colpo le righe oltre la storia conservata.
+ * Il thread JavaFX riceve quindi un evento per aggiornamento, non uno per messaggio, e la memoria della vista
+ * resta limitata qualunque sia il volume del log.
+ * </p>
+ */
+public class LogDrain {
+    private static final long FRAME_MILLIS = 100;       // Intervallo tra due aggiornamenti della vista
+    private static final int MAX_LINES_PER_FRAME = 4096; // Messaggi letti al massimo per aggiornamento
+
+    private final ServerLog log;                        // Buffer da svuotare
+    private final ObservableList<String> lines;         // Righe mostrate dalla vista
+    private final int historyLines;                     // Righe conservate al massimo
+    private final List<String> batch = new ArrayList<>(); // Lotto riusato tra gli aggiornamenti
+    private final Timeline timeline;                    // Aggiornamento periodico sul thread JavaFX
+
+    /**
+     * Crea lo svuotamento senza avviarlo.
+     * @param log buffer del log del server
+     * @param lines lista collegata alla vista
+     * @param historyLines righe conservate al massimo (almeno 1)
+     */
+    public LogDrain(ServerLog log, ObservableList<String> lines, int historyLines) {
+        this.log = log;
+        this.lines = lines;
+        this.historyLines = Math.max(1, historyLines);
+        this.timeline = new Timeline(new KeyFrame(Duration.millis(FRAME_MILLIS), e -> drain()));
+        this.timeline.setCycleCount(Animation.INDEFINITE);
+    }
+
+    /**
+     * Avvia gli aggiornamenti periodici.
+     */
+    public void start() {
+        timeline.play();
+    }
+
+    /**
+     * Ferma gli aggiornamenti dopo aver mostrato i messaggi ancora nel buffer. Da chiamare sul thread JavaFX.
+     */
+    public void stop() {
+        timeline.stop();
+        drain();
+    }
+
+    /**
+     * Legge un lotto dal buffer e aggiorna la lista con al più un'aggiunta e una rimozione.
+     */
+    private void drain() {
+        batch.clear();
+        log.drain(batch, MAX_LINES_PER_FRAME);
+        if (batch.isEmpty()) {
+            return;
+        }
+        List<String> added = batch.size() > historyLines ? batch.subList(batch.size() - historyLines, batch.size()) : batch;
+        int excess = lines.size() + added.size() - historyLines;
+        if (excess > 0) {
+            lines.remove(0, excess);
+        }
+        lines.addAll(added);
+    }
+}
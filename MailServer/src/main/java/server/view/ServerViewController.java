@@ -1,9 +1,16 @@
 package server.view;
 
+import javafx.collections.FXCollections;
 import javafx.fxml.FXML;
 import javafx.fxml.Initializable;
 import javafx.scene.control.ListView;
+import server.ServerConfig;
+import server.controller.RequestProcessor;
+import server.controller.SubscriptionManager;
 import server.model.ServerModel;
+import server.network.HandlerExecutor;
+import server.network.NioSocketServer;
+import server.network.ServerEngine;
 import server.network.SocketServer;
 import java.net.URL;
 import java.util.ResourceBundle;
@@ -18,8 +25,12 @@ public class ServerViewController implements Initializable {
 
     // Modello che gestisce i dati e i log del server
     private ServerModel model;
-    // Istanza del server socket
-    private SocketServer socketServer;
+    // Motore di trasporto in uso (SocketServer bloccante oppure NioSocketServer)
+    private ServerEngine socketServer;
+    // Gestore delle connessioni SUBSCRIBE a cui il server invia le nuove email
+    private SubscriptionManager subscriptions;
+    // Porta i messaggi del log del server nella ListView, a lotti e con storia limitata
+    private LogDrain logDrain;
 
     /**
      * Inizializza il controller e avvia il server socket.
@@ -30,17 +41,52 @@ public class ServerViewController implements Initializable {
     public void initialize(URL location, ResourceBundle resources) {
         // Crea il modello del server
         model = new ServerModel();
-        // Collega la lista dei log al ListView
-        logListView.setItems(model.getServerLog());
+        // Collega il log del server al ListView: le righe arrivano a lotti dal buffer del modello
+        logListView.setItems(FXCollections.observableArrayList());
+        logDrain = new LogDrain(model.getServerLog(), logListView.getItems(), ServerConfig.logHistoryLines());
+        logDrain.start();
 
-        // Avvia il server socket in un thread separato
-        socketServer = new SocketServer(8080, model);
+        // Avvia il motore di trasporto in un thread separato (porta, motore e modalità degli handler da ServerConfig)
+        int port = ServerConfig.port();
+        socketServer = createEngine(port);
         Thread serverThread = new Thread(socketServer);
         serverThread.setDaemon(true); // Il thread si chiude con l'applicazione
         serverThread.start();
 
         // Aggiunge un messaggio di log all'avvio
-        model.addToLog("Server avviato sulla porta 8080");
+        model.addToLog("Server avviato sulla porta " + port);
+        // Precarica le mailbox in background: le richieste vengono servite anche prima che termini
+        model.startPreload();
+    }
+
+    /**
+     * Crea il motore di trasporto selezionato con -Dmailserver.engine (blocking oppure nio).
+     * @param port porta su cui ascoltare
+     * @return motore di trasporto da avviare
+     */
+    private ServerEngine createEngine(int port) {
+        subscriptions = new SubscriptionManager(model,
+                HandlerExecutor.newUnboundedExecutor("push-writer"), ServerConfig.pushHeartbeatMillis());
+        RequestProcessor processor = new RequestProcessor(model, subscriptions);
+        HandlerExecutor executor = new HandlerExecutor(
+                HandlerExecutor.Mode.fromName(ServerConfig.executionMode()),
+                ServerConfig.maxConcurrentHandlers(),
+                ServerConfig.handlerQueueCapacity());
+        if ("nio".equalsIgnoreCase(ServerConfig.engine())) {
+            return new NioSocketServer(port, model, processor, ServerConfig.nioIoThreads(), executor,
+                    ServerConfig.drainTimeoutMillis());
+        }
+        return new SocketServer(port, model, processor, executor, ServerConfig.drainTimeoutMillis());
+    }
+
+    /**
+     * Avvia il backup online dei dati; l'esito compare nel log.
+     */
+    @FXML
+    private void handleBackup() {
+        if (!model.startBackup()) {
+            model.addToLog("Backup già in corso");
+        }
     }
 
     /**
@@ -49,7 +95,10 @@ public class ServerViewController implements Initializable {
     public void shutdown() {
         if (socketServer != null) {
             socketServer.stop();
+            subscriptions.close();
+            model.close(ServerConfig.drainTimeoutMillis());
             model.addToLog("Server arrestato");
+            logDrain.stop();
         }
     }
 }
\ No newline at end of file